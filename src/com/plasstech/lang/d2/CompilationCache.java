@@ -0,0 +1,302 @@
+package com.plasstech.lang.d2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.plasstech.lang.d2.common.D2Options;
+
+/**
+ * A directory of compiled programs, so that a program that has not changed since it was last
+ * compiled, with the same compiler and options, does not have to be compiled again. Each entry is
+ * keyed by a hash of the source code, the options that change the generated code and the classes
+ * of the compiler itself, and holds the asm code. Entries older than the maximum age are evicted,
+ * then the least recently used ones until the directory is below its maximum size.
+ *
+ * <p>Several compilers can share a directory: entries are written to a temporary file, then
+ * renamed, and unreadable entries are treated as misses.
+ */
+public class CompilationCache {
+  /** Changes whenever the format of an entry changes. */
+  private static final int FORMAT_VERSION = 2;
+
+  private static final int MAGIC = 0x44324343; // D2CC
+  private static final String SUFFIX = ".d2c";
+  // Where the classes of the compiler are, in a directory or a jar.
+  private static final String COMPILER_CLASSES = "com/plasstech/lang/d2/";
+
+  private static final Supplier<HashCode> COMPILER_FINGERPRINT =
+      Suppliers.memoize(
+          () ->
+              fingerprint(
+                  Splitter.on(File.pathSeparatorChar)
+                      .omitEmptyStrings()
+                      .splitToStream(System.getProperty("java.class.path"))
+                      .map(Paths::get)
+                      .collect(Collectors.toList())));
+
+  /** The asm code of a compiled program. */
+  public static class Artifact {
+    private final ImmutableList<String> asmCode;
+
+    public Artifact(List<String> asmCode) {
+      this.asmCode = ImmutableList.copyOf(asmCode);
+    }
+
+    public ImmutableList<String> asmCode() {
+      return asmCode;
+    }
+  }
+
+  /** A file in the directory. */
+  private static class Entry {
+    private final Path file;
+    private final long lastModified;
+    private final long size;
+
+    Entry(Path file, long lastModified, long size) {
+      this.file = file;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+  }
+
+  private final Path dir;
+  private final long maxBytes;
+  private final Duration maxAge;
+
+  public CompilationCache(Path dir, long maxBytes, Duration maxAge) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * Returns whether code compiled with the given options may be cached. Code optimized under a
+   * time budget depends on how fast the machine is, so it is not.
+   */
+  public static boolean cacheable(D2Options options) {
+    return !options.optimize || options.optTimeBudgetMs == 0;
+  }
+
+  /** Returns the key of the given source code, compiled with the given options. */
+  public static HashCode key(String sourceCode, D2Options options) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBytes(COMPILER_FINGERPRINT.get().asBytes());
+    hasher.putBoolean(options.optimize);
+    hasher.putBoolean(options.optimizeAsm);
+    hasher.putInt(options.optMaxPasses);
+    hasher.putInt(options.optTimeBudgetMs);
+    hasher.putString(options.target.name(), StandardCharsets.UTF_8);
+    hasher.putString(sourceCode, StandardCharsets.UTF_8);
+    return hasher.hash();
+  }
+
+  /**
+   * Returns a hash of the compiler classes in the given class path, so that a new build of the
+   * compiler does not use the code generated by an old one. If the classes cannot be read, returns
+   * a random hash, so nothing cached by another process is used.
+   */
+  static HashCode fingerprint(List<Path> classPath) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    try {
+      for (Path entry : classPath) {
+        if (Files.isDirectory(entry)) {
+          hashDirectory(entry, hasher);
+        } else if (Files.isRegularFile(entry)) {
+          hashJar(entry, hasher);
+        }
+      }
+    } catch (IOException e) {
+      return Hashing.sha256().hashString(UUID.randomUUID().toString(), StandardCharsets.UTF_8);
+    }
+    return hasher.hash();
+  }
+
+  private static void hashDirectory(Path root, Hasher hasher) throws IOException {
+    Path classes = root.resolve(COMPILER_CLASSES);
+    if (!Files.isDirectory(classes)) {
+      return;
+    }
+    List<Path> files;
+    try (Stream<Path> stream = Files.walk(classes)) {
+      files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      hasher.putString(root.relativize(file).toString(), StandardCharsets.UTF_8);
+      hasher.putBytes(Files.readAllBytes(file));
+    }
+  }
+
+  private static void hashJar(Path jar, Hasher hasher) throws IOException {
+    try (JarFile jarFile = new JarFile(jar.toFile())) {
+      List<JarEntry> entries =
+          jarFile.stream()
+              .filter(entry -> entry.getName().startsWith(COMPILER_CLASSES))
+              .sorted(Comparator.comparing(JarEntry::getName))
+              .collect(Collectors.toList());
+      for (JarEntry entry : entries) {
+        // The checksum of the contents, from the directory of the jar.
+        hasher.putString(entry.getName(), StandardCharsets.UTF_8);
+        hasher.putLong(entry.getCrc());
+        hasher.putLong(entry.getSize());
+      }
+    }
+  }
+
+  /** Returns the artifact with the given key, if it is in the cache. */
+  public Optional<Artifact> get(HashCode key) {
+    Path file = file(key);
+    if (!Files.isRegularFile(file)) {
+      return Optional.empty();
+    }
+    try {
+      if (isExpired(Files.getLastModifiedTime(file).toMillis(), System.currentTimeMillis())) {
+        Files.deleteIfExists(file);
+        return Optional.empty();
+      }
+      Artifact artifact;
+      try (DataInputStream in =
+          new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+        artifact = read(in);
+      }
+      // Marks it as recently used.
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return Optional.of(artifact);
+    } catch (IOException e) {
+      // Corrupt, or deleted by another compiler.
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ignored) {
+        // Another compiler will try again.
+      }
+      return Optional.empty();
+    }
+  }
+
+  /** Adds the artifact to the cache, then evicts old entries. */
+  public void put(HashCode key, Artifact artifact) throws IOException {
+    Files.createDirectories(dir);
+    Path temp = Files.createTempFile(dir, key.toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))) {
+        write(artifact, out);
+      }
+      Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    evict();
+  }
+
+  /**
+   * Deletes the entries that are older than the maximum age, then the least recently used ones
+   * until the total size is at most the maximum size.
+   */
+  private void evict() throws IOException {
+    long now = System.currentTimeMillis();
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      stream.forEach(files::add);
+    }
+    List<Entry> entries = new ArrayList<>();
+    for (Path file : files) {
+      try {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (isExpired(lastModified, now)) {
+          Files.deleteIfExists(file);
+        } else {
+          entries.add(new Entry(file, lastModified, Files.size(file)));
+        }
+      } catch (IOException e) {
+        // Deleted by another compiler.
+      }
+    }
+    entries.sort(Comparator.comparingLong((Entry entry) -> entry.lastModified).reversed());
+    long total = 0;
+    for (Entry entry : entries) {
+      total += entry.size;
+      if (total > maxBytes) {
+        Files.deleteIfExists(entry.file);
+      }
+    }
+  }
+
+  private boolean isExpired(long lastModified, long now) {
+    return now - lastModified > maxAge.toMillis();
+  }
+
+  private Path file(HashCode key) {
+    return dir.resolve(key.toString() + SUFFIX);
+  }
+
+  private static void write(Artifact artifact, DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    writeLines(artifact.asmCode(), out);
+  }
+
+  private static Artifact read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+      throw new IOException("Not a compilation cache entry");
+    }
+    return new Artifact(readLines(in));
+  }
+
+  private static void writeLines(List<String> lines, DataOutputStream out) throws IOException {
+    out.writeInt(lines.size());
+    for (String line : lines) {
+      // Not writeUTF, which is limited to 64K.
+      byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static ImmutableList<String> readLines(DataInputStream in) throws IOException {
+    int size = readSize(in);
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    for (int i = 0; i < size; ++i) {
+      byte[] bytes = new byte[readSize(in)];
+      in.readFully(bytes);
+      lines.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return lines.build();
+  }
+
+  private static int readSize(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Bad size " + size);
+    }
+    return size;
+  }
+}
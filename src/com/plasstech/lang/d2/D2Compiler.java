@@ -4,9 +4,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Optional;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSink;
 import com.google.common.io.CharSource;
@@ -18,6 +23,10 @@ import com.plasstech.lang.d2.codegen.x64.optimize.NasmOptimizer;
 import com.plasstech.lang.d2.common.CompilationConfiguration;
 import com.plasstech.lang.d2.common.D2Options;
 import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.phase.InstrumentedPhase;
+import com.plasstech.lang.d2.phase.PhaseName;
+import com.plasstech.lang.d2.phase.PhaseStats;
+import com.plasstech.lang.d2.phase.PhaseTimer;
 import com.plasstech.lang.d2.phase.State;
 
 /**
@@ -38,8 +47,52 @@ public class D2Compiler {
     CharSource charSource = Files.asCharSource(sourceFile, Charset.defaultCharset());
     String sourceCode = charSource.read();
 
+    CompilationCache cache = null;
+    HashCode key = null;
+    if (!options.cacheDir.isEmpty() && CompilationCache.cacheable(options)) {
+      cache =
+          new CompilationCache(
+              Paths.get(options.cacheDir),
+              options.cacheMaxMb * 1024L * 1024L,
+              Duration.ofDays(options.cacheMaxAgeDays));
+      key = CompilationCache.key(sourceCode, options);
+      // Debug output is only printed when compiling.
+      if (!debugging(options)) {
+        Optional<CompilationCache.Artifact> artifact = cache.get(key);
+        if (artifact.isPresent()) {
+          if (options.showCommands) {
+            System.out.printf("Using cached %s\n", key);
+          }
+          State state =
+              State.create(sourceCode).build().addAsmCode(artifact.get().asmCode());
+          state = writeAsmAndLink(options, sourceFilename, state);
+          printStats(options, state);
+          return;
+        }
+      }
+    }
+
     State state = compileToIntermediateLanguage(options, sourceCode);
-    generateAsmAndLink(options, sourceFilename, state);
+    state = generateAsm(options, state);
+    if (cache != null && !state.error()) {
+      cache.put(key, new CompilationCache.Artifact(state.asmCode()));
+    }
+    state = writeAsmAndLink(options, sourceFilename, state);
+    printStats(options, state);
+  }
+
+  private static void printStats(D2Options options, State state) {
+    if (options.stats) {
+      System.out.print(PhaseStats.table(state.phaseStats()));
+    }
+  }
+
+  private static boolean debugging(D2Options options) {
+    return options.debuglex > 0
+        || options.debugparse > 0
+        || options.debugtype > 0
+        || options.debugcodegen > 0
+        || options.debugopt > 0;
   }
 
   private static State compileToIntermediateLanguage(D2Options options, String sourceCode) {
@@ -55,6 +108,8 @@ public class D2Compiler {
               .setCodeGenDebugLevel(options.debugcodegen)
               .setOptDebugLevel(options.debugopt)
               .setOptimize(options.optimize)
+              .setOptMaxPasses(options.optMaxPasses)
+              .setOptTimeBudgetMs(options.optTimeBudgetMs)
               .build();
       state = yac.compile(config);
     } catch (D2RuntimeException re) {
@@ -68,11 +123,12 @@ public class D2Compiler {
     return state;
   }
 
-  private static void generateAsmAndLink(D2Options options, String sourceFilename, State state)
-      throws IOException, InterruptedException {
+  private static State generateAsm(D2Options options, State state) {
     switch (options.target) {
       case x64:
-        state = new NasmCodeGenerator().execute(state);
+        state =
+            new InstrumentedPhase(PhaseName.ASM_CODEGEN, new NasmCodeGenerator(), D2Compiler::lines)
+                .execute(state);
         break;
 
       default:
@@ -91,7 +147,9 @@ public class D2Compiler {
     }
 
     if (options.optimizeAsm) {
-      state = new NasmOptimizer().execute(state);
+      state =
+          new InstrumentedPhase(PhaseName.ASM_OPTIMIZE, new NasmOptimizer(), D2Compiler::lines)
+              .execute(state);
 
       if (options.debugcodegen > 0) {
         System.out.println("------------------------------");
@@ -100,7 +158,16 @@ public class D2Compiler {
         System.out.println("------------------------------");
       }
     }
+    return state;
+  }
 
+  private static ImmutableMap<String, Long> lines(State state) {
+    return ImmutableMap.of("lines", (long) state.asmCode().size());
+  }
+
+  /** Returns the state with the stats of the assembler and linker, if they were run. */
+  private static State writeAsmAndLink(D2Options options, String sourceFilename, State state)
+      throws IOException, InterruptedException {
     File dir = new File(System.getProperty("user.dir"));
     String baseName = Files.getNameWithoutExtension(sourceFilename);
     File asmFile = new File(dir, baseName + "." + options.target.extension);
@@ -117,7 +184,9 @@ public class D2Compiler {
     if (!options.compileOnly) {
       switch (options.target) {
         case x64:
-          x64Assemble(options, dir, baseName, asmFile);
+          for (PhaseStats stats : x64Assemble(options, dir, baseName, asmFile)) {
+            state = state.addPhaseStats(stats);
+          }
           break;
 
         default:
@@ -132,10 +201,17 @@ public class D2Compiler {
       asmFile.delete();
     }
     state.stopOnError(options.debugcodegen > 0 || options.showStackTraces);
+    return state;
   }
 
-  private static void x64Assemble(D2Options options, File dir, String baseName, File asmFile)
+  /**
+   * Runs nasm and gcc and returns their stats. Only their wall time is measured; CPU time and
+   * allocations are those of this process while it waits.
+   */
+  private static ImmutableList<PhaseStats> x64Assemble(
+      D2Options options, File dir, String baseName, File asmFile)
       throws IOException, InterruptedException {
+    ImmutableList.Builder<PhaseStats> stats = ImmutableList.builder();
 
     File objFile = new File(dir, baseName + ".obj");
     if (objFile.exists()) {
@@ -149,9 +225,11 @@ public class D2Compiler {
     if (options.showCommands) {
       System.out.println(Joiner.on(" ").join(pb.command()));
     }
+    PhaseTimer timer = PhaseTimer.start();
     Process process = pb.start();
     process.waitFor();
     assertNoProcessError(process, "Assembling");
+    stats.add(timer.stop("nasm").withSizes(ImmutableMap.of("bytes", objFile.length())));
 
     if (!options.compileAndAssembleOnly) {
       File exeFile = new File(dir, options.exeName);
@@ -176,14 +254,16 @@ public class D2Compiler {
       if (options.showCommands) {
         System.out.println(Joiner.on(" ").join(pb.command()));
       }
+      timer = PhaseTimer.start();
       process = pb.start();
       process.waitFor();
       assertNoProcessError(process, "Linking");
+      stats.add(timer.stop("gcc").withSizes(ImmutableMap.of("bytes", exeFile.length())));
       if (!options.saveTemps) {
         objFile.delete();
       }
     }
-
+    return stats.build();
   }
 
   private static void assertNoProcessError(Process process, String name) throws IOException {
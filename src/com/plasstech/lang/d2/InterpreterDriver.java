@@ -1,6 +1,7 @@
 package com.plasstech.lang.d2;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
@@ -8,7 +9,9 @@ import com.google.common.base.Joiner;
 import com.google.devtools.common.options.OptionsParser;
 import com.plasstech.lang.d2.common.CompilationConfiguration;
 import com.plasstech.lang.d2.common.D2Options;
+import com.plasstech.lang.d2.common.D2RuntimeException;
 import com.plasstech.lang.d2.interpreter.InterpreterResult;
+import com.plasstech.lang.d2.interpreter.Profile;
 
 public class InterpreterDriver {
 
@@ -57,9 +60,42 @@ public class InterpreterDriver {
                 .setOptDebugLevel(options.debugopt)
                 .setOptimize(options.optimize).build())
             .setIntDebugLevel(options.debugint)
+            .setEngine(options.engine)
+            .setMaxIterations(options.maxIterations)
+            .setMaxCallDepth(options.maxCallDepth)
+            .setJitThreshold(options.jitThreshold)
+            .setProfiling(options.profile)
             .setInteractive(true);
 
-    InterpreterResult result = ee.execute();
+    InterpreterResult result;
+    try {
+      result = ee.execute();
+    } catch (D2RuntimeException e) {
+      if (options.showStackTraces) {
+        throw e;
+      }
+      System.err.println(e.toString());
+      System.exit(-1);
+      return;
+    }
+    if (result.budgetExhausted()) {
+      System.err.printf(
+          "\nStopped after %d iterations; use --max-iterations to change the limit.\n",
+          options.maxIterations);
+    }
+    if (result.profile().isPresent()) {
+      Profile profile = result.profile().get();
+      System.out.println("\nPROFILE:");
+      System.out.println("------------------------------");
+      System.out.println(profile.hotSpots(20));
+      if (!options.profileStacks.isEmpty()) {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(options.profileStacks))) {
+          profile.writeCollapsedStacks(writer);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
     if (options.debugparse > 0) {
       System.out.println("\nPARSED PROGRAM:");
       System.out.println("------------------------------");
@@ -89,10 +125,6 @@ public class InterpreterDriver {
       System.out.printf("Calls: %d\n", result.calls());
       System.out.println("Env:");
       System.out.println(result.environment());
-      System.out.println("------------------------------");
-      System.out.println("SYSTEM.OUT:");
-      System.out.println("------------------------------");
-      System.out.println(Joiner.on("").join(result.environment().output()));
     }
   }
 }
@@ -1,8 +1,13 @@
 package com.plasstech.lang.d2;
 
 import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.InterpreterEngine;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.interpreter.InputSource;
 import com.plasstech.lang.d2.interpreter.Interpreter;
 import com.plasstech.lang.d2.interpreter.InterpreterResult;
+import com.plasstech.lang.d2.interpreter.OutputSink;
+import com.plasstech.lang.d2.interpreter.ThreadedInterpreter;
 import com.plasstech.lang.d2.phase.State;
 
 public class InterpreterExecutor {
@@ -12,6 +17,15 @@ public class InterpreterExecutor {
   private State state;
   private InterpreterResult result;
   private int debugInt;
+  private InterpreterEngine engine = InterpreterEngine.THREADED;
+  private long maxIterations = Interpreter.DEFAULT_MAX_ITERATIONS;
+  private long maxCallDepth = Interpreter.DEFAULT_MAX_CALL_DEPTH;
+  private int jitThreshold = ThreadedInterpreter.DEFAULT_JIT_THRESHOLD;
+  private boolean profiling;
+  private OutputSink output;
+  private InputSource input;
+  private ProgramCache cache;
+  private CompiledProgram program;
 
   public InterpreterExecutor(String sourceCode) {
     this(CompilationConfiguration.create(sourceCode));
@@ -22,6 +36,13 @@ public class InterpreterExecutor {
     this.state = State.create(config.sourceCode()).build();
   }
 
+  /** An executor whose {@link #execute()} runs the given program, without compiling anything. */
+  public InterpreterExecutor(CompiledProgram program) {
+    this(CompilationConfiguration.create(program.state().sourceCode()));
+    this.program = program;
+    this.state = program.state();
+  }
+
   public InterpreterExecutor setIntDebugLevel(int debugInt) {
     this.debugInt = debugInt;
     return this;
@@ -32,7 +53,77 @@ public class InterpreterExecutor {
     return this;
   }
 
+  public InterpreterExecutor setEngine(InterpreterEngine engine) {
+    this.engine = engine;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of ops to run before stopping the program, or {@link
+   * Interpreter#UNLIMITED}.
+   */
+  public InterpreterExecutor setMaxIterations(long maxIterations) {
+    this.maxIterations = maxIterations;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of nested procedure calls, or {@link Interpreter#UNLIMITED}. Calling
+   * deeper stops the program with a stack overflow error.
+   */
+  public InterpreterExecutor setMaxCallDepth(long maxCallDepth) {
+    this.maxCallDepth = maxCallDepth;
+    return this;
+  }
+
+  /**
+   * Sets the number of calls after which the threaded engine compiles a procedure to JVM bytecode,
+   * or {@link ThreadedInterpreter#NO_JIT}.
+   */
+  public InterpreterExecutor setJitThreshold(int jitThreshold) {
+    this.jitThreshold = jitThreshold;
+    return this;
+  }
+
+  /**
+   * Sets where printed output goes, instead of standard out if interactive, or the output list of
+   * the global environment otherwise.
+   */
+  public InterpreterExecutor setOutputSink(OutputSink output) {
+    this.output = output;
+    return this;
+  }
+
+  /** Sets where INPUT reads from, instead of standard in. */
+  public InterpreterExecutor setInputSource(InputSource input) {
+    this.input = input;
+    return this;
+  }
+
+  /** Turns on recording of an execution profile, available via InterpreterResult.profile(). */
+  public InterpreterExecutor setProfiling(boolean profiling) {
+    this.profiling = profiling;
+    return this;
+  }
+
+  /**
+   * Compiles programs via the given cache, so that running the same source again skips
+   * compilation. Programs that do not compile throw instead of returning a state with errors.
+   */
+  public InterpreterExecutor setProgramCache(ProgramCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
   public InterpreterResult execute() {
+    if (program != null) {
+      return execute(program);
+    }
+    if (cache != null) {
+      CompiledProgram program = cache.get(config);
+      state = program.state();
+      return execute(program);
+    }
     YetAnotherCompiler yac = new YetAnotherCompiler();
     state = yac.compile(config);
     return execute(state);
@@ -42,9 +133,47 @@ public class InterpreterExecutor {
     if (state.ilCode() == null || state.ilCode().isEmpty()) {
       throw new IllegalStateException("No il code in state");
     }
-    Interpreter interpreter = new Interpreter(state, interactive);
-    interpreter.setDebugLevel(debugInt);
-    result = interpreter.execute();
+    return execute(CompiledProgram.of(state));
+  }
+
+  /**
+   * Runs an already-compiled program. The same program may be run any number of times, by any
+   * number of executors at once; each executor itself must only be used by one thread at a time.
+   */
+  public InterpreterResult execute(CompiledProgram program) {
+    switch (engine) {
+      case CLASSIC:
+        Interpreter interpreter = new Interpreter(program, interactive);
+        interpreter.setDebugLevel(debugInt);
+        interpreter.setMaxIterations(maxIterations);
+        interpreter.setMaxCallDepth(maxCallDepth);
+        interpreter.setProfiling(profiling);
+        if (output != null) {
+          interpreter.setOutputSink(output);
+        }
+        if (input != null) {
+          interpreter.setInputSource(input);
+        }
+        result = interpreter.execute();
+        break;
+
+      case THREADED:
+      default:
+        ThreadedInterpreter threaded = new ThreadedInterpreter(program, interactive);
+        threaded.setDebugLevel(debugInt);
+        threaded.setMaxIterations(maxIterations);
+        threaded.setMaxCallDepth(maxCallDepth);
+        threaded.setJitThreshold(jitThreshold);
+        threaded.setProfiling(profiling);
+        if (output != null) {
+          threaded.setOutputSink(output);
+        }
+        if (input != null) {
+          threaded.setInputSource(input);
+        }
+        result = threaded.execute();
+        break;
+    }
     return result;
   }
 
@@ -0,0 +1,53 @@
+package com.plasstech.lang.d2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.lex.Lexer;
+
+/**
+ * Measures lexer throughput, in tokens per second, over the given files. Each file is lexed
+ * repeatedly until the JIT has warmed up, then timed.
+ *
+ * <p>To run:
+ *
+ * <pre>
+ * bazel run src/com/plasstech/lang/d2:LexerBenchmark -- $PWD/samples/non-golden/v5.d
+ * </pre>
+ */
+public class LexerBenchmark {
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int TIMED_ROUNDS = 50;
+
+  public static void main(String[] args) throws IOException {
+    for (String filename : args) {
+      char[] text = new String(Files.readAllBytes(Paths.get(filename))).toCharArray();
+      for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+        lex(text);
+      }
+      long tokens = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < TIMED_ROUNDS; ++i) {
+        tokens += lex(text);
+      }
+      long nanos = System.nanoTime() - start;
+      System.out.printf(
+          "%s: %d tokens in %.2f ms per round, %.1f M tokens/sec%n",
+          filename,
+          tokens / TIMED_ROUNDS,
+          nanos / 1e6 / TIMED_ROUNDS,
+          tokens * 1e3 / nanos);
+    }
+  }
+
+  private static int lex(char[] text) {
+    Lexer lexer = new Lexer(text);
+    int count = 1;
+    while (lexer.nextToken().type() != TokenType.EOF) {
+      count++;
+    }
+    return count;
+  }
+}
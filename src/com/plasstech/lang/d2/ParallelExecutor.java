@@ -0,0 +1,87 @@
+package com.plasstech.lang.d2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Throwables;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.interpreter.InterpreterResult;
+
+/**
+ * Runs one {@link CompiledProgram} many times in parallel, e.g., over many inputs. Every run has
+ * its own {@link InterpreterExecutor}, and so its own environment, output and statistics; only
+ * the immutable program is shared.
+ */
+public class ParallelExecutor implements AutoCloseable {
+  private final CompiledProgram program;
+  private final ExecutorService pool;
+  private final boolean ownsPool;
+
+  /** Runs on a new pool of the given number of threads, which is shut down by {@link #close}. */
+  public ParallelExecutor(CompiledProgram program, int threads) {
+    this(program, Executors.newFixedThreadPool(threads), true);
+  }
+
+  /** Runs on the given pool, e.g., one that starts a virtual thread per task. */
+  public ParallelExecutor(CompiledProgram program, ExecutorService pool) {
+    this(program, pool, false);
+  }
+
+  private ParallelExecutor(CompiledProgram program, ExecutorService pool, boolean ownsPool) {
+    this.program = program;
+    this.pool = pool;
+    this.ownsPool = ownsPool;
+  }
+
+  /** Starts one run, first letting the caller set up its executor, e.g., its output sink. */
+  public <T> Future<InterpreterResult> submit(
+      T input, BiConsumer<T, InterpreterExecutor> configure) {
+    return pool.submit(
+        () -> {
+          InterpreterExecutor executor = new InterpreterExecutor(program);
+          configure.accept(input, executor);
+          return executor.execute();
+        });
+  }
+
+  /**
+   * Runs the program once per input, in parallel, and waits for all runs to finish.
+   *
+   * @param configure sets up the executor of each run, given its input
+   * @return the result of each run, in the same order as the inputs
+   * @throws RuntimeException the exception of the first run that threw one, e.g., a {@link
+   *     com.plasstech.lang.d2.common.D2RuntimeException}
+   */
+  public <T> List<InterpreterResult> executeAll(
+      List<T> inputs, BiConsumer<T, InterpreterExecutor> configure) throws InterruptedException {
+    List<Future<InterpreterResult>> futures = new ArrayList<>(inputs.size());
+    for (T input : inputs) {
+      futures.add(submit(input, configure));
+    }
+    List<InterpreterResult> results = new ArrayList<>(inputs.size());
+    try {
+      for (Future<InterpreterResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (ExecutionException e) {
+      for (Future<InterpreterResult> future : futures) {
+        future.cancel(true);
+      }
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  @Override
+  public void close() {
+    if (ownsPool) {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.plasstech.lang.d2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.interpreter.OutputSink;
+
+/**
+ * Measures {@link ParallelExecutor} throughput, in runs per second, of each of the given programs
+ * on 1, 2, 4 and as many threads as there are processors. Each program is compiled once and run
+ * repeatedly on all the threads until the JIT has warmed up, then timed on each number of
+ * threads.
+ *
+ * <p>To run:
+ *
+ * <pre>
+ * bazel run src/com/plasstech/lang/d2:ParallelExecutorBenchmark -- $PWD/samples/fib.d
+ * </pre>
+ */
+public class ParallelExecutorBenchmark {
+  private static final int WARMUP_RUNS = 20000;
+  private static final int TIMED_RUNS = 5000;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    TreeSet<Integer> threadCounts = new TreeSet<>(List.of(1, 2, 4));
+    threadCounts.add(Runtime.getRuntime().availableProcessors());
+    for (String filename : args) {
+      String sourceCode = new String(Files.readAllBytes(Paths.get(filename)));
+      CompiledProgram program =
+          new ProgramCache()
+              .get(
+                  CompilationConfiguration.builder()
+                      .setSourceCode(sourceCode)
+                      .setOptimize(true)
+                      .build());
+      try (ParallelExecutor parallel = new ParallelExecutor(program, threadCounts.last())) {
+        runAll(parallel, WARMUP_RUNS);
+      }
+      for (int threads : threadCounts) {
+        try (ParallelExecutor parallel = new ParallelExecutor(program, threads)) {
+          long start = System.nanoTime();
+          runAll(parallel, TIMED_RUNS);
+          long nanos = System.nanoTime() - start;
+          System.out.printf(
+              "%s: %d threads, %.1f runs/sec%n", filename, threads, TIMED_RUNS * 1e9 / nanos);
+        }
+      }
+    }
+  }
+
+  private static void runAll(ParallelExecutor parallel, int runs) throws InterruptedException {
+    parallel.executeAll(
+        Collections.nCopies(runs, OutputSink.discard()),
+        (sink, executor) -> executor.setOutputSink(sink));
+  }
+}
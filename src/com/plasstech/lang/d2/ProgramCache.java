@@ -0,0 +1,119 @@
+package com.plasstech.lang.d2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.phase.State;
+
+/**
+ * A thread-safe cache of {@link CompiledProgram}s, keyed by a hash of the source code and the
+ * compilation options that change the generated code. The least-recently used programs are
+ * evicted when the cache is full. Programs that do not compile are not cached.
+ */
+public class ProgramCache {
+  /** Default maximum number of programs. */
+  public static final int DEFAULT_MAX_PROGRAMS = 100;
+
+  private static class Key {
+    private final HashCode sourceHash;
+    private final boolean optimize;
+    private final int optMaxPasses;
+    private final long optTimeBudgetMs;
+
+    Key(CompilationConfiguration config) {
+      this.sourceHash = Hashing.sha256().hashString(config.sourceCode(), StandardCharsets.UTF_8);
+      this.optimize = config.optimize();
+      this.optMaxPasses = config.optMaxPasses();
+      this.optTimeBudgetMs = config.optTimeBudgetMs();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) obj;
+      return sourceHash.equals(that.sourceHash)
+          && optimize == that.optimize
+          && optMaxPasses == that.optMaxPasses
+          && optTimeBudgetMs == that.optTimeBudgetMs;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sourceHash, optimize, optMaxPasses, optTimeBudgetMs);
+    }
+  }
+
+  private final Cache<Key, CompiledProgram> cache;
+
+  /** A cache of at most DEFAULT_MAX_PROGRAMS programs. */
+  public ProgramCache() {
+    this(DEFAULT_MAX_PROGRAMS);
+  }
+
+  /** A cache of at most the given number of programs. */
+  public ProgramCache(int maxPrograms) {
+    this(CacheBuilder.newBuilder().maximumSize(maxPrograms));
+  }
+
+  /**
+   * A cache whose programs have at most the given total number of IL ops, so that memory use is
+   * bounded however big each program is.
+   */
+  public static ProgramCache withMaxOps(long maxOps) {
+    return new ProgramCache(
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxOps)
+            .weigher((Key key, CompiledProgram program) -> program.code().size()));
+  }
+
+  private ProgramCache(CacheBuilder<? super Key, ? super CompiledProgram> builder) {
+    this.cache = builder.recordStats().build();
+  }
+
+  /**
+   * Returns the compiled program for the given configuration, compiling it if it is not cached.
+   *
+   * @throws D2RuntimeException if the program does not compile
+   */
+  public CompiledProgram get(CompilationConfiguration config) {
+    try {
+      return cache.get(new Key(config), () -> compile(config));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private static CompiledProgram compile(CompilationConfiguration config) {
+    State state = new YetAnotherCompiler().compile(config);
+    state.throwOnError();
+    return CompiledProgram.of(state);
+  }
+
+  /** Number of programs in the cache. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Hits, misses, evictions and compilation time. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public void clear() {
+    cache.invalidateAll();
+  }
+}
@@ -1,11 +1,21 @@
 package com.plasstech.lang.d2;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
 import com.plasstech.lang.d2.codegen.ILCodeGenerator;
+import com.plasstech.lang.d2.codegen.il.Op;
 import com.plasstech.lang.d2.common.CompilationConfiguration;
 import com.plasstech.lang.d2.lex.Lexer;
 import com.plasstech.lang.d2.optimize.ILOptimizer;
-import com.plasstech.lang.d2.parse.Parser;
+import com.plasstech.lang.d2.parse.ParallelParser;
+import com.plasstech.lang.d2.parse.node.Node;
+import com.plasstech.lang.d2.parse.node.NodeWalker;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.phase.InstrumentedPhase;
 import com.plasstech.lang.d2.phase.PhaseName;
 import com.plasstech.lang.d2.phase.State;
 import com.plasstech.lang.d2.type.StaticChecker;
@@ -15,8 +25,17 @@ public class YetAnotherCompiler {
   public State compile(CompilationConfiguration config) {
     State state = State.create(config.sourceCode()).build().addFilename(config.filename());
     Lexer lexer = new Lexer(state.sourceCode());
-    Parser parser = new Parser(lexer);
-    state = parser.execute(state);
+    // Big programs are parsed in parallel, small ones on this thread.
+    ParallelParser parser = new ParallelParser(lexer);
+    state =
+        new InstrumentedPhase(
+                PhaseName.PARSE,
+                parser,
+                parsed ->
+                    ImmutableMap.of(
+                        "tokens", (long) parser.tokenCount(),
+                        "nodes", countNodes(parsed.programNode())))
+            .execute(state);
     if (config.parseDebugLevel() > 0) {
       System.out.println("------------------------------");
       System.out.println("\nPARSED PROGRAM:");
@@ -27,14 +46,25 @@ public class YetAnotherCompiler {
       return state;
     }
 
-    StaticChecker checker = new StaticChecker();
-    state = checker.execute(state);
+    // Independent procedure bodies are checked in parallel.
+    StaticChecker checker = new StaticChecker(ForkJoinPool.commonPool());
+    state =
+        new InstrumentedPhase(
+                PhaseName.TYPE_CHECK,
+                checker,
+                checked ->
+                    ImmutableMap.of(
+                        "procedures", (long) checked.symbolTable().procedures().size()))
+            .execute(state);
     if (shouldReturn(config, state, PhaseName.TYPE_CHECK)) {
       return state;
     }
 
     ILCodeGenerator codegen = new ILCodeGenerator();
-    state = codegen.execute(state);
+    state =
+        new InstrumentedPhase(
+                PhaseName.IL_CODEGEN, codegen, generated -> ops(generated.ilCode()))
+            .execute(state);
     boolean shouldReturn = shouldReturn(config, state, PhaseName.IL_CODEGEN);
     if (config.codeGenDebugLevel() > 0) {
       System.out.println("------------------------------");
@@ -56,8 +86,15 @@ public class YetAnotherCompiler {
 
     if (config.optimize()) {
       // Runs all the optimizers.
-      ILOptimizer optimizer = new ILOptimizer(config.optDebugLevel());
-      state = optimizer.execute(state);
+      ILOptimizer optimizer =
+          new ILOptimizer(config.optDebugLevel())
+              .setBudget(config.optMaxPasses(), Duration.ofMillis(config.optTimeBudgetMs()));
+      state =
+          new InstrumentedPhase(
+                  PhaseName.IL_OPTIMIZE,
+                  optimizer,
+                  optimized -> ops(optimized.optimizedIlCode()))
+              .execute(state);
       if (state.optimizedIlCode() != null) {
         if (config.codeGenDebugLevel() > 0) {
           System.out.println("------------------------------");
@@ -72,6 +109,22 @@ public class YetAnotherCompiler {
     return state;
   }
 
+  private static ImmutableMap<String, Long> ops(List<Op> code) {
+    return ImmutableMap.of("ops", (long) code.size());
+  }
+
+  private static long countNodes(ProgramNode root) {
+    long[] count = {0};
+    root.accept(
+        new NodeWalker() {
+          @Override
+          protected void enter(Node node) {
+            count[0]++;
+          }
+        });
+    return count[0];
+  }
+
   /** Return true if should return, false if continue. */
   private boolean shouldReturn(CompilationConfiguration config, State state,
       PhaseName currentPhase) {
@@ -0,0 +1,105 @@
+package com.plasstech.lang.d2.codegen;
+
+import com.google.common.collect.ImmutableMap;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Constants of the binary IL format written by {@link ILWriter} and read by {@link ILReader}.
+ *
+ * <p>A file is the magic number and version, followed by these sections, each of which is a count
+ * and then that many entries:
+ *
+ * <ol>
+ *   <li>strings: names, labels and string constants, each stored once
+ *   <li>types: a type refers to earlier types, e.g., an array to its base type
+ *   <li>records
+ *   <li>procedures, with their formal parameters
+ *   <li>variable symbols
+ *   <li>operands: constants and locations, each stored once
+ *   <li>ops
+ * </ol>
+ *
+ * Later sections refer to entries of earlier sections by their index. Numbers are varints; signed
+ * numbers are zigzag-encoded first.
+ */
+final class ILFormat {
+  static final int MAGIC = 0x4432494c; // D2IL
+  /** Changes whenever the format changes. */
+  static final int VERSION = 1;
+
+  enum TypeTag {
+    SIMPLE,
+    ARRAY,
+    RECORD
+  }
+
+  enum SymbolTag {
+    VARIABLE,
+    LOCAL,
+    PARAM,
+    /** A formal parameter of a procedure in the procedure section. */
+    FORMAL
+  }
+
+  enum OperandTag {
+    NULL,
+    BOOL,
+    BYTE,
+    INT,
+    LONG,
+    DOUBLE,
+    STRING,
+    TEMP,
+    LONG_TEMP,
+    STACK,
+    PARAM,
+    MEMORY
+  }
+
+  enum OpTag {
+    LABEL,
+    IF,
+    TRANSFER,
+    BINOP,
+    RETURN,
+    STOP,
+    SYSCALL,
+    UNARY,
+    GOTO,
+    CALL,
+    PROC_EXIT,
+    PROC_ENTRY,
+    DEC,
+    INC,
+    ALLOCATE,
+    ARRAY_ALLOC,
+    ARRAY_SET,
+    FIELD_SET,
+    DEALLOCATE_TEMP,
+    NOP
+  }
+
+  // Flags of a variable symbol.
+  static final int ASSIGNED = 1;
+  /** Declared in the global symbol table. */
+  static final int GLOBAL_TABLE = 2;
+  static final int HAS_RECORD = 4;
+  static final int HAS_PARENT = 8;
+
+  /** Types that have only one instance, by name. */
+  static final ImmutableMap<String, VarType> SIMPLE_TYPES =
+      ImmutableMap.<String, VarType>builder()
+          .put(VarType.BOOL.name(), VarType.BOOL)
+          .put(VarType.BYTE.name(), VarType.BYTE)
+          .put(VarType.DOUBLE.name(), VarType.DOUBLE)
+          .put(VarType.INT.name(), VarType.INT)
+          .put(VarType.LONG.name(), VarType.LONG)
+          .put(VarType.NULL.name(), VarType.NULL)
+          .put(VarType.PROC.name(), VarType.PROC)
+          .put(VarType.STRING.name(), VarType.STRING)
+          .put(VarType.UNKNOWN.name(), VarType.UNKNOWN)
+          .put(VarType.VOID.name(), VarType.VOID)
+          .build();
+
+  private ILFormat() {}
+}
@@ -0,0 +1,488 @@
+package com.plasstech.lang.d2.codegen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.ILFormat.OpTag;
+import com.plasstech.lang.d2.codegen.ILFormat.OperandTag;
+import com.plasstech.lang.d2.codegen.ILFormat.SymbolTag;
+import com.plasstech.lang.d2.codegen.ILFormat.TypeTag;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.Position;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.parse.node.ArrayDeclarationNode;
+import com.plasstech.lang.d2.parse.node.ConstNode;
+import com.plasstech.lang.d2.parse.node.DeclarationNode;
+import com.plasstech.lang.d2.parse.node.ExternProcedureNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode.Parameter;
+import com.plasstech.lang.d2.parse.node.RecordDeclarationNode;
+import com.plasstech.lang.d2.phase.State;
+import com.plasstech.lang.d2.type.ArrayType;
+import com.plasstech.lang.d2.type.ExternProcSymbol;
+import com.plasstech.lang.d2.type.LocalSymbol;
+import com.plasstech.lang.d2.type.ParamSymbol;
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.RecordReferenceType;
+import com.plasstech.lang.d2.type.RecordSymbol;
+import com.plasstech.lang.d2.type.SymTab;
+import com.plasstech.lang.d2.type.SymbolStorage;
+import com.plasstech.lang.d2.type.TypeCheckResult;
+import com.plasstech.lang.d2.type.VarType;
+import com.plasstech.lang.d2.type.VariableSymbol;
+
+/**
+ * Reads IL code written by {@link ILWriter}. The result is a state with the IL code and a symbol
+ * table of the records, procedures and global variables, which is enough to run the code.
+ */
+public class ILReader {
+  private static final OpTag[] OP_TAGS = OpTag.values();
+  private static final OperandTag[] OPERAND_TAGS = OperandTag.values();
+  private static final SymbolTag[] SYMBOL_TAGS = SymbolTag.values();
+  private static final TypeTag[] TYPE_TAGS = TypeTag.values();
+  /** Records don't keep the positions of their declarations. */
+  private static final Position NO_POSITION = new Position(0, 0);
+
+  private final byte[] bytes;
+  private int pos;
+
+  private final SymTab globals = new SymTab();
+  private String[] strings;
+  private VarType[] types;
+  private RecordSymbol[] records;
+  private ProcSymbol[] procs;
+  private VariableSymbol[] symbols;
+  private Operand[] operands;
+
+  private ILReader(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns a state with the IL code and the symbol table in the given bytes.
+   *
+   * @throws IllegalArgumentException if the bytes were not written by a compatible {@link
+   *     ILWriter}
+   */
+  public static State read(byte[] bytes) {
+    ILReader reader = new ILReader(bytes);
+    try {
+      ImmutableList<Op> code = reader.readProgram();
+      return State.create()
+          .addTypecheckResult(new TypeCheckResult(reader.globals))
+          .addIlCode(code);
+    } catch (IndexOutOfBoundsException | NegativeArraySizeException | ClassCastException e) {
+      throw new IllegalArgumentException("Truncated or corrupt IL", e);
+    }
+  }
+
+  private ImmutableList<Op> readProgram() {
+    if (bytes.length < 4 || readInt() != ILFormat.MAGIC) {
+      throw new IllegalArgumentException("Not an IL file");
+    }
+    int version = readVarint();
+    if (version != ILFormat.VERSION) {
+      throw new IllegalArgumentException(
+          String.format("Cannot read IL version %d; expected %d", version, ILFormat.VERSION));
+    }
+    strings = new String[readVarint()];
+    for (int i = 0; i < strings.length; ++i) {
+      int header = readVarint();
+      if ((header & 1) != 0) {
+        // A number after an earlier string.
+        int prefix = header >>> 1;
+        if (prefix >= i) {
+          throw new IllegalArgumentException("Bad string prefix " + prefix);
+        }
+        strings[i] = strings[prefix] + readVarint();
+      } else {
+        int length = header >>> 1;
+        strings[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+      }
+    }
+    types = new VarType[readVarint()];
+    for (int i = 0; i < types.length; ++i) {
+      types[i] = readType();
+    }
+    records = new RecordSymbol[readVarint()];
+    for (int i = 0; i < records.length; ++i) {
+      records[i] = readRecord();
+    }
+    procs = new ProcSymbol[readVarint()];
+    for (int i = 0; i < procs.length; ++i) {
+      procs[i] = readProc();
+    }
+    symbols = new VariableSymbol[readVarint()];
+    for (int i = 0; i < symbols.length; ++i) {
+      symbols[i] = readSymbol();
+    }
+    operands = new Operand[readVarint()];
+    for (int i = 0; i < operands.length; ++i) {
+      operands[i] = readOperand();
+    }
+    int size = readVarint();
+    ImmutableList.Builder<Op> code = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; ++i) {
+      code.add(readOp());
+    }
+    if (pos != bytes.length) {
+      throw new IllegalArgumentException("Extra bytes after IL");
+    }
+    return code.build();
+  }
+
+  private VarType readType() {
+    switch (TYPE_TAGS[readVarint()]) {
+      case ARRAY:
+        ArrayType arrayType = new ArrayType(types[readVarint()], readVarint());
+        int knownLength = readVarint();
+        if (knownLength != 0) {
+          arrayType.setKnownLength(knownLength - 1);
+        }
+        return arrayType;
+      case RECORD:
+        return new RecordReferenceType(readString());
+      case SIMPLE:
+      default:
+        String name = readString();
+        VarType type = ILFormat.SIMPLE_TYPES.get(name);
+        if (type == null) {
+          throw new IllegalArgumentException("Unknown type " + name);
+        }
+        return type;
+    }
+  }
+
+  private RecordSymbol readRecord() {
+    String name = readString();
+    boolean global = readBoolean();
+    int numFields = readVarint();
+    List<DeclarationNode> fields = new ArrayList<>(numFields);
+    for (int i = 0; i < numFields; ++i) {
+      String fieldName = readString();
+      VarType type = readTypeRef();
+      if (type.isArray()) {
+        ConstNode<Integer> size = new ConstNode<>(readVarint(), VarType.INT, NO_POSITION);
+        fields.add(new ArrayDeclarationNode(fieldName, (ArrayType) type, NO_POSITION, size));
+      } else {
+        fields.add(new DeclarationNode(fieldName, type, NO_POSITION));
+      }
+    }
+    RecordDeclarationNode node = new RecordDeclarationNode(name, fields, NO_POSITION);
+    if (global) {
+      return globals.declareRecord(node);
+    }
+    return new RecordSymbol(node);
+  }
+
+  private ProcSymbol readProc() {
+    String name = readString();
+    boolean extern = readBoolean();
+    boolean global = readBoolean();
+    VarType returnType = readTypeRef();
+    Position position = readPosition();
+    int numFormals = readVarint();
+    List<Parameter> params = new ArrayList<>(numFormals);
+    String[] names = new String[numFormals];
+    VarType[] formalTypes = new VarType[numFormals];
+    int[] offsets = new int[numFormals];
+    for (int i = 0; i < numFormals; ++i) {
+      names[i] = readString();
+      formalTypes[i] = readTypeRef();
+      offsets[i] = readVarint();
+      params.add(new Parameter(names[i], formalTypes[i], position));
+    }
+    ProcSymbol proc;
+    if (extern) {
+      ExternProcedureNode node = new ExternProcedureNode(name, params, returnType, position);
+      proc = global ? globals.declareProc(node) : new ExternProcSymbol(node, new SymTab());
+    } else {
+      ProcedureNode node = new ProcedureNode(name, params, returnType, null, position);
+      proc = global ? globals.declareProc(node) : new ProcSymbol(node, new SymTab());
+    }
+    for (int i = 0; i < numFormals; ++i) {
+      proc.declareParam(names[i], formalTypes[i], i);
+      proc.formal(i).setOffset(offsets[i]);
+    }
+    return proc;
+  }
+
+  private VariableSymbol readSymbol() {
+    SymbolTag tag = SYMBOL_TAGS[readVarint()];
+    if (tag == SymbolTag.FORMAL) {
+      return procs[readVarint()].formal(readVarint());
+    }
+    String name = readString();
+    VarType type = readTypeRef();
+    SymbolStorage storage = SymbolStorage.valueOf(readString());
+    int flags = readVarint();
+    RecordSymbol record = null;
+    if ((flags & ILFormat.HAS_RECORD) != 0) {
+      record = records[readVarint()];
+    }
+    String parentName = null;
+    if ((flags & ILFormat.HAS_PARENT) != 0) {
+      parentName = readString();
+    }
+    int index = 0;
+    int offset = 0;
+    if (tag == SymbolTag.PARAM) {
+      index = readVarint();
+    }
+    if (tag == SymbolTag.PARAM || tag == SymbolTag.LOCAL) {
+      offset = readVarint();
+    }
+    VariableSymbol symbol;
+    if ((flags & ILFormat.GLOBAL_TABLE) != 0) {
+      if (storage == SymbolStorage.TEMP) {
+        symbol = globals.declareTemp(name, type);
+      } else {
+        symbol = globals.declare(name, type);
+      }
+    } else if (tag == SymbolTag.LOCAL) {
+      symbol = new LocalSymbol(name, storage).setOffset(offset);
+    } else if (tag == SymbolTag.PARAM) {
+      symbol = new ParamSymbol(name, index).setOffset(offset);
+    } else {
+      symbol = new VariableSymbol(name, storage);
+    }
+    symbol.setVarType(type);
+    if ((flags & ILFormat.ASSIGNED) != 0) {
+      symbol.setAssigned();
+    }
+    symbol.setRecordSymbol(record);
+    symbol.setParentName(parentName);
+    return symbol;
+  }
+
+  private Operand readOperand() {
+    OperandTag tag = OPERAND_TAGS[readVarint()];
+    switch (tag) {
+      case TEMP:
+        return new TempLocation(symbols[readVarint()]);
+      case LONG_TEMP:
+        return new LongTempLocation(symbols[readVarint()]);
+      case STACK:
+        return new StackLocation((LocalSymbol) symbols[readVarint()]);
+      case PARAM:
+        return new ParamLocation((ParamSymbol) symbols[readVarint()]);
+      case MEMORY:
+        return new MemoryAddress(symbols[readVarint()]);
+      default:
+        break;
+    }
+    VarType type = readTypeRef();
+    switch (tag) {
+      case NULL:
+        return new ConstantOperand<Object>(null, type);
+      case BOOL:
+        return new ConstantOperand<Boolean>(readBoolean(), type);
+      case BYTE:
+        return new ConstantOperand<Byte>((byte) readVarint(), type);
+      case INT:
+        return new ConstantOperand<Integer>((int) unzigzag(readVarlong()), type);
+      case LONG:
+        return new ConstantOperand<Long>(unzigzag(readVarlong()), type);
+      case DOUBLE:
+        return new ConstantOperand<Double>(Double.longBitsToDouble(readLong()), type);
+      case STRING:
+        return new ConstantOperand<String>(readString(), type);
+      default:
+        throw new IllegalArgumentException("Unknown operand " + tag);
+    }
+  }
+
+  private Op readOp() {
+    switch (OP_TAGS[readVarint()]) {
+      case LABEL:
+        return new Label(readString());
+      case IF:
+        return new IfOp(readOperandRef(), readString(), readBoolean(), readPosition());
+      case TRANSFER:
+        return new Transfer(readLocationRef(), readOperandRef(), readPosition());
+      case BINOP:
+        return new BinOp(
+            readLocationRef(),
+            readOperandRef(),
+            TokenType.valueOf(readString()),
+            readOperandRef(),
+            readPosition());
+      case RETURN:
+        return new Return(readString(), readOptionalOperandRef());
+      case STOP:
+        return new Stop((int) unzigzag(readVarlong()));
+      case SYSCALL:
+        return new SysCall(SysCall.Call.valueOf(readString()), readOperandRef());
+      case UNARY:
+        return new UnaryOp(
+            readLocationRef(), TokenType.valueOf(readString()), readOperandRef(), readPosition());
+      case GOTO:
+        return new Goto(readString());
+      case CALL:
+        {
+          Optional<Location> destination = readOptionalOperandRef().map(Location.class::cast);
+          ProcSymbol proc = procs[readVarint()];
+          int numActuals = readVarint();
+          ImmutableList.Builder<Operand> actuals = ImmutableList.builder();
+          for (int i = 0; i < numActuals; ++i) {
+            actuals.add(readOperandRef());
+          }
+          int numFormals = readVarint();
+          ImmutableList.Builder<Location> formals = ImmutableList.builder();
+          for (int i = 0; i < numFormals; ++i) {
+            formals.add(readLocationRef());
+          }
+          return new Call(destination, proc, actuals.build(), formals.build(), readPosition());
+        }
+      case PROC_EXIT:
+        return new ProcExit(readString(), readVarint(), readVarint());
+      case PROC_ENTRY:
+        {
+          String name = readString();
+          int numFormals = readVarint();
+          ImmutableList.Builder<ParamSymbol> formals = ImmutableList.builder();
+          for (int i = 0; i < numFormals; ++i) {
+            formals.add((ParamSymbol) symbols[readVarint()]);
+          }
+          return new ProcEntry(name, formals.build(), readVarint());
+        }
+      case DEC:
+        return new Dec(readLocationRef(), readPosition());
+      case INC:
+        return new Inc(readLocationRef(), readPosition());
+      case ALLOCATE:
+        return new AllocateOp(readLocationRef(), records[readVarint()], readPosition());
+      case ARRAY_ALLOC:
+        return new ArrayAlloc(
+            readLocationRef(), (ArrayType) readTypeRef(), readOperandRef(), readPosition());
+      case ARRAY_SET:
+        return new ArraySet(
+            readLocationRef(),
+            (ArrayType) readTypeRef(),
+            readOperandRef(),
+            readOperandRef(),
+            readBoolean(),
+            readPosition());
+      case FIELD_SET:
+        return new FieldSetOp(
+            readLocationRef(),
+            records[readVarint()],
+            readString(),
+            readOperandRef(),
+            readPosition());
+      case DEALLOCATE_TEMP:
+        return new DeallocateTemp(readLocationRef(), readPosition());
+      case NOP:
+        return new Nop(readString());
+      default:
+        throw new IllegalArgumentException("Unknown op");
+    }
+  }
+
+  private VarType readTypeRef() {
+    return types[readVarint()];
+  }
+
+  private Operand readOperandRef() {
+    return operands[readVarint()];
+  }
+
+  private Location readLocationRef() {
+    return (Location) operands[readVarint()];
+  }
+
+  private Optional<Operand> readOptionalOperandRef() {
+    // 0 means none.
+    int index = readVarint();
+    if (index == 0) {
+      return Optional.empty();
+    }
+    return Optional.of(operands[index - 1]);
+  }
+
+  private Position readPosition() {
+    // 0 means no position.
+    int line = readVarint();
+    if (line == 0) {
+      return null;
+    }
+    return new Position(line - 1, readVarint());
+  }
+
+  private String readString() {
+    return strings[readVarint()];
+  }
+
+  private boolean readBoolean() {
+    return bytes[pos++] != 0;
+  }
+
+  private int readVarint() {
+    byte b = bytes[pos++];
+    if (b >= 0) {
+      return b;
+    }
+    return (int) readVarlong(b);
+  }
+
+  private long readVarlong() {
+    byte b = bytes[pos++];
+    if (b >= 0) {
+      return b;
+    }
+    return readVarlong(b);
+  }
+
+  /** Reads the rest of a varint whose first byte has its high bit set. */
+  private long readVarlong(byte first) {
+    long value = first & 0x7f;
+    for (int shift = 7; shift < 64; shift += 7) {
+      byte b = bytes[pos++];
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint is too long");
+  }
+
+  private int readInt() {
+    int value = 0;
+    for (int i = 0; i < 4; ++i) {
+      value = (value << 8) | (bytes[pos++] & 0xff);
+    }
+    return value;
+  }
+
+  private long readLong() {
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
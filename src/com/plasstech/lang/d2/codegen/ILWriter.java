@@ -0,0 +1,738 @@
+package com.plasstech.lang.d2.codegen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.plasstech.lang.d2.codegen.ILFormat.OpTag;
+import com.plasstech.lang.d2.codegen.ILFormat.OperandTag;
+import com.plasstech.lang.d2.codegen.ILFormat.SymbolTag;
+import com.plasstech.lang.d2.codegen.ILFormat.TypeTag;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.OpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.Position;
+import com.plasstech.lang.d2.phase.State;
+import com.plasstech.lang.d2.type.ArrayType;
+import com.plasstech.lang.d2.type.BlockSymbol;
+import com.plasstech.lang.d2.type.LocalSymbol;
+import com.plasstech.lang.d2.type.ParamSymbol;
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.RecordSymbol;
+import com.plasstech.lang.d2.type.RecordSymbol.ArrayField;
+import com.plasstech.lang.d2.type.RecordSymbol.Field;
+import com.plasstech.lang.d2.type.Symbol;
+import com.plasstech.lang.d2.type.SymbolStorage;
+import com.plasstech.lang.d2.type.SymbolTable;
+import com.plasstech.lang.d2.type.VarType;
+import com.plasstech.lang.d2.type.VariableSymbol;
+
+/**
+ * Writes IL code, and the parts of the symbol table that it refers to, in the binary format
+ * described in {@link ILFormat}, so that it can be run later, or elsewhere, by {@link ILReader}
+ * without compiling it again.
+ */
+public class ILWriter {
+  private final SymbolTable symbolTable;
+  /** Symbols that will be in the symbol table when they are read. */
+  private final Set<Symbol> globals = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private final Map<String, Integer> strings = new HashMap<>();
+  private final List<String> stringList = new ArrayList<>();
+  private final Map<VarType, Integer> types = new IdentityHashMap<>();
+  private final List<VarType> typeList = new ArrayList<>();
+  private final Map<RecordSymbol, Integer> records = new IdentityHashMap<>();
+  private final List<RecordSymbol> recordList = new ArrayList<>();
+  private final Map<ProcSymbol, Integer> procs = new IdentityHashMap<>();
+  private final List<ProcSymbol> procList = new ArrayList<>();
+  private final Map<VariableSymbol, Integer> symbols = new IdentityHashMap<>();
+  private final List<VariableSymbol> symbolList = new ArrayList<>();
+  /** Keyed by the constant itself, or by the class and symbol of a location. */
+  private final Map<Object, Integer> operands = new HashMap<>();
+  private final List<Operand> operandList = new ArrayList<>();
+
+  private ILWriter(SymbolTable symbolTable) {
+    this.symbolTable = symbolTable;
+  }
+
+  /** Returns the final IL code of the state, and its symbol table, in the binary format. */
+  public static byte[] write(State state) {
+    return write(state.lastIlCode(), state.symbolTable());
+  }
+
+  /** Returns the code, and the parts of the symbol table it uses, in the binary format. */
+  public static byte[] write(List<Op> code, SymbolTable symbolTable) {
+    return new ILWriter(symbolTable).writeProgram(code);
+  }
+
+  private byte[] writeProgram(List<Op> code) {
+    // Everything in the global scope is kept, even if the code doesn't refer to it.
+    addGlobals(symbolTable);
+
+    // Each section can only add entries to the sections before it, so they are encoded in
+    // reverse.
+    Output opSection = new Output();
+    opSection.writeVarint(code.size());
+    OpWriter opWriter = new OpWriter(opSection);
+    for (Op op : code) {
+      opWriter.write(op);
+    }
+    Output operandSection = new Output();
+    // Operands don't add operands.
+    operandSection.writeVarint(operandList.size());
+    for (Operand operand : operandList) {
+      writeOperand(operand, operandSection);
+    }
+    Output symbolSection = new Output();
+    Map<ParamSymbol, Integer> formalProcs = new IdentityHashMap<>();
+    for (ProcSymbol proc : procList) {
+      for (ParamSymbol formal : proc.formals()) {
+        formalProcs.put(formal, procs.get(proc));
+      }
+    }
+    symbolSection.writeVarint(symbolList.size());
+    for (VariableSymbol symbol : symbolList) {
+      writeSymbol(symbol, formalProcs, symbolSection);
+    }
+    Output procSection = new Output();
+    procSection.writeVarint(procList.size());
+    for (ProcSymbol proc : procList) {
+      writeProc(proc, procSection);
+    }
+    Output recordSection = new Output();
+    recordSection.writeVarint(recordList.size());
+    for (RecordSymbol record : recordList) {
+      writeRecord(record, recordSection);
+    }
+    Output typeSection = new Output();
+    typeSection.writeVarint(typeList.size());
+    for (VarType type : typeList) {
+      writeType(type, typeSection);
+    }
+
+    Output out = new Output();
+    out.writeInt(ILFormat.MAGIC);
+    out.writeVarint(ILFormat.VERSION);
+    out.writeVarint(stringList.size());
+    for (String string : stringList) {
+      int suffix = numberSuffix(string);
+      if (suffix > 0) {
+        // The prefix is an earlier string.
+        out.writeVarint(strings.get(string.substring(0, suffix)) << 1 | 1);
+        out.writeVarint(Integer.parseInt(string.substring(suffix)));
+      } else {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeVarint(bytes.length << 1);
+        out.writeBytes(bytes, bytes.length);
+      }
+    }
+    for (Output section :
+        Arrays.asList(
+            typeSection,
+            recordSection,
+            procSection,
+            symbolSection,
+            operandSection,
+            opSection)) {
+      out.writeBytes(section.bytes, section.size);
+    }
+    return Arrays.copyOf(out.bytes, out.size);
+  }
+
+  /**
+   * Adds the symbols of the table and its global blocks, e.g., the main program, in order of name.
+   * They will all be in the same table when they are read, so only the first symbol of each name
+   * is added.
+   */
+  private void addGlobals(SymbolTable table) {
+    Map<String, Symbol> byName = new TreeMap<>();
+    findGlobals(table, byName);
+    for (Symbol symbol : byName.values()) {
+      globals.add(symbol);
+      if (symbol instanceof RecordSymbol) {
+        record((RecordSymbol) symbol);
+      } else if (symbol instanceof ProcSymbol) {
+        proc((ProcSymbol) symbol);
+      } else {
+        symbol((VariableSymbol) symbol);
+      }
+    }
+  }
+
+  private static void findGlobals(SymbolTable table, Map<String, Symbol> byName) {
+    for (Map.Entry<String, Symbol> entry : new TreeMap<>(table.entries()).entrySet()) {
+      Symbol symbol = entry.getValue();
+      if (symbol instanceof BlockSymbol) {
+        SymbolTable blockTable = ((BlockSymbol) symbol).symTab();
+        if (blockTable.storage() == SymbolStorage.GLOBAL) {
+          findGlobals(blockTable, byName);
+        }
+      } else if (symbol instanceof RecordSymbol
+          || symbol instanceof ProcSymbol
+          || (symbol instanceof VariableSymbol
+              && !(symbol instanceof ParamSymbol)
+              && (symbol.storage() == SymbolStorage.GLOBAL
+                  || symbol.storage() == SymbolStorage.TEMP))) {
+        byName.putIfAbsent(entry.getKey(), symbol);
+      }
+    }
+  }
+
+  private boolean inGlobalTable(Symbol symbol) {
+    return globals.contains(symbol);
+  }
+
+  private int string(String string) {
+    Integer index = strings.get(string);
+    if (index == null) {
+      int suffix = numberSuffix(string);
+      if (suffix > 0) {
+        string(string.substring(0, suffix));
+      }
+      index = stringList.size();
+      strings.put(string, index);
+      stringList.add(string);
+    }
+    return index;
+  }
+
+  /**
+   * Returns where the number at the end of the string starts, e.g., 6 for "__temp12", or -1 if it
+   * does not end with a number. Temps and labels are numbered, so they are stored as a reference
+   * to the prefix and the number.
+   */
+  private static int numberSuffix(String string) {
+    int start = string.length();
+    while (start > 0 && string.charAt(start - 1) >= '0' && string.charAt(start - 1) <= '9') {
+      start--;
+    }
+    int digits = string.length() - start;
+    if (start == 0 || digits == 0 || digits > 9 || (digits > 1 && string.charAt(start) == '0')) {
+      return -1;
+    }
+    return start;
+  }
+
+  private int type(VarType type) {
+    Integer index = types.get(type);
+    if (index == null) {
+      if (type.isArray()) {
+        // The base type must come first.
+        type(((ArrayType) type).baseType());
+      }
+      index = typeList.size();
+      types.put(type, index);
+      typeList.add(type);
+    }
+    return index;
+  }
+
+  private int record(RecordSymbol record) {
+    Integer index = records.get(record);
+    if (index == null) {
+      index = recordList.size();
+      records.put(record, index);
+      recordList.add(record);
+    }
+    return index;
+  }
+
+  private int proc(ProcSymbol proc) {
+    Integer index = procs.get(proc);
+    if (index == null) {
+      index = procList.size();
+      procs.put(proc, index);
+      procList.add(proc);
+    }
+    return index;
+  }
+
+  private int symbol(VariableSymbol symbol) {
+    Integer index = symbols.get(symbol);
+    if (index == null) {
+      index = symbolList.size();
+      symbols.put(symbol, index);
+      symbolList.add(symbol);
+    }
+    return index;
+  }
+
+  private int operand(Operand operand) {
+    Object key = operand;
+    if (operand instanceof VariableLocation) {
+      // Symbols are equal only if they are the same, but locations are equal if their names
+      // and types are.
+      key = Arrays.asList(operand.getClass(), new Identity(((VariableLocation) operand).symbol()));
+    }
+    Integer index = operands.get(key);
+    if (index == null) {
+      index = operandList.size();
+      operands.put(key, index);
+      operandList.add(operand);
+    }
+    return index;
+  }
+
+  private void writeType(VarType type, Output out) {
+    if (type.isArray()) {
+      ArrayType arrayType = (ArrayType) type;
+      out.writeVarint(TypeTag.ARRAY.ordinal());
+      out.writeVarint(types.get(arrayType.baseType()));
+      out.writeVarint(arrayType.dimensions());
+      // 0 means unknown.
+      out.writeVarint(arrayType.knownLength().map(length -> length + 1).orElse(0));
+    } else if (type.isRecord()) {
+      out.writeVarint(TypeTag.RECORD.ordinal());
+      out.writeVarint(string(type.name()));
+    } else {
+      if (ILFormat.SIMPLE_TYPES.get(type.name()) != type) {
+        throw new IllegalArgumentException("Cannot write type " + type);
+      }
+      out.writeVarint(TypeTag.SIMPLE.ordinal());
+      out.writeVarint(string(type.name()));
+    }
+  }
+
+  private void writeRecord(RecordSymbol record, Output out) {
+    out.writeVarint(string(record.name()));
+    out.writeBoolean(inGlobalTable(record));
+    out.writeVarint(record.fieldNames().size());
+    for (String name : record.fieldNames()) {
+      Field field = record.getField(name);
+      out.writeVarint(string(name));
+      out.writeVarint(type(field.type()));
+      if (field instanceof ArrayField) {
+        out.writeVarint(((ArrayField) field).sizes().get(0));
+      }
+    }
+  }
+
+  private void writeProc(ProcSymbol proc, Output out) {
+    out.writeVarint(string(proc.name()));
+    out.writeBoolean(proc.isExtern());
+    out.writeBoolean(inGlobalTable(proc));
+    out.writeVarint(type(proc.returnType()));
+    writePosition(proc.position(), out);
+    out.writeVarint(proc.formals().size());
+    for (ParamSymbol formal : proc.formals()) {
+      out.writeVarint(string(formal.name()));
+      out.writeVarint(type(formal.varType()));
+      out.writeVarint(formal.offset());
+    }
+  }
+
+  private void writeSymbol(
+      VariableSymbol symbol, Map<ParamSymbol, Integer> formalProcs, Output out) {
+    if (symbol instanceof ParamSymbol && formalProcs.containsKey(symbol)) {
+      ParamSymbol param = (ParamSymbol) symbol;
+      out.writeVarint(SymbolTag.FORMAL.ordinal());
+      out.writeVarint(formalProcs.get(param));
+      out.writeVarint(param.index());
+      return;
+    }
+    SymbolTag tag = SymbolTag.VARIABLE;
+    if (symbol instanceof ParamSymbol) {
+      tag = SymbolTag.PARAM;
+    } else if (symbol instanceof LocalSymbol) {
+      tag = SymbolTag.LOCAL;
+    }
+    out.writeVarint(tag.ordinal());
+    out.writeVarint(string(symbol.name()));
+    out.writeVarint(type(symbol.varType()));
+    out.writeVarint(string(symbol.storage().name()));
+    int flags = 0;
+    if (symbol.isAssigned()) {
+      flags |= ILFormat.ASSIGNED;
+    }
+    if (inGlobalTable(symbol)) {
+      flags |= ILFormat.GLOBAL_TABLE;
+    }
+    if (symbol.recordSymbol() != null) {
+      flags |= ILFormat.HAS_RECORD;
+    }
+    if (symbol.getParentName() != null) {
+      flags |= ILFormat.HAS_PARENT;
+    }
+    out.writeVarint(flags);
+    if (symbol.recordSymbol() != null) {
+      out.writeVarint(record(symbol.recordSymbol()));
+    }
+    if (symbol.getParentName() != null) {
+      out.writeVarint(string(symbol.getParentName()));
+    }
+    if (tag == SymbolTag.LOCAL) {
+      out.writeVarint(((LocalSymbol) symbol).offset());
+    } else if (tag == SymbolTag.PARAM) {
+      out.writeVarint(((ParamSymbol) symbol).index());
+      out.writeVarint(((ParamSymbol) symbol).offset());
+    }
+  }
+
+  private void writeOperand(Operand operand, Output out) {
+    if (operand instanceof ConstantOperand) {
+      writeConstant((ConstantOperand<?>) operand, out);
+      return;
+    }
+    OperandTag tag;
+    if (operand instanceof LongTempLocation) {
+      tag = OperandTag.LONG_TEMP;
+    } else if (operand instanceof TempLocation) {
+      tag = OperandTag.TEMP;
+    } else if (operand instanceof StackLocation) {
+      tag = OperandTag.STACK;
+    } else if (operand instanceof ParamLocation) {
+      tag = OperandTag.PARAM;
+    } else if (operand instanceof MemoryAddress) {
+      tag = OperandTag.MEMORY;
+    } else {
+      throw new IllegalArgumentException("Cannot write operand " + operand);
+    }
+    out.writeVarint(tag.ordinal());
+    out.writeVarint(symbol(((VariableLocation) operand).symbol()));
+  }
+
+  private void writeConstant(ConstantOperand<?> constant, Output out) {
+    Object value = constant.value();
+    if (value == null) {
+      out.writeVarint(OperandTag.NULL.ordinal());
+      out.writeVarint(type(constant.type()));
+    } else if (value instanceof Boolean) {
+      out.writeVarint(OperandTag.BOOL.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Byte) {
+      out.writeVarint(OperandTag.BYTE.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeVarint(((Byte) value) & 0xff);
+    } else if (value instanceof Integer) {
+      out.writeVarint(OperandTag.INT.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeVarlong(zigzag((Integer) value));
+    } else if (value instanceof Long) {
+      out.writeVarint(OperandTag.LONG.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeVarlong(zigzag((Long) value));
+    } else if (value instanceof Double) {
+      out.writeVarint(OperandTag.DOUBLE.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeLong(Double.doubleToRawLongBits((Double) value));
+    } else if (value instanceof String) {
+      out.writeVarint(OperandTag.STRING.ordinal());
+      out.writeVarint(type(constant.type()));
+      out.writeVarint(string((String) value));
+    } else {
+      throw new IllegalArgumentException("Cannot write constant " + constant);
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static void writePosition(Position position, Output out) {
+    // 0 means no position.
+    if (position == null) {
+      out.writeVarint(0);
+    } else {
+      out.writeVarint(position.line() + 1);
+      out.writeVarint(position.column());
+    }
+  }
+
+  private class OpWriter implements OpcodeVisitor {
+    private final Output out;
+
+    OpWriter(Output out) {
+      this.out = out;
+    }
+
+    void write(Op op) {
+      if (op instanceof Nop) {
+        tag(OpTag.NOP);
+        string(((Nop) op).message());
+        return;
+      }
+      int size = out.size;
+      op.accept(this);
+      if (out.size == size) {
+        throw new IllegalArgumentException("Cannot write op " + op);
+      }
+    }
+
+    private void tag(OpTag tag) {
+      out.writeVarint(tag.ordinal());
+    }
+
+    private void operand(Operand operand) {
+      out.writeVarint(ILWriter.this.operand(operand));
+    }
+
+    private void optionalOperand(Optional<? extends Operand> operand) {
+      // 0 means none.
+      out.writeVarint(operand.map(it -> ILWriter.this.operand(it) + 1).orElse(0));
+    }
+
+    private void string(String string) {
+      out.writeVarint(ILWriter.this.string(string));
+    }
+
+    private void position(Op op) {
+      writePosition(op.position(), out);
+    }
+
+    @Override
+    public void visit(Label op) {
+      tag(OpTag.LABEL);
+      string(op.label());
+    }
+
+    @Override
+    public void visit(IfOp op) {
+      tag(OpTag.IF);
+      operand(op.condition());
+      string(op.destination());
+      out.writeBoolean(op.isNot());
+      position(op);
+    }
+
+    @Override
+    public void visit(Transfer op) {
+      tag(OpTag.TRANSFER);
+      operand(op.destination());
+      operand(op.source());
+      position(op);
+    }
+
+    @Override
+    public void visit(BinOp op) {
+      tag(OpTag.BINOP);
+      operand(op.destination());
+      operand(op.left());
+      string(op.operator().name());
+      operand(op.right());
+      position(op);
+    }
+
+    @Override
+    public void visit(Return op) {
+      tag(OpTag.RETURN);
+      string(op.procName());
+      optionalOperand(op.returnValueLocation());
+    }
+
+    @Override
+    public void visit(Stop op) {
+      tag(OpTag.STOP);
+      out.writeVarlong(zigzag(op.exitCode()));
+    }
+
+    @Override
+    public void visit(SysCall op) {
+      tag(OpTag.SYSCALL);
+      string(op.call().name());
+      operand(op.arg());
+    }
+
+    @Override
+    public void visit(UnaryOp op) {
+      tag(OpTag.UNARY);
+      operand(op.destination());
+      string(op.operator().name());
+      operand(op.operand());
+      position(op);
+    }
+
+    @Override
+    public void visit(Goto op) {
+      tag(OpTag.GOTO);
+      string(op.label());
+    }
+
+    @Override
+    public void visit(Call op) {
+      tag(OpTag.CALL);
+      optionalOperand(op.destination());
+      out.writeVarint(proc(op.procSym()));
+      out.writeVarint(op.actuals().size());
+      op.actuals().forEach(this::operand);
+      out.writeVarint(op.formals().size());
+      op.formals().forEach(this::operand);
+      position(op);
+    }
+
+    @Override
+    public void visit(ProcExit op) {
+      tag(OpTag.PROC_EXIT);
+      string(op.procName());
+      out.writeVarint(op.localBytes());
+      out.writeVarint(op.numFormals());
+    }
+
+    @Override
+    public void visit(ProcEntry op) {
+      tag(OpTag.PROC_ENTRY);
+      string(op.name());
+      out.writeVarint(op.formals().size());
+      for (ParamSymbol formal : op.formals()) {
+        out.writeVarint(symbol(formal));
+      }
+      out.writeVarint(op.localBytes());
+    }
+
+    @Override
+    public void visit(Dec op) {
+      tag(OpTag.DEC);
+      operand(op.target());
+      position(op);
+    }
+
+    @Override
+    public void visit(Inc op) {
+      tag(OpTag.INC);
+      operand(op.target());
+      position(op);
+    }
+
+    @Override
+    public void visit(AllocateOp op) {
+      tag(OpTag.ALLOCATE);
+      operand(op.destination());
+      out.writeVarint(record(op.record()));
+      position(op);
+    }
+
+    @Override
+    public void visit(ArrayAlloc op) {
+      tag(OpTag.ARRAY_ALLOC);
+      operand(op.destination());
+      out.writeVarint(type(op.arrayType()));
+      operand(op.sizeLocation());
+      position(op);
+    }
+
+    @Override
+    public void visit(ArraySet op) {
+      tag(OpTag.ARRAY_SET);
+      operand(op.array());
+      out.writeVarint(type(op.arrayType()));
+      operand(op.index());
+      operand(op.source());
+      out.writeBoolean(op.isArrayLiteral());
+      position(op);
+    }
+
+    @Override
+    public void visit(FieldSetOp op) {
+      tag(OpTag.FIELD_SET);
+      operand(op.recordLocation());
+      out.writeVarint(record(op.recordSymbol()));
+      string(op.field());
+      operand(op.source());
+      position(op);
+    }
+
+    @Override
+    public void visit(DeallocateTemp op) {
+      tag(OpTag.DEALLOCATE_TEMP);
+      operand(op.temp());
+      position(op);
+    }
+  }
+
+  /** Wraps an object so that it is only equal to itself. */
+  private static class Identity {
+    private final Object object;
+
+    Identity(Object object) {
+      this.object = object;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      return that instanceof Identity && ((Identity) that).object == object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(object);
+    }
+  }
+
+  /** A growable byte array. */
+  private static class Output {
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    private void ensure(int more) {
+      if (size + more > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+      }
+    }
+
+    void writeByte(int value) {
+      ensure(1);
+      bytes[size++] = (byte) value;
+    }
+
+    void writeBoolean(boolean value) {
+      writeByte(value ? 1 : 0);
+    }
+
+    void writeVarint(int value) {
+      writeVarlong(value & 0xffffffffL);
+    }
+
+    void writeVarlong(long value) {
+      ensure(10);
+      while ((value & ~0x7fL) != 0) {
+        bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    void writeInt(int value) {
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        writeByte(value >>> shift);
+      }
+    }
+
+    void writeLong(long value) {
+      writeInt((int) (value >>> 32));
+      writeInt((int) value);
+    }
+
+    void writeBytes(byte[] source, int length) {
+      ensure(length);
+      System.arraycopy(source, 0, bytes, size, length);
+      size += length;
+    }
+  }
+}
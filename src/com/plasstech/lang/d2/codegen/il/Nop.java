@@ -17,6 +17,10 @@ public class Nop extends Op {
     this.message = message;
   }
 
+  public String message() {
+    return message;
+  }
+
   @Override
   public String toString() {
     return String.format("// nop %s", message).trim();
@@ -24,6 +24,8 @@ public abstract class CompilationConfiguration {
         .setOptDebugLevel(0)
         .setCodeGenDebugLevel(0)
         .setOptimize(false)
+        .setOptMaxPasses(100)
+        .setOptTimeBudgetMs(0)
         // no error phase means all should succeed
         .setExpectedErrorPhase(PhaseName.PHASE_UNDEFINED);
   }
@@ -39,6 +41,12 @@ public abstract class CompilationConfiguration {
 
   public abstract boolean optimize();
 
+  /** Maximum number of passes of the IL optimizer over each procedure. */
+  public abstract int optMaxPasses();
+
+  /** Maximum time the IL optimizer may take, in milliseconds; 0 means no limit. */
+  public abstract long optTimeBudgetMs();
+
   public abstract PhaseName expectedErrorPhase();
 
   @Nullable
@@ -76,6 +84,10 @@ public abstract class CompilationConfiguration {
 
     public abstract Builder setOptimize(boolean optimize);
 
+    public abstract Builder setOptMaxPasses(int passes);
+
+    public abstract Builder setOptTimeBudgetMs(long millis);
+
     public abstract Builder setExpectedErrorPhase(PhaseName phase);
 
     public abstract Builder setExpectedErrorMessage(String message);
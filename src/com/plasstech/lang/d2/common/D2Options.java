@@ -73,6 +73,20 @@ public class D2Options extends OptionsBase {
   )
   public boolean optimizeAsm;
 
+  @Option(
+      name = "opt-max-passes",
+      help = "Maximum number of passes of the intermediate language optimizer over each procedure.",
+      defaultValue = "100"
+  )
+  public int optMaxPasses;
+
+  @Option(
+      name = "opt-time-budget-ms",
+      help = "Maximum time the intermediate language optimizer may take; 0 means no limit.",
+      defaultValue = "0"
+  )
+  public int optTimeBudgetMs;
+
   @Option(
       name = "exe",
       abbrev = 'o',
@@ -138,6 +152,77 @@ public class D2Options extends OptionsBase {
   )
   public List<String> libs;
 
+  @Option(
+      name = "cache-dir",
+      help = "Directory to cache compiled asm code in; empty means no cache.",
+      defaultValue = ""
+  )
+  public String cacheDir;
+
+  @Option(
+      name = "cache-max-mb",
+      help = "Maximum size of the cache directory, in megabytes.",
+      defaultValue = "256"
+  )
+  public int cacheMaxMb;
+
+  @Option(
+      name = "cache-max-age-days",
+      help = "Number of days after which an unused entry is evicted from the cache.",
+      defaultValue = "30"
+  )
+  public int cacheMaxAgeDays;
+
+  @Option(
+      name = "stats",
+      help = "Prints the time, CPU time, allocations and output size of each phase.",
+      defaultValue = "false"
+  )
+  public boolean stats;
+
+  @Option(
+      name = "engine",
+      help = "Interpreter engine: CLASSIC or THREADED",
+      defaultValue = "THREADED",
+      converter = InterpreterEngineConverter.class
+  )
+  public InterpreterEngine engine;
+
+  @Option(
+      name = "max-iterations",
+      help = "Maximum number of ops the interpreter runs before stopping; 0 means unlimited.",
+      defaultValue = "10000000"
+  )
+  public int maxIterations;
+
+  @Option(
+      name = "max-call-depth",
+      help = "Maximum number of nested procedure calls before a stack overflow; 0 means unlimited.",
+      defaultValue = "100000"
+  )
+  public int maxCallDepth;
+
+  @Option(
+      name = "jit-threshold",
+      help = "Number of calls after which a procedure is compiled to JVM bytecode; 0 means never.",
+      defaultValue = "1000"
+  )
+  public int jitThreshold;
+
+  @Option(
+      name = "profile",
+      help = "Prints an execution profile of the interpreted program.",
+      defaultValue = "false"
+  )
+  public boolean profile;
+
+  @Option(
+      name = "profile-stacks",
+      help = "If profiling, file to write collapsed call stacks to, for flame graphs.",
+      defaultValue = ""
+  )
+  public String profileStacks;
+
   public static class TargetConverter extends EnumConverter<Target> {
     public TargetConverter() {
       super(Target.class, "Target");
@@ -150,4 +235,10 @@ public class D2Options extends OptionsBase {
       return it;
     }
   }
+
+  public static class InterpreterEngineConverter extends EnumConverter<InterpreterEngine> {
+    public InterpreterEngineConverter() {
+      super(InterpreterEngine.class, "Interpreter engine");
+    }
+  }
 }
@@ -0,0 +1,11 @@
+package com.plasstech.lang.d2.common;
+
+/** Which engine the interpreter uses to run IL. */
+public enum InterpreterEngine {
+  /** Visits each IL op in turn; the reference implementation. */
+  CLASSIC,
+  /**
+   * Pre-decodes the IL into an array of instructions with resolved jump targets and frame slots.
+   */
+  THREADED
+}
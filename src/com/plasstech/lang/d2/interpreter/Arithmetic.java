@@ -0,0 +1,553 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.type.VarType;
+
+/** Evaluates binary and unary operators on (boxed) runtime values. Shared by all engines. */
+class Arithmetic {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private Arithmetic() {}
+
+  /** Returns left (operator) right. */
+  static Object binOp(
+      TokenType operator, Object left, VarType leftType, Object right, VarType rightType) {
+    if (operator == TokenType.DOT) {
+      return dotOp(left, (String) right);
+    } else if (left instanceof Integer && right instanceof Integer) {
+      return intBinOp(operator, (Integer) left, (Integer) right);
+    } else if (left instanceof Long && right instanceof Long) {
+      return longBinOp(operator, (Long) left, (Long) right);
+    } else if (left instanceof Byte && right instanceof Byte) {
+      return byteBinOp(operator, (Byte) left, (Byte) right);
+    } else if (left instanceof Double && right instanceof Double) {
+      return doubleBinOp(operator, (Double) left, (Double) right);
+    } else if (left instanceof Boolean && right instanceof Boolean) {
+      return boolBinOp(operator, (boolean) left, (boolean) right);
+    } else if (left instanceof String && (right instanceof String || right == null)) {
+      return stringBinOp(operator, (String) left, (String) right);
+    } else if (left instanceof String && right instanceof Integer) {
+      return stringIndex(operator, (String) left, (Integer) right);
+    } else if (left != null && left.getClass().isArray()) {
+      return arrayBinOp(operator, left, right);
+    } else if (left instanceof List && right instanceof Integer) {
+      return literalArrayBinOp(operator, left, (Integer) right);
+    } else if (leftType.isRecord() && rightType.isRecord()) {
+      return recordBinOp(operator, left, right);
+    } else if (left == null || right == null) {
+      return nullsBinOp(operator, left, right);
+    }
+    throw new IllegalStateException(
+        String.format(
+            "Not sure what to do with %s; left %s (%s) right %s (%s)",
+            operator,
+            left,
+            left.getClass().getSimpleName(),
+            right,
+            right.getClass().getSimpleName()));
+  }
+
+  /** Returns (operator) rhs. */
+  static Object unaryOp(TokenType operator, Object rhs, VarType rhsType) {
+    if (rhs instanceof Boolean || rhs instanceof Integer) {
+      return intUnaryOp(operator, rhs);
+    } else if (rhs instanceof Long) {
+      return longUnaryOp(operator, rhs);
+    } else if (rhs instanceof Byte) {
+      return byteUnaryOp(operator, rhs);
+    } else if (rhs instanceof Double) {
+      return doubleUnaryOp(operator, rhs);
+    } else if (rhsType == VarType.STRING) {
+      return stringUnaryOp(operator, (String) rhs);
+    } else if (rhs != null && rhs.getClass().isArray()) {
+      return arrayUnaryOp(operator, rhs);
+    }
+    throw new IllegalStateException("Unknown unary op operand " + rhs + " for op " + operator);
+  }
+
+  private static Object recordBinOp(TokenType operator, Object left, Object right) {
+    switch (operator) {
+      case EQEQ:
+        return Objects.equal(left, right);
+
+      case NEQ:
+        return !Objects.equal(left, right);
+
+      default:
+        throw new IllegalStateException(
+            String.format(
+                "Not sure what to do with %s; left %s (%s) right %s (%s)",
+                operator,
+                left,
+                left.getClass().getSimpleName(),
+                right,
+                right.getClass().getSimpleName()));
+    }
+  }
+
+  private static Object nullsBinOp(TokenType operator, Object left, Object right) {
+    boolean leftNull = left == null;
+    boolean rightNull = right == null;
+    switch (operator) {
+      case EQEQ:
+      case GEQ:
+      case LEQ:
+        return leftNull == rightNull;
+
+      case NEQ:
+        return leftNull != rightNull;
+
+      case GT:
+        return !leftNull && rightNull;
+
+      case LT:
+        return false;
+
+      default:
+        throw new IllegalStateException("Unknown null binop " + operator);
+    }
+  }
+
+  private static Object dotOp(Object left, String right) {
+    if (left == null) {
+      throw new D2RuntimeException("Dereferencing null record", null, "Interpreter");
+    }
+    if (!(left instanceof Map)) {
+      logger.atSevere().log("Not sure what to do with %s, should be record type", left);
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Object> leftAsMap = (Map<String, Object>) left;
+    return leftAsMap.get(right);
+  }
+
+  private static Object literalArrayBinOp(TokenType operator, Object left, int right) {
+    if (operator == TokenType.LBRACKET) {
+      List array = (List) left;
+      return array.get(right);
+    }
+    throw new IllegalStateException("Unknown array/int binop " + operator);
+  }
+
+  private static Object arrayBinOp(TokenType operator, Object left, Object right) {
+    switch (operator) {
+      case EQEQ:
+      case NEQ:
+        boolean same = Heap.arraysEqual(left, right);
+        return same == (operator == TokenType.EQEQ);
+
+      case LBRACKET:
+        int index = (Integer) right;
+        return Heap.get(left, index);
+
+      default:
+        throw new IllegalStateException(
+            String.format(
+                "Not sure what to do with %s; left %s (%s) right %s (%s)",
+                operator,
+                Arrays.asList((Object[]) Heap.boxed(left)),
+                left.getClass().getSimpleName(),
+                right,
+                right.getClass().getSimpleName()));
+    }
+  }
+
+  private static Object stringIndex(TokenType operator, String left, Integer right) {
+    if (operator == TokenType.LBRACKET) {
+      return "" + left.charAt(right);
+    }
+    throw new IllegalStateException("Unknown string/int binop " + operator);
+  }
+
+  private static Object stringBinOp(TokenType operator, String left, String right) {
+    if (right == null) {
+      switch (operator) {
+        case EQEQ:
+        case LEQ:
+        case GEQ:
+          // can only be equal if left == right
+          return left == null;
+
+        case GT:
+          // not null > null
+        case NEQ:
+          // not null != null
+          return left != null;
+
+        case LT:
+          // nothing can be < null.
+          return false;
+
+        default:
+          throw new IllegalStateException("Unknown string binop " + operator);
+      }
+    }
+    switch (operator) {
+      case EQEQ:
+        return left.equals(right);
+
+      case GEQ:
+        return left.compareTo(right) >= 0;
+
+      case GT:
+        return left.compareTo(right) > 0;
+
+      case LEQ:
+        return left.compareTo(right) <= 0;
+
+      case LT:
+        return left.compareTo(right) < 0;
+
+      case NEQ:
+        return !left.equals(right);
+
+      case PLUS:
+        return left + right;
+
+      default:
+        throw new IllegalStateException("Unknown string binop " + operator);
+    }
+  }
+
+  private static Object intBinOp(TokenType operator, int left, int right) {
+    switch (operator) {
+      case DIV:
+        return left / right;
+
+      case EQEQ:
+        return left == right;
+
+      case GEQ:
+        return left >= right;
+
+      case GT:
+        return left > right;
+
+      case LEQ:
+        return left <= right;
+
+      case LT:
+        return left < right;
+
+      case MINUS:
+        return left - right;
+
+      case MOD:
+        return left % right;
+
+      case MULT:
+        return left * right;
+
+      case NEQ:
+        return left != right;
+
+      case PLUS:
+        return left + right;
+
+      case SHIFT_LEFT:
+        return left << right;
+
+      case SHIFT_RIGHT:
+        return left >> right;
+
+      case BIT_AND:
+        return left & right;
+
+      case BIT_OR:
+        return left | right;
+
+      case BIT_XOR:
+        return left ^ right;
+
+      default:
+        throw new IllegalStateException("Unknown int binop " + operator);
+    }
+  }
+
+  private static Object longBinOp(TokenType operator, long left, long right) {
+    switch (operator) {
+      case DIV:
+        return left / right;
+
+      case EQEQ:
+        return left == right;
+
+      case GEQ:
+        return left >= right;
+
+      case GT:
+        return left > right;
+
+      case LEQ:
+        return left <= right;
+
+      case LT:
+        return left < right;
+
+      case MINUS:
+        return left - right;
+
+      case MOD:
+        return left % right;
+
+      case MULT:
+        return left * right;
+
+      case NEQ:
+        return left != right;
+
+      case PLUS:
+        return left + right;
+
+      case SHIFT_LEFT:
+        return left << right;
+
+      case SHIFT_RIGHT:
+        return left >> right;
+
+      case BIT_AND:
+        return left & right;
+
+      case BIT_OR:
+        return left | right;
+
+      case BIT_XOR:
+        return left ^ right;
+
+      default:
+        throw new IllegalStateException("Unknown long binop " + operator);
+    }
+  }
+
+  private static Object byteBinOp(TokenType operator, byte left, byte right) {
+    switch (operator) {
+      case DIV:
+        return (byte) (left / right);
+
+      case EQEQ:
+        return left == right;
+
+      case GEQ:
+        return left >= right;
+
+      case GT:
+        return left > right;
+
+      case LEQ:
+        return left <= right;
+
+      case LT:
+        return left < right;
+
+      case MINUS:
+        return (byte) (left - right);
+
+      case MOD:
+        return (byte) (left % right);
+
+      case MULT:
+        return (byte) (left * right);
+
+      case NEQ:
+        return left != right;
+
+      case PLUS:
+        return (byte) (left + right);
+
+      case SHIFT_LEFT:
+        return (byte) (left << right);
+
+      case SHIFT_RIGHT:
+        return (byte) (left >> right);
+
+      case BIT_AND:
+        return (byte) (left & right);
+
+      case BIT_OR:
+        return (byte) (left | right);
+
+      case BIT_XOR:
+        return (byte) (left ^ right);
+
+      default:
+        throw new IllegalStateException("Unknown byte binop " + operator);
+    }
+  }
+
+  private static Object doubleBinOp(TokenType operator, double left, double right) {
+    switch (operator) {
+      case DIV:
+        return left / right;
+
+      case EQEQ:
+        return left == right;
+
+      case GEQ:
+        return left >= right;
+
+      case GT:
+        return left > right;
+
+      case LEQ:
+        return left <= right;
+
+      case LT:
+        return left < right;
+
+      case MINUS:
+        return left - right;
+
+      case MULT:
+        return left * right;
+
+      case NEQ:
+        return left != right;
+
+      case PLUS:
+        return left + right;
+
+      default:
+        throw new IllegalStateException("Unknown double binop " + operator);
+    }
+  }
+
+  private static Object boolBinOp(TokenType operator, boolean left, boolean right) {
+    switch (operator) {
+      case AND:
+        return left && right;
+
+      case OR:
+        return left || right;
+
+      case XOR:
+        return left ^ right;
+
+      case EQEQ:
+        return left == right;
+
+      case NEQ:
+        return left != right;
+
+      case LT:
+        return !left && right;
+
+      case GT:
+        return left && !right;
+
+      case LEQ:
+        return (!left && right) || left == right;
+
+      case GEQ:
+        return (left && !right) || left == right;
+
+      default:
+        throw new IllegalStateException("Unknown bool binop " + operator);
+    }
+  }
+
+
+  private static Object byteUnaryOp(TokenType operator, Object rhs) {
+    byte r1 = (byte) rhs;
+    switch (operator) {
+      case PLUS:
+        return r1;
+
+      case MINUS:
+        return (byte) -r1;
+
+      case BIT_NOT:
+        return (byte) ~r1;
+
+      default:
+        throw new IllegalStateException("Unknown byte unaryop " + operator);
+    }
+  }
+
+  private static Object arrayUnaryOp(TokenType operator, Object rhs) {
+    switch (operator) {
+      case LENGTH:
+        return Heap.length(rhs);
+
+      default:
+        throw new IllegalStateException("Unknown array unaryop " + operator);
+    }
+  }
+
+  private static Object stringUnaryOp(TokenType operator, String rhs) {
+    switch (operator) {
+      case LENGTH:
+        return rhs.length();
+
+      case ASC:
+        return (int) rhs.charAt(0);
+
+      default:
+        throw new IllegalStateException("Unknown string unaryop " + operator);
+    }
+  }
+
+  private static Object intUnaryOp(TokenType operator, Object rhs) {
+    if (operator == TokenType.NOT) {
+      return rhs.equals(Boolean.FALSE);
+    }
+    int r1;
+    if (rhs instanceof Integer) {
+      r1 = (int) rhs;
+    } else {
+      r1 = (byte) rhs;
+    }
+    switch (operator) {
+      case PLUS:
+        return r1;
+
+      case MINUS:
+        return 0 - r1;
+
+      case BIT_NOT:
+        return ~r1;
+
+      case CHR:
+        return "" + (char) r1;
+
+      default:
+        throw new IllegalStateException("Unknown bool/int unaryop " + operator);
+    }
+  }
+
+  private static Object longUnaryOp(TokenType operator, Object rhs) {
+    if (operator == TokenType.NOT) {
+      return rhs.equals(Boolean.FALSE);
+    }
+    long r1 = (long) rhs;
+    ;
+    switch (operator) {
+      case PLUS:
+        return r1;
+
+      case MINUS:
+        return 0 - r1;
+
+      case BIT_NOT:
+        return ~r1;
+
+      default:
+        throw new IllegalStateException("Unknown long unaryop " + operator);
+    }
+  }
+
+  private static Object doubleUnaryOp(TokenType operator, Object rhs) {
+    double r1 = (double) rhs;
+    if (operator == TokenType.PLUS) {
+      return r1;
+    } else if (operator == TokenType.MINUS) {
+      return 0.0 - r1;
+    }
+    throw new IllegalStateException("Unknown double unaryop " + operator);
+  }
+}
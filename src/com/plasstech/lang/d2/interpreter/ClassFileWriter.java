@@ -0,0 +1,407 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a minimal JVM class file: a constant pool, no fields, and methods with a Code attribute.
+ * Only as much of the class file format as the {@link Jit} needs.
+ *
+ * <p>Classes are written as version 49 (Java 5), which is verified by type inference, so no stack
+ * map frames are needed.
+ */
+class ClassFileWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+  private int poolCount = 1;
+  private final List<Code> methods = new ArrayList<>();
+  private final int thisClass;
+  private final int superClass;
+
+  /** Class names are internal names, e.g., {@code java/lang/Object}. */
+  ClassFileWriter(String className, String superName) {
+    this.thisClass = classRef(className);
+    this.superClass = classRef(superName);
+  }
+
+  /** Starts a new method; its code is written to the returned {@link Code}. */
+  Code method(int access, String name, String descriptor) {
+    Code code = new Code(this, access, utf8(name), utf8(descriptor));
+    methods.add(code);
+    return code;
+  }
+
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      int codeName = utf8("Code");
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      poolOut.flush();
+      pool.writeTo(out);
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(methods.size());
+      for (Code method : methods) {
+        method.write(out, codeName);
+      }
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Adds a constant pool entry, unless there already is one with the same key. */
+  private int constant(String key, int slots, PoolWriter writer) {
+    Integer index = poolIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      writer.write(poolOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    int newIndex = poolCount;
+    poolCount += slots;
+    poolIndexes.put(key, newIndex);
+    return newIndex;
+  }
+
+  private interface PoolWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  int utf8(String value) {
+    return constant("U" + value, 1, out -> {
+      out.writeByte(1);
+      out.writeUTF(value);
+    });
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    return constant("C" + internalName, 1, out -> {
+      out.writeByte(7);
+      out.writeShort(name);
+    });
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return constant("S" + value, 1, out -> {
+      out.writeByte(8);
+      out.writeShort(utf8);
+    });
+  }
+
+  int intConstant(int value) {
+    return constant("I" + value, 1, out -> {
+      out.writeByte(3);
+      out.writeInt(value);
+    });
+  }
+
+  int longConstant(long value) {
+    return constant("J" + value, 2, out -> {
+      out.writeByte(5);
+      out.writeLong(value);
+    });
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    return constant("N" + name + ":" + descriptor, 1, out -> {
+      out.writeByte(12);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+    return constant("M" + owner + "." + name + descriptor, 1, out -> {
+      out.writeByte(10);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  /** A branch target in a {@link Code}. */
+  static class Label {
+    private int position = -1;
+    // Positions of the branch instructions, and of their offsets, that jump to this label.
+    private final List<int[]> fixups = new ArrayList<>();
+  }
+
+  /** The bytecode of one method. */
+  static class Code {
+    private final ClassFileWriter owner;
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private byte[] code = new byte[256];
+    private int length;
+    private int maxStack = 32;
+    private int maxLocals;
+    private boolean overflow;
+
+    private Code(ClassFileWriter owner, int access, int name, int descriptor) {
+      this.owner = owner;
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    ClassFileWriter owner() {
+      return owner;
+    }
+
+    void setMaxLocals(int maxLocals) {
+      this.maxLocals = maxLocals;
+    }
+
+    void setMaxStack(int maxStack) {
+      this.maxStack = maxStack;
+    }
+
+    /** Whether a branch was too far for a 16-bit offset, in which case the code is unusable. */
+    boolean overflowed() {
+      return overflow || length > 65535;
+    }
+
+    private void u1(int value) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    Code op(int opcode) {
+      u1(opcode);
+      return this;
+    }
+
+    /** An opcode with a one-byte operand, e.g., bipush. */
+    Code op1(int opcode, int operand) {
+      u1(opcode);
+      u1(operand);
+      return this;
+    }
+
+    /** An opcode with a two-byte operand, e.g., sipush or invokevirtual. */
+    Code op2(int opcode, int operand) {
+      u1(opcode);
+      u2(operand);
+      return this;
+    }
+
+    /** Pushes the given int constant. */
+    Code pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        return op(Opcodes.ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        return op1(Opcodes.BIPUSH, value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        return op2(Opcodes.SIPUSH, value);
+      }
+      return ldc(owner.intConstant(value));
+    }
+
+    /** Pushes the given long constant. */
+    Code pushLong(long value) {
+      if (value == 0 || value == 1) {
+        return op(Opcodes.LCONST_0 + (int) value);
+      }
+      return op2(Opcodes.LDC2_W, owner.longConstant(value));
+    }
+
+    Code pushString(String value) {
+      return ldc(owner.string(value));
+    }
+
+    private Code ldc(int index) {
+      if (index < 256) {
+        return op1(Opcodes.LDC, index);
+      }
+      return op2(Opcodes.LDC_W, index);
+    }
+
+    /** A load or store of a local variable. */
+    Code local(int opcode, int index) {
+      if (index < 256) {
+        return op1(opcode, index);
+      }
+      u1(Opcodes.WIDE);
+      return op2(opcode, index);
+    }
+
+    Code invokeVirtual(String className, String methodName, String methodDescriptor) {
+      return op2(Opcodes.INVOKEVIRTUAL, owner.methodRef(className, methodName, methodDescriptor));
+    }
+
+    Code invokeStatic(String className, String methodName, String methodDescriptor) {
+      return op2(Opcodes.INVOKESTATIC, owner.methodRef(className, methodName, methodDescriptor));
+    }
+
+    Code invokeSpecial(String className, String methodName, String methodDescriptor) {
+      return op2(Opcodes.INVOKESPECIAL, owner.methodRef(className, methodName, methodDescriptor));
+    }
+
+    Code checkcast(String className) {
+      return op2(Opcodes.CHECKCAST, owner.classRef(className));
+    }
+
+    /** A branch instruction, e.g., goto or ifeq, to the given label. */
+    Code jump(int opcode, Label label) {
+      int start = length;
+      u1(opcode);
+      if (label.position >= 0) {
+        offset(label.position - start);
+      } else {
+        label.fixups.add(new int[] {start, length});
+        u2(0);
+      }
+      return this;
+    }
+
+    private void offset(int offset) {
+      if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+        overflow = true;
+      }
+      u2(offset);
+    }
+
+    /** Places the given label at the current position. */
+    Code mark(Label label) {
+      label.position = length;
+      for (int[] fixup : label.fixups) {
+        int offset = length - fixup[0];
+        if (offset > Short.MAX_VALUE) {
+          overflow = true;
+        }
+        code[fixup[1]] = (byte) (offset >> 8);
+        code[fixup[1] + 1] = (byte) offset;
+      }
+      label.fixups.clear();
+      return this;
+    }
+
+    private void write(DataOutputStream out, int codeName) throws IOException {
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1); // attributes
+      out.writeShort(codeName);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      out.writeShort(0); // exception table
+      out.writeShort(0); // attributes
+    }
+  }
+
+  /** The JVM opcodes used by the {@link Jit}. */
+  static final class Opcodes {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int LCONST_0 = 0x09;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int LSTORE = 0x37;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int DADD = 0x63;
+    static final int ISUB = 0x64;
+    static final int LSUB = 0x65;
+    static final int DSUB = 0x67;
+    static final int IMUL = 0x68;
+    static final int LMUL = 0x69;
+    static final int DMUL = 0x6b;
+    static final int IDIV = 0x6c;
+    static final int LDIV = 0x6d;
+    static final int DDIV = 0x6f;
+    static final int IREM = 0x70;
+    static final int LREM = 0x71;
+    static final int LNEG = 0x75;
+    static final int ISHL = 0x78;
+    static final int LSHL = 0x79;
+    static final int ISHR = 0x7a;
+    static final int LSHR = 0x7b;
+    static final int IAND = 0x7e;
+    static final int LAND = 0x7f;
+    static final int IOR = 0x80;
+    static final int LOR = 0x81;
+    static final int IXOR = 0x82;
+    static final int LXOR = 0x83;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int I2B = 0x91;
+    static final int LCMP = 0x94;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int LRETURN = 0xad;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+    private Opcodes() {}
+  }
+}
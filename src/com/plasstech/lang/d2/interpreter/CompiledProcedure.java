@@ -0,0 +1,43 @@
+package com.plasstech.lang.d2.interpreter;
+
+/**
+ * Base class of the procedures compiled to JVM bytecode by the {@link Jit}. Each runs the whole
+ * procedure in a frame that has already been pushed, with its parameters set, and returns the
+ * return value; the caller pops the frame.
+ */
+abstract class CompiledProcedure {
+  // The primitive global slots that the compiled code reads.
+  private int[] globalReads = new int[0];
+
+  void setGlobalReads(int[] globalReads) {
+    this.globalReads = globalReads;
+  }
+
+  /**
+   * Whether the compiled code can run now: it keeps primitives unboxed, so every primitive global
+   * it reads must have been set.
+   */
+  boolean canRun(Environment globals) {
+    for (int slot : globalReads) {
+      if (!globals.hasBits(slot)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Runs a procedure that does not return a primitive; void procedures return null. */
+  Object call(ThreadedInterpreter vm, Environment frame) {
+    throw new UnsupportedOperationException("Procedure returns a primitive");
+  }
+
+  /** Runs a procedure that returns a primitive, and returns its raw bits. */
+  long callPrimitive(ThreadedInterpreter vm, Environment frame) {
+    throw new UnsupportedOperationException("Procedure does not return a primitive");
+  }
+
+  /** Called by compiled code that falls off the end of a procedure that must return a value. */
+  static void missingReturn(String procName) {
+    throw new IllegalStateException("No return value from " + procName);
+  }
+}
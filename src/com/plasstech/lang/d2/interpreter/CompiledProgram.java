@@ -0,0 +1,55 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.phase.State;
+import com.plasstech.lang.d2.type.SymbolTable;
+
+/**
+ * A program that has been compiled to IL and decoded for the engines, ready to run any number of
+ * times, including concurrently. Every run gets its own environment; what is shared is immutable,
+ * except that the threaded engine compiles hot procedures in place, so later runs of the same
+ * program start out faster.
+ */
+public class CompiledProgram {
+  private final State state;
+  private final ThreadedCode threadedCode;
+
+  private CompiledProgram(State state) {
+    this.state = state;
+    this.threadedCode = ThreadedCode.decode(state.lastIlCode());
+  }
+
+  /**
+   * Decodes the final IL code of the given state.
+   *
+   * @throws IllegalArgumentException if the state has no IL code
+   */
+  public static CompiledProgram of(State state) {
+    Preconditions.checkArgument(
+        state.ilCode() != null && !state.ilCode().isEmpty(), "No il code in state");
+    return new CompiledProgram(state);
+  }
+
+  /** The compiler state this program came from. */
+  public State state() {
+    return state;
+  }
+
+  public ImmutableList<Op> code() {
+    return state.lastIlCode();
+  }
+
+  public SymbolTable symbolTable() {
+    return state.symbolTable();
+  }
+
+  ThreadedCode threadedCode() {
+    return threadedCode;
+  }
+
+  ProgramLayout layout() {
+    return threadedCode.layout();
+  }
+}
@@ -0,0 +1,59 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.type.PrintFormats;
+
+/** Implements the printing and input system calls. Shared by all engines. */
+class Console {
+  private final OutputSink output;
+  private final InputSource input;
+  private final boolean interactive;
+
+  /**
+   * @param interactive if true, MESSAGE goes to standard error instead of the output, after
+   *     flushing it
+   */
+  Console(OutputSink output, InputSource input, boolean interactive) {
+    this.output = output;
+    this.input = input;
+    this.interactive = interactive;
+  }
+
+  /** Implements PRINT, PRINTLN and MESSAGE. */
+  void print(SysCall.Call call, Object resolved) {
+    switch (call) {
+      case PRINT:
+      case PRINTLN:
+        output.write(PrintFormats.formatLiteral(resolved));
+        if (call == SysCall.Call.PRINTLN) {
+          output.write("\n");
+        }
+        break;
+
+      case MESSAGE:
+        if (interactive) {
+          output.flush();
+          System.err.println("ERROR: " + resolved);
+        } else {
+          output.write("ERROR: " + resolved);
+          output.write("\n");
+        }
+        break;
+
+      default:
+        throw new IllegalStateException("Cannot print via " + call);
+    }
+  }
+
+  /** Flushes the output. */
+  void flush() {
+    output.flush();
+  }
+
+  /** Implements INPUT: reads all of the input. */
+  String readInput() {
+    // Make sure any prompt has been seen.
+    output.flush();
+    return input.readAll();
+  }
+}
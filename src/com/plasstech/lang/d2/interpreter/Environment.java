@@ -1,12 +1,16 @@
 package com.plasstech.lang.d2.interpreter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.type.VarType;
 
+/** A single frame: either the global frame or one procedure invocation. */
 public class Environment {
   // this is a unique sentinel object
   private static final Object NULL =
@@ -21,56 +25,182 @@ public class Environment {
           return toString().hashCode();
         }
       };
+  // Marks a slot whose value is in the primitives array.
+  private static final Object PRIMITIVE =
+      new Object() {
+        @Override
+        public String toString() {
+          return "__primitive__";
+        }
+      };
+
+  /**
+   * Thrown by the unboxed reads of a slot that holds no bits, because it was never set or was set
+   * to null. The caller falls back to the boxed read, which returns null.
+   */
+  static class Unset extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final Unset INSTANCE = new Unset();
+
+    private Unset() {
+      super("Read of a variable that was never set", null, false, false);
+    }
+  }
+
   private final List<String> output = new ArrayList<>();
-  private final Map<String, Object> values = new HashMap<>();
-  private final Environment parent;
+  private final FrameLayout layout;
+  // A Java null means "never set"; the NULL sentinel means "set to null"; the PRIMITIVE sentinel
+  // means the value is unboxed, in the primitives array.
+  private final Object[] values;
+  private final long[] primitives;
+  // Static link: the frame of the procedure this one is nested in, or null.
+  private Environment outer;
+
+  Environment(FrameLayout layout) {
+    this.layout = layout;
+    this.values = new Object[layout.size()];
+    this.primitives = new long[layout.size()];
+  }
+
+  public FrameLayout layout() {
+    return layout;
+  }
 
-  Environment() {
-    parent = null;
+  /**
+   * The active frame of the procedure that this frame's procedure is nested in, or null if it's
+   * not nested.
+   */
+  Environment outer() {
+    return outer;
   }
 
-  private Environment(Environment parent) {
-    this.parent = parent;
+  /** Returns the frame the given number of static links out from this one. */
+  Environment outer(int depth) {
+    Environment frame = this;
+    for (int i = 0; i < depth; ++i) {
+      frame = frame.outer;
+    }
+    return frame;
   }
 
-  Environment spawn() {
-    return new Environment(this);
+  void setOuter(Environment outer) {
+    this.outer = outer;
   }
 
-  public Environment parent() {
-    return parent;
+  /** Unsets every slot, so this frame can be reused for another call. */
+  void clear() {
+    Arrays.fill(values, null);
+    Arrays.fill(primitives, 0);
+    outer = null;
   }
 
   public void setValue(Location location, Object value) {
+    int slot = layout.slotOf(location);
+    if (slot == -1) {
+      throw new IllegalStateException(
+          String.format("No slot for %s in frame %s", location.name(), layout.name()));
+    }
+    setValue(slot, value);
+  }
+
+  void setValue(int slot, Object value) {
     if (value == null) {
       // Sentinel
-      values.put(location.name(), NULL);
+      values[slot] = NULL;
+      return;
+    }
+    VarType primitiveType = layout.primitiveType(slot);
+    if (primitiveType != null) {
+      setLong(slot, Primitives.toBits(value, primitiveType));
     } else {
-      values.put(location.name(), value);
+      values[slot] = value;
     }
   }
 
+  /**
+   * Sets the raw bits of a primitive slot: integral values sign-extended, booleans as 0 or 1,
+   * doubles as their IEEE bits.
+   */
+  void setLong(int slot, long bits) {
+    primitives[slot] = bits;
+    values[slot] = PRIMITIVE;
+  }
+
+  /** Whether the given slot holds raw bits, i.e., {@link #getLong} won't throw. */
+  boolean hasBits(int slot) {
+    return values[slot] == PRIMITIVE;
+  }
+
+  /**
+   * Returns the raw bits of a primitive slot.
+   *
+   * @throws Unset if the slot has no bits
+   */
+  long getLong(int slot) {
+    if (values[slot] != PRIMITIVE) {
+      throw Unset.INSTANCE;
+    }
+    return primitives[slot];
+  }
+
+  void setDouble(int slot, double value) {
+    setLong(slot, Double.doubleToRawLongBits(value));
+  }
+
+  double getDouble(int slot) {
+    return Double.longBitsToDouble(getLong(slot));
+  }
+
+  /** Returns the raw value of the given location, e.g., an {@code int[]} for an int array. */
+  Object getValue(Location location) {
+    int slot = layout.slotOf(location);
+    if (slot == -1) {
+      return null;
+    }
+    return getValue(slot);
+  }
+
+  /**
+   * Returns the value of the given variable, with arrays of primitives converted to arrays of the
+   * boxed type, e.g., {@code Integer[]}.
+   */
   public Object getValue(String name) {
-    Object value = values.get(name);
+    int slot = layout.slotOf(name);
+    if (slot == -1) {
+      return null;
+    }
+    return Heap.boxed(getValue(slot));
+  }
+
+  Object getValue(int slot) {
+    Object value = values[slot];
+    if (value == null) {
+      // Never set; a copy of a variable of an enclosing procedure reads through to the original.
+      int depth = layout.fallbackDepth(slot);
+      if (depth > 0 && outer(depth) != null) {
+        return outer(depth).getValue(layout.fallbackSlot(slot));
+      }
+      return null;
+    }
     if (value == NULL) {
       // Sentinel
       return null;
-    } else if (value == null && parent() != null) {
-      return parent().getValue(name);
+    }
+    if (value == PRIMITIVE) {
+      return Primitives.box(primitives[slot], layout.primitiveType(slot));
     }
     return value;
   }
 
+  /** Returns the value of each variable that has been set, as by {@link #getValue(String)}. */
   public Map<String, Object> variables() {
     Map<String, Object> variablesOnly = new HashMap<>();
-    for (Map.Entry<String, Object> entry : values.entrySet()) {
-      if (!entry.getKey().startsWith("__")) {
-        // not a temp
-        Object value = entry.getValue();
-        if (value == NULL) {
-          value = null;
-        }
-        variablesOnly.put(entry.getKey(), entry.getValue());
+    for (int slot = 0; slot < values.length; ++slot) {
+      String name = layout.nameOf(slot);
+      if (!name.startsWith("__") && values[slot] != null) {
+        // not a temp, and has been set
+        variablesOnly.put(name, Heap.boxed(getValue(slot)));
       }
     }
     return variablesOnly;
@@ -86,10 +216,12 @@ public class Environment {
 
   @Override
   public String toString() {
-    if (parent != null) {
-      return values.toString() + " Parent: " + parent.toString();
-    } else {
-      return values.toString();
+    Map<String, Object> setValues = new LinkedHashMap<>();
+    for (int slot = 0; slot < values.length; ++slot) {
+      if (values[slot] != null) {
+        setValues.put(layout.nameOf(slot), getValue(slot));
+      }
     }
+    return setValues.toString();
   }
 }
@@ -0,0 +1,222 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.VariableLocation;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Maps each variable, parameter and temp of a single frame (either the global frame or one
+ * procedure) to a dense integer slot. Built once by the {@link SlotAssigner}; read-only after
+ * that.
+ */
+public class FrameLayout {
+  private final String name;
+  private final FrameLayout parent;
+  private boolean hasNested;
+  private final Map<String, Integer> slotsByName = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+  // The type of each slot whose values are kept unboxed, or null if the slot holds objects.
+  private final List<VarType> primitiveTypes = new ArrayList<>();
+  // Keyed by the exact Location instances in the code, so a lookup never hashes a string.
+  private final Map<Location, Integer> slotsByLocation = new IdentityHashMap<>();
+  private final List<Integer> paramSlots = new ArrayList<>();
+  // Names of the variables of enclosing procedures that this procedure keeps its own copy of.
+  private final Set<String> copies = new HashSet<>();
+  // For each slot that is a copy: how many static links out, and in which slot, to read it while
+  // it is unset; a depth of 0 means it has no such fallback.
+  private int[] fallbackDepths;
+  private int[] fallbackSlots;
+
+  FrameLayout(String name, FrameLayout parent) {
+    this.name = name;
+    this.parent = parent;
+    if (parent != null) {
+      parent.hasNested = true;
+    }
+  }
+
+  /** Name of the procedure, or "global" for the global frame. */
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Layout of the procedure this one is nested in, or null for a top-level procedure or the global
+   * frame. A frame's static link points at the active frame with this layout.
+   */
+  FrameLayout parent() {
+    return parent;
+  }
+
+  /** Whether any procedure is nested in this one, and so may read and write its frame. */
+  boolean hasNested() {
+    return hasNested;
+  }
+
+  /**
+   * Returns how many static links lead from a frame with this layout to the frame that holds the
+   * given non-global location: 0 for this frame, 1 for the parent's frame, and so on.
+   */
+  int depthOf(Location location) {
+    if (parent == null || !(location instanceof VariableLocation)) {
+      return 0;
+    }
+    // Locals and params know which procedure declared them; temps don't, and are always local.
+    String owner = ((VariableLocation) location).symbol().getParentName();
+    if (owner == null) {
+      return 0;
+    }
+    int depth = 0;
+    for (FrameLayout layout = this; layout != null; layout = layout.parent) {
+      if (layout.name.equals(owner) || layout.copies.contains(location.name())) {
+        return depth;
+      }
+      depth++;
+    }
+    return 0;
+  }
+
+  /**
+   * Gives this procedure its own copy of the given variable of an enclosing procedure, because it
+   * sets it.
+   */
+  void addCopy(String variableName) {
+    copies.add(variableName);
+  }
+
+  /**
+   * Links the slot of each copy to the slot of the same variable in the nearest enclosing frame
+   * that has it. Called once all slots are assigned.
+   */
+  void linkCopies() {
+    fallbackDepths = new int[size()];
+    fallbackSlots = new int[size()];
+    for (String copy : copies) {
+      int slot = slotOf(copy);
+      if (slot == -1) {
+        continue;
+      }
+      int depth = 1;
+      for (FrameLayout layout = parent; layout != null; layout = layout.parent) {
+        int outerSlot = layout.slotOf(copy);
+        if (outerSlot != -1) {
+          fallbackDepths[slot] = depth;
+          fallbackSlots[slot] = outerSlot;
+          break;
+        }
+        depth++;
+      }
+    }
+  }
+
+  /**
+   * If the given slot is a copy of a variable of an enclosing procedure, returns how many static
+   * links lead to the frame to read while the copy is unset, otherwise 0.
+   */
+  int fallbackDepth(int slot) {
+    return fallbackDepths == null ? 0 : fallbackDepths[slot];
+  }
+
+  /** The slot to read in the frame given by {@link #fallbackDepth}. */
+  int fallbackSlot(int slot) {
+    return fallbackSlots[slot];
+  }
+
+  /** Returns the layout the given number of static links out from this one. */
+  FrameLayout outer(int depth) {
+    FrameLayout layout = this;
+    for (int i = 0; i < depth; ++i) {
+      layout = layout.parent;
+    }
+    return layout;
+  }
+
+  /** Number of slots needed for a frame with this layout. */
+  public int size() {
+    return names.size();
+  }
+
+  /** The names of each slot, in slot order. */
+  public ImmutableList<String> names() {
+    return ImmutableList.copyOf(names);
+  }
+
+  String nameOf(int slot) {
+    return names.get(slot);
+  }
+
+  /**
+   * Returns the type of the given slot if its values are kept unboxed as raw bits, or null if the
+   * slot holds objects.
+   */
+  VarType primitiveType(int slot) {
+    return primitiveTypes.get(slot);
+  }
+
+  /** Returns the slot for the given location, or -1 if it is not in this frame. */
+  int slotOf(Location location) {
+    Integer slot = slotsByLocation.get(location);
+    if (slot != null) {
+      return slot;
+    }
+    // A location that was built after the slots were assigned.
+    return slotOf(location.name());
+  }
+
+  /** Returns the slot for the given name, or -1 if it is not in this frame. */
+  public int slotOf(String name) {
+    Integer slot = slotsByName.get(name);
+    if (slot == null) {
+      return -1;
+    }
+    return slot;
+  }
+
+  /** Returns the slot for the i'th formal parameter. */
+  int paramSlot(int i) {
+    return paramSlots.get(i);
+  }
+
+  int addParam(String paramName, VarType type) {
+    int slot = add(paramName, type);
+    paramSlots.add(slot);
+    return slot;
+  }
+
+  int add(Location location) {
+    int slot = add(location.name(), location.type());
+    slotsByLocation.put(location, slot);
+    return slot;
+  }
+
+  private int add(String slotName, VarType type) {
+    // Copies are boxed, so that every read of one checks whether it's been set.
+    VarType primitiveType =
+        Primitives.isPrimitive(type) && !copies.contains(slotName) ? type : null;
+    Integer slot = slotsByName.get(slotName);
+    if (slot == null) {
+      slot = names.size();
+      names.add(slotName);
+      primitiveTypes.add(primitiveType);
+      slotsByName.put(slotName, slot);
+    } else if (primitiveTypes.get(slot) != primitiveType) {
+      // Seen with two different types; play it safe and box.
+      primitiveTypes.set(slot, null);
+    }
+    return slot;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %s", name, names);
+  }
+}
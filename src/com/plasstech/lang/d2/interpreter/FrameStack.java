@@ -0,0 +1,123 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.Arrays;
+
+import com.plasstech.lang.d2.common.D2RuntimeException;
+
+/**
+ * The call stack of procedure frames and return addresses, shared by all engines. Grows as
+ * needed, up to a maximum depth. A frame that is popped stays in its place, and is reused by the
+ * next call at the same depth to a procedure with the same layout, so a recursive procedure only
+ * allocates a frame the first time it reaches each depth.
+ */
+class FrameStack {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int maxDepth;
+  // frames[0] is the global frame; frames[1..depth] are the active procedure frames. Entries past
+  // depth are inactive, kept for reuse.
+  private Environment[] frames = new Environment[INITIAL_CAPACITY];
+  private int[] returnIps = new int[INITIAL_CAPACITY];
+  private int depth;
+
+  /** @param maxDepth maximum number of nested calls, or UNLIMITED */
+  FrameStack(Environment global, long maxDepth) {
+    this.maxDepth =
+        (maxDepth > Interpreter.UNLIMITED && maxDepth < Integer.MAX_VALUE)
+            ? (int) maxDepth
+            : Integer.MAX_VALUE - 1;
+    frames[0] = global;
+  }
+
+  /** Returns the error that stops a program that makes more than the given nested calls. */
+  static D2RuntimeException overflow(int depth) {
+    return new D2RuntimeException(
+        String.format("Stack overflow: more than %d nested procedure calls", depth),
+        null,
+        "Interpreter");
+  }
+
+  /** The frame of the currently-running procedure, or the global frame. */
+  Environment current() {
+    return frames[depth];
+  }
+
+  /** Number of active procedure calls. */
+  int depth() {
+    return depth;
+  }
+
+  boolean isEmpty() {
+    return depth == 0;
+  }
+
+  /**
+   * Returns an empty frame with the given layout for the next call, without entering it, so the
+   * caller can still evaluate the actual parameters in its own frame before calling {@link #push}.
+   *
+   * @throws D2RuntimeException if there are already the maximum number of nested calls
+   */
+  Environment allocate(FrameLayout layout) {
+    int next = depth + 1;
+    if (next > maxDepth) {
+      throw overflow(maxDepth);
+    }
+    if (next == frames.length) {
+      int capacity = (int) Math.min((long) frames.length * 2, (long) maxDepth + 1);
+      frames = Arrays.copyOf(frames, capacity);
+      returnIps = Arrays.copyOf(returnIps, capacity);
+    }
+    Environment frame = frames[next];
+    if (frame != null && frame.layout() == layout) {
+      frame.clear();
+    } else {
+      frame = new Environment(layout);
+      frames[next] = frame;
+    }
+    frame.setOuter(enclosing(layout));
+    return frame;
+  }
+
+  /**
+   * Returns the frame that a new frame with the given layout links to: the nearest frame with the
+   * layout of its parent on the static chain of the caller. A nested procedure can only be called
+   * from inside its parent, so that frame is always there.
+   */
+  private Environment enclosing(FrameLayout layout) {
+    FrameLayout parent = layout.parent();
+    if (parent == null) {
+      return null;
+    }
+    for (Environment frame = current(); frame != null; frame = frame.outer()) {
+      if (frame.layout() == parent) {
+        return frame;
+      }
+    }
+    throw new IllegalStateException(
+        String.format("No active frame of %s for a call to %s", parent.name(), layout.name()));
+  }
+
+  /** Enters the frame last returned by {@link #allocate}, remembering the given return address. */
+  void push(int returnIp) {
+    depth++;
+    returnIps[depth] = returnIp;
+  }
+
+  /** Leaves the current frame, returning the return address given when it was pushed. */
+  int pop() {
+    if (depth == 0) {
+      throw new IllegalStateException("Cannot return from the global frame");
+    }
+    return returnIps[depth--];
+  }
+
+  /** Leaves all procedure frames. */
+  void clear() {
+    depth = 0;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(Arrays.copyOf(frames, depth + 1));
+  }
+}
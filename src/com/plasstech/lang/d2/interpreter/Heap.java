@@ -0,0 +1,165 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Allocates and accesses arrays. Shared by all engines.
+ *
+ * <p>Arrays of ints, longs, doubles, bytes and bools are backed by the corresponding Java
+ * primitive array; all other arrays are {@code Object[]}. Records are {@link RecordValue}s,
+ * allocated by their {@link RecordLayout}.
+ */
+class Heap {
+  private Heap() {}
+
+  static Object newArray(VarType baseType, int sizeVal) {
+    if (baseType == VarType.BOOL) {
+      return new boolean[sizeVal];
+    } else if (baseType == VarType.INT) {
+      return new int[sizeVal];
+    } else if (baseType == VarType.LONG) {
+      return new long[sizeVal];
+    } else if (baseType == VarType.BYTE) {
+      return new byte[sizeVal];
+    } else if (baseType == VarType.DOUBLE) {
+      return new double[sizeVal];
+    } else if (baseType == VarType.STRING) {
+      String[] strings = new String[sizeVal];
+      Arrays.fill(strings, "");
+      return strings;
+    } else if (baseType.isRecord()) {
+      // Cannot make array of map; all nulls.
+      return new Object[sizeVal];
+    }
+    throw new IllegalStateException("Cannot create array of " + baseType);
+  }
+
+  /** Returns the (boxed) value of the given element of the given array. */
+  static Object get(Object array, int index) {
+    if (array instanceof Object[]) {
+      return ((Object[]) array)[index];
+    } else if (array instanceof int[]) {
+      return ((int[]) array)[index];
+    } else if (array instanceof double[]) {
+      return ((double[]) array)[index];
+    } else if (array instanceof long[]) {
+      return ((long[]) array)[index];
+    } else if (array instanceof byte[]) {
+      return ((byte[]) array)[index];
+    } else if (array instanceof boolean[]) {
+      return ((boolean[]) array)[index];
+    } else if (array instanceof List) {
+      return ((List<?>) array).get(index);
+    }
+    throw new IllegalStateException("Not an array: " + array);
+  }
+
+  /** Returns the raw bits (see {@link Primitives}) of the given element of the given array. */
+  static long getBits(Object array, int index) {
+    if (array instanceof int[]) {
+      return ((int[]) array)[index];
+    } else if (array instanceof double[]) {
+      return Double.doubleToRawLongBits(((double[]) array)[index]);
+    } else if (array instanceof long[]) {
+      return ((long[]) array)[index];
+    } else if (array instanceof byte[]) {
+      return ((byte[]) array)[index];
+    } else if (array instanceof boolean[]) {
+      return ((boolean[]) array)[index] ? 1 : 0;
+    }
+    return Primitives.toBits(get(array, index));
+  }
+
+  /** Sets the given element of the given array to the given (boxed) value. */
+  @SuppressWarnings("unchecked")
+  static void set(Object array, int index, Object value) {
+    if (array instanceof Object[]) {
+      ((Object[]) array)[index] = value;
+    } else if (array instanceof int[]) {
+      ((int[]) array)[index] = ((Number) value).intValue();
+    } else if (array instanceof double[]) {
+      ((double[]) array)[index] = ((Number) value).doubleValue();
+    } else if (array instanceof long[]) {
+      ((long[]) array)[index] = ((Number) value).longValue();
+    } else if (array instanceof byte[]) {
+      ((byte[]) array)[index] = ((Number) value).byteValue();
+    } else if (array instanceof boolean[]) {
+      ((boolean[]) array)[index] = (Boolean) value;
+    } else if (array instanceof List) {
+      ((List<Object>) array).set(index, value);
+    } else {
+      throw new IllegalStateException("Not an array: " + array);
+    }
+  }
+
+  /** Sets the given element of the given array to the given raw bits of the given type. */
+  static void setBits(Object array, int index, long bits, VarType type) {
+    if (array instanceof int[]) {
+      ((int[]) array)[index] = (int) bits;
+    } else if (array instanceof double[]) {
+      ((double[]) array)[index] = Double.longBitsToDouble(bits);
+    } else if (array instanceof long[]) {
+      ((long[]) array)[index] = bits;
+    } else if (array instanceof byte[]) {
+      ((byte[]) array)[index] = (byte) bits;
+    } else if (array instanceof boolean[]) {
+      ((boolean[]) array)[index] = bits != 0;
+    } else {
+      set(array, index, Primitives.box(bits, type));
+    }
+  }
+
+  static int length(Object array) {
+    if (array instanceof List) {
+      return ((List<?>) array).size();
+    }
+    return Array.getLength(array);
+  }
+
+  /** Returns if the two arrays have the same length and equal elements. */
+  static boolean arraysEqual(Object left, Object right) {
+    if (left.getClass() == right.getClass()) {
+      if (left instanceof int[]) {
+        return Arrays.equals((int[]) left, (int[]) right);
+      } else if (left instanceof double[]) {
+        return Arrays.equals((double[]) left, (double[]) right);
+      } else if (left instanceof long[]) {
+        return Arrays.equals((long[]) left, (long[]) right);
+      } else if (left instanceof byte[]) {
+        return Arrays.equals((byte[]) left, (byte[]) right);
+      } else if (left instanceof boolean[]) {
+        return Arrays.equals((boolean[]) left, (boolean[]) right);
+      }
+    }
+    return Arrays.asList(boxed(left)).equals(Arrays.asList(boxed(right)));
+  }
+
+  /**
+   * If the given value is an array of primitives, returns a copy as an array of the corresponding
+   * boxed type, e.g., {@code Integer[]} for {@code int[]}. Otherwise returns the value itself.
+   */
+  static Object boxed(Object value) {
+    if (value == null || !value.getClass().isArray() || value instanceof Object[]) {
+      return value;
+    }
+    int length = length(value);
+    Object[] boxed;
+    if (value instanceof int[]) {
+      boxed = new Integer[length];
+    } else if (value instanceof double[]) {
+      boxed = new Double[length];
+    } else if (value instanceof long[]) {
+      boxed = new Long[length];
+    } else if (value instanceof byte[]) {
+      boxed = new Byte[length];
+    } else {
+      boxed = new Boolean[length];
+    }
+    Arrays.setAll(boxed, index -> get(value, index));
+    return boxed;
+  }
+}
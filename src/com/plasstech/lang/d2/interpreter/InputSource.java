@@ -0,0 +1,168 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the interpreter's INPUT reads from. INPUT reads all remaining input at once, so every
+ * source is used up by its first read; later reads return "". Line endings are normalized to
+ * "\n", and the last line always ends with one, the same as reading standard in line by line.
+ */
+@FunctionalInterface
+public interface InputSource {
+  /** Number of chars that input is read and normalized in at a time. */
+  int CHUNK_SIZE = 8192;
+
+  /** Returns all remaining input, with line endings normalized. */
+  String readAll();
+
+  /** Standard in, decoded with the platform charset. */
+  static InputSource stdin() {
+    return of(new InputStreamReader(System.in));
+  }
+
+  static InputSource of(String text) {
+    return new InputSource() {
+      private boolean consumed;
+
+      @Override
+      public String readAll() {
+        if (consumed) {
+          return "";
+        }
+        consumed = true;
+        return normalize(text);
+      }
+    };
+  }
+
+  /** Reads from the given reader, which is not closed. */
+  static InputSource of(Reader reader) {
+    return () -> {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[CHUNK_SIZE];
+      boolean afterReturn = false;
+      try {
+        int read = reader.read(buffer);
+        while (read != -1) {
+          afterReturn = appendNormalized(sb, buffer, read, afterReturn);
+          read = reader.read(buffer);
+        }
+      } catch (IOException e) {
+        throw new InterpreterException("Could not read input", e.getMessage());
+      }
+      return finish(sb);
+    };
+  }
+
+  /**
+   * Decodes the remaining UTF-8 bytes of the given buffer, which may be direct or memory-mapped.
+   * The bytes are decoded a chunk at a time straight into the result, so the only full-size copies
+   * are the builder and the returned string.
+   */
+  static InputSource of(ByteBuffer bytes) {
+    return () -> {
+      CharsetDecoder decoder =
+          StandardCharsets.UTF_8
+              .newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      // UTF-8 never decodes to more chars than bytes.
+      StringBuilder sb = new StringBuilder(bytes.remaining() + 1);
+      CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+      boolean afterReturn = false;
+      boolean decoded = false;
+      boolean flushed = false;
+      while (!flushed) {
+        if (!decoded) {
+          decoded = decoder.decode(bytes, chunk, true).isUnderflow();
+        } else {
+          flushed = decoder.flush(chunk).isUnderflow();
+        }
+        afterReturn = appendNormalized(sb, chunk.array(), chunk.position(), afterReturn);
+        chunk.clear();
+      }
+      return finish(sb);
+    };
+  }
+
+  /** Memory-maps the given UTF-8 file when it is first read. */
+  static InputSource of(Path file) {
+    return new InputSource() {
+      private boolean consumed;
+
+      @Override
+      public String readAll() {
+        if (consumed) {
+          return "";
+        }
+        consumed = true;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          return of(mapped).readAll();
+        } catch (IOException e) {
+          throw new InterpreterException("Could not read input from " + file, e.getMessage());
+        }
+      }
+    };
+  }
+
+  /**
+   * Converts "\r\n" and "\r" to "\n", and adds a final "\n" if the text does not end with one.
+   * Returns the text itself if there is nothing to change.
+   */
+  private static String normalize(String text) {
+    if (text.indexOf('\r') == -1) {
+      return text.isEmpty() || text.endsWith("\n") ? text : text + "\n";
+    }
+    StringBuilder sb = new StringBuilder(text.length() + 1);
+    char[] buffer = new char[CHUNK_SIZE];
+    boolean afterReturn = false;
+    for (int start = 0; start < text.length(); start += buffer.length) {
+      int end = Math.min(text.length(), start + buffer.length);
+      text.getChars(start, end, buffer, 0);
+      afterReturn = appendNormalized(sb, buffer, end - start, afterReturn);
+    }
+    return finish(sb);
+  }
+
+  /**
+   * Appends the first {@code length} chars, with "\r\n" and "\r" converted to "\n". Returns
+   * whether they end with a "\r", in which case a "\n" at the start of the next chunk is skipped.
+   */
+  private static boolean appendNormalized(
+      StringBuilder sb, char[] chars, int length, boolean afterReturn) {
+    int start = 0;
+    if (afterReturn && length > 0 && chars[0] == '\n') {
+      start = 1;
+    }
+    for (int i = start; i < length; ++i) {
+      if (chars[i] == '\r') {
+        sb.append(chars, start, i - start).append('\n');
+        if (i + 1 < length && chars[i + 1] == '\n') {
+          i++;
+        }
+        start = i + 1;
+      }
+    }
+    sb.append(chars, start, length - start);
+    return length > 0 && chars[length - 1] == '\r';
+  }
+
+  /** Adds a final "\n" if the text does not end with one, and returns it. */
+  private static String finish(StringBuilder sb) {
+    if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n') {
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
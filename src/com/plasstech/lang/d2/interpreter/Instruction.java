@@ -0,0 +1,61 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.codegen.il.Op;
+
+/** A pre-decoded IL op, as run by the {@link ThreadedInterpreter}. */
+abstract class Instruction {
+  private final Op op;
+  private int cost = 1;
+  private int ilOps = 1;
+  private int ilIndex;
+
+  Instruction(Op op) {
+    this.op = op;
+  }
+
+  /** Runs this instruction and returns the index of the next one, or -1 to stop. */
+  abstract int execute(ThreadedInterpreter vm, int ip);
+
+  /** The IL op this instruction was decoded from. */
+  Op op() {
+    return op;
+  }
+
+  /** Index of the op in the IL code. */
+  int ilIndex() {
+    return ilIndex;
+  }
+
+  void setIlIndex(int ilIndex) {
+    this.ilIndex = ilIndex;
+  }
+
+  /**
+   * Number of instruction cycles this instruction counts for. This is more than 1 when IL ops
+   * that have no runtime effect (e.g., ProcEntry) were folded into it.
+   */
+  int cost() {
+    return cost;
+  }
+
+  void addCost(int extra) {
+    cost += extra;
+  }
+
+  /**
+   * Number of IL ops this instruction stands for: its own, plus the dropped ones before it,
+   * including labels and nops. The iteration budget counts these, as the {@link Interpreter} does.
+   */
+  int ilOps() {
+    return ilOps;
+  }
+
+  void addIlOps(int extra) {
+    ilOps += extra;
+  }
+
+  @Override
+  public String toString() {
+    return op.toString();
+  }
+}
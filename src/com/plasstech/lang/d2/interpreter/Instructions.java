@@ -0,0 +1,466 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.Environment.Unset;
+import com.plasstech.lang.d2.type.VarType;
+
+/** The instruction set of the {@link ThreadedInterpreter}. */
+final class Instructions {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private Instructions() {}
+
+  /** An instruction that may jump to a label; the target is filled in after decoding. */
+  abstract static class Jump extends Instruction {
+    final String label;
+    int target = -1;
+
+    Jump(Op op, String label) {
+      super(op);
+      this.label = label;
+    }
+  }
+
+  /** Does nothing; only emitted to carry the cost of elided ops. */
+  static class NopInsn extends Instruction {
+    NopInsn(Op op) {
+      super(op);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      return ip + 1;
+    }
+  }
+
+  static class TransferInsn extends Instruction {
+    private final Ref source;
+    private final Ref destination;
+
+    TransferInsn(Transfer op, Ref source, Ref destination) {
+      super(op);
+      this.source = source;
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      destination.set(vm, source.get(vm));
+      return ip + 1;
+    }
+  }
+
+  static class BinOpInsn extends Instruction {
+    private final TokenType operator;
+    private final Ref left;
+    private final VarType leftType;
+    private final Ref right;
+    private final VarType rightType;
+    private final Ref destination;
+
+    BinOpInsn(BinOp op, Ref left, Ref right, Ref destination) {
+      super(op);
+      this.operator = op.operator();
+      this.left = left;
+      this.leftType = op.left().type();
+      this.right = right;
+      this.rightType = op.right().type();
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      destination.set(
+          vm, Arithmetic.binOp(operator, left.get(vm), leftType, right.get(vm), rightType));
+      return ip + 1;
+    }
+  }
+
+  static class UnaryInsn extends Instruction {
+    private final TokenType operator;
+    private final Ref operand;
+    private final VarType operandType;
+    private final Ref destination;
+
+    UnaryInsn(UnaryOp op, Ref operand, Ref destination) {
+      super(op);
+      this.operator = op.operator();
+      this.operand = operand;
+      this.operandType = op.operand().type();
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      destination.set(vm, Arithmetic.unaryOp(operator, operand.get(vm), operandType));
+      return ip + 1;
+    }
+  }
+
+  /** Inc and Dec. */
+  static class IncDecInsn extends Instruction {
+    private final Ref target;
+    private final VarType type;
+    private final int delta;
+
+    IncDecInsn(Op op, Ref target, VarType type, int delta) {
+      super(op);
+      this.target = target;
+      this.type = type;
+      this.delta = delta;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      Number value = (Number) target.get(vm);
+      if (type == VarType.INT) {
+        target.set(vm, value.intValue() + delta);
+      } else if (type == VarType.LONG) {
+        target.set(vm, value.longValue() + delta);
+      } else if (type == VarType.BYTE) {
+        target.set(vm, (byte) (value.byteValue() + delta));
+      }
+      return ip + 1;
+    }
+  }
+
+  static class IfInsn extends Jump {
+    private final Ref condition;
+    private final boolean jumpNot;
+
+    IfInsn(IfOp op, Ref condition) {
+      super(op, op.destination());
+      this.condition = condition;
+      this.jumpNot = op.isNot();
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      if ((Boolean) condition.get(vm) != jumpNot) {
+        vm.result().incBranchesTaken();
+        return target;
+      }
+      vm.result().incBranchesNotTaken();
+      return ip + 1;
+    }
+  }
+
+  static class GotoInsn extends Jump {
+    GotoInsn(Goto op) {
+      super(op, op.label());
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      vm.result().incGotos();
+      return target;
+    }
+  }
+
+  static class CallInsn extends Jump {
+    final Procedure procedure;
+    final FrameLayout calleeLayout;
+    final Ref[] actuals;
+    final int[] paramSlots;
+    // Whether each actual can be copied as raw bits into its (primitive) parameter slot.
+    final boolean[] direct;
+    final Ref destination;
+    final VarType destinationType;
+
+    /** @param destination may be null if the return value is ignored */
+    CallInsn(Call op, Procedure procedure, Ref[] actuals, Ref destination) {
+      super(op, op.procSym().mungedName());
+      this.procedure = procedure;
+      this.calleeLayout = procedure.layout();
+      this.actuals = actuals;
+      this.paramSlots = new int[actuals.length];
+      this.direct = new boolean[actuals.length];
+      for (int i = 0; i < actuals.length; ++i) {
+        paramSlots[i] = calleeLayout.paramSlot(i);
+        VarType paramType = calleeLayout.primitiveType(paramSlots[i]);
+        direct[i] =
+            paramType != null
+                && actuals[i].isPrimitive()
+                && op.actuals().get(i).type() == paramType;
+      }
+      this.destination = destination;
+      this.destinationType = op.destination().map(Operand::type).orElse(null);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      vm.result().incCalls();
+      if (vm.profile() != null) {
+        vm.profile().enter(calleeLayout.name());
+      }
+      Environment callee = vm.allocateFrame(calleeLayout);
+      boolean allSet = true;
+      for (int i = 0; i < actuals.length; ++i) {
+        if (direct[i]) {
+          try {
+            callee.setLong(paramSlots[i], actuals[i].getLong(vm));
+            continue;
+          } catch (Unset e) {
+            allSet = false;
+          }
+        }
+        callee.setValue(paramSlots[i], actuals[i].get(vm));
+      }
+      vm.pushFrame(ip);
+      CompiledProcedure compiled = procedure.tierUp(vm);
+      // Compiled code keeps primitive params unboxed, so it can't take one that was never set.
+      if (compiled == null || !allSet || !compiled.canRun(vm.globals())) {
+        return target;
+      }
+      try {
+        if (procedure.returnsPrimitive()) {
+          long bits = compiled.callPrimitive(vm, callee);
+          vm.popFrame();
+          returned(vm, bits, procedure.returnType());
+        } else {
+          Object value = compiled.call(vm, callee);
+          vm.popFrame();
+          returned(vm, value);
+        }
+      } catch (StackOverflowError e) {
+        throw vm.stackOverflow();
+      }
+      return ip + 1;
+    }
+
+    /** Counts the call and returns an empty frame for the callee; used by compiled code. */
+    Environment enter(ThreadedInterpreter vm) {
+      vm.result().incCalls();
+      return vm.allocateFrame(calleeLayout);
+    }
+
+    /** Called in the context of the caller's frame when the callee returns. */
+    void returned(ThreadedInterpreter vm, Object value) {
+      if (destination != null) {
+        destination.set(vm, value);
+      }
+    }
+
+    /** Called in the context of the caller's frame when the callee returns a primitive. */
+    void returned(ThreadedInterpreter vm, long bits, VarType type) {
+      if (destination == null) {
+        return;
+      }
+      if (destination.isPrimitive() && destinationType == type) {
+        destination.setLong(vm, bits);
+      } else {
+        destination.set(vm, Primitives.box(bits, type));
+      }
+    }
+  }
+
+  static class ReturnInsn extends Instruction {
+    final Ref value;
+    final VarType valueType;
+    private final VarType primitiveType;
+    final boolean implicit;
+
+    /**
+     * @param value may be null for a void return
+     * @param implicit if this comes from a ProcExit, i.e., falling off the end of a procedure
+     */
+    ReturnInsn(Op op, Ref value, VarType valueType, boolean implicit) {
+      super(op);
+      this.value = value;
+      this.valueType = valueType;
+      this.primitiveType =
+          value != null && value.isPrimitive() && Primitives.isPrimitive(valueType)
+              ? valueType
+              : null;
+      this.implicit = implicit;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      if (implicit) {
+        // It may be an error, shrug.
+        logger.atWarning().log("ProcExit reached - doing return void instead");
+      }
+      if (primitiveType != null) {
+        try {
+          long bits = value.getLong(vm);
+          int callIp = popFrame(vm);
+          ((CallInsn) vm.instruction(callIp)).returned(vm, bits, primitiveType);
+          return callIp + 1;
+        } catch (Unset e) {
+          // Never set; returns null, below.
+        }
+      }
+      Object retValue = null;
+      if (value != null) {
+        retValue = value.get(vm);
+      }
+      int callIp = popFrame(vm);
+      ((CallInsn) vm.instruction(callIp)).returned(vm, retValue);
+      return callIp + 1;
+    }
+
+    private static int popFrame(ThreadedInterpreter vm) {
+      if (vm.profile() != null) {
+        vm.profile().exit();
+      }
+      return vm.popFrame();
+    }
+  }
+
+  static class StopInsn extends Instruction {
+    StopInsn(Op op) {
+      super(op);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      return -1;
+    }
+  }
+
+  static class SysCallInsn extends Instruction {
+    private final SysCall.Call call;
+    private final Ref arg;
+
+    SysCallInsn(SysCall op, Ref arg) {
+      super(op);
+      this.call = op.call();
+      this.arg = arg;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      if (call == SysCall.Call.INPUT) {
+        arg.set(vm, vm.console().readInput());
+      } else {
+        vm.console().print(call, arg.get(vm));
+      }
+      return ip + 1;
+    }
+  }
+
+  static class AllocateInsn extends Instruction {
+    private final RecordLayout record;
+    private final Ref destination;
+
+    AllocateInsn(AllocateOp op, RecordLayout record, Ref destination) {
+      super(op);
+      this.record = record;
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      destination.set(vm, record.newInstance());
+      return ip + 1;
+    }
+  }
+
+  static class ArrayAllocInsn extends Instruction {
+    private final VarType baseType;
+    private final Ref size;
+    private final Ref destination;
+
+    ArrayAllocInsn(ArrayAlloc op, Ref size, Ref destination) {
+      super(op);
+      this.baseType = op.arrayType().baseType();
+      this.size = size;
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      destination.set(vm, Heap.newArray(baseType, (Integer) size.get(vm)));
+      return ip + 1;
+    }
+  }
+
+  static class ArraySetInsn extends Instruction {
+    private final Ref array;
+    private final Ref index;
+    private final Ref source;
+
+    ArraySetInsn(ArraySet op, Ref array, Ref index, Ref source) {
+      super(op);
+      this.array = array;
+      this.index = index;
+      this.source = source;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      Heap.set(array.get(vm), (Integer) index.get(vm), source.get(vm));
+      return ip + 1;
+    }
+  }
+
+  /** Reads a field of a record, by its index in the {@link RecordLayout}. */
+  static class FieldGetInsn extends Instruction {
+    private final Ref record;
+    private final int index;
+    private final Ref destination;
+
+    FieldGetInsn(BinOp op, Ref record, int index, Ref destination) {
+      super(op);
+      this.record = record;
+      this.index = index;
+      this.destination = destination;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      RecordValue value = (RecordValue) record.get(vm);
+      if (value == null) {
+        throw new D2RuntimeException("Dereferencing null record", null, "Interpreter");
+      }
+      destination.set(vm, value.getField(index));
+      return ip + 1;
+    }
+  }
+
+  /**
+   * Writes a field of a record, by its index in the {@link RecordLayout}, or by name if the index
+   * isn't known.
+   */
+  static class FieldSetInsn extends Instruction {
+    private final Ref record;
+    private final String field;
+    private final int index;
+    private final Ref source;
+
+    FieldSetInsn(FieldSetOp op, Ref record, int index, Ref source) {
+      super(op);
+      this.record = record;
+      this.field = op.field();
+      this.index = index;
+      this.source = source;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      RecordValue value = (RecordValue) record.get(vm);
+      if (index == -1) {
+        value.put(field, source.get(vm));
+      } else {
+        value.setField(index, source.get(vm));
+      }
+      return ip + 1;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.plasstech.lang.d2.interpreter;
 
+import java.util.Optional;
+
 import com.google.common.collect.ImmutableList;
 import com.plasstech.lang.d2.codegen.il.Nop;
 import com.plasstech.lang.d2.codegen.il.Op;
@@ -11,12 +13,14 @@ public class InterpreterResult {
   private final ImmutableList<Op> code;
   private final Environment environment;
   private final SymbolTable symbolTable;
-  private int instructionCycles;
+  private long instructionCycles;
   private int linesOfCode;
-  private int gotos;
-  private int branchesTaken;
-  private int branchesNotTaken;
-  private int calls;
+  private long gotos;
+  private long branchesTaken;
+  private long branchesNotTaken;
+  private long calls;
+  private boolean budgetExhausted;
+  private Profile profile;
 
   public InterpreterResult(State state, Environment environment) {
     this.code = state.lastIlCode();
@@ -37,7 +41,7 @@ public class InterpreterResult {
     return symbolTable;
   }
 
-  public int instructionCycles() {
+  public long instructionCycles() {
     return instructionCycles;
   }
 
@@ -45,11 +49,15 @@ public class InterpreterResult {
     instructionCycles++;
   }
 
+  void addInstructionCycles(long cycles) {
+    instructionCycles += cycles;
+  }
+
   public int linesOfCode() {
     return linesOfCode;
   }
 
-  public int gotos() {
+  public long gotos() {
     return gotos;
   }
 
@@ -57,7 +65,7 @@ public class InterpreterResult {
     gotos++;
   }
 
-  public int branchesTaken() {
+  public long branchesTaken() {
     return branchesTaken;
   }
 
@@ -65,7 +73,7 @@ public class InterpreterResult {
     branchesTaken++;
   }
 
-  public int branchesNotTaken() {
+  public long branchesNotTaken() {
     return branchesNotTaken;
   }
 
@@ -73,11 +81,29 @@ public class InterpreterResult {
     branchesNotTaken++;
   }
 
-  public int calls() {
+  public long calls() {
     return calls;
   }
 
   public void incCalls() {
     this.calls++;
   }
+
+  /** Whether the program was stopped because it ran out of its iteration budget. */
+  public boolean budgetExhausted() {
+    return budgetExhausted;
+  }
+
+  void setBudgetExhausted() {
+    budgetExhausted = true;
+  }
+
+  /** The execution profile, if profiling was turned on. */
+  public Optional<Profile> profile() {
+    return Optional.ofNullable(profile);
+  }
+
+  void setProfile(Profile profile) {
+    this.profile = profile;
+  }
 }
@@ -0,0 +1,959 @@
+package com.plasstech.lang.d2.interpreter;
+
+import static com.plasstech.lang.d2.interpreter.ClassFileWriter.Opcodes.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.ClassFileWriter.Code;
+import com.plasstech.lang.d2.interpreter.ClassFileWriter.Label;
+import com.plasstech.lang.d2.interpreter.Instructions.CallInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.GotoInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.Jump;
+import com.plasstech.lang.d2.interpreter.Instructions.NopInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.ReturnInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.StopInsn;
+import com.plasstech.lang.d2.interpreter.Ref.ConstRef;
+import com.plasstech.lang.d2.interpreter.Ref.GlobalRef;
+import com.plasstech.lang.d2.interpreter.Ref.LocalRef;
+import com.plasstech.lang.d2.type.SymbolStorage;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Compiles a hot {@link Procedure} to a JVM class, so that HotSpot can compile it to native code.
+ * This is the second tier of the {@link ThreadedInterpreter}.
+ *
+ * <p>Primitive params, locals and temps live in JVM locals; everything else stays in the frame.
+ * Control flow, primitive arithmetic and calls of the procedure to itself become bytecode. Any
+ * other instruction runs by calling its {@link Instruction#execute}, after copying the primitive
+ * locals that it reads into the frame, and then reloading the ones it writes. Cycles and
+ * instruction counts are charged to the interpreter once per basic block, so statistics and the
+ * iteration budget are the same as when interpreting.
+ *
+ * <p>A procedure that may read a primitive local before writing it is not compiled, because a JVM
+ * local cannot tell 0 from "unset". For the same reason, compiled code only runs when all of its
+ * primitive params, and the primitive globals that it reads, are set; it stops the program with
+ * {@link Environment.Unset} if a procedure that it calls returns or stores a null primitive.
+ *
+ * <p>Each compiled procedure is a class defined in this package by {@link
+ * MethodHandles.Lookup#defineClass}, so that it can call package-private methods. Such classes
+ * are never unloaded: they belong to the class loader of the interpreter, so each one stays in
+ * metaspace for the life of the JVM, even after its program has finished. A process that runs
+ * many programs should raise the JIT threshold or turn the JIT off.
+ *
+ * <p>Each compiled call is a nested JVM call. Calls deeper than {@link
+ * Procedure#MAX_COMPILED_DEPTH} are interpreted, but a thread with a small stack can still run out
+ * of JVM stack first; the interpreter reports that as the usual stack overflow error.
+ */
+final class Jit {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final AtomicInteger classCount = new AtomicInteger();
+
+  private static final String PACKAGE = "com/plasstech/lang/d2/interpreter/";
+  private static final String VM = PACKAGE + "ThreadedInterpreter";
+  private static final String ENV = PACKAGE + "Environment";
+  private static final String INSTRUCTION = PACKAGE + "Instruction";
+  private static final String CALL_INSN = PACKAGE + "Instructions$CallInsn";
+  private static final String HEAP = PACKAGE + "Heap";
+  private static final String RESULT = PACKAGE + "InterpreterResult";
+  private static final String COMPILED = PACKAGE + "CompiledProcedure";
+  private static final String VM_DESC = "L" + VM + ";";
+  private static final String ENV_DESC = "L" + ENV + ";";
+  private static final String OBJECT_DESC = "Ljava/lang/Object;";
+
+  // JVM locals of the compiled body.
+  private static final int VM_LOCAL = 0;
+  private static final int FRAME_LOCAL = 1;
+  private static final int GLOBALS_LOCAL = 2;
+  // Takes 2 locals.
+  private static final int SCRATCH_LONG = 3;
+  private static final int SCRATCH_OBJECT = 5;
+  private static final int FIRST_SLOT_LOCAL = 6;
+
+  /** Thrown when a procedure cannot be compiled. */
+  private static class UnsupportedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedException(String message) {
+      super(message);
+    }
+  }
+
+  private final Instruction[] code;
+  private final Procedure procedure;
+  private final FrameLayout layout;
+  private final String className;
+  private final int start;
+  private int end;
+  // The JVM local of each primitive slot, or -1 for slots that stay in the frame.
+  private final int[] jvmLocals;
+  private int jvmLocalCount = FIRST_SLOT_LOCAL;
+  // The frame slots read and written by each instruction, indexed by ip - start.
+  private Operands[] operands;
+  private BitSet jumpTargets;
+  private Label[] labels;
+  private Code body;
+  // Cycles and IL ops of the instructions in the current basic block that have not been charged.
+  private int pendingCycles;
+  // The primitive global slots read by the compiled code.
+  private final BitSet globalReads = new BitSet();
+  private int pendingCount;
+
+  /** Returns the compiled code of the given procedure, or null if it cannot be compiled. */
+  static CompiledProcedure compile(Instruction[] code, Procedure procedure) {
+    try {
+      return new Jit(code, procedure).compile();
+    } catch (UnsupportedException e) {
+      logger.atFine().log("Not compiling %s: %s", procedure.name(), e.getMessage());
+      return null;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      logger.atWarning().withCause(e).log("Could not compile %s", procedure.name());
+      return null;
+    }
+  }
+
+  private Jit(Instruction[] code, Procedure procedure) {
+    this.code = code;
+    this.procedure = procedure;
+    this.layout = procedure.layout();
+    this.className = PACKAGE + "Jit$" + procedure.name() + "$" + classCount.incrementAndGet();
+    this.start = procedure.entry();
+    this.jvmLocals = new int[layout.size()];
+    for (int slot = 0; slot < layout.size(); ++slot) {
+      if (layout.primitiveType(slot) != null) {
+        jvmLocals[slot] = jvmLocalCount;
+        jvmLocalCount += 2;
+      } else {
+        jvmLocals[slot] = -1;
+      }
+    }
+  }
+
+  private CompiledProcedure compile()
+      throws UnsupportedException, ReflectiveOperationException {
+    if (layout.parent() != null || layout.hasNested()) {
+      // A nested procedure reads and writes its parent's frame, so neither of them can keep
+      // slots in JVM locals.
+      throw new UnsupportedException("nested procedure");
+    }
+    findEnd();
+    analyze();
+    ClassFileWriter writer = new ClassFileWriter(className, COMPILED);
+
+    Code init = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+    init.local(ALOAD, 0).invokeSpecial(COMPILED, "<init>", "()V").op(RETURN);
+    init.setMaxLocals(1);
+
+    String returnDesc = procedure.returnsPrimitive() ? "J" : OBJECT_DESC;
+    String signature = "(" + VM_DESC + ENV_DESC + ")" + returnDesc;
+    body = writer.method(ClassFileWriter.ACC_STATIC, "body", signature);
+    generateBody();
+    body.setMaxLocals(jvmLocalCount);
+    if (body.overflowed()) {
+      throw new UnsupportedException("too big");
+    }
+
+    // Overrides the package-private method of CompiledProcedure.
+    String bridge = procedure.returnsPrimitive() ? "callPrimitive" : "call";
+    Code call = writer.method(0, bridge, signature);
+    call.local(ALOAD, 1).local(ALOAD, 2).invokeStatic(className, "body", signature);
+    call.op(procedure.returnsPrimitive() ? LRETURN : ARETURN);
+    call.setMaxLocals(3);
+
+    byte[] bytes = writer.toByteArray();
+    Class<?> compiled = MethodHandles.lookup().defineClass(bytes);
+    logger.atFine().log(
+        "Compiled %s to %s (%d bytes)", procedure, compiled.getName(), bytes.length);
+    CompiledProcedure instance =
+        (CompiledProcedure) compiled.getDeclaredConstructor().newInstance();
+    instance.setGlobalReads(globalReads.stream().toArray());
+    return instance;
+  }
+
+  /** Finds the end of the procedure: the implicit return decoded from its ProcExit. */
+  private void findEnd() throws UnsupportedException {
+    if (start < 0) {
+      throw new UnsupportedException("no entry point");
+    }
+    for (int ip = start; ip < code.length; ++ip) {
+      if (code[ip] instanceof ReturnInsn && ((ReturnInsn) code[ip]).implicit) {
+        end = ip;
+        return;
+      }
+    }
+    throw new UnsupportedException("no end");
+  }
+
+  /** Returns the indexes of the instructions that may run after the given one. */
+  private int[] successors(int ip) {
+    Instruction insn = code[ip];
+    if (insn instanceof GotoInsn) {
+      return new int[] {((Jump) insn).target};
+    } else if (insn instanceof ReturnInsn || insn instanceof StopInsn) {
+      return new int[0];
+    } else if (insn instanceof Jump && !(insn instanceof CallInsn)) {
+      return new int[] {((Jump) insn).target, ip + 1};
+    }
+    return new int[] {ip + 1};
+  }
+
+  /**
+   * Finds the operands and jump targets of each instruction, and makes sure that primitive
+   * locals are always written before they are read.
+   */
+  private void analyze() throws UnsupportedException {
+    int count = end - start + 1;
+    operands = new Operands[count];
+    jumpTargets = new BitSet(count);
+    labels = new Label[count];
+    for (int ip = start; ip <= end; ++ip) {
+      Operands found = new Operands();
+      code[ip].op().accept(found);
+      operands[ip - start] = found;
+      if (code[ip] instanceof Jump && !(code[ip] instanceof CallInsn)) {
+        int target = ((Jump) code[ip]).target;
+        if (target < start || target > end) {
+          throw new UnsupportedException("jumps out of the procedure");
+        }
+        jumpTargets.set(target - start);
+      }
+    }
+
+    // Forward dataflow of the primitive slots that are definitely written.
+    BitSet[] written = new BitSet[count];
+    BitSet params = new BitSet();
+    for (int i = 0; i < procedure.symbol().formals().size(); ++i) {
+      params.set(layout.paramSlot(i));
+    }
+    written[0] = params;
+    Deque<Integer> worklist = new ArrayDeque<>();
+    worklist.add(start);
+    while (!worklist.isEmpty()) {
+      int ip = worklist.remove();
+      BitSet out = (BitSet) written[ip - start].clone();
+      for (int slot : operands[ip - start].writes) {
+        out.set(slot);
+      }
+      for (int next : successors(ip)) {
+        if (next < start || next > end) {
+          throw new UnsupportedException("runs out of the procedure");
+        }
+        BitSet in = written[next - start];
+        if (in == null) {
+          written[next - start] = (BitSet) out.clone();
+          worklist.add(next);
+        } else {
+          BitSet merged = (BitSet) in.clone();
+          merged.and(out);
+          if (!merged.equals(in)) {
+            written[next - start] = merged;
+            worklist.add(next);
+          }
+        }
+      }
+    }
+    for (int ip = start; ip <= end; ++ip) {
+      BitSet in = written[ip - start];
+      if (in == null) {
+        // Unreachable.
+        continue;
+      }
+      for (int slot : operands[ip - start].reads) {
+        if (jvmLocals[slot] != -1 && !in.get(slot)) {
+          throw new UnsupportedException(
+              String.format("%s may be read before it is written", layout.nameOf(slot)));
+        }
+      }
+    }
+  }
+
+  private void generateBody() throws UnsupportedException {
+    body.local(ALOAD, VM_LOCAL)
+        .invokeVirtual(VM, "globals", "()" + ENV_DESC)
+        .local(ASTORE, GLOBALS_LOCAL);
+    body.pushLong(0).local(LSTORE, SCRATCH_LONG);
+    body.op(ACONST_NULL).local(ASTORE, SCRATCH_OBJECT);
+    BitSet params = new BitSet();
+    for (int i = 0; i < procedure.symbol().formals().size(); ++i) {
+      params.set(layout.paramSlot(i));
+    }
+    for (int slot = 0; slot < jvmLocals.length; ++slot) {
+      if (jvmLocals[slot] == -1) {
+        continue;
+      }
+      if (params.get(slot)) {
+        body.local(ALOAD, FRAME_LOCAL)
+            .pushInt(slot)
+            .invokeVirtual(ENV, "getLong", "(I)J")
+            .local(LSTORE, jvmLocals[slot]);
+      } else {
+        body.pushLong(0).local(LSTORE, jvmLocals[slot]);
+      }
+    }
+    for (int ip = start; ip <= end; ++ip) {
+      generate(ip);
+    }
+  }
+
+  private Label label(int ip) {
+    Label label = labels[ip - start];
+    if (label == null) {
+      label = new Label();
+      labels[ip - start] = label;
+    }
+    return label;
+  }
+
+  /** Charges the interpreter for the instructions of the current block. */
+  private void flush() {
+    if (pendingCount > 0) {
+      body.local(ALOAD, VM_LOCAL)
+          .pushInt(pendingCycles)
+          .pushInt(pendingCount)
+          .invokeVirtual(VM, "charge", "(II)V");
+      pendingCycles = 0;
+      pendingCount = 0;
+    }
+  }
+
+  private void generate(int ip) throws UnsupportedException {
+    if (jumpTargets.get(ip - start)) {
+      flush();
+      body.mark(label(ip));
+    }
+    Instruction insn = code[ip];
+    pendingCycles += insn.cost();
+    pendingCount += insn.ilOps();
+    if (insn instanceof NopInsn) {
+      return;
+    } else if (insn instanceof GotoInsn) {
+      flush();
+      incrementStat("incGotos");
+      body.jump(GOTO, label(((Jump) insn).target));
+    } else if (insn instanceof PrimitiveInstructions.IfInsn) {
+      generateIf((PrimitiveInstructions.IfInsn) insn);
+    } else if (insn instanceof PrimitiveInstructions.TransferInsn) {
+      PrimitiveInstructions.TransferInsn transfer = (PrimitiveInstructions.TransferInsn) insn;
+      loadBits(transfer.source);
+      storeBits(transfer.destination);
+    } else if (insn instanceof PrimitiveInstructions.BinOpInsn) {
+      generateBinOp((PrimitiveInstructions.BinOpInsn) insn);
+    } else if (insn instanceof PrimitiveInstructions.UnaryInsn) {
+      generateUnary((PrimitiveInstructions.UnaryInsn) insn);
+    } else if (insn instanceof PrimitiveInstructions.IncDecInsn) {
+      PrimitiveInstructions.IncDecInsn incDec = (PrimitiveInstructions.IncDecInsn) insn;
+      loadBits(incDec.target);
+      body.pushLong(incDec.delta).op(LADD);
+      narrow(incDec.type);
+      storeBits(incDec.target);
+    } else if (insn instanceof PrimitiveInstructions.ArrayGetInsn) {
+      PrimitiveInstructions.ArrayGetInsn get = (PrimitiveInstructions.ArrayGetInsn) insn;
+      loadObject(get.array);
+      loadBits(get.index);
+      body.op(L2I).invokeStatic(HEAP, "getBits", "(" + OBJECT_DESC + "I)J");
+      storeBits(get.destination);
+    } else if (insn instanceof CallInsn) {
+      generateCall(ip, (CallInsn) insn);
+    } else if (insn instanceof ReturnInsn) {
+      generateReturn((ReturnInsn) insn);
+    } else if (insn instanceof StopInsn) {
+      flush();
+      body.local(ALOAD, VM_LOCAL).invokeVirtual(VM, "stop", "()V");
+    } else {
+      generateFallback(ip, insn);
+    }
+  }
+
+  private void incrementStat(String method) {
+    body.local(ALOAD, VM_LOCAL)
+        .invokeVirtual(VM, "result", "()L" + RESULT + ";")
+        .invokeVirtual(RESULT, method, "()V");
+  }
+
+  private void generateIf(PrimitiveInstructions.IfInsn insn) throws UnsupportedException {
+    flush();
+    Label notTaken = new Label();
+    loadBits(insn.condition);
+    body.pushLong(0).op(LCMP).jump(insn.jumpNot ? IFNE : IFEQ, notTaken);
+    incrementStat("incBranchesTaken");
+    body.jump(GOTO, label(insn.target));
+    body.mark(notTaken);
+    incrementStat("incBranchesNotTaken");
+  }
+
+  private void generateBinOp(PrimitiveInstructions.BinOpInsn insn) throws UnsupportedException {
+    VarType type = insn.type;
+    TokenType operator = insn.operator;
+    if (type == VarType.DOUBLE) {
+      loadDouble(insn.left);
+      loadDouble(insn.right);
+      switch (operator) {
+        case PLUS:
+          body.op(DADD);
+          break;
+        case MINUS:
+          body.op(DSUB);
+          break;
+        case MULT:
+          body.op(DMUL);
+          break;
+        case DIV:
+          body.op(DDIV);
+          break;
+        default:
+          // Same NaN semantics as the Java comparison operators.
+          boolean greater = operator == TokenType.GT || operator == TokenType.GEQ;
+          boolean equality = operator == TokenType.EQEQ || operator == TokenType.NEQ;
+          body.op(greater || equality ? DCMPL : DCMPG);
+          pushBool(signCompare(operator));
+          storeBits(insn.destination);
+          return;
+      }
+      body.invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+      storeBits(insn.destination);
+      return;
+    }
+
+    if (type == VarType.INT || type == VarType.BYTE) {
+      loadBits(insn.left);
+      body.op(L2I);
+      loadBits(insn.right);
+      body.op(L2I);
+      int opcode = intOpcode(operator);
+      if (opcode == -1) {
+        pushBool(intCompare(operator));
+      } else {
+        body.op(opcode);
+        if (type == VarType.BYTE) {
+          body.op(I2B);
+        }
+        body.op(I2L);
+      }
+      storeBits(insn.destination);
+      return;
+    }
+
+    // Long or bool
+    loadBits(insn.left);
+    loadBits(insn.right);
+    int opcode = longOpcode(operator);
+    if (opcode == -1) {
+      body.op(LCMP);
+      pushBool(signCompare(operator));
+    } else {
+      if (opcode == LSHL || opcode == LSHR) {
+        body.op(L2I);
+      }
+      body.op(opcode);
+    }
+    storeBits(insn.destination);
+  }
+
+  /** Returns the opcode of the given int arithmetic operator, or -1 for comparisons. */
+  private static int intOpcode(TokenType operator) {
+    switch (operator) {
+      case PLUS:
+        return IADD;
+      case MINUS:
+        return ISUB;
+      case MULT:
+        return IMUL;
+      case DIV:
+        return IDIV;
+      case MOD:
+        return IREM;
+      case SHIFT_LEFT:
+        return ISHL;
+      case SHIFT_RIGHT:
+        return ISHR;
+      case BIT_AND:
+        return IAND;
+      case BIT_OR:
+        return IOR;
+      case BIT_XOR:
+        return IXOR;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Returns the opcode of the given long (or bool) arithmetic operator, or -1 for comparisons.
+   * Bools are 0 or 1, so AND, OR and XOR are their bitwise equivalents.
+   */
+  private static int longOpcode(TokenType operator) {
+    switch (operator) {
+      case PLUS:
+        return LADD;
+      case MINUS:
+        return LSUB;
+      case MULT:
+        return LMUL;
+      case DIV:
+        return LDIV;
+      case MOD:
+        return LREM;
+      case SHIFT_LEFT:
+        return LSHL;
+      case SHIFT_RIGHT:
+        return LSHR;
+      case BIT_AND:
+      case AND:
+        return LAND;
+      case BIT_OR:
+      case OR:
+        return LOR;
+      case BIT_XOR:
+      case XOR:
+        return LXOR;
+      default:
+        return -1;
+    }
+  }
+
+  /** Returns the if_icmp opcode that jumps if the comparison is true. */
+  private static int intCompare(TokenType operator) {
+    return signCompare(operator) - IFEQ + IF_ICMPEQ;
+  }
+
+  /** Returns the if opcode that jumps if the comparison is true, after a three-way compare. */
+  private static int signCompare(TokenType operator) {
+    switch (operator) {
+      case EQEQ:
+        return IFEQ;
+      case NEQ:
+        return IFNE;
+      case GT:
+        return IFGT;
+      case GEQ:
+        return IFGE;
+      case LT:
+        return IFLT;
+      case LEQ:
+        return IFLE;
+      default:
+        throw new IllegalStateException("Unknown comparison " + operator);
+    }
+  }
+
+  /** Pushes 1L if the given conditional jump would be taken, else 0L. */
+  private void pushBool(int jumpIfTrue) {
+    Label isTrue = new Label();
+    Label done = new Label();
+    body.jump(jumpIfTrue, isTrue).pushLong(0).jump(GOTO, done);
+    body.mark(isTrue).pushLong(1).mark(done);
+  }
+
+  private void generateUnary(PrimitiveInstructions.UnaryInsn insn) throws UnsupportedException {
+    if (insn.type == VarType.DOUBLE) {
+      if (insn.operator == TokenType.MINUS) {
+        body.op(DCONST_0);
+        loadDouble(insn.operand);
+        body.op(DSUB);
+      } else {
+        loadDouble(insn.operand);
+      }
+      body.invokeStatic("java/lang/Double", "doubleToRawLongBits", "(D)J");
+      storeBits(insn.destination);
+      return;
+    }
+    loadBits(insn.operand);
+    switch (insn.operator) {
+      case MINUS:
+        body.op(LNEG);
+        break;
+      case BIT_NOT:
+        body.pushLong(-1).op(LXOR);
+        break;
+      case NOT:
+        body.pushLong(0).op(LCMP);
+        pushBool(IFEQ);
+        break;
+      default:
+        break;
+    }
+    narrow(insn.type);
+    storeBits(insn.destination);
+  }
+
+  /** Truncates and sign-extends the long on the stack to the width of the given type. */
+  private void narrow(VarType type) {
+    if (type == VarType.INT) {
+      body.op(L2I).op(I2L);
+    } else if (type == VarType.BYTE) {
+      body.op(L2I).op(I2B).op(I2L);
+    }
+  }
+
+  private void generateCall(int ip, CallInsn call) throws UnsupportedException {
+    flush();
+    Label done = new Label();
+    if (call.procedure == procedure && canCallDirectly(call)) {
+      // Recursion on the JVM stack is limited; deeper calls go through the interpreter.
+      Label viaInterpreter = new Label();
+      body.local(ALOAD, VM_LOCAL)
+          .invokeVirtual(VM, "callDepth", "()I")
+          .pushInt(Procedure.MAX_COMPILED_DEPTH)
+          .jump(IF_ICMPGE, viaInterpreter);
+      generateDirectCall(ip, call);
+      body.jump(GOTO, done);
+      body.mark(viaInterpreter);
+    }
+    spill(ip);
+    body.local(ALOAD, VM_LOCAL).pushInt(ip).invokeVirtual(VM, "callFromCompiled", "(I)V");
+    reload(ip);
+    body.mark(done);
+  }
+
+  /** Whether the return value can be stored without conversion. */
+  private boolean canCallDirectly(CallInsn call) {
+    Ref destination = call.destination;
+    if (destination == null) {
+      return true;
+    }
+    if (destination instanceof ConstRef) {
+      return false;
+    }
+    if (procedure.returnsPrimitive()) {
+      return destination.isPrimitive() && call.destinationType == procedure.returnType();
+    }
+    return !destination.isPrimitive();
+  }
+
+  /** A call of this procedure to itself, straight to the compiled body. */
+  private void generateDirectCall(int ip, CallInsn call) throws UnsupportedException {
+    body.local(ALOAD, VM_LOCAL)
+        .pushInt(ip)
+        .invokeVirtual(VM, "instruction", "(I)L" + INSTRUCTION + ";")
+        .checkcast(CALL_INSN)
+        .local(ALOAD, VM_LOCAL)
+        .invokeVirtual(CALL_INSN, "enter", "(" + VM_DESC + ")" + ENV_DESC)
+        .local(ASTORE, SCRATCH_OBJECT);
+    for (int i = 0; i < call.actuals.length; ++i) {
+      body.local(ALOAD, SCRATCH_OBJECT).pushInt(call.paramSlots[i]);
+      if (call.direct[i]) {
+        loadBits(call.actuals[i]);
+        body.invokeVirtual(ENV, "setLong", "(IJ)V");
+      } else {
+        loadObject(call.actuals[i]);
+        body.invokeVirtual(ENV, "setValue", "(I" + OBJECT_DESC + ")V");
+      }
+    }
+    body.local(ALOAD, VM_LOCAL).pushInt(ip).invokeVirtual(VM, "pushFrame", "(I)V");
+    String returnDesc = procedure.returnsPrimitive() ? "J" : OBJECT_DESC;
+    body.local(ALOAD, VM_LOCAL)
+        .local(ALOAD, SCRATCH_OBJECT)
+        .invokeStatic(className, "body", "(" + VM_DESC + ENV_DESC + ")" + returnDesc);
+    body.local(procedure.returnsPrimitive() ? LSTORE : ASTORE,
+        procedure.returnsPrimitive() ? SCRATCH_LONG : SCRATCH_OBJECT);
+    body.local(ALOAD, VM_LOCAL).invokeVirtual(VM, "popFrame", "()I").op(POP);
+    Ref destination = call.destination;
+    if (destination == null) {
+      return;
+    }
+    if (procedure.returnsPrimitive()) {
+      body.local(LLOAD, SCRATCH_LONG);
+      storeBits(destination);
+    } else {
+      frameOf(destination);
+      body.pushInt(slotOf(destination))
+          .local(ALOAD, SCRATCH_OBJECT)
+          .invokeVirtual(ENV, "setValue", "(I" + OBJECT_DESC + ")V");
+    }
+  }
+
+  private void generateReturn(ReturnInsn insn) throws UnsupportedException {
+    flush();
+    if (procedure.returnsPrimitive()) {
+      if (insn.value == null) {
+        body.pushString(procedure.name())
+            .invokeStatic(COMPILED, "missingReturn", "(Ljava/lang/String;)V")
+            .pushLong(0)
+            .op(LRETURN);
+        return;
+      }
+      if (!insn.value.isPrimitive() || insn.valueType != procedure.returnType()) {
+        throw new UnsupportedException("returns a " + insn.valueType);
+      }
+      loadBits(insn.value);
+      body.op(LRETURN);
+      return;
+    }
+    if (insn.value == null) {
+      body.op(ACONST_NULL);
+    } else {
+      loadObject(insn.value);
+    }
+    body.op(ARETURN);
+  }
+
+  /** Runs the instruction itself. */
+  private void generateFallback(int ip, Instruction insn) {
+    boolean jump = insn instanceof Jump;
+    if (jump) {
+      flush();
+    }
+    spill(ip);
+    body.local(ALOAD, VM_LOCAL)
+        .pushInt(ip)
+        .invokeVirtual(VM, "instruction", "(I)L" + INSTRUCTION + ";")
+        .local(ALOAD, VM_LOCAL)
+        .pushInt(ip)
+        .invokeVirtual(INSTRUCTION, "execute", "(" + VM_DESC + "I)I");
+    reload(ip);
+    if (jump) {
+      body.pushInt(ip + 1).jump(IF_ICMPNE, label(((Jump) insn).target));
+    } else {
+      body.op(POP);
+    }
+  }
+
+  /** Copies the primitive locals read by the given instruction into the frame. */
+  private void spill(int ip) {
+    for (int slot : operands[ip - start].reads) {
+      if (jvmLocals[slot] != -1) {
+        body.local(ALOAD, FRAME_LOCAL)
+            .pushInt(slot)
+            .local(LLOAD, jvmLocals[slot])
+            .invokeVirtual(ENV, "setLong", "(IJ)V");
+      }
+    }
+  }
+
+  /** Copies the primitive locals written by the given instruction from the frame. */
+  private void reload(int ip) {
+    for (int slot : operands[ip - start].writes) {
+      if (jvmLocals[slot] != -1) {
+        body.local(ALOAD, FRAME_LOCAL)
+            .pushInt(slot)
+            .invokeVirtual(ENV, "getLong", "(I)J")
+            .local(LSTORE, jvmLocals[slot]);
+      }
+    }
+  }
+
+  /** Pushes the frame that holds the given (non-constant) ref. */
+  private void frameOf(Ref ref) {
+    body.local(ALOAD, ref instanceof GlobalRef ? GLOBALS_LOCAL : FRAME_LOCAL);
+  }
+
+  private static int slotOf(Ref ref) {
+    if (ref instanceof GlobalRef) {
+      return ((GlobalRef) ref).slot;
+    }
+    return ((LocalRef) ref).slot;
+  }
+
+  /** Pushes the raw bits of a primitive ref. */
+  private void loadBits(Ref ref) throws UnsupportedException {
+    if (!ref.isPrimitive()) {
+      throw new UnsupportedException(ref + " is not primitive");
+    }
+    if (ref instanceof ConstRef) {
+      body.pushLong(((ConstRef) ref).bits);
+    } else if (ref instanceof LocalRef) {
+      body.local(LLOAD, jvmLocals[((LocalRef) ref).slot]);
+    } else {
+      globalReads.set(slotOf(ref));
+      body.local(ALOAD, GLOBALS_LOCAL)
+          .pushInt(slotOf(ref))
+          .invokeVirtual(ENV, "getLong", "(I)J");
+    }
+  }
+
+  private void loadDouble(Ref ref) throws UnsupportedException {
+    loadBits(ref);
+    body.invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D");
+  }
+
+  /** Pops raw bits into a primitive ref. */
+  private void storeBits(Ref ref) throws UnsupportedException {
+    if (!ref.isPrimitive() || ref instanceof ConstRef) {
+      throw new UnsupportedException("Cannot store bits in " + ref);
+    }
+    if (ref instanceof LocalRef) {
+      body.local(LSTORE, jvmLocals[((LocalRef) ref).slot]);
+    } else {
+      body.local(LSTORE, SCRATCH_LONG)
+          .local(ALOAD, GLOBALS_LOCAL)
+          .pushInt(slotOf(ref))
+          .local(LLOAD, SCRATCH_LONG)
+          .invokeVirtual(ENV, "setLong", "(IJ)V");
+    }
+  }
+
+  /** Pushes the value of a ref as an object, the same as {@link Ref#get}. */
+  private void loadObject(Ref ref) throws UnsupportedException {
+    if (ref instanceof ConstRef) {
+      ConstRef constant = (ConstRef) ref;
+      if (constant.value == null) {
+        body.op(ACONST_NULL);
+      } else if (constant.value instanceof String) {
+        body.pushString((String) constant.value);
+      } else if (constant.isPrimitive()) {
+        body.pushLong(constant.bits);
+        box(Primitives.typeOf(constant.value));
+      } else {
+        throw new UnsupportedException("constant " + constant);
+      }
+    } else if (ref instanceof LocalRef && jvmLocals[slotOf(ref)] != -1) {
+      int slot = slotOf(ref);
+      body.local(LLOAD, jvmLocals[slot]);
+      box(layout.primitiveType(slot));
+    } else {
+      frameOf(ref);
+      body.pushInt(slotOf(ref)).invokeVirtual(ENV, "getValue", "(I)" + OBJECT_DESC);
+    }
+  }
+
+  /** Boxes the raw bits on the stack, the same as {@link Primitives#box}. */
+  private void box(VarType type) {
+    if (type == VarType.INT) {
+      body.op(L2I).invokeStatic("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+    } else if (type == VarType.LONG) {
+      body.invokeStatic("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
+    } else if (type == VarType.BYTE) {
+      body.op(L2I).op(I2B).invokeStatic("java/lang/Byte", "valueOf", "(B)Ljava/lang/Byte;");
+    } else if (type == VarType.BOOL) {
+      body.op(L2I).invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+    } else if (type == VarType.DOUBLE) {
+      body.invokeStatic("java/lang/Double", "longBitsToDouble", "(J)D")
+          .invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    } else {
+      throw new IllegalStateException("Cannot box a " + type);
+    }
+  }
+
+  /** The frame slots read and written by an op. Globals are always in the frame, so are omitted. */
+  private class Operands extends DefaultOpcodeVisitor {
+    private final List<Integer> reads = new ArrayList<>();
+    private final List<Integer> writes = new ArrayList<>();
+
+    private void read(Operand operand) {
+      add(operand, reads);
+    }
+
+    private void write(Operand operand) {
+      add(operand, writes);
+    }
+
+    private void add(Operand operand, List<Integer> slots) {
+      if (operand == null || operand.isConstant()) {
+        return;
+      }
+      Location location = (Location) operand;
+      if (location.storage() == SymbolStorage.GLOBAL) {
+        return;
+      }
+      int slot = layout.slotOf(location);
+      if (slot != -1 && !slots.contains(slot)) {
+        slots.add(slot);
+      }
+    }
+
+    @Override
+    public void visit(Transfer op) {
+      read(op.source());
+      write(op.destination());
+    }
+
+    @Override
+    public void visit(BinOp op) {
+      read(op.left());
+      read(op.right());
+      write(op.destination());
+    }
+
+    @Override
+    public void visit(UnaryOp op) {
+      read(op.operand());
+      write(op.destination());
+    }
+
+    @Override
+    public void visit(IfOp op) {
+      read(op.condition());
+    }
+
+    @Override
+    public void visit(Inc op) {
+      read(op.target());
+      write(op.target());
+    }
+
+    @Override
+    public void visit(Dec op) {
+      read(op.target());
+      write(op.target());
+    }
+
+    @Override
+    public void visit(SysCall op) {
+      if (op.call() == SysCall.Call.INPUT) {
+        write(op.arg());
+      } else {
+        read(op.arg());
+      }
+    }
+
+    @Override
+    public void visit(Call op) {
+      for (Operand actual : op.actuals()) {
+        read(actual);
+      }
+      op.destination().ifPresent(this::write);
+    }
+
+    @Override
+    public void visit(Return op) {
+      op.returnValueLocation().ifPresent(this::read);
+    }
+
+    @Override
+    public void visit(AllocateOp op) {
+      write(op.destination());
+    }
+
+    @Override
+    public void visit(ArrayAlloc op) {
+      read(op.sizeLocation());
+      write(op.destination());
+    }
+
+    @Override
+    public void visit(ArraySet op) {
+      read(op.array());
+      read(op.index());
+      read(op.source());
+    }
+
+    @Override
+    public void visit(FieldSetOp op) {
+      read(op.recordLocation());
+      read(op.source());
+    }
+  }
+}
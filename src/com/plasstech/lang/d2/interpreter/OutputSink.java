@@ -0,0 +1,43 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Where the interpreter sends the output of PRINT, PRINTLN and MESSAGE. Written one fragment at a
+ * time (a newline is its own fragment), and flushed when the program ends or reads input.
+ */
+@FunctionalInterface
+public interface OutputSink {
+  /** Size of the buffer used by {@link #of(OutputStream)}. */
+  int BUFFER_SIZE = 1 << 16;
+
+  void write(String fragment);
+
+  default void flush() {}
+
+  /** Appends each fragment to the given list. Memory grows with the output. */
+  static OutputSink toList(List<String> fragments) {
+    return fragments::add;
+  }
+
+  /** Throws away all output. */
+  static OutputSink discard() {
+    return fragment -> {};
+  }
+
+  /** Writes to the given writer, which is flushed but never closed. */
+  static OutputSink of(Writer writer) {
+    return new WriterOutputSink(writer);
+  }
+
+  /** Writes UTF-8 to the given stream via a large buffer. The stream is flushed, never closed. */
+  static OutputSink of(OutputStream stream) {
+    return of(
+        new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE));
+  }
+}
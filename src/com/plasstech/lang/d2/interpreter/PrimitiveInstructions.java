@@ -0,0 +1,479 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.Environment.Unset;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Type-specialized variants of the {@link Instructions}, chosen at decode time from the static
+ * types of the operands. They read and write primitive slots directly, so they never box, except
+ * when an operand has never been set: then they run the boxed instruction instead, which sees it as
+ * null, the same as the classic interpreter.
+ */
+final class PrimitiveInstructions {
+  private PrimitiveInstructions() {}
+
+  /** Returns if {@link BinOpInsn} implements the given binary operator for the given type. */
+  static boolean supportsBinOp(TokenType operator, VarType type) {
+    switch (operator) {
+      case EQEQ:
+      case NEQ:
+      case GT:
+      case GEQ:
+      case LT:
+      case LEQ:
+        return true;
+
+      case PLUS:
+      case MINUS:
+      case MULT:
+      case DIV:
+        return type != VarType.BOOL;
+
+      case MOD:
+      case SHIFT_LEFT:
+      case SHIFT_RIGHT:
+      case BIT_AND:
+      case BIT_OR:
+      case BIT_XOR:
+        return type.isIntegral();
+
+      case AND:
+      case OR:
+      case XOR:
+        return type == VarType.BOOL;
+
+      default:
+        return false;
+    }
+  }
+
+  /** Returns the type of the result of the given binary operator on operands of the given type. */
+  static VarType binOpResultType(TokenType operator, VarType type) {
+    switch (operator) {
+      case EQEQ:
+      case NEQ:
+      case GT:
+      case GEQ:
+      case LT:
+      case LEQ:
+        return VarType.BOOL;
+
+      default:
+        return type;
+    }
+  }
+
+  /** Returns if the given unary operator is implemented for the given type by {@link UnaryInsn}. */
+  static boolean supportsUnaryOp(TokenType operator, VarType type) {
+    switch (operator) {
+      case PLUS:
+      case MINUS:
+        return type != VarType.BOOL;
+
+      case BIT_NOT:
+        return type.isIntegral();
+
+      case NOT:
+        return type == VarType.BOOL;
+
+      default:
+        return false;
+    }
+  }
+
+  private static long bool(boolean value) {
+    return value ? 1 : 0;
+  }
+
+  /** Binary operator where both operands have the same primitive type. */
+  static class BinOpInsn extends Instruction {
+    final TokenType operator;
+    final VarType type;
+    final Ref left;
+    final Ref right;
+    final Ref destination;
+    private final Instruction boxed;
+
+    BinOpInsn(BinOp op, TokenType operator, VarType type, Ref left, Ref right, Ref destination) {
+      super(op);
+      this.operator = operator;
+      this.type = type;
+      this.left = left;
+      this.right = right;
+      this.destination = destination;
+      this.boxed = new Instructions.BinOpInsn(op, left, right, destination);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      try {
+        destination.setLong(vm, result(vm));
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      return ip + 1;
+    }
+
+    private long result(ThreadedInterpreter vm) {
+      long result;
+      if (type == VarType.INT) {
+        result = intOp((int) left.getLong(vm), (int) right.getLong(vm));
+      } else if (type == VarType.LONG) {
+        result = longOp(left.getLong(vm), right.getLong(vm));
+      } else if (type == VarType.DOUBLE) {
+        result = doubleOp(left.getDouble(vm), right.getDouble(vm));
+      } else if (type == VarType.BYTE) {
+        result = byteOp((byte) left.getLong(vm), (byte) right.getLong(vm));
+      } else {
+        result = boolOp(left.getLong(vm) != 0, right.getLong(vm) != 0);
+      }
+      return result;
+    }
+
+    private long intOp(int l, int r) {
+      switch (operator) {
+        case PLUS:
+          return l + r;
+        case MINUS:
+          return l - r;
+        case MULT:
+          return l * r;
+        case DIV:
+          return l / r;
+        case MOD:
+          return l % r;
+        case SHIFT_LEFT:
+          return l << r;
+        case SHIFT_RIGHT:
+          return l >> r;
+        case BIT_AND:
+          return l & r;
+        case BIT_OR:
+          return l | r;
+        case BIT_XOR:
+          return l ^ r;
+        default:
+          return compare(Integer.compare(l, r));
+      }
+    }
+
+    private long longOp(long l, long r) {
+      switch (operator) {
+        case PLUS:
+          return l + r;
+        case MINUS:
+          return l - r;
+        case MULT:
+          return l * r;
+        case DIV:
+          return l / r;
+        case MOD:
+          return l % r;
+        case SHIFT_LEFT:
+          return l << r;
+        case SHIFT_RIGHT:
+          return l >> r;
+        case BIT_AND:
+          return l & r;
+        case BIT_OR:
+          return l | r;
+        case BIT_XOR:
+          return l ^ r;
+        default:
+          return compare(Long.compare(l, r));
+      }
+    }
+
+    private long byteOp(byte l, byte r) {
+      switch (operator) {
+        case PLUS:
+          return (byte) (l + r);
+        case MINUS:
+          return (byte) (l - r);
+        case MULT:
+          return (byte) (l * r);
+        case DIV:
+          return (byte) (l / r);
+        case MOD:
+          return (byte) (l % r);
+        case SHIFT_LEFT:
+          return (byte) (l << r);
+        case SHIFT_RIGHT:
+          return (byte) (l >> r);
+        case BIT_AND:
+          return (byte) (l & r);
+        case BIT_OR:
+          return (byte) (l | r);
+        case BIT_XOR:
+          return (byte) (l ^ r);
+        default:
+          return compare(Byte.compare(l, r));
+      }
+    }
+
+    private long doubleOp(double l, double r) {
+      switch (operator) {
+        case PLUS:
+          return Double.doubleToRawLongBits(l + r);
+        case MINUS:
+          return Double.doubleToRawLongBits(l - r);
+        case MULT:
+          return Double.doubleToRawLongBits(l * r);
+        case DIV:
+          return Double.doubleToRawLongBits(l / r);
+        case EQEQ:
+          return bool(l == r);
+        case NEQ:
+          return bool(l != r);
+        case GT:
+          return bool(l > r);
+        case GEQ:
+          return bool(l >= r);
+        case LT:
+          return bool(l < r);
+        case LEQ:
+          return bool(l <= r);
+        default:
+          throw new IllegalStateException("Unknown double binop " + operator);
+      }
+    }
+
+    private long boolOp(boolean l, boolean r) {
+      switch (operator) {
+        case AND:
+          return bool(l && r);
+        case OR:
+          return bool(l || r);
+        case XOR:
+          return bool(l ^ r);
+        default:
+          // false < true
+          return compare(Boolean.compare(l, r));
+      }
+    }
+
+    /** Applies a comparison operator to the result of a compare() call. */
+    private long compare(int comparison) {
+      switch (operator) {
+        case EQEQ:
+          return bool(comparison == 0);
+        case NEQ:
+          return bool(comparison != 0);
+        case GT:
+          return bool(comparison > 0);
+        case GEQ:
+          return bool(comparison >= 0);
+        case LT:
+          return bool(comparison < 0);
+        case LEQ:
+          return bool(comparison <= 0);
+        default:
+          throw new IllegalStateException("Unknown " + type + " binop " + operator);
+      }
+    }
+  }
+
+  /** Unary operator where the operand and destination have the same primitive type. */
+  static class UnaryInsn extends Instruction {
+    final TokenType operator;
+    final VarType type;
+    final Ref operand;
+    final Ref destination;
+
+    private final Instruction boxed;
+
+    UnaryInsn(UnaryOp op, TokenType operator, VarType type, Ref operand, Ref destination) {
+      super(op);
+      this.operator = operator;
+      this.type = type;
+      this.operand = operand;
+      this.destination = destination;
+      this.boxed = new Instructions.UnaryInsn(op, operand, destination);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      long value;
+      try {
+        value = operand.getLong(vm);
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      if (type == VarType.DOUBLE) {
+        double d = Double.longBitsToDouble(value);
+        destination.setDouble(vm, operator == TokenType.MINUS ? 0.0 - d : d);
+        return ip + 1;
+      }
+      long result;
+      switch (operator) {
+        case MINUS:
+          result = -value;
+          break;
+        case BIT_NOT:
+          result = ~value;
+          break;
+        case NOT:
+          result = bool(value == 0);
+          break;
+        default:
+          result = value;
+          break;
+      }
+      // Narrow back to the declared width.
+      if (type == VarType.INT) {
+        result = (int) result;
+      } else if (type == VarType.BYTE) {
+        result = (byte) result;
+      }
+      destination.setLong(vm, result);
+      return ip + 1;
+    }
+  }
+
+  /** Copies between two primitive refs of the same type. */
+  static class TransferInsn extends Instruction {
+    final Ref source;
+    final Ref destination;
+    private final Instruction boxed;
+
+    TransferInsn(Transfer op, Ref source, Ref destination) {
+      super(op);
+      this.source = source;
+      this.destination = destination;
+      this.boxed = new Instructions.TransferInsn(op, source, destination);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      try {
+        destination.setLong(vm, source.getLong(vm));
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      return ip + 1;
+    }
+  }
+
+  /** Inc and Dec of a primitive integral slot. */
+  static class IncDecInsn extends Instruction {
+    final Ref target;
+    final VarType type;
+    final int delta;
+    private final Instruction boxed;
+
+    IncDecInsn(Op op, Ref target, VarType type, int delta) {
+      super(op);
+      this.target = target;
+      this.type = type;
+      this.delta = delta;
+      this.boxed = new Instructions.IncDecInsn(op, target, type, delta);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      long value;
+      try {
+        value = target.getLong(vm) + delta;
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      if (type == VarType.INT) {
+        value = (int) value;
+      } else if (type == VarType.BYTE) {
+        value = (byte) value;
+      }
+      target.setLong(vm, value);
+      return ip + 1;
+    }
+  }
+
+  /** Conditional jump on a primitive boolean. */
+  static class IfInsn extends Instructions.Jump {
+    final Ref condition;
+    final boolean jumpNot;
+
+    IfInsn(IfOp op, String label, Ref condition, boolean jumpNot) {
+      super(op, label);
+      this.condition = condition;
+      this.jumpNot = jumpNot;
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      boolean value;
+      try {
+        value = condition.getLong(vm) != 0;
+      } catch (Unset e) {
+        // Fails the same way as the boxed IfInsn.
+        value = (Boolean) condition.get(vm);
+      }
+      if (value != jumpNot) {
+        vm.result().incBranchesTaken();
+        return target;
+      }
+      vm.result().incBranchesNotTaken();
+      return ip + 1;
+    }
+  }
+
+  /** Reads an element of an array of primitives into a primitive slot. */
+  static class ArrayGetInsn extends Instruction {
+    final Ref array;
+    final Ref index;
+    final Ref destination;
+    private final Instruction boxed;
+
+    ArrayGetInsn(BinOp op, Ref array, Ref index, Ref destination) {
+      super(op);
+      this.array = array;
+      this.index = index;
+      this.destination = destination;
+      this.boxed = new Instructions.BinOpInsn(op, array, index, destination);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      try {
+        destination.setLong(vm, Heap.getBits(array.get(vm), (int) index.getLong(vm)));
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      return ip + 1;
+    }
+  }
+
+  /** Writes a primitive value into an element of an array of primitives. */
+  static class ArraySetInsn extends Instruction {
+    final Ref array;
+    final Ref index;
+    final Ref source;
+    final VarType baseType;
+    private final Instruction boxed;
+
+    ArraySetInsn(ArraySet op, Ref array, Ref index, Ref source, VarType baseType) {
+      super(op);
+      this.array = array;
+      this.index = index;
+      this.source = source;
+      this.baseType = baseType;
+      this.boxed = new Instructions.ArraySetInsn(op, array, index, source);
+    }
+
+    @Override
+    int execute(ThreadedInterpreter vm, int ip) {
+      try {
+        Heap.setBits(array.get(vm), (int) index.getLong(vm), source.getLong(vm), baseType);
+      } catch (Unset e) {
+        return boxed.execute(vm, ip);
+      }
+      return ip + 1;
+    }
+  }
+}
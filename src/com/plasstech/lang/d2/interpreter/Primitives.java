@@ -0,0 +1,68 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Converts between boxed D2 values and the raw {@code long} bits kept in primitive frame slots.
+ * Integral values are sign-extended, booleans are 0 or 1, and doubles are their raw IEEE bits.
+ */
+final class Primitives {
+  private Primitives() {}
+
+  /** Whether values of this type are kept unboxed. */
+  static boolean isPrimitive(VarType type) {
+    return type == VarType.INT
+        || type == VarType.LONG
+        || type == VarType.BYTE
+        || type == VarType.BOOL
+        || type == VarType.DOUBLE;
+  }
+
+  /** Returns the type of this (constant) value if it can be represented as raw bits, else null. */
+  static VarType typeOf(Object value) {
+    if (value instanceof Integer) {
+      return VarType.INT;
+    } else if (value instanceof Long) {
+      return VarType.LONG;
+    } else if (value instanceof Byte) {
+      return VarType.BYTE;
+    } else if (value instanceof Boolean) {
+      return VarType.BOOL;
+    } else if (value instanceof Double) {
+      return VarType.DOUBLE;
+    }
+    return null;
+  }
+
+  static long toBits(Object value) {
+    if (value instanceof Boolean) {
+      return ((Boolean) value) ? 1 : 0;
+    }
+    if (value instanceof Double) {
+      return Double.doubleToRawLongBits((Double) value);
+    }
+    return ((Number) value).longValue();
+  }
+
+  static long toBits(Object value, VarType type) {
+    if (type == VarType.DOUBLE) {
+      return Double.doubleToRawLongBits(((Number) value).doubleValue());
+    }
+    return toBits(value);
+  }
+
+  static Object box(long bits, VarType type) {
+    if (type == VarType.INT) {
+      return (int) bits;
+    } else if (type == VarType.LONG) {
+      return bits;
+    } else if (type == VarType.BYTE) {
+      return (byte) bits;
+    } else if (type == VarType.BOOL) {
+      return bits != 0;
+    } else if (type == VarType.DOUBLE) {
+      return Double.longBitsToDouble(bits);
+    }
+    throw new IllegalStateException("Cannot box a " + type);
+  }
+}
@@ -0,0 +1,103 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * A procedure in a {@link ThreadedCode}, shared by all of its call sites. Counts calls, and once
+ * the procedure is hot, compiles it to JVM bytecode via the {@link Jit}. Thread-safe, since a
+ * {@link CompiledProgram} can be run by several threads at once.
+ */
+class Procedure {
+  /**
+   * Compiled code recurses on the JVM stack, so calls nested deeper than this are always
+   * interpreted, which does not.
+   */
+  static final int MAX_COMPILED_DEPTH = 1000;
+
+  private final ProcSymbol symbol;
+  private final FrameLayout layout;
+  private final boolean returnsPrimitive;
+  private int entry = -1;
+  // Not atomic: when several threads run the same program, a few calls may go uncounted, which
+  // only delays compilation a little.
+  private int calls;
+  private volatile boolean compileFailed;
+  private volatile CompiledProcedure compiled;
+
+  Procedure(ProcSymbol symbol, FrameLayout layout) {
+    this.symbol = symbol;
+    this.layout = layout;
+    this.returnsPrimitive = Primitives.isPrimitive(symbol.returnType());
+  }
+
+  ProcSymbol symbol() {
+    return symbol;
+  }
+
+  String name() {
+    return symbol.name();
+  }
+
+  FrameLayout layout() {
+    return layout;
+  }
+
+  VarType returnType() {
+    return symbol.returnType();
+  }
+
+  /** Whether compiled code returns raw bits via {@link CompiledProcedure#callPrimitive}. */
+  boolean returnsPrimitive() {
+    return returnsPrimitive;
+  }
+
+  /** Index of the first instruction of the procedure. */
+  int entry() {
+    return entry;
+  }
+
+  void setEntry(int entry) {
+    this.entry = entry;
+  }
+
+  boolean isCompiled() {
+    return compiled != null;
+  }
+
+  /**
+   * Counts a call, and returns the compiled code to run for it, compiling it if the procedure
+   * has just become hot. Returns null if the call should be interpreted.
+   */
+  CompiledProcedure tierUp(ThreadedInterpreter vm) {
+    CompiledProcedure code = compiled;
+    if (code == null) {
+      int threshold = vm.jitThreshold();
+      if (threshold <= ThreadedInterpreter.NO_JIT || compileFailed || vm.profile() != null) {
+        return null;
+      }
+      if (++calls < threshold) {
+        return null;
+      }
+      synchronized (this) {
+        if (compiled == null && !compileFailed) {
+          compiled = Jit.compile(vm.code().instructions(), this);
+          compileFailed = compiled == null;
+        }
+        code = compiled;
+      }
+      if (code == null) {
+        return null;
+      }
+    }
+    if (vm.callDepth() > MAX_COMPILED_DEPTH) {
+      return null;
+    }
+    return code;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s@%d%s", name(), entry, isCompiled() ? " (compiled)" : "");
+  }
+}
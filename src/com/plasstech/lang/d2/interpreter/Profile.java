@@ -0,0 +1,248 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.il.Op;
+
+/**
+ * Execution profile of one run of the interpreter: how many times each IL op ran, and cycles and
+ * calls per procedure. Cycles are the same as {@link InterpreterResult#instructionCycles}.
+ *
+ * <p>Recorded by the engines only when profiling is turned on, via {@link #countOp}, {@link
+ * #enter} and {@link #exit}.
+ */
+public class Profile {
+  /** Name of the pseudo-procedure for code outside of all procedures. */
+  public static final String MAIN = "<main>";
+
+  /** Cycles and calls of a single procedure. */
+  public static class ProcStats {
+    private final String name;
+    private long calls;
+    private long inclusiveCycles;
+    private long exclusiveCycles;
+    // Number of activations of this procedure currently on the stack.
+    private int active;
+
+    private ProcStats(String name) {
+      this.name = name;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public long calls() {
+      return calls;
+    }
+
+    /** Cycles spent in this procedure and everything it called. */
+    public long inclusiveCycles() {
+      return inclusiveCycles;
+    }
+
+    /** Cycles spent in this procedure itself. */
+    public long exclusiveCycles() {
+      return exclusiveCycles;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s: calls %d inclusive %d exclusive %d", name, calls, inclusiveCycles, exclusiveCycles);
+    }
+  }
+
+  /** A node in the tree of call stacks; accumulates the exclusive cycles of its stack. */
+  private static class StackNode {
+    private final String name;
+    private final StackNode parent;
+    private final Map<String, StackNode> children = new LinkedHashMap<>();
+    private long cycles;
+
+    StackNode(String name, StackNode parent) {
+      this.name = name;
+      this.parent = parent;
+    }
+
+    StackNode child(String childName) {
+      return children.computeIfAbsent(childName, n -> new StackNode(n, this));
+    }
+  }
+
+  /** One activation of a procedure. */
+  private static class Activation {
+    private final ProcStats stats;
+    private final long entryCycles;
+
+    Activation(ProcStats stats, long entryCycles) {
+      this.stats = stats;
+      this.entryCycles = entryCycles;
+    }
+  }
+
+  private final ImmutableList<Op> code;
+  private final long[] opCounts;
+  private final Map<String, ProcStats> procs = new HashMap<>();
+  private final Deque<Activation> stack = new ArrayDeque<>();
+  private final StackNode root = new StackNode(MAIN, null);
+  private StackNode currentNode = root;
+  private ProcStats current;
+  private long cycles;
+  // Cycle count when the current procedure last became the top of the stack.
+  private long lastSwitch;
+
+  Profile(ImmutableList<Op> code) {
+    this.code = code;
+    this.opCounts = new long[code.size()];
+    this.current = stats(MAIN);
+    current.calls = 1;
+    current.active = 1;
+    stack.push(new Activation(current, 0));
+  }
+
+  private ProcStats stats(String name) {
+    return procs.computeIfAbsent(name, ProcStats::new);
+  }
+
+  /** Records that the op at the given index ran, for the given number of cycles. */
+  void countOp(int ip, int opCycles) {
+    opCounts[ip]++;
+    cycles += opCycles;
+  }
+
+  /** Records a call to the given procedure. */
+  void enter(String procName) {
+    switchAway();
+    current = stats(procName);
+    current.calls++;
+    current.active++;
+    stack.push(new Activation(current, cycles));
+    currentNode = currentNode.child(procName);
+  }
+
+  /** Records a return from the current procedure. */
+  void exit() {
+    switchAway();
+    Activation activation = stack.pop();
+    leave(activation);
+    current = stack.peek().stats;
+    currentNode = currentNode.parent;
+  }
+
+  /** Records the end of the program, which may happen in the middle of a procedure. */
+  void finish() {
+    switchAway();
+    while (!stack.isEmpty()) {
+      leave(stack.pop());
+    }
+  }
+
+  private void leave(Activation activation) {
+    ProcStats stats = activation.stats;
+    stats.active--;
+    if (stats.active == 0) {
+      // Only count the outermost activation of a recursive procedure.
+      stats.inclusiveCycles += cycles - activation.entryCycles;
+    }
+  }
+
+  /** Charges the cycles since the last call or return to the current procedure and stack. */
+  private void switchAway() {
+    long delta = cycles - lastSwitch;
+    current.exclusiveCycles += delta;
+    currentNode.cycles += delta;
+    lastSwitch = cycles;
+  }
+
+  /** Total cycles. */
+  public long cycles() {
+    return cycles;
+  }
+
+  /** Number of times the op at the given index ran. */
+  public long executionCount(int ip) {
+    return opCounts[ip];
+  }
+
+  /** Stats of every procedure that ran (including {@link #MAIN}), most exclusive cycles first. */
+  public ImmutableList<ProcStats> procedures() {
+    return procs.values().stream()
+        .sorted(
+            Comparator.comparingLong(ProcStats::exclusiveCycles)
+                .reversed()
+                .thenComparing(ProcStats::name))
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /** Formats the procedures, and the given number of most-executed ops, as tables. */
+  public String hotSpots(int maxOps) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(
+        String.format(
+            "%-24s %10s %14s %7s %14s %7s\n",
+            "PROCEDURE", "CALLS", "INCLUSIVE", "%", "EXCLUSIVE", "%"));
+    for (ProcStats stats : procedures()) {
+      sb.append(
+          String.format(
+              "%-24s %10d %14d %6.2f%% %14d %6.2f%%\n",
+              stats.name(),
+              stats.calls(),
+              stats.inclusiveCycles(),
+              percent(stats.inclusiveCycles()),
+              stats.exclusiveCycles(),
+              percent(stats.exclusiveCycles())));
+    }
+    sb.append("\n");
+    sb.append(String.format("%6s %12s %7s  %s\n", "IP", "COUNT", "%", "OP"));
+    List<Integer> ips = new ArrayList<>();
+    for (int ip = 0; ip < opCounts.length; ++ip) {
+      if (opCounts[ip] > 0) {
+        ips.add(ip);
+      }
+    }
+    ips.sort(Comparator.comparingLong((Integer ip) -> opCounts[ip]).reversed());
+    for (int ip : ips.subList(0, Math.min(maxOps, ips.size()))) {
+      sb.append(
+          String.format(
+              "%6d %12d %6.2f%%  %s\n", ip, opCounts[ip], percent(opCounts[ip]), code.get(ip)));
+    }
+    return sb.toString();
+  }
+
+  private double percent(long part) {
+    if (cycles == 0) {
+      return 0;
+    }
+    return 100.0 * part / cycles;
+  }
+
+  /**
+   * Writes the exclusive cycles of each distinct call stack in "collapsed stack" format, one
+   * stack per line, e.g., {@code <main>;fib;fib 1234}, as read by flame graph tools.
+   */
+  public void writeCollapsedStacks(Writer writer) throws IOException {
+    writeCollapsed(root, root.name, writer);
+    writer.flush();
+  }
+
+  private static void writeCollapsed(StackNode node, String path, Writer writer)
+      throws IOException {
+    if (node.cycles > 0) {
+      writer.write(String.format("%s %d\n", path, node.cycles));
+    }
+    for (StackNode child : node.children.values()) {
+      writeCollapsed(child, path + ";" + child.name, writer);
+    }
+  }
+}
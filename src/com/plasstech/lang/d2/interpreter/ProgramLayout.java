@@ -0,0 +1,56 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.plasstech.lang.d2.type.RecordSymbol;
+
+/**
+ * The frame layouts for a whole program: the global frame plus one per procedure, and the layout
+ * of every record type that is allocated.
+ */
+public class ProgramLayout {
+  private final FrameLayout global;
+  private final ImmutableMap<String, FrameLayout> procs;
+  private final Map<String, RecordLayout> records;
+
+  ProgramLayout(
+      FrameLayout global, Map<String, FrameLayout> procs, Map<String, RecordLayout> records) {
+    this.global = global;
+    this.procs = ImmutableMap.copyOf(procs);
+    this.records = ImmutableMap.copyOf(records);
+  }
+
+  /** Layout of the global frame, which also holds the temps of the "main" program. */
+  public FrameLayout global() {
+    return global;
+  }
+
+  /** Layout of the frame of the given procedure. */
+  public FrameLayout proc(String procName) {
+    FrameLayout layout = procs.get(procName);
+    if (layout == null) {
+      throw new IllegalStateException("No frame layout for procedure " + procName);
+    }
+    return layout;
+  }
+
+  /** Layout of the given record type. */
+  RecordLayout record(RecordSymbol record) {
+    RecordLayout recordLayout = records.get(record.name());
+    if (recordLayout == null) {
+      throw new IllegalStateException("No layout for record " + record.name());
+    }
+    return recordLayout;
+  }
+
+  /** Layout of the record type with the given name, or null if it is never allocated. */
+  RecordLayout record(String recordName) {
+    return records.get(recordName);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %s", global, procs.values());
+  }
+}
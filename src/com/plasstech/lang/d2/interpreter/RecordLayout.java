@@ -0,0 +1,97 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.type.RecordSymbol;
+import com.plasstech.lang.d2.type.RecordSymbol.ArrayField;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Maps each field of a record type to a fixed index in the {@link RecordValue}s of that type.
+ * Computed once per {@link RecordSymbol}.
+ */
+class RecordLayout {
+  private final String name;
+  private final ImmutableList<String> fieldNames;
+  private final Map<String, Integer> indexes = new HashMap<>();
+  private final Object[] defaults;
+  // Base type and size of each array field, or null if the field isn't an array.
+  private final VarType[] arrayBaseTypes;
+  private final int[] arraySizes;
+  // Type of the first field that cannot be initialized, if any.
+  private final VarType unsupportedType;
+
+  RecordLayout(RecordSymbol record) {
+    this.name = record.name();
+    this.fieldNames = ImmutableList.copyOf(record.fieldNames());
+    this.defaults = new Object[fieldNames.size()];
+    this.arrayBaseTypes = new VarType[fieldNames.size()];
+    this.arraySizes = new int[fieldNames.size()];
+    VarType unsupported = null;
+    for (int i = 0; i < fieldNames.size(); ++i) {
+      String fieldName = fieldNames.get(i);
+      indexes.put(fieldName, i);
+      VarType type = record.fieldType(fieldName);
+      if (type == VarType.INT || type == VarType.BYTE) {
+        defaults[i] = 0;
+      } else if (type == VarType.BOOL) {
+        defaults[i] = false;
+      } else if (type == VarType.DOUBLE) {
+        defaults[i] = 0.0;
+      } else if (type.isArray()) {
+        ArrayField arrayField = record.getArrayField(fieldName);
+        arrayBaseTypes[i] = arrayField.baseType();
+        // TODO(#38) support multidimensional arrays
+        arraySizes[i] = arrayField.sizes().get(0);
+      } else if (type == VarType.STRING || type.isRecord()) {
+        // it's cool, leave as null
+      } else if (unsupported == null) {
+        unsupported = type;
+      }
+    }
+    this.unsupportedType = unsupported;
+  }
+
+  String name() {
+    return name;
+  }
+
+  List<String> fieldNames() {
+    return fieldNames;
+  }
+
+  int size() {
+    return fieldNames.size();
+  }
+
+  /** Returns the index of the given field, or -1 if there is no such field. */
+  int indexOf(String fieldName) {
+    Integer index = indexes.get(fieldName);
+    if (index == null) {
+      return -1;
+    }
+    return index;
+  }
+
+  /** Allocates a new record, with every field set to its default. */
+  RecordValue newInstance() {
+    if (unsupportedType != null) {
+      throw new IllegalStateException("Cannot initialize field of type " + unsupportedType);
+    }
+    Object[] values = defaults.clone();
+    for (int i = 0; i < values.length; ++i) {
+      if (arrayBaseTypes[i] != null) {
+        values[i] = Heap.newArray(arrayBaseTypes[i], arraySizes[i]);
+      }
+    }
+    return new RecordValue(this, values);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %s", name, fieldNames);
+  }
+}
@@ -0,0 +1,103 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An instance of a record: an array of field values, in the order given by its {@link
+ * RecordLayout}. Also a {@code Map} from field name to value, with the same equality and hashing
+ * as any other map, so records compare as they always have.
+ */
+class RecordValue extends AbstractMap<String, Object> {
+  private final RecordLayout layout;
+  private final Object[] values;
+
+  RecordValue(RecordLayout layout, Object[] values) {
+    this.layout = layout;
+    this.values = values;
+  }
+
+  RecordLayout layout() {
+    return layout;
+  }
+
+  Object getField(int index) {
+    return values[index];
+  }
+
+  void setField(int index, Object value) {
+    values[index] = value;
+  }
+
+  @Override
+  public Object get(Object key) {
+    int index = layout.indexOf((String) key);
+    if (index == -1) {
+      return null;
+    }
+    return values[index];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return layout.indexOf((String) key) != -1;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    int index = layout.indexOf(key);
+    if (index == -1) {
+      throw new IllegalArgumentException(
+          String.format("No field %s in record %s", key, layout.name()));
+    }
+    Object previous = values[index];
+    values[index] = value;
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    return values.length;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new Iterator<Entry<String, Object>>() {
+          private int index;
+
+          @Override
+          public boolean hasNext() {
+            return index < values.length;
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            int current = index++;
+            String name = layout.fieldNames().get(current);
+            return new SimpleEntry<String, Object>(name, values[current]) {
+              @Override
+              public Object setValue(Object value) {
+                values[current] = value;
+                return super.setValue(value);
+              }
+            };
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return values.length;
+      }
+    };
+  }
+}
@@ -0,0 +1,237 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.type.SymbolStorage;
+
+/**
+ * A pre-resolved operand of a threaded instruction: either a constant, or a slot in the global
+ * frame, the current frame or the frame of an enclosing procedure.
+ */
+abstract class Ref {
+
+  /**
+   * Resolves the given operand. Globals always live in the global frame; locals and params of an
+   * enclosing procedure live in its frame; everything else lives in the frame with the given
+   * layout.
+   */
+  static Ref of(Operand operand, FrameLayout current, FrameLayout global) {
+    if (operand.isConstant()) {
+      return new ConstRef(((ConstantOperand<?>) operand).value());
+    }
+    Location location = (Location) operand;
+    if (location.storage() == SymbolStorage.GLOBAL || current == global) {
+      int slot = slotOf(location, global);
+      return new GlobalRef(location.name(), slot, global.primitiveType(slot) != null);
+    }
+    int depth = current.depthOf(location);
+    if (depth > 0) {
+      FrameLayout outer = current.outer(depth);
+      int slot = slotOf(location, outer);
+      return new OuterRef(location.name(), depth, slot, outer.primitiveType(slot) != null);
+    }
+    int slot = slotOf(location, current);
+    return new LocalRef(location.name(), slot, current.primitiveType(slot) != null);
+  }
+
+  private static int slotOf(Location location, FrameLayout layout) {
+    int slot = layout.slotOf(location);
+    if (slot == -1) {
+      throw new IllegalStateException(
+          String.format("No slot for %s in frame %s", location.name(), layout.name()));
+    }
+    return slot;
+  }
+
+  abstract Object get(ThreadedInterpreter vm);
+
+  void set(ThreadedInterpreter vm, Object value) {
+    throw new IllegalStateException("Cannot assign to " + this);
+  }
+
+  /**
+   * Whether this ref can be read (and, if it's a slot, written) as raw bits via {@link #getLong}
+   * and {@link #setLong} without boxing. See {@link Primitives} for the encoding.
+   */
+  boolean isPrimitive() {
+    return false;
+  }
+
+  long getLong(ThreadedInterpreter vm) {
+    throw new UnsupportedOperationException(this + " is not primitive");
+  }
+
+  void setLong(ThreadedInterpreter vm, long bits) {
+    throw new UnsupportedOperationException(this + " is not primitive");
+  }
+
+  double getDouble(ThreadedInterpreter vm) {
+    return Double.longBitsToDouble(getLong(vm));
+  }
+
+  void setDouble(ThreadedInterpreter vm, double value) {
+    setLong(vm, Double.doubleToRawLongBits(value));
+  }
+
+  static class ConstRef extends Ref {
+    final Object value;
+    private final boolean primitive;
+    final long bits;
+
+    ConstRef(Object value) {
+      this.value = value;
+      this.primitive = Primitives.typeOf(value) != null;
+      this.bits = primitive ? Primitives.toBits(value) : 0;
+    }
+
+    @Override
+    Object get(ThreadedInterpreter vm) {
+      return value;
+    }
+
+    @Override
+    boolean isPrimitive() {
+      return primitive;
+    }
+
+    @Override
+    long getLong(ThreadedInterpreter vm) {
+      return bits;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(value);
+    }
+  }
+
+  static class GlobalRef extends Ref {
+    private final String name;
+    final int slot;
+    private final boolean primitive;
+
+    GlobalRef(String name, int slot, boolean primitive) {
+      this.name = name;
+      this.slot = slot;
+      this.primitive = primitive;
+    }
+
+    @Override
+    Object get(ThreadedInterpreter vm) {
+      return vm.globals().getValue(slot);
+    }
+
+    @Override
+    void set(ThreadedInterpreter vm, Object value) {
+      vm.globals().setValue(slot, value);
+    }
+
+    @Override
+    boolean isPrimitive() {
+      return primitive;
+    }
+
+    @Override
+    long getLong(ThreadedInterpreter vm) {
+      return vm.globals().getLong(slot);
+    }
+
+    @Override
+    void setLong(ThreadedInterpreter vm, long bits) {
+      vm.globals().setLong(slot, bits);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s@global[%d]", name, slot);
+    }
+  }
+
+  static class LocalRef extends Ref {
+    private final String name;
+    final int slot;
+    private final boolean primitive;
+
+    LocalRef(String name, int slot, boolean primitive) {
+      this.name = name;
+      this.slot = slot;
+      this.primitive = primitive;
+    }
+
+    @Override
+    Object get(ThreadedInterpreter vm) {
+      return vm.frame().getValue(slot);
+    }
+
+    @Override
+    void set(ThreadedInterpreter vm, Object value) {
+      vm.frame().setValue(slot, value);
+    }
+
+    @Override
+    boolean isPrimitive() {
+      return primitive;
+    }
+
+    @Override
+    long getLong(ThreadedInterpreter vm) {
+      return vm.frame().getLong(slot);
+    }
+
+    @Override
+    void setLong(ThreadedInterpreter vm, long bits) {
+      vm.frame().setLong(slot, bits);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s@local[%d]", name, slot);
+    }
+  }
+
+  /** A slot in the frame of an enclosing procedure, found by following static links. */
+  static class OuterRef extends Ref {
+    private final String name;
+    private final int depth;
+    final int slot;
+    private final boolean primitive;
+
+    OuterRef(String name, int depth, int slot, boolean primitive) {
+      this.name = name;
+      this.depth = depth;
+      this.slot = slot;
+      this.primitive = primitive;
+    }
+
+    @Override
+    Object get(ThreadedInterpreter vm) {
+      return vm.frame().outer(depth).getValue(slot);
+    }
+
+    @Override
+    void set(ThreadedInterpreter vm, Object value) {
+      vm.frame().outer(depth).setValue(slot, value);
+    }
+
+    @Override
+    boolean isPrimitive() {
+      return primitive;
+    }
+
+    @Override
+    long getLong(ThreadedInterpreter vm) {
+      return vm.frame().outer(depth).getLong(slot);
+    }
+
+    @Override
+    void setLong(ThreadedInterpreter vm, long bits) {
+      vm.frame().outer(depth).setLong(slot, bits);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s@outer%d[%d]", name, depth, slot);
+    }
+  }
+}
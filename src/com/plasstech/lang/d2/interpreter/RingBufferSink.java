@@ -0,0 +1,39 @@
+package com.plasstech.lang.d2.interpreter;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An {@link OutputSink} that keeps only the last few fragments of output, so it uses constant
+ * memory however much the program prints.
+ */
+public class RingBufferSink implements OutputSink {
+  private final String[] fragments;
+  private long written;
+
+  /** @param capacity maximum number of fragments to keep */
+  public RingBufferSink(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+    this.fragments = new String[capacity];
+  }
+
+  @Override
+  public void write(String fragment) {
+    fragments[(int) (written % fragments.length)] = fragment;
+    written++;
+  }
+
+  /** The kept fragments, oldest first. */
+  public ImmutableList<String> contents() {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (long i = Math.max(0, written - fragments.length); i < written; ++i) {
+      builder.add(fragments[(int) (i % fragments.length)]);
+    }
+    return builder.build();
+  }
+
+  /** Total number of fragments written, including those no longer kept. */
+  public long written() {
+    return written;
+  }
+}
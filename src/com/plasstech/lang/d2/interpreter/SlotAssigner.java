@@ -0,0 +1,236 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.type.ParamSymbol;
+import com.plasstech.lang.d2.type.SymbolStorage;
+
+/**
+ * Pre-pass over the IL that assigns every global, local, param and temp a dense slot in its
+ * frame. Globals always go in the global frame; locals and params go in the frame of the procedure
+ * that declares them, which may enclose the one that uses them; temps go in the frame of the
+ * innermost procedure whose ProcEntry/ProcExit surrounds them, or the global frame if they're
+ * outside all procedures. Also lays out the fields of each record type that is allocated.
+ *
+ * <p>A nested procedure that sets a variable of an enclosing procedure gets its own copy of it,
+ * which reads through to the enclosing procedure's until it is set, so a call never changes the
+ * variables of its caller.
+ */
+public class SlotAssigner extends DefaultOpcodeVisitor {
+  private final FrameLayout global = new FrameLayout("global", null);
+  private final Map<String, FrameLayout> procs = new HashMap<>();
+  private final Map<String, RecordLayout> records = new HashMap<>();
+  private FrameLayout current = global;
+
+  public static ProgramLayout assign(ImmutableList<Op> code) {
+    SlotAssigner assigner = new SlotAssigner();
+    // The copies have to be known before any slots are assigned, because a nested procedure may
+    // read a variable before it sets it.
+    CopyFinder finder = assigner.new CopyFinder();
+    for (Op op : code) {
+      op.accept(finder);
+    }
+    for (Op op : code) {
+      op.accept(assigner);
+    }
+    for (FrameLayout layout : assigner.procs.values()) {
+      layout.linkCopies();
+    }
+    return new ProgramLayout(assigner.global, assigner.procs, assigner.records);
+  }
+
+  private SlotAssigner() {}
+
+  /**
+   * Creates the layout of each procedure, and finds the variables of enclosing procedures that
+   * each nested procedure sets.
+   */
+  private class CopyFinder extends DefaultOpcodeVisitor {
+    private void set(Location location) {
+      if (location.storage() != SymbolStorage.GLOBAL && current.depthOf(location) > 0) {
+        current.addCopy(location.name());
+      }
+    }
+
+    @Override
+    public void visit(ProcEntry op) {
+      // A nested procedure's layout points at its parent's, so the layouts of the procedures that
+      // have been entered but not exited form a stack.
+      current = new FrameLayout(op.name(), current == global ? null : current);
+      procs.put(op.name(), current);
+    }
+
+    @Override
+    public void visit(ProcExit op) {
+      exit();
+    }
+
+    @Override
+    public void visit(Transfer op) {
+      set(op.destination());
+    }
+
+    @Override
+    public void visit(BinOp op) {
+      set(op.destination());
+    }
+
+    @Override
+    public void visit(UnaryOp op) {
+      set(op.destination());
+    }
+
+    @Override
+    public void visit(Inc op) {
+      set(op.target());
+    }
+
+    @Override
+    public void visit(Dec op) {
+      set(op.target());
+    }
+
+    @Override
+    public void visit(Call op) {
+      op.destination().ifPresent(this::set);
+    }
+
+    @Override
+    public void visit(AllocateOp op) {
+      set(op.destination());
+    }
+
+    @Override
+    public void visit(ArrayAlloc op) {
+      set(op.destination());
+    }
+  }
+
+  private void exit() {
+    current = current.parent() == null ? global : current.parent();
+  }
+
+  private void add(Operand operand) {
+    if (operand == null || operand.isConstant()) {
+      return;
+    }
+    Location location = (Location) operand;
+    if (location.storage() == SymbolStorage.GLOBAL) {
+      global.add(location);
+    } else {
+      current.outer(current.depthOf(location)).add(location);
+    }
+  }
+
+  @Override
+  public void visit(ProcEntry op) {
+    current = procs.get(op.name());
+    // Params always come first, in order.
+    for (ParamSymbol formal : op.formals()) {
+      current.addParam(formal.name(), formal.varType());
+    }
+  }
+
+  @Override
+  public void visit(ProcExit op) {
+    exit();
+  }
+
+  @Override
+  public void visit(Transfer op) {
+    add(op.destination());
+    add(op.source());
+  }
+
+  @Override
+  public void visit(BinOp op) {
+    add(op.destination());
+    add(op.left());
+    add(op.right());
+  }
+
+  @Override
+  public void visit(UnaryOp op) {
+    add(op.destination());
+    add(op.operand());
+  }
+
+  @Override
+  public void visit(IfOp op) {
+    add(op.condition());
+  }
+
+  @Override
+  public void visit(Inc op) {
+    add(op.target());
+  }
+
+  @Override
+  public void visit(Dec op) {
+    add(op.target());
+  }
+
+  @Override
+  public void visit(SysCall op) {
+    add(op.arg());
+  }
+
+  @Override
+  public void visit(Call op) {
+    op.destination().ifPresent(this::add);
+    for (Operand actual : op.actuals()) {
+      add(actual);
+    }
+  }
+
+  @Override
+  public void visit(Return op) {
+    op.returnValueLocation().ifPresent(this::add);
+  }
+
+  @Override
+  public void visit(AllocateOp op) {
+    add(op.destination());
+    records.computeIfAbsent(op.record().name(), name -> new RecordLayout(op.record()));
+  }
+
+  @Override
+  public void visit(ArrayAlloc op) {
+    add(op.destination());
+    add(op.sizeLocation());
+  }
+
+  @Override
+  public void visit(ArraySet op) {
+    add(op.array());
+    add(op.index());
+    add(op.source());
+  }
+
+  @Override
+  public void visit(FieldSetOp op) {
+    add(op.recordLocation());
+    add(op.source());
+  }
+}
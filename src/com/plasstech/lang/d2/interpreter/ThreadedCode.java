@@ -0,0 +1,398 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.OpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.Instructions.AllocateInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.ArrayAllocInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.ArraySetInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.BinOpInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.CallInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.FieldGetInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.FieldSetInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.GotoInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.IfInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.IncDecInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.Jump;
+import com.plasstech.lang.d2.interpreter.Instructions.NopInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.ReturnInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.StopInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.SysCallInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.TransferInsn;
+import com.plasstech.lang.d2.interpreter.Instructions.UnaryInsn;
+import com.plasstech.lang.d2.type.ArrayType;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * IL code pre-decoded for the {@link ThreadedInterpreter}: labels are resolved to instruction
+ * indices, operands to frame slots, and ops with no runtime effect are dropped. Immutable once
+ * decoded, except that hot procedures are compiled in place (see {@link Procedure}), so it can be
+ * run any number of times.
+ */
+class ThreadedCode {
+  private final Instruction[] instructions;
+  private final ProgramLayout layout;
+  private final ImmutableMap<String, Procedure> procedures;
+
+  private ThreadedCode(
+      Instruction[] instructions, ProgramLayout layout, Map<String, Procedure> procedures) {
+    this.instructions = instructions;
+    this.layout = layout;
+    this.procedures = ImmutableMap.copyOf(procedures);
+  }
+
+  static ThreadedCode decode(ImmutableList<Op> code) {
+    ProgramLayout layout = SlotAssigner.assign(code);
+    Decoder decoder = new Decoder(layout);
+    for (int i = 0; i < code.size(); ++i) {
+      decoder.ilIndex = i;
+      Op op = code.get(i);
+      if (op instanceof Nop) {
+        // Nops are not visited, but still count towards the iteration budget.
+        decoder.skip(op);
+      } else {
+        op.accept(decoder);
+      }
+    }
+    return new ThreadedCode(decoder.finish(), layout, decoder.procedures);
+  }
+
+  Instruction[] instructions() {
+    return instructions;
+  }
+
+  ProgramLayout layout() {
+    return layout;
+  }
+
+  /** The procedures that are called, by name. */
+  ImmutableMap<String, Procedure> procedures() {
+    return procedures;
+  }
+
+  private static class Decoder implements OpcodeVisitor {
+    private final ProgramLayout layout;
+    private final List<Instruction> instructions = new ArrayList<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final List<Jump> jumps = new ArrayList<>();
+    private final Map<String, Procedure> procedures = new HashMap<>();
+    private FrameLayout current;
+    // Cycles and count of dropped ops that have not yet been added to an instruction.
+    private int pendingCost;
+    private int pendingOps;
+    private Op pendingOp;
+    private int pendingIlIndex;
+    // Index of the IL op being decoded.
+    private int ilIndex;
+
+    Decoder(ProgramLayout layout) {
+      this.layout = layout;
+      this.current = layout.global();
+    }
+
+    Instruction[] finish() {
+      flushPendingCost();
+      for (Jump jump : jumps) {
+        Integer target = labels.get(jump.label);
+        if (target == null) {
+          throw new IllegalStateException("Could not find destination label " + jump.label);
+        }
+        jump.target = target;
+      }
+      for (Procedure procedure : procedures.values()) {
+        procedure.setEntry(labels.get(procedure.symbol().mungedName()));
+      }
+      return instructions.toArray(new Instruction[0]);
+    }
+
+    private Ref ref(Operand operand) {
+      return Ref.of(operand, current, layout.global());
+    }
+
+    /**
+     * Returns the ref for the given operand if it can be read and written unboxed as the given
+     * type, or null if not.
+     */
+    private Ref primitiveRef(Operand operand, VarType type) {
+      if (operand.type() != type || !Primitives.isPrimitive(type)) {
+        return null;
+      }
+      if (operand.isConstant()
+          && Primitives.typeOf(((ConstantOperand<?>) operand).value()) != type) {
+        return null;
+      }
+      Ref ref = ref(operand);
+      if (!ref.isPrimitive()) {
+        return null;
+      }
+      return ref;
+    }
+
+    private void emit(Instruction insn) {
+      emit(insn, ilIndex);
+    }
+
+    private void emit(Instruction insn, int index) {
+      insn.setIlIndex(index);
+      insn.addCost(pendingCost);
+      insn.addIlOps(pendingOps);
+      pendingCost = 0;
+      pendingOps = 0;
+      pendingOp = null;
+      if (insn instanceof Jump) {
+        jumps.add((Jump) insn);
+      }
+      instructions.add(insn);
+    }
+
+    /** Records an op that counts as a cycle but doesn't do anything at runtime. */
+    private void drop(Op op) {
+      pendingCost++;
+      skip(op);
+    }
+
+    /** Records an op that doesn't count as a cycle and doesn't do anything at runtime. */
+    private void skip(Op op) {
+      pendingOps++;
+      pendingOp = op;
+      pendingIlIndex = ilIndex;
+    }
+
+    /**
+     * If there are dropped ops that have not been counted, emits a nop to count them. Needed
+     * before a label, because a jump to the label must not count them.
+     */
+    private void flushPendingCost() {
+      if (pendingOps > 0) {
+        Instruction nop = new NopInsn(pendingOp);
+        // The nop itself counts as one cycle and one op.
+        pendingCost--;
+        pendingOps--;
+        emit(nop, pendingIlIndex);
+      }
+    }
+
+    @Override
+    public void visit(Label op) {
+      flushPendingCost();
+      labels.put(op.label(), instructions.size());
+      skip(op);
+    }
+
+    @Override
+    public void visit(ProcEntry op) {
+      current = layout.proc(op.name());
+      drop(op);
+    }
+
+    @Override
+    public void visit(DeallocateTemp op) {
+      drop(op);
+    }
+
+    @Override
+    public void visit(ProcExit op) {
+      emit(new ReturnInsn(op, null, null, true));
+      current = current.parent() == null ? layout.global() : current.parent();
+    }
+
+    @Override
+    public void visit(Transfer op) {
+      VarType type = op.destination().type();
+      Ref source = primitiveRef(op.source(), type);
+      Ref destination = primitiveRef(op.destination(), type);
+      if (source != null && destination != null) {
+        emit(new PrimitiveInstructions.TransferInsn(op, source, destination));
+        return;
+      }
+      emit(new TransferInsn(op, ref(op.source()), ref(op.destination())));
+    }
+
+    @Override
+    public void visit(BinOp op) {
+      TokenType operator = op.operator();
+      VarType type = op.left().type();
+      if (operator == TokenType.LBRACKET && type.isArray()) {
+        VarType baseType = ((ArrayType) type).baseType();
+        Ref index = primitiveRef(op.right(), VarType.INT);
+        Ref destination = primitiveRef(op.destination(), baseType);
+        if (index != null && destination != null) {
+          emit(new PrimitiveInstructions.ArrayGetInsn(op, ref(op.left()), index, destination));
+          return;
+        }
+      }
+      if (operator == TokenType.DOT && op.right().isConstant()) {
+        String field = (String) ((ConstantOperand<?>) op.right()).value();
+        int index = fieldIndex(type, field);
+        if (index != -1) {
+          emit(new FieldGetInsn(op, ref(op.left()), index, ref(op.destination())));
+          return;
+        }
+      }
+      if (PrimitiveInstructions.supportsBinOp(operator, type)) {
+        Ref left = primitiveRef(op.left(), type);
+        Ref right = primitiveRef(op.right(), type);
+        Ref destination =
+            primitiveRef(op.destination(), PrimitiveInstructions.binOpResultType(operator, type));
+        if (left != null && right != null && destination != null) {
+          emit(
+              new PrimitiveInstructions.BinOpInsn(op, operator, type, left, right, destination));
+          return;
+        }
+      }
+      emit(new BinOpInsn(op, ref(op.left()), ref(op.right()), ref(op.destination())));
+    }
+
+    @Override
+    public void visit(UnaryOp op) {
+      TokenType operator = op.operator();
+      VarType type = op.operand().type();
+      if (PrimitiveInstructions.supportsUnaryOp(operator, type)) {
+        Ref operand = primitiveRef(op.operand(), type);
+        Ref destination = primitiveRef(op.destination(), type);
+        if (operand != null && destination != null) {
+          emit(new PrimitiveInstructions.UnaryInsn(op, operator, type, operand, destination));
+          return;
+        }
+      }
+      emit(new UnaryInsn(op, ref(op.operand()), ref(op.destination())));
+    }
+
+    @Override
+    public void visit(Inc op) {
+      emitIncDec(op, op.target(), 1);
+    }
+
+    @Override
+    public void visit(Dec op) {
+      emitIncDec(op, op.target(), -1);
+    }
+
+    private void emitIncDec(Op op, Location target, int delta) {
+      VarType type = target.type();
+      Ref primitive = type.isIntegral() ? primitiveRef(target, type) : null;
+      if (primitive != null) {
+        emit(new PrimitiveInstructions.IncDecInsn(op, primitive, type, delta));
+      } else {
+        emit(new IncDecInsn(op, ref(target), type, delta));
+      }
+    }
+
+    @Override
+    public void visit(IfOp op) {
+      Ref condition = primitiveRef(op.condition(), VarType.BOOL);
+      if (condition != null) {
+        emit(new PrimitiveInstructions.IfInsn(op, op.destination(), condition, op.isNot()));
+      } else {
+        emit(new IfInsn(op, ref(op.condition())));
+      }
+    }
+
+    @Override
+    public void visit(Goto op) {
+      emit(new GotoInsn(op));
+    }
+
+    @Override
+    public void visit(Call op) {
+      Procedure callee =
+          procedures.computeIfAbsent(
+              op.procSym().name(), name -> new Procedure(op.procSym(), layout.proc(name)));
+      Ref[] actuals = new Ref[op.actuals().size()];
+      for (int i = 0; i < actuals.length; ++i) {
+        actuals[i] = ref(op.actuals().get(i));
+      }
+      Ref destination = op.destination().map(this::ref).orElse(null);
+      emit(new CallInsn(op, callee, actuals, destination));
+    }
+
+    @Override
+    public void visit(Return op) {
+      Ref value = op.returnValueLocation().map(this::ref).orElse(null);
+      VarType valueType = op.returnValueLocation().map(Operand::type).orElse(null);
+      emit(new ReturnInsn(op, value, valueType, false));
+    }
+
+    @Override
+    public void visit(Stop op) {
+      emit(new StopInsn(op));
+    }
+
+    @Override
+    public void visit(SysCall op) {
+      emit(new SysCallInsn(op, ref(op.arg())));
+    }
+
+    @Override
+    public void visit(AllocateOp op) {
+      emit(new AllocateInsn(op, layout.record(op.record()), ref(op.destination())));
+    }
+
+    @Override
+    public void visit(ArrayAlloc op) {
+      emit(new ArrayAllocInsn(op, ref(op.sizeLocation()), ref(op.destination())));
+    }
+
+    @Override
+    public void visit(ArraySet op) {
+      VarType baseType = op.arrayType().baseType();
+      Ref index = primitiveRef(op.index(), VarType.INT);
+      Ref source = primitiveRef(op.source(), baseType);
+      if (index != null && source != null) {
+        emit(
+            new PrimitiveInstructions.ArraySetInsn(
+                op, ref(op.array()), index, source, baseType));
+        return;
+      }
+      emit(new ArraySetInsn(op, ref(op.array()), ref(op.index()), ref(op.source())));
+    }
+
+    @Override
+    public void visit(FieldSetOp op) {
+      int index = fieldIndex(op.recordLocation().type(), op.field());
+      emit(new FieldSetInsn(op, ref(op.recordLocation()), index, ref(op.source())));
+    }
+
+    /** Returns the index of the given field of the given record type, or -1 if unknown. */
+    private int fieldIndex(VarType type, String field) {
+      if (!type.isRecord()) {
+        return -1;
+      }
+      RecordLayout record = layout.record(type.name());
+      if (record == null) {
+        return -1;
+      }
+      return record.indexOf(field);
+    }
+  }
+}
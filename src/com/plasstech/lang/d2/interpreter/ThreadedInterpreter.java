@@ -0,0 +1,297 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.util.logging.Level;
+
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.phase.State;
+
+/**
+ * Runs IL that has been pre-decoded into a {@link ThreadedCode}: there is no label search, no
+ * per-op visitor dispatch and no name lookup at runtime. Procedures that are called often enough
+ * are compiled to JVM bytecode by the {@link Jit}. Observable results (output, variables and
+ * statistics) are the same as the {@link Interpreter}.
+ */
+public class ThreadedInterpreter {
+  /** Default number of calls after which a procedure is compiled. */
+  public static final int DEFAULT_JIT_THRESHOLD = 1000;
+  /** JIT threshold meaning "never compile." */
+  public static final int NO_JIT = 0;
+
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Thrown by compiled code to end the program. */
+  private static class Halt extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private static final Halt STOP = new Halt();
+    private static final Halt BUDGET_EXHAUSTED = new Halt();
+
+    private Halt() {
+      super(null, null, false, false);
+    }
+  }
+
+  private final State state;
+  private final ThreadedCode code;
+  private final Instruction[] instructions;
+  private final Environment rootEnv;
+  private final boolean interactive;
+  private OutputSink output;
+  private InputSource input = InputSource.stdin();
+  private Console console;
+  private FrameStack frames;
+  private Environment frame;
+  private long maxIterations = Interpreter.DEFAULT_MAX_ITERATIONS;
+  private long maxCallDepth = Interpreter.DEFAULT_MAX_CALL_DEPTH;
+  private int jitThreshold = DEFAULT_JIT_THRESHOLD;
+  private long budget;
+  private long iterations;
+  // Cycles of the instructions run by compiled code and by callFromCompiled.
+  private long compiledCycles;
+  private Profile profile;
+
+  private Level loggingLevel = Level.FINE;
+  private InterpreterResult result;
+
+  public ThreadedInterpreter(State state, boolean interactive) {
+    this(CompiledProgram.of(state), interactive);
+  }
+
+  public ThreadedInterpreter(CompiledProgram program, boolean interactive) {
+    this.state = program.state();
+    this.code = program.threadedCode();
+    this.instructions = code.instructions();
+    this.rootEnv = new Environment(code.layout().global());
+    this.frame = rootEnv;
+    this.interactive = interactive;
+    this.output = interactive ? OutputSink.of(System.out) : OutputSink.toList(rootEnv.output());
+  }
+
+  public void setDebugLevel(int debugInt) {
+    switch (debugInt) {
+      case 1:
+        loggingLevel = Level.CONFIG;
+        break;
+
+      case 2:
+        loggingLevel = Level.INFO;
+        break;
+
+      default:
+      case 0:
+        loggingLevel = Level.FINE;
+        break;
+    }
+  }
+
+  /** Sets the maximum number of instructions to run before stopping the program, or UNLIMITED. */
+  public void setMaxIterations(long maxIterations) {
+    this.maxIterations = maxIterations;
+  }
+
+  /**
+   * Sets the maximum number of nested procedure calls, or UNLIMITED. Calling deeper stops the
+   * program with a stack overflow error.
+   */
+  public void setMaxCallDepth(long maxCallDepth) {
+    this.maxCallDepth = maxCallDepth;
+  }
+
+  /**
+   * Sets the number of calls after which a procedure is compiled to JVM bytecode, or NO_JIT.
+   * Compilation is always off while profiling.
+   */
+  public void setJitThreshold(int jitThreshold) {
+    this.jitThreshold = jitThreshold;
+  }
+
+  /**
+   * Sets where printed output goes. By default it is standard out if interactive, otherwise the
+   * output list of the global {@link Environment}.
+   */
+  public void setOutputSink(OutputSink output) {
+    this.output = output;
+  }
+
+  /** Sets where INPUT reads from. By default it is standard in. */
+  public void setInputSource(InputSource input) {
+    this.input = input;
+  }
+
+  /** Turns on recording of an execution {@link Profile}. */
+  public void setProfiling(boolean profiling) {
+    this.profile = profiling ? new Profile(state.lastIlCode()) : null;
+  }
+
+  public InterpreterResult execute() {
+    result = new InterpreterResult(state, rootEnv);
+    frames = new FrameStack(rootEnv, maxCallDepth);
+    frame = rootEnv;
+    console = new Console(output, input, interactive);
+    int ip = 0;
+    long cycles = 0;
+    // Checking against Long.MAX_VALUE keeps the loop free of an extra "unlimited" test.
+    budget = maxIterations > Interpreter.UNLIMITED ? maxIterations : Long.MAX_VALUE;
+    Instruction insn = null;
+    try {
+      while (ip >= 0) {
+        insn = instructions[ip];
+        iterations += insn.ilOps();
+        if (iterations > budget) {
+          if (iterations - 1 == budget) {
+            // Like the Interpreter, runs the op that goes over the budget, but no more.
+            cycles += insn.cost();
+            insn.execute(this, ip);
+          }
+          logger.atSevere().log("Terminated after too many iterations (%d)", maxIterations);
+          result.setBudgetExhausted();
+          break;
+        }
+        cycles += insn.cost();
+        if (profile != null) {
+          profile.countOp(insn.ilIndex(), insn.cost());
+        }
+        ip = insn.execute(this, ip);
+      }
+    } catch (Halt halt) {
+      if (halt == Halt.STOP) {
+        ip = -1;
+      } else {
+        logger.atSevere().log("Terminated after too many iterations (%d)", maxIterations);
+        result.setBudgetExhausted();
+      }
+    } catch (RuntimeException re) {
+      logger.atSevere().withCause(re).log("Exception at ip %d: %s; frame: %s", ip, insn, frame);
+      throw re;
+    } finally {
+      result.addInstructionCycles(cycles + compiledCycles);
+      console.flush();
+    }
+    // Stop ends the program even from inside a procedure, so this is only a problem if we ran out
+    // of iterations.
+    if (ip >= 0 && !frames.isEmpty()) {
+      logger.atSevere().log("Stack not empty");
+    }
+    if (profile != null) {
+      profile.finish();
+      result.setProfile(profile);
+    }
+    logger.at(loggingLevel).log("Interpreter ran for %d iterations", iterations);
+    return result;
+  }
+
+  ThreadedCode code() {
+    return code;
+  }
+
+  int jitThreshold() {
+    return jitThreshold;
+  }
+
+  Profile profile() {
+    return profile;
+  }
+
+  InterpreterResult result() {
+    return result;
+  }
+
+  Console console() {
+    return console;
+  }
+
+  Environment globals() {
+    return rootEnv;
+  }
+
+  /** The frame of the currently-running procedure, or the global frame. */
+  Environment frame() {
+    return frame;
+  }
+
+  Instruction instruction(int ip) {
+    return instructions[ip];
+  }
+
+  /**
+   * Returns an empty frame for a call to the procedure with the given layout; the caller fills in
+   * the parameters, then enters it via {@link #pushFrame}.
+   */
+  Environment allocateFrame(FrameLayout layout) {
+    return frames.allocate(layout);
+  }
+
+  /** Enters the last allocated frame, remembering the index of the calling instruction. */
+  void pushFrame(int callIp) {
+    frames.push(callIp);
+    frame = frames.current();
+  }
+
+  /** Leaves a procedure, returning the index of the calling instruction. */
+  int popFrame() {
+    int callIp = frames.pop();
+    frame = frames.current();
+    return callIp;
+  }
+
+  /** Number of active procedure calls. */
+  int callDepth() {
+    return frames.depth();
+  }
+
+  /** Counts IL ops run by compiled code, and ends the program if that uses up the budget. */
+  void charge(int cycles, int ilOps) {
+    compiledCycles += cycles;
+    iterations += ilOps;
+    if (iterations > budget) {
+      throw Halt.BUDGET_EXHAUSTED;
+    }
+  }
+
+  /**
+   * Returns the error for running out of JVM stack in compiled code, which nests a JVM call for
+   * each procedure call; it is the same error as for too many nested calls.
+   */
+  D2RuntimeException stackOverflow() {
+    return FrameStack.overflow(frames.depth());
+  }
+
+  /** Ends the program from compiled code. */
+  void stop() {
+    throw Halt.STOP;
+  }
+
+  /**
+   * Runs the call instruction at the given index on behalf of compiled code, and if the callee
+   * is interpreted, runs it until it returns.
+   */
+  void callFromCompiled(int callIp) {
+    int depth = frames.depth();
+    int returnIp = callIp + 1;
+    long cycles = 0;
+    try {
+      int ip = instructions[callIp].execute(this, callIp);
+      while (ip != returnIp || frames.depth() != depth) {
+        if (ip < 0) {
+          throw Halt.STOP;
+        }
+        Instruction insn = instructions[ip];
+        iterations += insn.ilOps();
+        if (iterations > budget) {
+          if (iterations - 1 == budget) {
+            cycles += insn.cost();
+            insn.execute(this, ip);
+          }
+          throw Halt.BUDGET_EXHAUSTED;
+        }
+        cycles += insn.cost();
+        ip = insn.execute(this, ip);
+      }
+    } catch (StackOverflowError e) {
+      throw stackOverflow();
+    } finally {
+      compiledCycles += cycles;
+    }
+  }
+}
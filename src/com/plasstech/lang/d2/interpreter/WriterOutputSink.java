@@ -0,0 +1,31 @@
+package com.plasstech.lang.d2.interpreter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/** An {@link OutputSink} that writes to a {@link Writer}. */
+class WriterOutputSink implements OutputSink {
+  private final Writer writer;
+
+  WriterOutputSink(Writer writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public void write(String fragment) {
+    try {
+      writer.write(fragment);
+    } catch (IOException e) {
+      throw new InterpreterException("Could not write output", e.getMessage());
+    }
+  }
+
+  @Override
+  public void flush() {
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      throw new InterpreterException("Could not flush output", e.getMessage());
+    }
+  }
+}
@@ -19,6 +19,12 @@ public class ConstToken<T> extends Token {
     this.value = value;
   }
 
+  ConstToken(TokenType type, T value, String text, long packedStart, long packedEnd) {
+    super(TokenType.LITERAL, packedStart, packedEnd, text);
+    this.type = type;
+    this.value = value;
+  }
+
   public T value() {
     return value;
   }
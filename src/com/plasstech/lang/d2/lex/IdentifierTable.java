@@ -0,0 +1,68 @@
+package com.plasstech.lang.d2.lex;
+
+/**
+ * Interns identifiers for one lexer, so that each distinct name is made into a String once, no
+ * matter how many times it appears. Open addressing over ranges of the source characters.
+ */
+class IdentifierTable {
+  private String[] names = new String[64];
+  private int[] hashes = new int[64];
+  private int size;
+
+  /** Returns the one String with the given characters, whose hash is {@code hash}. */
+  String intern(char[] text, int start, int length, int hash) {
+    int mask = names.length - 1;
+    int slot = mix(hash) & mask;
+    while (true) {
+      String name = names[slot];
+      if (name == null) {
+        break;
+      }
+      if (hashes[slot] == hash && matches(name, text, start, length)) {
+        return name;
+      }
+      slot = (slot + 1) & mask;
+    }
+    String name = new String(text, start, length);
+    names[slot] = name;
+    hashes[slot] = hash;
+    if (++size * 2 > names.length) {
+      grow();
+    }
+    return name;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(String name, char[] text, int start, int length) {
+    if (name.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (name.charAt(i) != text[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void grow() {
+    String[] oldNames = names;
+    int[] oldHashes = hashes;
+    names = new String[oldNames.length * 2];
+    hashes = new int[oldNames.length * 2];
+    int mask = names.length - 1;
+    for (int i = 0; i < oldNames.length; ++i) {
+      if (oldNames[i] != null) {
+        int slot = mix(oldHashes[i]) & mask;
+        while (names[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        names[slot] = oldNames[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.plasstech.lang.d2.lex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.plasstech.lang.d2.common.TokenType;
+
+/**
+ * Finds keywords in a range of characters without making a String. Keywords are matched
+ * case-insensitively. Uses a perfect hash: the multiplier is picked when the class is loaded so
+ * that no two keywords share a slot, so a lookup is one hash and at most one compare.
+ */
+class Keywords {
+  private static final int MASK;
+  private static final int MULTIPLIER;
+  private static final TokenType[] TABLE;
+  private static final char[][] NAMES;
+
+  static {
+    List<TokenType> keywords = new ArrayList<>();
+    for (TokenType type : TokenType.values()) {
+      if (type.isKeyword()) {
+        keywords.add(type);
+      }
+    }
+    int size = Integer.highestOneBit(keywords.size()) * 4;
+    int multiplier = 31;
+    TokenType[] table;
+    while (true) {
+      table = fill(keywords, size, multiplier);
+      if (table != null) {
+        break;
+      }
+      multiplier += 2;
+      if (multiplier > 4096) {
+        // No luck at this size; try a bigger table.
+        multiplier = 31;
+        size *= 2;
+      }
+    }
+    MASK = size - 1;
+    MULTIPLIER = multiplier;
+    TABLE = table;
+    NAMES = new char[size][];
+    for (int i = 0; i < size; ++i) {
+      if (table[i] != null) {
+        NAMES[i] = table[i].name().toCharArray();
+      }
+    }
+  }
+
+  private Keywords() {}
+
+  /** Returns a table with each keyword in its slot, or null if two keywords share a slot. */
+  private static TokenType[] fill(List<TokenType> keywords, int size, int multiplier) {
+    TokenType[] table = new TokenType[size];
+    for (TokenType keyword : keywords) {
+      String name = keyword.name();
+      int slot = hash(name.toCharArray(), 0, name.length(), multiplier) & (size - 1);
+      if (table[slot] != null) {
+        return null;
+      }
+      table[slot] = keyword;
+    }
+    return table;
+  }
+
+  private static int hash(char[] text, int start, int length, int multiplier) {
+    int hash = length;
+    for (int i = start; i < start + length; ++i) {
+      hash = hash * multiplier + upper(text[i]);
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  private static char upper(char c) {
+    if (c < 128) {
+      return (c >= 'a' && c <= 'z') ? (char) (c - ('a' - 'A')) : c;
+    }
+    return Character.toUpperCase(c);
+  }
+
+  /** Returns the keyword spelled by the given characters, ignoring case, or null if none. */
+  static TokenType lookup(char[] text, int start, int length) {
+    int slot = hash(text, start, length, MULTIPLIER) & MASK;
+    char[] name = NAMES[slot];
+    if (name == null || name.length != length) {
+      return null;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (upper(text[start + i]) != name[i]) {
+        return null;
+      }
+    }
+    return TABLE[slot];
+  }
+}
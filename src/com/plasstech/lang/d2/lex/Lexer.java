@@ -1,39 +1,52 @@
 package com.plasstech.lang.d2.lex;
 
-import java.util.Map;
-
-import com.google.common.collect.ImmutableMap;
 import com.plasstech.lang.d2.common.Position;
 import com.plasstech.lang.d2.common.TokenType;
 
+/**
+ * Splits source text into tokens. Scans a {@code char[]} directly; identifiers are interned per
+ * lexer, keywords are found via a perfect hash, and token positions are kept as packed ints until
+ * the parser asks for them.
+ */
 public class Lexer {
-  private final String text;
+  private final char[] text;
 
   private int line, col; // current line & column
   private int loc; // location inside text
   private char cc; // current character
+  private int tokenStart; // location of the start of the last token
 
-  private Map<Character, Character> BACKSLASH_ESCAPE_MAP =
-      ImmutableMap.<Character, Character>builder()
-          .put('n', '\n')
-          .put('r', '\r')
-          .put('t', '\t')
-          .put('"', '"')
-          .put('\'', '\'')
-          .put('\\', '\\')
-          .build();
+  private final IdentifierTable identifiers = new IdentifierTable();
 
   public Lexer(String text) {
+    this(text.toCharArray());
+  }
+
+  /** Lexes the given characters, which must not be changed while lexing. */
+  public Lexer(char[] text) {
+    this(text, 0, 1, 1);
+  }
+
+  /**
+   * Lexes the given characters starting at {@code offset}, whose character is at the given line
+   * and column. Used to re-lex part of an edited text.
+   */
+  public Lexer(char[] text, int offset, int line, int column) {
     this.text = text;
-    this.loc = 0;
-    this.line = 1;
-    this.col = 0;
+    this.loc = offset;
+    this.line = line;
+    this.col = column - 1;
     advance();
   }
 
+  /** The offset in the text of the start of the token last returned by {@link #nextToken}. */
+  public int tokenStart() {
+    return tokenStart;
+  }
+
   private char advance() {
-    if (loc < text.length()) {
-      cc = text.charAt(loc);
+    if (loc < text.length) {
+      cc = text[loc];
       col++;
     } else {
       // Indicates no more characters
@@ -43,341 +56,347 @@ public class Lexer {
     return cc;
   }
 
+  /** The packed position of the current character. */
+  private long here() {
+    return Token.pack(line, col);
+  }
+
   public Token nextToken() {
-    // skip unwanted whitespace
-    while (cc == ' ' || cc == '\n' || cc == '\t' || cc == '\r') {
-      if (cc == '\n') {
-        line++;
-        col = 0;
+    while (true) {
+      // skip unwanted whitespace
+      while (cc == ' ' || cc == '\n' || cc == '\t' || cc == '\r') {
+        if (cc == '\n') {
+          line++;
+          col = 0;
+        }
+        advance();
       }
-      advance();
+      if (cc == '/' && loc < text.length && text[loc] == '/') {
+        skipComment();
+        continue;
+      }
+      break;
     }
 
-    Position start = new Position(line, col);
-    if (Character.isDigit(cc)) {
+    tokenStart = Math.min(loc - 1, text.length);
+    long start = here();
+    if (isDigit(cc)) {
       return makeNumber(start);
-    } else if (Character.isLetter(cc) || cc == '_') {
+    } else if (isLetter(cc) || cc == '_') {
       return makeText(start);
     } else if (cc != 0) {
       return makeSymbol(start);
     }
 
-    return new Token(TokenType.EOF, start);
+    return new Token(TokenType.EOF, start, start, TokenType.EOF.name());
+  }
+
+  private static boolean isDigit(char c) {
+    if (c < 128) {
+      return c >= '0' && c <= '9';
+    }
+    return Character.isDigit(c);
+  }
+
+  private static boolean isLetter(char c) {
+    if (c < 128) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    return Character.isLetter(c);
+  }
+
+  private static boolean isLetterOrDigit(char c) {
+    if (c < 128) {
+      return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+    return Character.isLetterOrDigit(c);
   }
 
   /**
    * Read letters/numbers/underscore until whitespace. Then figure out if it's a keyword or a
    * variable.
    */
-  private Token makeText(Position start) {
-    StringBuilder sb = new StringBuilder();
-    if (Character.isLetter(cc) || cc == '_') {
-      sb.append(cc);
-      advance();
-    }
-    while (Character.isLetterOrDigit(cc) || cc == '_') {
-      sb.append(cc);
+  private Token makeText(long start) {
+    int begin = loc - 1;
+    int hash = 0;
+    while (isLetterOrDigit(cc) || cc == '_') {
+      hash = 31 * hash + cc;
       advance();
     }
+    int length = loc - 1 - begin;
 
-    String value = sb.toString();
-    if (value.startsWith("_")) {
-      throw new ScannerException(String.format("Illegal variable name %s", value), start);
+    if (text[begin] == '_') {
+      String value = new String(text, begin, length);
+      throw new ScannerException(String.format("Illegal variable name %s", value), unpack(start));
     }
-    Position end = new Position(line, col);
-    try {
-      // Figure out which keyword it is
-      TokenType keywordType = TokenType.valueOf(value.toUpperCase());
-      if (keywordType.isKeyword()) {
-        return new Token(keywordType, start);
-      }
-    } catch (Exception e) {
+    TokenType keywordType = Keywords.lookup(text, begin, length);
+    if (keywordType != null) {
+      return new Token(keywordType, start, start, keywordType.name());
     }
     // Not a keyword, must be a variable.
-    return new Token(TokenType.VARIABLE, start, end, value);
+    String value = identifiers.intern(text, begin, length, hash);
+    return new Token(TokenType.VARIABLE, start, here(), value);
   }
 
-  private Token makeNumber(Position start) {
-    StringBuilder sb = new StringBuilder();
+  private static Position unpack(long packed) {
+    return new Position((int) (packed >>> 32), (int) packed);
+  }
+
+  private Token makeNumber(long start) {
     // This is non-standard but I don't care. It's my language and you can suck it.
     // 0y7f means a byte (in hex)
-    if (cc == '0') {
-      sb.append(cc);
+    if (cc == '0' && loc < text.length && text[loc] == 'y') {
       advance(); // eat the '0'
-      if (cc == 'y') {
-        advance(); // eat the 'y'
-        // byte constant. clear the stringbuilder.
-        sb = new StringBuilder();
-        while (Character.isDigit(cc) || (cc >= 'A' && cc <= 'F') || (cc >= 'a' && cc <= 'f')) {
-          sb.append(cc);
-          advance();
-        }
-        if (sb.length() == 0) {
-          throw new ScannerException("Invalid byte constant", start);
-        }
-        if (sb.length() > 2) {
-          throw new ScannerException(String.format("Byte constant too big 0y%s", sb), start);
-        }
-        try {
-          Position end = new Position(line, col);
-          // Cannot use Byte.parseByte because it rejects "some" values, huh.
-          int value = Integer.parseInt(sb.toString(), 16);
-          return new ConstToken<Byte>(TokenType.BYTE, (byte) value, sb.toString(), start, end);
-        } catch (Exception e) {
-          throw new ScannerException(String.format("Byte constant out of range 0y%s", sb), start);
-        }
+      advance(); // eat the 'y'
+      int begin = loc - 1;
+      while (isDigit(cc) || (cc >= 'A' && cc <= 'F') || (cc >= 'a' && cc <= 'f')) {
+        advance();
+      }
+      int length = loc - 1 - begin;
+      String digits = new String(text, begin, length);
+      if (length == 0) {
+        throw new ScannerException("Invalid byte constant", unpack(start));
+      }
+      if (length > 2) {
+        throw new ScannerException(
+            String.format("Byte constant too big 0y%s", digits), unpack(start));
+      }
+      try {
+        // Cannot use Byte.parseByte because it rejects "some" values, huh.
+        int value = Integer.parseInt(digits, 16);
+        return new ConstToken<Byte>(TokenType.BYTE, (byte) value, digits, start, here());
+      } catch (Exception e) {
+        throw new ScannerException(
+            String.format("Byte constant out of range 0y%s", digits), unpack(start));
       }
     }
-    while (Character.isDigit(cc)) {
-      sb.append(cc);
+    int begin = loc - 1;
+    long value = 0;
+    boolean tooBig = false;
+    while (isDigit(cc)) {
+      if (!tooBig) {
+        value = 10 * value + Character.digit(cc, 10);
+        // Anything this big is too big for a long, and won't overflow the next multiply.
+        tooBig = value > Long.MAX_VALUE / 100;
+      }
       advance();
     }
     // if cc is a dot, we're making a double
     if (cc == '.') {
-      sb.append(cc);
       advance();
-      while (Character.isDigit(cc)) {
-        sb.append(cc);
+      while (isDigit(cc)) {
         advance();
       }
+      String digits = new String(text, begin, loc - 1 - begin);
       try {
-        Position end = new Position(line, col);
-        double value = Double.parseDouble(sb.toString());
-        return new ConstToken<Double>(TokenType.DOUBLE, value, start, end);
+        double doubleValue = Double.parseDouble(digits);
+        return new ConstToken<Double>(
+            TokenType.DOUBLE, doubleValue, String.valueOf(doubleValue), start, here());
       } catch (Exception e) {
-        throw new ScannerException(String.format("Double constant too big %s", sb), start);
+        throw new ScannerException(
+            String.format("Double constant too big %s", digits), unpack(start));
       }
-    } else if (cc == 'L' || cc == 'l') {
-      // making a long
+    }
+    int length = loc - 1 - begin;
+    if (tooBig) {
+      // Rare, so let the library figure out if it fits.
       try {
-        advance();
-        Position end = new Position(line, col);
-        long value = Long.parseLong(sb.toString());
-        sb.append(cc);
-        return new ConstToken<Long>(TokenType.LONG, value, start, end);
-      } catch (Exception e) {
-        throw new ScannerException(String.format("Long constant too big %s", sb), start);
+        value = Long.parseLong(new String(text, begin, length));
+        tooBig = false;
+      } catch (NumberFormatException e) {
+        // still too big
       }
     }
-    try {
-      Position end = new Position(line, col);
-      int value = Integer.parseInt(sb.toString());
-      return new ConstToken<Integer>(TokenType.INT, value, start, end);
-    } catch (Exception e) {
-      throw new ScannerException(String.format("Integer constant too big %s", sb), start);
+    if (cc == 'L' || cc == 'l') {
+      // making a long
+      if (tooBig) {
+        throw new ScannerException(
+            String.format("Long constant too big %s", new String(text, begin, length)),
+            unpack(start));
+      }
+      advance();
+      return new ConstToken<Long>(TokenType.LONG, value, String.valueOf(value), start, here());
+    }
+    if (tooBig || value > Integer.MAX_VALUE) {
+      throw new ScannerException(
+          String.format("Integer constant too big %s", new String(text, begin, length)),
+          unpack(start));
+    }
+    int intValue = (int) value;
+    return new ConstToken<Integer>(
+        TokenType.INT, intValue, String.valueOf(intValue), start, here());
+  }
+
+  /** Returns a single-character token, and eats the character. */
+  private Token single(TokenType type, long start) {
+    String value = SingleChars.of(cc);
+    advance();
+    return new Token(type, start, start, value);
+  }
+
+  /**
+   * Returns a token of the second type if the next character is the given one, eating both
+   * characters; otherwise a token of the first type, eating one character.
+   */
+  private Token oneOrTwo(
+      long start, TokenType single, char second, TokenType pair, String pairText) {
+    String singleText = SingleChars.of(cc);
+    advance(); // eat the first character
+    if (cc == second) {
+      long end = here();
+      advance(); // eat the second character
+      return new Token(pair, start, end, pairText);
     }
+    return new Token(single, start, start, singleText);
   }
 
-  private Token makeSymbol(Position start) {
+  private Token makeSymbol(long start) {
     char oc = cc;
     switch (oc) {
       case '=':
-        return startsWithEq(start);
+        return oneOrTwo(start, TokenType.ASSIGN, '=', TokenType.EQEQ, "==");
 
       case '<':
-        return startsWithLt(start);
+        return startsWithLtOrGt(
+            start, TokenType.LT, TokenType.LEQ, "<=", '<', TokenType.SHIFT_LEFT, "<<");
 
       case '>':
-        return startsWithGt(start);
+        return startsWithLtOrGt(
+            start, TokenType.GT, TokenType.GEQ, ">=", '>', TokenType.SHIFT_RIGHT, ">>");
 
       case '+':
-        return startsWithPlus(start);
+        return startsWithLtOrGt(
+            start, TokenType.PLUS, TokenType.PLUS_EQ, "+=", '+', TokenType.INCREMENT, "++");
 
       case '-':
-        return startsWithMinus(start);
+        return startsWithLtOrGt(
+            start, TokenType.MINUS, TokenType.MINUS_EQ, "-=", '-', TokenType.DECREMENT, "--");
 
       case '(':
-        advance();
-        return new Token(TokenType.LPAREN, start, oc);
+        return single(TokenType.LPAREN, start);
 
       case ')':
-        advance();
-        return new Token(TokenType.RPAREN, start, oc);
+        return single(TokenType.RPAREN, start);
 
       case '*':
-        return startsWithStar(start);
+        return oneOrTwo(start, TokenType.MULT, '=', TokenType.MULT_EQ, "*=");
 
       case '/':
-        return startsWithSlash(start);
+        // Comments were skipped already.
+        return oneOrTwo(start, TokenType.DIV, '=', TokenType.DIV_EQ, "/=");
 
       case '%':
-        advance();
-        return new Token(TokenType.MOD, start, oc);
+        return single(TokenType.MOD, start);
 
       case '&':
-        advance();
-        return new Token(TokenType.BIT_AND, start, oc);
+        return single(TokenType.BIT_AND, start);
 
       case '|':
-        advance();
-        return new Token(TokenType.BIT_OR, start, oc);
+        return single(TokenType.BIT_OR, start);
 
       case '!':
-        return startsWithNot(start);
+        return oneOrTwo(start, TokenType.BIT_NOT, '=', TokenType.NEQ, "!=");
 
       case '{':
-        advance();
-        return new Token(TokenType.LBRACE, start, oc);
+        return single(TokenType.LBRACE, start);
 
       case '}':
-        advance();
-        return new Token(TokenType.RBRACE, start, oc);
+        return single(TokenType.RBRACE, start);
 
       case ':':
-        advance();
-        return new Token(TokenType.COLON, start, oc);
+        return single(TokenType.COLON, start);
 
       case '"':
       case '\'':
         return makeStringToken(start, oc);
 
       case ',':
-        advance();
-        return new Token(TokenType.COMMA, start, oc);
+        return single(TokenType.COMMA, start);
 
       case '[':
-        advance();
-        return new Token(TokenType.LBRACKET, start, oc);
+        return single(TokenType.LBRACKET, start);
 
       case ']':
-        advance();
-        return new Token(TokenType.RBRACKET, start, oc);
+        return single(TokenType.RBRACKET, start);
 
       case '^':
-        advance();
-        return new Token(TokenType.BIT_XOR, start, oc);
+        return single(TokenType.BIT_XOR, start);
 
       case '.':
-        advance();
-        return new Token(TokenType.DOT, start, oc);
+        return single(TokenType.DOT, start);
 
       default:
-        throw new ScannerException(String.format("Unexpected character '%c'", cc), start);
+        throw new ScannerException(String.format("Unexpected character '%c'", cc), unpack(start));
     }
   }
 
-  private Token startsWithStar(Position start) {
-    char oc = cc;
-    advance(); // eat the first *
+  /** For tokens like <, <=, <<, which can be followed by = or by themselves. */
+  private Token startsWithLtOrGt(
+      long start,
+      TokenType single,
+      TokenType withEq,
+      String withEqText,
+      char doubled,
+      TokenType twice,
+      String twiceText) {
+    String singleText = SingleChars.of(cc);
+    advance(); // eat the first character
     if (cc == '=') {
-      Position end = new Position(line, col);
+      long end = here();
       advance(); // eat the =
-      return new Token(TokenType.MULT_EQ, start, end, "*=");
+      return new Token(withEq, start, end, withEqText);
+    } else if (cc == doubled) {
+      long end = here();
+      advance(); // eat the second character
+      return new Token(twice, start, end, twiceText);
     }
-    return new Token(TokenType.MULT, start, oc);
+    return new Token(single, start, start, singleText);
   }
 
-  private Token startsWithPlus(Position start) {
-    char oc = cc;
-    advance(); // eat the first +
-    if (cc == '+') {
-      Position end = new Position(line, col);
-      advance(); // eat the second +
-      return new Token(TokenType.INCREMENT, start, end, "++");
-    }
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.PLUS_EQ, start, end, "+=");
-    }
-    return new Token(TokenType.PLUS, start, oc);
-  }
-
-  private Token startsWithMinus(Position start) {
-    char oc = cc;
-    advance(); // eat the first -
-    if (cc == '-') {
-      Position end = new Position(line, col);
-      advance(); // eat the second -
-      return new Token(TokenType.DECREMENT, start, end, "--");
-    }
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.MINUS_EQ, start, end, "-=");
-    }
-
-    return new Token(TokenType.MINUS, start, oc);
-  }
-
-  private Token startsWithSlash(Position start) {
+  /** Skips a comment, from the "//" to the end of the line. */
+  private void skipComment() {
     advance(); // eat the first slash
-    if (cc == '/') {
-      // It's a comment! Advance until the next line or EOF.
-      advance(); // eat the second slash
-      while (cc != '\n' && cc != 0) {
-        advance(); // advance until newline or EOF.
-      }
-      if (cc != 0) {
-        advance(); // eat the newline
-      }
-      line++;
-      col = 0;
-      return nextToken(); // risky, but /shrug.
+    advance(); // eat the second slash
+    while (cc != '\n' && cc != 0) {
+      advance(); // advance until newline or EOF.
     }
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.DIV_EQ, start, end, "/=");
+    if (cc != 0) {
+      advance(); // eat the newline
     }
-    return new Token(TokenType.DIV, start, '/');
+    line++;
+    col = 0;
   }
 
-  private Token startsWithNot(Position start) {
-    char oc = cc;
-    advance(); // eat the !
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.NEQ, start, end, "!=");
+  private Token makeStringToken(long start, char openingChar) {
+    advance(); // eat the opening tick/quote
+    int begin = loc - 1;
+    // Fast path: no escapes, so the string is a slice of the text.
+    while (cc != openingChar && cc != '\\' && cc != 0) {
+      if (cc == '\n') {
+        line++;
+        col = 0;
+      }
+      advance();
     }
-    return new Token(TokenType.BIT_NOT, start, oc);
-  }
-
-  private Token startsWithGt(Position start) {
-    char oc = cc;
-    advance(); // eat the >
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.GEQ, start, end, ">=");
-    } else if (cc == '>') {
-      Position end = new Position(line, col);
-      advance(); // eat the >
-      return new Token(TokenType.SHIFT_RIGHT, start, end, ">>");
+    String value;
+    if (cc == openingChar) {
+      value = new String(text, begin, loc - 1 - begin);
+    } else {
+      value = makeEscapedString(start, openingChar, begin);
     }
-    return new Token(TokenType.GT, start, oc);
-  }
 
-  private Token startsWithLt(Position start) {
-    char oc = cc;
-    advance(); // eat the <
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the =
-      return new Token(TokenType.LEQ, start, end, "<=");
-    } else if (cc == '<') {
-      Position end = new Position(line, col);
-      advance(); // eat the <
-      return new Token(TokenType.SHIFT_LEFT, start, end, "<<");
+    if (cc == 0) {
+      throw new ScannerException("Unclosed string literal", unpack(start));
     }
-    return new Token(TokenType.LT, start, oc);
-  }
 
-  private Token startsWithEq(Position start) {
-    char oc = cc;
-    advance(); // eat the =
-    if (cc == '=') {
-      Position end = new Position(line, col);
-      advance(); // eat the second =
-      return new Token(TokenType.EQEQ, start, end, "==");
-    }
-    return new Token(TokenType.ASSIGN, start, oc);
+    advance(); // eat the closing tick/quote
+    return new ConstToken<String>(TokenType.STRING, value, value, start, here());
   }
 
-  private Token makeStringToken(Position start, char openingChar) {
-    advance(); // eat the opening tick/quote
+  /** Continues a string literal that has escapes, starting from the first backslash. */
+  private String makeEscapedString(long start, char openingChar, int begin) {
     StringBuilder sb = new StringBuilder();
+    sb.append(text, begin, loc - 1 - begin);
     boolean escape = false;
     // Take all characters until the closing tick/quote
     while ((cc != openingChar || escape) && cc != 0) {
@@ -392,22 +411,48 @@ public class Lexer {
           sb.append(cc);
         }
       } else {
-        Character escaped = BACKSLASH_ESCAPE_MAP.get(cc);
-        if (escaped == null) {
-          throw new ScannerException("Unknown backslash escape: \\" + cc, start);
+        char escaped = unescape(cc);
+        if (escaped == 0) {
+          throw new ScannerException("Unknown backslash escape: \\" + cc, unpack(start));
         }
         sb.append(escaped);
         escape = false;
       }
       advance();
     }
+    return sb.toString();
+  }
 
-    if (cc == 0) {
-      throw new ScannerException("Unclosed string literal", start);
+  /** Returns the character that the given one stands for after a backslash, or 0 if none. */
+  private static char unescape(char c) {
+    switch (c) {
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case '"':
+      case '\'':
+      case '\\':
+        return c;
+      default:
+        return 0;
     }
+  }
 
-    advance(); // eat the closing tick/quote
-    Position end = new Position(line, col);
-    return new ConstToken<String>(TokenType.STRING, sb.toString(), start, end);
+  /** Cached strings of single ASCII characters. */
+  private static class SingleChars {
+    private static final String[] STRINGS = new String[128];
+
+    static {
+      for (char c = 0; c < STRINGS.length; ++c) {
+        STRINGS[c] = String.valueOf(c);
+      }
+    }
+
+    static String of(char c) {
+      return c < STRINGS.length ? STRINGS[c] : String.valueOf(c);
+    }
   }
 }
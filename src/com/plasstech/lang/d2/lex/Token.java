@@ -6,8 +6,11 @@ import com.plasstech.lang.d2.common.TokenType;
 public class Token {
 
   private final TokenType type;
-  private final Position start;
-  private final Position end;
+  // Line and column, packed by the Lexer, until the Position is needed.
+  private final long packedStart;
+  private final long packedEnd;
+  private Position start;
+  private Position end;
   private final String value;
 
   // simple token, no extra text. Example: EOF
@@ -20,21 +23,44 @@ public class Token {
   }
 
   public Token(TokenType type, Position start, Position end, String value) {
-    this.type = type;
+    this(type, pack(start.line(), start.column()), pack(end.line(), end.column()), value);
     this.start = start;
     this.end = end;
+  }
+
+  Token(TokenType type, long packedStart, long packedEnd, String value) {
+    this.type = type;
+    this.packedStart = packedStart;
+    this.packedEnd = packedEnd;
     this.value = value;
   }
 
+  static long pack(int line, int column) {
+    return ((long) line << 32) | (column & 0xffffffffL);
+  }
+
+  private static Position unpack(long packed) {
+    return new Position((int) (packed >>> 32), (int) packed);
+  }
+
   public TokenType type() {
     return type;
   }
 
   public Position start() {
+    if (start == null) {
+      start = unpack(packedStart);
+      if (packedEnd == packedStart) {
+        end = start;
+      }
+    }
     return start;
   }
 
   public Position end() {
+    if (end == null) {
+      end = packedEnd == packedStart ? start() : unpack(packedEnd);
+    }
     return end;
   }
 
@@ -45,6 +71,6 @@ public class Token {
   @Override
   public String toString() {
     return String.format(
-        "%s (%s, [%s - %s])", value, type.name(), start.toString(), end.toString());
+        "%s (%s, [%s - %s])", value, type.name(), start().toString(), end().toString());
   }
 }
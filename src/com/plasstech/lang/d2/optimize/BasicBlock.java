@@ -0,0 +1,84 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.plasstech.lang.d2.codegen.il.Op;
+
+/**
+ * A run of ops that is only entered at its first op and only left after its last op. Part of a
+ * {@link ControlFlowGraph}.
+ */
+class BasicBlock {
+  private final ControlFlowGraph graph;
+  private final int id;
+  private final int start;
+  private final int end;
+  final List<BasicBlock> predecessors = new ArrayList<>();
+  final List<BasicBlock> successors = new ArrayList<>();
+
+  // Set by the graph when it finds the dominators.
+  BasicBlock immediateDominator;
+  final List<BasicBlock> dominated = new ArrayList<>();
+  int reversePostOrder = -1;
+  int preOrder = -1;
+  int postOrder = -1;
+
+  BasicBlock(ControlFlowGraph graph, int id, int start, int end) {
+    this.graph = graph;
+    this.id = id;
+    this.start = start;
+    this.end = end;
+  }
+
+  /** The index of this block in the graph. */
+  int id() {
+    return id;
+  }
+
+  /** The IP of the first op. */
+  int start() {
+    return start;
+  }
+
+  /** The IP after the last op. */
+  int end() {
+    return end;
+  }
+
+  List<Op> ops() {
+    return graph.code().subList(start, end);
+  }
+
+  Op lastOp() {
+    return graph.code().get(end - 1);
+  }
+
+  List<BasicBlock> predecessors() {
+    return Collections.unmodifiableList(predecessors);
+  }
+
+  List<BasicBlock> successors() {
+    return Collections.unmodifiableList(successors);
+  }
+
+  /** Returns the closest block that dominates this one, or null for the entry. */
+  BasicBlock immediateDominator() {
+    return immediateDominator;
+  }
+
+  /** Returns the children of this block in the dominator tree. */
+  List<BasicBlock> dominated() {
+    return Collections.unmodifiableList(dominated);
+  }
+
+  boolean isReachable() {
+    return reversePostOrder != -1;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("B%d (ip %d to %d)", id, start, end);
+  }
+}
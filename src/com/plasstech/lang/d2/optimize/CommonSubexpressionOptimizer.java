@@ -0,0 +1,737 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.LongTempLocation;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.VariableLocation;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.optimize.SsaForm.Value;
+import com.plasstech.lang.d2.type.SymbolTable;
+import com.plasstech.lang.d2.type.VarType;
+
+/**
+ * Common subexpression elimination using global value numbering. Using the {@link SsaForm} of the
+ * code, gives each value a number, so that values with the same number are always equal. A BinOp
+ * or UnaryOp that computes a number that an op before it (in a block that dominates it) already
+ * put in a variable becomes a transfer from that variable.
+ *
+ * <p>Reads of arrays and records depend on memory, which ArraySets, FieldSetOps and calls change,
+ * so they only match reads with no such op in between.
+ *
+ * <p>Temps are released when they are read, so a temp that is read again becomes a {@link
+ * LongTempLocation}, which is released by a {@link DeallocateTemp} after its last read. Each one
+ * holds a register until then, so only a few of them can be live at once.
+ */
+class CommonSubexpressionOptimizer extends GraphOptimizer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Each long temp holds a register until it is deallocated.
+  private static final int MAX_LIVE_LONG_TEMPS = 2;
+
+  private static final ImmutableSet<TokenType> COMMUTATIVE =
+      ImmutableSet.of(
+          TokenType.MULT,
+          TokenType.EQEQ,
+          TokenType.NEQ,
+          TokenType.BIT_AND,
+          TokenType.BIT_OR,
+          TokenType.BIT_XOR,
+          TokenType.AND,
+          TokenType.OR,
+          TokenType.XOR);
+
+  // Operators that cost no more than a copy, when they are not on strings, arrays or records.
+  private static final ImmutableSet<TokenType> CHEAP =
+      ImmutableSet.of(
+          TokenType.PLUS,
+          TokenType.MINUS,
+          TokenType.EQEQ,
+          TokenType.NEQ,
+          TokenType.LT,
+          TokenType.GT,
+          TokenType.LEQ,
+          TokenType.GEQ,
+          TokenType.SHIFT_LEFT,
+          TokenType.SHIFT_RIGHT,
+          TokenType.BIT_AND,
+          TokenType.BIT_OR,
+          TokenType.BIT_XOR,
+          TokenType.BIT_NOT,
+          TokenType.NOT,
+          TokenType.AND,
+          TokenType.OR,
+          TokenType.XOR);
+
+  private final Level loggingLevel;
+
+  private ControlFlowGraph graph;
+  private ImmutableList<Op> code;
+  private SsaForm ssa;
+  // The value number of each SSA value, by id, or 0 if it does not have one yet.
+  private int[] numbers;
+  private int lastNumber;
+  // Value numbers of constants and of expressions.
+  private final Map<Object, Integer> numbersByKey = new HashMap<>();
+  // The IPs of the ops that put each value number in a variable that keeps it.
+  private final Map<Integer, List<Integer>> holders = new HashMap<>();
+  private final Multiset<Location> definitions = HashMultiset.create();
+  private boolean hasCalls;
+  private boolean hasLongTemps;
+
+  CommonSubexpressionOptimizer(int debugLevel) {
+    this.loggingLevel = toLoggingLevel(debugLevel);
+  }
+
+  @Override
+  ImmutableList<Op> optimize(ControlFlowGraph graph, SymbolTable symtab) {
+    setChanged(false);
+    this.graph = graph;
+    this.code = graph.code();
+    if (graph.blocks().isEmpty()) {
+      return code;
+    }
+    ssa = SsaForm.build(graph);
+    numbers = new int[ssa.values().size()];
+    lastNumber = 0;
+    numbersByKey.clear();
+    holders.clear();
+    definitions.clear();
+    hasCalls = false;
+    hasLongTemps = false;
+    for (Value value : ssa.values()) {
+      if (!value.isPhi() && !value.isUnknown()) {
+        definitions.add(value.variable());
+        hasLongTemps |= value.variable() instanceof LongTempLocation;
+      }
+    }
+    for (Op op : code) {
+      hasCalls |= op instanceof Call;
+    }
+
+    // From the IP of each op that computes a value again, to the IP of the op that computed it.
+    Map<Integer, Integer> copies = number();
+    if (copies.isEmpty() && !hasLongTemps) {
+      return code;
+    }
+    List<Op> result = new ArrayList<>(code);
+    replace(result, copies);
+    return placeDeallocations(result);
+  }
+
+  /** Numbers the values, and finds the ops that compute a value that is already known. */
+  private Map<Integer, Integer> number() {
+    Map<Integer, Integer> copies = new TreeMap<>();
+    boolean writesMemory = false;
+    for (Op op : code) {
+      writesMemory |= writesMemory(op);
+    }
+    int[] memoryAtEnd = new int[graph.blocks().size()];
+    boolean[] visited = new boolean[graph.blocks().size()];
+    for (BasicBlock block : graph.reversePostOrder()) {
+      // The memory can only be the same as at the end of the one block that leads here.
+      int memory = 0;
+      if (writesMemory) {
+        List<BasicBlock> predecessors = block.predecessors();
+        if (predecessors.size() == 1 && visited[predecessors.get(0).id()]) {
+          memory = memoryAtEnd[predecessors.get(0).id()];
+        } else {
+          memory = ++lastNumber;
+        }
+      }
+      for (Value phi : ssa.phis(block)) {
+        numbers[phi.id()] = ++lastNumber;
+      }
+      for (int ip = block.start(); ip < block.end(); ++ip) {
+        Op op = code.get(ip);
+        Value definition = ssa.definitionAt(ip);
+        if (definition != null) {
+          int number;
+          Object key = key(ip, op, memory);
+          if (key != null) {
+            Integer known = numbersByKey.get(key);
+            if (known != null) {
+              number = known;
+              Integer holder = holder(number, block, ip);
+              if (holder != null) {
+                copies.put(ip, holder);
+              }
+            } else {
+              number = ++lastNumber;
+              numbersByKey.put(key, number);
+            }
+          } else if (op instanceof Transfer) {
+            number = numberOf(ip, ((Transfer) op).source());
+          } else {
+            number = ++lastNumber;
+          }
+          numbers[definition.id()] = number;
+          if (!copies.containsKey(ip) && keepsValue(definition.variable())) {
+            holders.computeIfAbsent(number, n -> new ArrayList<>()).add(ip);
+          }
+        }
+        if (writesMemory(op)) {
+          memory = ++lastNumber;
+        }
+      }
+      memoryAtEnd[block.id()] = memory;
+      visited[block.id()] = true;
+    }
+    return copies;
+  }
+
+  /** Returns what identifies the value computed by the op, or null if it is not an expression. */
+  private Object key(int ip, Op op, int memory) {
+    if (op instanceof BinOp) {
+      BinOp binOp = (BinOp) op;
+      int left = numberOf(ip, binOp.left());
+      int right = numberOf(ip, binOp.right());
+      if (isCommutative(binOp) && left > right) {
+        int swap = left;
+        left = right;
+        right = swap;
+      }
+      int readsMemory = readsMemory(binOp.left()) || readsMemory(binOp.right()) ? memory : -1;
+      return Arrays.asList(
+          binOp.operator(), binOp.destination().type(), left, right, readsMemory);
+    }
+    if (op instanceof UnaryOp) {
+      UnaryOp unaryOp = (UnaryOp) op;
+      int operand = numberOf(ip, unaryOp.operand());
+      int readsMemory = readsMemory(unaryOp.operand()) ? memory : -1;
+      return Arrays.asList(
+          unaryOp.operator(), unaryOp.destination().type(), operand, readsMemory);
+    }
+    return null;
+  }
+
+  private static boolean isCommutative(BinOp op) {
+    if (op.operator() == TokenType.PLUS) {
+      // Adding strings appends them.
+      return op.left().type() != VarType.STRING;
+    }
+    return COMMUTATIVE.contains(op.operator());
+  }
+
+  /** Arrays and records can be changed without setting the variable that refers to them. */
+  private static boolean readsMemory(Operand operand) {
+    return operand.type().isArray() || operand.type().isRecord();
+  }
+
+  private static boolean writesMemory(Op op) {
+    return op instanceof ArraySet || op instanceof FieldSetOp || op instanceof Call;
+  }
+
+  private int numberOf(int ip, Operand operand) {
+    if (operand instanceof ConstantOperand) {
+      return numbersByKey.computeIfAbsent(operand, c -> ++lastNumber);
+    }
+    Value value = ssa.readAt(ip, (Location) operand);
+    if (value == null) {
+      return ++lastNumber;
+    }
+    if (numbers[value.id()] == 0) {
+      numbers[value.id()] = ++lastNumber;
+    }
+    return numbers[value.id()];
+  }
+
+  /**
+   * Returns true if a variable set by only one op keeps the value until it is read. Temps are not
+   * changed by calls, but everything else may be.
+   */
+  private boolean keepsValue(Location variable) {
+    if (definitions.count(variable) != 1) {
+      return false;
+    }
+    if (variable instanceof TempLocation) {
+      return true;
+    }
+    switch (variable.storage()) {
+      case GLOBAL:
+      case LOCAL:
+      case PARAM:
+        return !hasCalls;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the IP of the op that put the value number in a variable that can be read at the given
+   * IP, or null if there is none. Variables are better than long temps, which are better than
+   * temps, because they do not need another register.
+   */
+  private Integer holder(int number, BasicBlock block, int ip) {
+    Integer best = null;
+    int bestRank = Integer.MAX_VALUE;
+    for (int holder : holders.getOrDefault(number, ImmutableList.of())) {
+      BasicBlock holderBlock = graph.blockAt(holder);
+      boolean dominates =
+          holderBlock == block ? holder < ip : graph.dominates(holderBlock, block);
+      if (!dominates) {
+        continue;
+      }
+      Location variable = ssa.definitionAt(holder).variable();
+      int rank = 0;
+      if (variable instanceof LongTempLocation) {
+        rank = 1;
+      } else if (variable instanceof TempLocation) {
+        rank = 2;
+      }
+      if (rank < bestRank) {
+        best = holder;
+        bestRank = rank;
+      }
+    }
+    return best;
+  }
+
+  /** Replaces the ops that compute known values with transfers. */
+  private void replace(List<Op> result, Map<Integer, Integer> copies) {
+    Map<Integer, List<Integer>> byHolder = new TreeMap<>();
+    for (Map.Entry<Integer, Integer> entry : copies.entrySet()) {
+      byHolder.computeIfAbsent(entry.getValue(), h -> new ArrayList<>()).add(entry.getKey());
+    }
+    List<int[]> liveRanges = longTempRanges();
+    List<Location> unread = new ArrayList<>();
+    // The holders that are kept, and the ops that are replaced.
+    Set<Integer> touched = new HashSet<>();
+    for (Map.Entry<Integer, List<Integer>> entry : byHolder.entrySet()) {
+      int holderIp = entry.getKey();
+      Location holder = ssa.definitionAt(holderIp).variable();
+      List<Integer> copyIps = profitable(holder, entry.getValue(), copies, touched);
+      if (copyIps.isEmpty()) {
+        continue;
+      }
+      Location source = holder;
+      if (holder instanceof TempLocation) {
+        int[] range = range(holder, holderIp, copyIps, copies);
+        if (range == null || !fits(range, holder, liveRanges)) {
+          continue;
+        }
+        liveRanges.add(range);
+        touched.add(holderIp);
+        if (!(holder instanceof LongTempLocation)) {
+          source = new LongTempLocation(((VariableLocation) holder).symbol());
+          rename(result, holder, source, holderIp, range[1]);
+        }
+      }
+      for (int ip : copyIps) {
+        touched.add(ip);
+        Op op = result.get(ip);
+        for (Location read : ssa.effectsAt(ip).reads()) {
+          if (read.isTemp()) {
+            unread.add(read);
+          }
+        }
+        Location destination = ssa.definitionAt(ip).variable();
+        int reader = forwardTo(ip, copies);
+        if (reader == -1) {
+          Op copy = new Transfer(destination, source, op.position());
+          logger.at(loggingLevel).log("REPLACING ip %d: %s with %s", ip, op, copy);
+          result.set(ip, copy);
+        } else {
+          // Reads the value where it is instead of copying it to a temp first.
+          logger.at(loggingLevel).log("Deleting ip %d: %s", ip, op);
+          result.set(ip, new Nop(op));
+          result.set(reader, replacer(destination, source).replace(result.get(reader)));
+        }
+        setChanged(true);
+      }
+    }
+    if (!unread.isEmpty()) {
+      deleteUnreadTemps(result, unread);
+    }
+  }
+
+  /**
+   * Returns the copies of the holder that are worth making. A copy saves the ops that only compute
+   * temps for it, which become unread, and if its value is read by only one other op, the copy
+   * itself, unless that op just copies it, which the temp propagation would have done anyway. A
+   * copy that saves nothing is only worth making if the op is more expensive than a copy;
+   * replacing a cheap op would also keep it from becoming an increment or decrement. If the holder
+   * is a temp, keeping it costs a deallocation, so the copies must save at least two ops.
+   */
+  private List<Integer> profitable(
+      Location holder, List<Integer> copyIps, Map<Integer, Integer> copies, Set<Integer> touched) {
+    List<Integer> profitable = new ArrayList<>();
+    int saved = 0;
+    for (int ip : copyIps) {
+      int reader = forwardTo(ip, copies);
+      int opSaved = feeders(ip, touched);
+      if (reader != -1 && !(code.get(reader) instanceof Transfer)) {
+        opSaved++;
+      }
+      if (opSaved > 0 || !isCheap(code.get(ip))) {
+        saved += opSaved;
+        profitable.add(ip);
+      }
+    }
+    boolean deallocates = holder instanceof TempLocation && !(holder instanceof LongTempLocation);
+    if (deallocates && saved < 2) {
+      logger.at(loggingLevel).log("Not reusing %s: it would not save any cycles", holder);
+      return ImmutableList.of();
+    }
+    return profitable;
+  }
+
+  /**
+   * Returns the number of ops that only compute temps for the op at the given IP, which are deleted
+   * if it becomes a copy.
+   */
+  private int feeders(int ip, Set<Integer> touched) {
+    int count = 0;
+    for (Value value : ssa.readsAt(ip)) {
+      if (value.isPhi()
+          || value.isUnknown()
+          || !value.variable().isTemp()
+          || value.readers().size() != 1
+          || touched.contains(value.ip())) {
+        continue;
+      }
+      Op setter = code.get(value.ip());
+      if (setter instanceof Transfer || setter instanceof BinOp || setter instanceof UnaryOp) {
+        count += 1 + feeders(value.ip(), touched);
+      }
+    }
+    return count;
+  }
+
+  /** Returns true if computing the op again costs no more than copying its value. */
+  private static boolean isCheap(Op op) {
+    if (op instanceof BinOp) {
+      BinOp binOp = (BinOp) op;
+      return CHEAP.contains(binOp.operator())
+          && isPlain(binOp.left())
+          && isPlain(binOp.right());
+    }
+    UnaryOp unaryOp = (UnaryOp) op;
+    return CHEAP.contains(unaryOp.operator()) && isPlain(unaryOp.operand());
+  }
+
+  private static boolean isPlain(Operand operand) {
+    return operand.type() != VarType.STRING && !readsMemory(operand);
+  }
+
+  /**
+   * Returns the IP of the op that reads the temp that the copy at the given IP would set, if that
+   * op can read the value of the copy instead. Otherwise, returns -1.
+   */
+  private int forwardTo(int ip, Map<Integer, Integer> copies) {
+    Value value = ssa.definitionAt(ip);
+    if (!value.variable().isTemp() || value.readers().size() != 1) {
+      return -1;
+    }
+    int reader = value.readers().get(0);
+    Op op = code.get(reader);
+    if (reader < ip || copies.containsKey(reader) || endsBlock(op)) {
+      return -1;
+    }
+    return reader;
+  }
+
+  private static boolean endsBlock(Op op) {
+    return op instanceof IfOp
+        || op instanceof Goto
+        || op instanceof Return
+        || op instanceof Stop
+        || op instanceof ProcExit;
+  }
+
+  /**
+   * Returns the first and last IP where the temp is set or read if it is also read by the given
+   * copies, or null if it cannot be kept in a register for that long.
+   */
+  private int[] range(
+      Location temp, int definition, List<Integer> copyIps, Map<Integer, Integer> copies) {
+    int last = definition;
+    for (int ip = 0; ip < code.size(); ++ip) {
+      if (ip != definition
+          && !(code.get(ip) instanceof DeallocateTemp)
+          && ssa.effectsAt(ip).reads().contains(temp)) {
+        if (ip < definition) {
+          return null;
+        }
+        last = Math.max(last, ip);
+      }
+    }
+    for (int ip : copyIps) {
+      last = Math.max(last, Math.max(ip, forwardTo(ip, copies)));
+    }
+    if (endsBlock(code.get(last))) {
+      // The deallocation has to go after the last read.
+      return null;
+    }
+    for (int ip = definition + 1; ip <= last; ++ip) {
+      Op op = code.get(ip);
+      if (op instanceof ProcEntry || op instanceof ProcExit) {
+        // Procedures release all registers at their end.
+        return null;
+      }
+    }
+    // Registers are assigned in code order, so the code in between must only be entered from
+    // the start.
+    int start = graph.blockAt(definition).start();
+    for (BasicBlock block : graph.blocks()) {
+      if (block.start() <= start || block.start() > last || !block.isReachable()) {
+        continue;
+      }
+      for (BasicBlock predecessor : block.predecessors()) {
+        if (predecessor.isReachable()
+            && (predecessor.start() < start || predecessor.start() > last)) {
+          return null;
+        }
+      }
+    }
+    return new int[] {definition, last};
+  }
+
+  /** Returns true if another long temp can be live over the range. */
+  private static boolean fits(int[] range, Location temp, List<int[]> liveRanges) {
+    int overlapping = 0;
+    for (int[] live : liveRanges) {
+      if (live[0] == range[0]) {
+        // It's the same temp.
+        continue;
+      }
+      if (live[0] <= range[1] && range[0] <= live[1]) {
+        overlapping++;
+      }
+    }
+    return overlapping < MAX_LIVE_LONG_TEMPS;
+  }
+
+  /** Returns the first and last IP of each long temp that is already in the code. */
+  private List<int[]> longTempRanges() {
+    List<int[]> ranges = new ArrayList<>();
+    if (!hasLongTemps) {
+      return ranges;
+    }
+    Map<Location, int[]> byTemp = new HashMap<>();
+    for (int ip = 0; ip < code.size(); ++ip) {
+      Op op = code.get(ip);
+      Location written = ssa.effectsAt(ip).write();
+      if (written instanceof LongTempLocation) {
+        int[] range = new int[] {ip, ip};
+        byTemp.put(written, range);
+        ranges.add(range);
+      } else if (op instanceof DeallocateTemp) {
+        int[] range = byTemp.get(((DeallocateTemp) op).temp());
+        if (range != null) {
+          range[1] = ip;
+        }
+      }
+    }
+    return ranges;
+  }
+
+  /** Replaces the temp with another one where it is set, and where it is read up to the last IP. */
+  private void rename(List<Op> result, Location temp, Location newTemp, int definition, int last) {
+    Op op = result.get(definition);
+    if (op instanceof BinOp) {
+      BinOp binOp = (BinOp) op;
+      op = new BinOp(newTemp, binOp.left(), binOp.operator(), binOp.right(), op.position());
+    } else if (op instanceof UnaryOp) {
+      UnaryOp unaryOp = (UnaryOp) op;
+      op = new UnaryOp(newTemp, unaryOp.operator(), unaryOp.operand(), op.position());
+    } else {
+      op = new Transfer(newTemp, ((Transfer) op).source(), op.position());
+    }
+    result.set(definition, op);
+    OperandReplacer replacer = replacer(temp, newTemp);
+    for (int ip = definition + 1; ip <= last; ++ip) {
+      result.set(ip, replacer.replace(result.get(ip)));
+    }
+  }
+
+  private static OperandReplacer replacer(Location variable, Location replacement) {
+    return new OperandReplacer() {
+      @Override
+      Operand replace(Operand operand) {
+        return operand.equals(variable) ? replacement : operand;
+      }
+    };
+  }
+
+  /**
+   * Deletes the ops that set temps that are not read anymore, and then the ones that set the temps
+   * that those ops read. Temps are released when they are read, so an unread temp would never be
+   * released.
+   */
+  private void deleteUnreadTemps(List<Op> result, List<Location> unread) {
+    Multiset<Location> reads = HashMultiset.create();
+    Map<Location, Integer> setters = new HashMap<>();
+    for (int ip = 0; ip < result.size(); ++ip) {
+      SsaForm.Effects effects = SsaForm.Effects.of(result.get(ip));
+      for (Location read : effects.reads()) {
+        if (read.isTemp()) {
+          reads.add(read);
+        }
+      }
+      if (effects.write() != null && effects.write().isTemp()) {
+        setters.put(effects.write(), ip);
+      }
+    }
+    while (!unread.isEmpty()) {
+      Location temp = unread.remove(unread.size() - 1);
+      Integer ip = setters.get(temp);
+      if (reads.contains(temp) || ip == null) {
+        continue;
+      }
+      Op op = result.get(ip);
+      if (!(op instanceof Transfer || op instanceof BinOp || op instanceof UnaryOp)) {
+        continue;
+      }
+      logger.at(loggingLevel).log("Deleting unread temp at ip %d: %s", ip, op);
+      result.set(ip, new Nop(op));
+      setters.remove(temp);
+      for (Location read : SsaForm.Effects.of(op).reads()) {
+        if (read.isTemp()) {
+          reads.remove(read);
+          unread.add(read);
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes sure that each long temp is deallocated right after its last read. Long temps that are
+   * not read anymore are deleted, and ones that are only read once in their block become temps.
+   */
+  private ImmutableList<Op> placeDeallocations(List<Op> result) {
+    Map<Location, Integer> setters = new LinkedHashMap<>();
+    Map<Location, Integer> lastReads = new HashMap<>();
+    Multiset<Location> reads = HashMultiset.create();
+    Map<Location, List<Integer>> deallocations = new HashMap<>();
+    for (int ip = 0; ip < result.size(); ++ip) {
+      Op op = result.get(ip);
+      if (op instanceof DeallocateTemp) {
+        Location temp = ((DeallocateTemp) op).temp();
+        if (temp instanceof LongTempLocation) {
+          deallocations.computeIfAbsent(temp, t -> new ArrayList<>()).add(ip);
+        }
+        continue;
+      }
+      SsaForm.Effects effects = SsaForm.Effects.of(op);
+      for (Location read : effects.reads()) {
+        if (read instanceof LongTempLocation) {
+          lastReads.put(read, ip);
+          reads.add(read);
+        }
+      }
+      if (effects.write() instanceof LongTempLocation) {
+        setters.put(effects.write(), ip);
+      }
+    }
+
+    // Where to add deallocations, after the ops at these IPs.
+    Map<Integer, List<Op>> additions = new TreeMap<>();
+    for (Map.Entry<Location, Integer> entry : setters.entrySet()) {
+      Location temp = entry.getKey();
+      int setter = entry.getValue();
+      Integer lastRead = lastReads.get(temp);
+      List<Integer> existing = deallocations.getOrDefault(temp, ImmutableList.of());
+      Op setterOp = result.get(setter);
+      boolean simple =
+          setterOp instanceof Transfer || setterOp instanceof BinOp || setterOp instanceof UnaryOp;
+      if (lastRead == null) {
+        if (simple) {
+          logger.at(loggingLevel).log("Deleting unread long temp %s", temp);
+          delete(result, setter);
+          for (int ip : existing) {
+            delete(result, ip);
+          }
+        }
+        continue;
+      }
+      if (simple
+          && reads.count(temp) == 1
+          && setter < lastRead
+          && graph.blockAt(setter) == graph.blockAt(lastRead)) {
+        logger.at(loggingLevel).log("Long temp %s is only read once", temp);
+        Location shortTemp = new TempLocation(((VariableLocation) temp).symbol());
+        rename(result, temp, shortTemp, setter, lastRead);
+        for (int ip : existing) {
+          delete(result, ip);
+        }
+        setChanged(true);
+        continue;
+      }
+      if (existing.size() == 1 && deallocatedAfter(result, lastRead, existing.get(0))) {
+        continue;
+      }
+      Op lastOp = result.get(lastRead);
+      for (int ip : existing) {
+        delete(result, ip);
+      }
+      additions
+          .computeIfAbsent(lastRead, ip -> new ArrayList<>())
+          .add(new DeallocateTemp(temp, lastOp.position()));
+      setChanged(true);
+    }
+    if (additions.isEmpty()) {
+      return ImmutableList.copyOf(result);
+    }
+    ImmutableList.Builder<Op> withAdditions = ImmutableList.builder();
+    for (int ip = 0; ip < result.size(); ++ip) {
+      withAdditions.add(result.get(ip));
+      withAdditions.addAll(additions.getOrDefault(ip, ImmutableList.of()));
+    }
+    return withAdditions.build();
+  }
+
+  /** Returns true if only nops and other deallocations are between the read and deallocation. */
+  private static boolean deallocatedAfter(List<Op> result, int read, int deallocation) {
+    if (deallocation < read) {
+      return false;
+    }
+    for (int ip = read + 1; ip < deallocation; ++ip) {
+      Op op = result.get(ip);
+      if (!(op instanceof Nop || op instanceof DeallocateTemp)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void delete(List<Op> result, int ip) {
+    Op op = result.get(ip);
+    if (!(op instanceof Nop)) {
+      result.set(ip, new Nop(op));
+      setChanged(true);
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.plasstech.lang.d2.codegen.il.Return;
 import com.plasstech.lang.d2.codegen.il.SysCall;
 import com.plasstech.lang.d2.codegen.il.Transfer;
 import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.type.SymbolStorage;
 
 /**
  * Optimizes
@@ -162,7 +163,8 @@ class ConstantPropagationOptimizer extends LineOptimizer {
     // variable = constant: true
     // variable = variable: true (???)
     // variable = temp: FALSE
-    return !replacement.isTemp();
+    // variable = long temp: FALSE (it must not be read after it's deallocated)
+    return !replacement.isTemp() && replacement.storage() != SymbolStorage.LONG_TEMP;
   }
 
   @Override
@@ -182,7 +184,8 @@ class ConstantPropagationOptimizer extends LineOptimizer {
     Operand operand = op.sizeLocation();
     Operand replacement = findReplacement(operand);
     if (replacement != null) {
-      replaceCurrent(new ArrayAlloc(op.destination(), op.arrayType(), replacement, null));
+      replaceCurrent(
+          new ArrayAlloc(op.destination(), op.arrayType(), replacement, op.position()));
     }
   }
 
@@ -0,0 +1,368 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+
+/**
+ * The basic blocks of a procedure, or of the code outside the procedures, with their edges,
+ * dominator tree and natural loops.
+ *
+ * <p>The first block is the entry. Returns, stops and procedure exits have no successors. Code
+ * that is only reached by calls, e.g., a nested procedure, is unreachable from the entry, and has
+ * no dominators.
+ *
+ * <p>{@link #update} reuses the graph when only ops that do not affect control flow were changed,
+ * which is what most optimizations do.
+ */
+class ControlFlowGraph {
+  private ImmutableList<Op> code;
+  private ImmutableList<BasicBlock> blocks;
+  private BasicBlock[] blockAt;
+  private ImmutableList<BasicBlock> reversePostOrder;
+  private ImmutableList<NaturalLoop> loops;
+
+  private ControlFlowGraph(ImmutableList<Op> code) {
+    rebuild(code);
+  }
+
+  static ControlFlowGraph build(ImmutableList<Op> code) {
+    return new ControlFlowGraph(code);
+  }
+
+  /**
+   * Updates the graph to the given code. Blocks are kept if every op that starts or ends a block
+   * is the same kind of op, with the same label, at the same IP; otherwise, the graph is rebuilt
+   * and its old blocks must not be used anymore.
+   *
+   * @return true if the blocks were kept
+   */
+  boolean update(ImmutableList<Op> newCode) {
+    if (sameShape(code, newCode)) {
+      code = newCode;
+      return true;
+    }
+    rebuild(newCode);
+    return false;
+  }
+
+  ImmutableList<Op> code() {
+    return code;
+  }
+
+  /** All the blocks, in code order. */
+  ImmutableList<BasicBlock> blocks() {
+    return blocks;
+  }
+
+  BasicBlock entry() {
+    return blocks.get(0);
+  }
+
+  /** Returns the block that contains the op at the given IP. */
+  BasicBlock blockAt(int ip) {
+    return blockAt[ip];
+  }
+
+  /** The reachable blocks, each before its successors except along back edges. */
+  ImmutableList<BasicBlock> reversePostOrder() {
+    return reversePostOrder;
+  }
+
+  /** Returns true if every path from the entry to {@code b} goes through {@code a}. */
+  boolean dominates(BasicBlock a, BasicBlock b) {
+    if (!a.isReachable() || !b.isReachable()) {
+      return false;
+    }
+    return a.preOrder <= b.preOrder && b.postOrder <= a.postOrder;
+  }
+
+  /** The natural loops, outer loops before the loops in them. */
+  ImmutableList<NaturalLoop> loops() {
+    return loops;
+  }
+
+  private void rebuild(ImmutableList<Op> newCode) {
+    this.code = newCode;
+    findBlocks();
+    linkBlocks();
+    findDominators();
+    findLoops();
+  }
+
+  private void findBlocks() {
+    ImmutableList.Builder<BasicBlock> builder = ImmutableList.builder();
+    blockAt = new BasicBlock[code.size()];
+    int start = 0;
+    int id = 0;
+    for (int ip = 0; ip < code.size(); ++ip) {
+      boolean endsHere = ip + 1 == code.size() || endsBlock(code.get(ip)) || startsBlock(ip + 1);
+      if (endsHere) {
+        BasicBlock block = new BasicBlock(this, id++, start, ip + 1);
+        builder.add(block);
+        for (int i = start; i <= ip; ++i) {
+          blockAt[i] = block;
+        }
+        start = ip + 1;
+      }
+    }
+    blocks = builder.build();
+  }
+
+  private boolean startsBlock(int ip) {
+    Op op = code.get(ip);
+    return op instanceof Label || op instanceof ProcEntry;
+  }
+
+  private static boolean endsBlock(Op op) {
+    return op instanceof Goto
+        || op instanceof IfOp
+        || op instanceof Return
+        || op instanceof Stop
+        || op instanceof ProcExit;
+  }
+
+  private void linkBlocks() {
+    Map<String, BasicBlock> labels = new HashMap<>();
+    for (BasicBlock block : blocks) {
+      Op first = code.get(block.start());
+      if (first instanceof Label) {
+        labels.put(((Label) first).label(), block);
+      }
+    }
+    for (BasicBlock block : blocks) {
+      Op last = block.lastOp();
+      if (last instanceof Goto) {
+        link(block, target(labels, ((Goto) last).label()));
+      } else if (last instanceof IfOp) {
+        link(block, target(labels, ((IfOp) last).destination()));
+        linkToNext(block);
+      } else if (!(last instanceof Return || last instanceof Stop || last instanceof ProcExit)) {
+        linkToNext(block);
+      }
+    }
+  }
+
+  private static BasicBlock target(Map<String, BasicBlock> labels, String label) {
+    BasicBlock target = labels.get(label);
+    if (target == null) {
+      throw new IllegalStateException("Cannot find label " + label);
+    }
+    return target;
+  }
+
+  private void linkToNext(BasicBlock block) {
+    if (block.end() < code.size()) {
+      link(block, blockAt[block.end()]);
+    }
+  }
+
+  private static void link(BasicBlock from, BasicBlock to) {
+    // An "if" can jump to the next block.
+    if (!from.successors.contains(to)) {
+      from.successors.add(to);
+      to.predecessors.add(from);
+    }
+  }
+
+  /**
+   * Finds the immediate dominators using "A Simple, Fast Dominance Algorithm" by Cooper, Harvey
+   * and Kennedy, then numbers the dominator tree so that dominance can be checked in constant
+   * time.
+   */
+  private void findDominators() {
+    if (blocks.isEmpty()) {
+      reversePostOrder = ImmutableList.of();
+      return;
+    }
+    List<BasicBlock> postOrder = postOrder(entry());
+    reversePostOrder = ImmutableList.copyOf(postOrder).reverse();
+    for (int i = 0; i < reversePostOrder.size(); ++i) {
+      reversePostOrder.get(i).reversePostOrder = i;
+    }
+
+    BasicBlock entry = entry();
+    entry.immediateDominator = entry;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock block : reversePostOrder.subList(1, reversePostOrder.size())) {
+        BasicBlock newDominator = null;
+        for (BasicBlock predecessor : block.predecessors) {
+          if (predecessor.immediateDominator == null) {
+            // Not processed yet, or unreachable.
+            continue;
+          }
+          newDominator =
+              newDominator == null ? predecessor : intersect(predecessor, newDominator);
+        }
+        if (block.immediateDominator != newDominator) {
+          block.immediateDominator = newDominator;
+          changed = true;
+        }
+      }
+    }
+    entry.immediateDominator = null;
+
+    for (BasicBlock block : reversePostOrder) {
+      if (block.immediateDominator != null) {
+        block.immediateDominator.dominated.add(block);
+      }
+    }
+    numberDominatorTree(entry);
+  }
+
+  private static BasicBlock intersect(BasicBlock first, BasicBlock second) {
+    while (first != second) {
+      while (first.reversePostOrder > second.reversePostOrder) {
+        first = first.immediateDominator;
+      }
+      while (second.reversePostOrder > first.reversePostOrder) {
+        second = second.immediateDominator;
+      }
+    }
+    return first;
+  }
+
+  /** Returns the blocks reachable from the given block, in post order. */
+  private static List<BasicBlock> postOrder(BasicBlock start) {
+    List<BasicBlock> result = new ArrayList<>();
+    Set<BasicBlock> visited = new HashSet<>();
+    // Iterative, because procedures can have thousands of blocks.
+    Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+    Deque<BasicBlock> path = new ArrayDeque<>();
+    visited.add(start);
+    stack.push(start.successors.iterator());
+    path.push(start);
+    while (!stack.isEmpty()) {
+      Iterator<BasicBlock> successors = stack.peek();
+      if (successors.hasNext()) {
+        BasicBlock next = successors.next();
+        if (visited.add(next)) {
+          stack.push(next.successors.iterator());
+          path.push(next);
+        }
+      } else {
+        stack.pop();
+        result.add(path.pop());
+      }
+    }
+    return result;
+  }
+
+  private static void numberDominatorTree(BasicBlock root) {
+    int counter = 0;
+    Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+    Deque<BasicBlock> path = new ArrayDeque<>();
+    root.preOrder = counter++;
+    stack.push(root.dominated.iterator());
+    path.push(root);
+    while (!stack.isEmpty()) {
+      Iterator<BasicBlock> children = stack.peek();
+      if (children.hasNext()) {
+        BasicBlock child = children.next();
+        child.preOrder = counter++;
+        stack.push(child.dominated.iterator());
+        path.push(child);
+      } else {
+        stack.pop();
+        path.pop().postOrder = counter++;
+      }
+    }
+  }
+
+  /** A back edge goes to a block that dominates its source. Loops with the same header merge. */
+  private void findLoops() {
+    Map<BasicBlock, Set<BasicBlock>> bodies = new LinkedHashMap<>();
+    Map<BasicBlock, List<BasicBlock>> latches = new HashMap<>();
+    for (BasicBlock header : reversePostOrder) {
+      for (BasicBlock latch : header.predecessors) {
+        if (!dominates(header, latch)) {
+          continue;
+        }
+        Set<BasicBlock> body =
+            bodies.computeIfAbsent(
+                header, h -> new TreeSet<>(Comparator.comparing(BasicBlock::id)));
+        latches.computeIfAbsent(header, h -> new ArrayList<>()).add(latch);
+        body.add(header);
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        if (body.add(latch)) {
+          worklist.push(latch);
+        }
+        while (!worklist.isEmpty()) {
+          for (BasicBlock predecessor : worklist.pop().predecessors) {
+            if (predecessor.isReachable() && body.add(predecessor)) {
+              worklist.push(predecessor);
+            }
+          }
+        }
+      }
+    }
+    ImmutableList.Builder<NaturalLoop> builder = ImmutableList.builder();
+    for (Map.Entry<BasicBlock, Set<BasicBlock>> entry : bodies.entrySet()) {
+      builder.add(
+          new NaturalLoop(
+              entry.getKey(),
+              ImmutableSet.copyOf(entry.getValue()),
+              ImmutableList.copyOf(latches.get(entry.getKey()))));
+    }
+    loops = builder.build();
+  }
+
+  /** Returns true if the ops that start or end blocks are the same in both versions. */
+  private static boolean sameShape(List<Op> before, List<Op> after) {
+    if (before.size() != after.size()) {
+      return false;
+    }
+    for (int ip = 0; ip < before.size(); ++ip) {
+      Op op = before.get(ip);
+      Op other = after.get(ip);
+      if (op == other) {
+        continue;
+      }
+      if (isControlFlow(op) || isControlFlow(other)) {
+        if (op.getClass() != other.getClass() || !target(op).equals(target(other))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean isControlFlow(Op op) {
+    return op instanceof Label || op instanceof ProcEntry || endsBlock(op);
+  }
+
+  private static String target(Op op) {
+    if (op instanceof Label) {
+      return ((Label) op).label();
+    }
+    if (op instanceof Goto) {
+      return ((Goto) op).label();
+    }
+    if (op instanceof IfOp) {
+      return ((IfOp) op).destination();
+    }
+    return "";
+  }
+}
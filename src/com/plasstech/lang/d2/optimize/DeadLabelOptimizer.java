@@ -20,6 +20,12 @@ class DeadLabelOptimizer extends LineOptimizer {
     super(debugLevel);
   }
 
+  @Override
+  public boolean needsWholeProgram() {
+    // Procedure labels are referenced by calls in other procedures.
+    return true;
+  }
+
   @Override
   protected void preProcess() {
     labels.clear();
@@ -21,6 +21,12 @@ public class DeadProcOptimizer extends LineOptimizer {
     super(debugLevel);
   }
 
+  @Override
+  public boolean needsWholeProgram() {
+    // Procedures are called from other procedures.
+    return true;
+  }
+
   @Override
   protected void preProcess() {
     calledProcs.clear();
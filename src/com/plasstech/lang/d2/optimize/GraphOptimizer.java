@@ -0,0 +1,21 @@
+package com.plasstech.lang.d2.optimize;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.type.SymbolTable;
+
+/**
+ * An optimizer that works on the control-flow graph of a procedure, or of the code outside the
+ * procedures. The {@link ILOptimizer} keeps one graph for each of them across passes, instead of
+ * building a new one for each optimizer.
+ */
+abstract class GraphOptimizer extends DefaultOptimizer {
+
+  @Override
+  public final ImmutableList<Op> optimize(ImmutableList<Op> program, SymbolTable symtab) {
+    return optimize(ControlFlowGraph.build(program), symtab);
+  }
+
+  /** Optimizes the code of the graph. The graph must not be changed. */
+  abstract ImmutableList<Op> optimize(ControlFlowGraph graph, SymbolTable symtab);
+}
@@ -0,0 +1,194 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+
+/**
+ * A program split into regions that can be optimized independently: each top-level procedure that
+ * is not in a loop, and the rest of the program. The rest of the program keeps the entry and exit
+ * of each split-out procedure where the procedure was, so optimizers still see the end of a scope
+ * there.
+ *
+ * <p>Procedures in loops stay where they are, because the loop invariant optimizer has to see
+ * what they set.
+ */
+class ILBuffer {
+
+  /** Code that is optimized on its own. */
+  static class Region {
+    private final ProcEntry entry;
+    private ImmutableList<Op> code;
+    private boolean dirty = true;
+    private int passes;
+    private ControlFlowGraph graph;
+
+    private Region(ProcEntry entry, ImmutableList<Op> code) {
+      this.entry = entry;
+      this.code = code;
+    }
+
+    ImmutableList<Op> code() {
+      return code;
+    }
+
+    void setCode(ImmutableList<Op> code) {
+      this.code = code;
+      if (graph != null) {
+        graph.update(code);
+      }
+    }
+
+    /** The control-flow graph of the code, built on first use and then kept up to date. */
+    ControlFlowGraph controlFlowGraph() {
+      if (graph == null) {
+        graph = ControlFlowGraph.build(code);
+      }
+      return graph;
+    }
+
+    boolean isDirty() {
+      return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+      this.dirty = dirty;
+    }
+
+    /** The number of times this region was optimized. */
+    int passes() {
+      return passes;
+    }
+
+    void addPass() {
+      passes++;
+    }
+
+    /** The name of the procedure, or null for the rest of the program. */
+    String name() {
+      return entry == null ? null : entry.name();
+    }
+  }
+
+  private final List<Region> regions;
+  private final Map<ProcEntry, Region> procedures;
+
+  private ILBuffer(List<Region> regions, Map<ProcEntry, Region> procedures) {
+    this.regions = regions;
+    this.procedures = procedures;
+  }
+
+  /** Splits the program into regions. All regions are dirty. */
+  static ILBuffer split(ImmutableList<Op> program) {
+    boolean[] inLoop = new boolean[program.size() + 1];
+    for (Block loop : new LoopFinder(program).findLoops()) {
+      for (int ip = loop.start(); ip < loop.end(); ++ip) {
+        inLoop[ip] = true;
+      }
+    }
+
+    ImmutableList.Builder<Op> rest = ImmutableList.builder();
+    List<Region> regions = new ArrayList<>();
+    Map<ProcEntry, Region> procedures = new IdentityHashMap<>();
+    regions.add(null);
+    for (int ip = 0; ip < program.size(); ++ip) {
+      Op op = program.get(ip);
+      rest.add(op);
+      if (op instanceof ProcEntry && !inLoop[ip]) {
+        int exit = findExit(program, ip);
+        if (exit != -1) {
+          ProcEntry entry = (ProcEntry) op;
+          Region region = new Region(entry, program.subList(ip, exit + 1));
+          regions.add(region);
+          procedures.put(entry, region);
+          rest.add(program.get(exit));
+          ip = exit;
+        }
+      }
+    }
+    regions.set(0, new Region(null, rest.build()));
+    return new ILBuffer(regions, procedures);
+  }
+
+  /** Returns the index of the exit of the procedure that starts at the given IP, or -1. */
+  private static int findExit(List<Op> program, int entryIp) {
+    int depth = 0;
+    for (int ip = entryIp; ip < program.size(); ++ip) {
+      Op op = program.get(ip);
+      if (op instanceof ProcEntry) {
+        depth++;
+      } else if (op instanceof ProcExit) {
+        depth--;
+        if (depth == 0) {
+          return ip;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Splits a new version of the program. Regions whose code is the same as in this buffer keep
+   * their pass counts and are not dirty.
+   */
+  ILBuffer resplit(ImmutableList<Op> program) {
+    ILBuffer next = split(program);
+    for (Region region : next.regions) {
+      Region old = region.entry == null ? regions.get(0) : procedures.get(region.entry);
+      if (old != null) {
+        region.passes = old.passes;
+        region.dirty = old.dirty || !sameOps(old.code, region.code);
+        region.graph = old.graph;
+        if (region.graph != null) {
+          region.graph.update(region.code);
+        }
+      }
+    }
+    return next;
+  }
+
+  private static boolean sameOps(List<Op> left, List<Op> right) {
+    if (left.size() != right.size()) {
+      return false;
+    }
+    for (int i = 0; i < left.size(); ++i) {
+      if (left.get(i) != right.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The rest of the program, then the procedures in program order. */
+  List<Region> regions() {
+    return regions;
+  }
+
+  /** Puts the procedures back in place. */
+  ImmutableList<Op> join() {
+    ImmutableList.Builder<Op> program = ImmutableList.builder();
+    ImmutableList<Op> rest = regions.get(0).code;
+    for (int ip = 0; ip < rest.size(); ++ip) {
+      Op op = rest.get(ip);
+      Region region = op instanceof ProcEntry ? procedures.get(op) : null;
+      if (region == null) {
+        program.add(op);
+        continue;
+      }
+      ImmutableList<Op> code = region.code;
+      if (ip + 1 == rest.size() || rest.get(ip + 1) != code.get(code.size() - 1)) {
+        throw new IllegalStateException("Body of procedure " + region.name() + " was moved");
+      }
+      program.addAll(code);
+      // Skip the exit.
+      ip++;
+    }
+    return program.build();
+  }
+}
@@ -1,46 +1,70 @@
 package com.plasstech.lang.d2.optimize;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.plasstech.lang.d2.codegen.il.Op;
 import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.optimize.ILBuffer.Region;
 import com.plasstech.lang.d2.phase.Phase;
 import com.plasstech.lang.d2.phase.State;
 import com.plasstech.lang.d2.type.SymbolTable;
 
+/**
+ * Runs the child optimizers until none of them changes the code. Each procedure, and the code
+ * outside the procedures, is optimized on its own, and only again if it was changed. Optimizers
+ * that need the whole program run after all the parts have stopped changing.
+ */
 public class ILOptimizer extends DefaultOptimizer implements Phase {
+  /** Default maximum number of passes over each procedure. */
+  public static final int DEFAULT_MAX_PASSES = 100;
+
   private int debugLevel;
   private final ImmutableList<Optimizer> children;
+  private int maxPasses = DEFAULT_MAX_PASSES;
+  private Duration timeBudget = Duration.ZERO;
+  private int iterations;
 
   public ILOptimizer() {
     this(0);
   }
 
   public ILOptimizer(int debugLevel) {
-    this(
-        ImmutableList.of(
-            new NormalizeNegativesOptimizer(debugLevel),
-            new AssociativeOptimizer(debugLevel),
-            new ConstantPropagationOptimizer(debugLevel),
-            new TempPropagationOptimizer(debugLevel),
-            new IncDecOptimizer(debugLevel),
-            new ArithmeticOptimizer(debugLevel),
-            new AdjacentIncDecOptimizer(debugLevel),
-            new AdjacentArithmeticOptimizer(debugLevel),
-            new AdjacentLabelOptimizer(debugLevel),
-            new PrintOptimizer(debugLevel),
-            new DeadProcOptimizer(debugLevel),
-            new DeadCodeOptimizer(debugLevel),
-            new DeadLabelOptimizer(debugLevel),
-            new DeadAssignmentOptimizer(debugLevel),
-            // This doesn't play well with temps that are reused
-            // new InlineOptimizer(debugLevel),
-            // This doesn't work with field set or array set
-            new LoopInvariantOptimizer(debugLevel),
-            new NopOptimizer()));
+    this(defaultChildren(debugLevel));
     setDebugLevel(debugLevel);
   }
 
+  /** The optimizers that the default constructor runs, in order. */
+  static ImmutableList<Optimizer> defaultChildren(int debugLevel) {
+    return ImmutableList.of(
+        new NormalizeNegativesOptimizer(debugLevel),
+        new AssociativeOptimizer(debugLevel),
+        new ConstantPropagationOptimizer(debugLevel),
+        new SparseConditionalConstantOptimizer(debugLevel),
+        new CommonSubexpressionOptimizer(debugLevel),
+        new TempPropagationOptimizer(debugLevel),
+        new IncDecOptimizer(debugLevel),
+        new ArithmeticOptimizer(debugLevel),
+        new AdjacentIncDecOptimizer(debugLevel),
+        new AdjacentArithmeticOptimizer(debugLevel),
+        new AdjacentLabelOptimizer(debugLevel),
+        new PrintOptimizer(debugLevel),
+        new DeadProcOptimizer(debugLevel),
+        new DeadCodeOptimizer(debugLevel),
+        new DeadLabelOptimizer(debugLevel),
+        new DeadAssignmentOptimizer(debugLevel),
+        new InlineOptimizer(debugLevel),
+        // This doesn't work with field set or array set
+        new LoopInvariantOptimizer(debugLevel),
+        new NopOptimizer());
+  }
+
   public ILOptimizer(ImmutableList<Optimizer> children) {
     this.children = children;
   }
@@ -54,6 +78,20 @@ public class ILOptimizer extends DefaultOptimizer implements Phase {
     return this;
   }
 
+  /**
+   * Limits the optimization. When the budget runs out, the code optimized so far is returned.
+   *
+   * @param maxPasses the maximum number of passes over each procedure, and over the whole program
+   * @param timeBudget the maximum time to spend; zero means no limit
+   */
+  public ILOptimizer setBudget(int maxPasses, Duration timeBudget) {
+    Preconditions.checkArgument(maxPasses > 0, "maxPasses must be positive");
+    Preconditions.checkArgument(!timeBudget.isNegative(), "timeBudget must not be negative");
+    this.maxPasses = maxPasses;
+    this.timeBudget = timeBudget;
+    return this;
+  }
+
   @Override
   public State execute(State input) {
     try {
@@ -67,21 +105,49 @@ public class ILOptimizer extends DefaultOptimizer implements Phase {
   @Override
   public ImmutableList<Op> optimize(ImmutableList<Op> input, SymbolTable symbolTable) {
     setChanged(false);
+    iterations = 0;
 
-    ImmutableList<Op> program = ImmutableList.copyOf(input);
-    int iterations = 0;
-
-    boolean changed = false;
     if (debugLevel > 0) {
       System.out.printf("\nPRE-OPTIMIZED:\n");
-      System.out.println(Joiner.on("\n").join(program));
+      System.out.println(Joiner.on("\n").join(input));
       System.out.println();
     }
 
-    do {
-      changed = false;
+    ImmutableList<Optimizer> local =
+        children.stream().filter(child -> !child.needsWholeProgram()).collect(toImmutableList());
+    ImmutableList<Optimizer> global =
+        children.stream().filter(Optimizer::needsWholeProgram).collect(toImmutableList());
+    long deadline =
+        timeBudget.isZero() ? Long.MAX_VALUE : System.nanoTime() + timeBudget.toNanos();
+
+    ILBuffer buffer = ILBuffer.split(input);
+    ImmutableList<Op> program;
+    int rounds = 0;
+    while (true) {
+      // Optimizes each dirty region until it stops changing.
+      Deque<Region> worklist = new ArrayDeque<>();
+      for (Region region : buffer.regions()) {
+        if (region.isDirty() && region.passes() < maxPasses) {
+          worklist.add(region);
+        }
+      }
+      while (!worklist.isEmpty() && System.nanoTime() < deadline) {
+        Region region = worklist.remove();
+        region.addPass();
+        if (optimizeRegion(region, local, symbolTable) && region.passes() < maxPasses) {
+          worklist.add(region);
+        } else {
+          region.setDirty(false);
+        }
+      }
 
-      for (Optimizer child : children) {
+      program = buffer.join();
+      rounds++;
+      if (!worklist.isEmpty() || global.isEmpty() || rounds > maxPasses) {
+        break;
+      }
+      boolean changed = false;
+      for (Optimizer child : global) {
         program = child.optimize(program, symbolTable);
         if (child.isChanged()) {
           iterations++;
@@ -93,7 +159,12 @@ public class ILOptimizer extends DefaultOptimizer implements Phase {
           setChanged(true);
         }
       }
-    } while (changed);
+      if (!changed) {
+        break;
+      }
+      // Only the regions that the global optimizers changed are optimized again.
+      buffer = buffer.resplit(program);
+    }
 
     if (debugLevel > 1) {
       System.err.printf("\nITERATIONS: %d\n", iterations);
@@ -106,4 +177,33 @@ public class ILOptimizer extends DefaultOptimizer implements Phase {
     }
     return program;
   }
+
+  /** Runs each optimizer over the region once. Returns true if any of them changed it. */
+  private boolean optimizeRegion(
+      Region region, ImmutableList<Optimizer> optimizers, SymbolTable symbolTable) {
+    boolean changed = false;
+    ImmutableList<Op> code = region.code();
+    for (Optimizer child : optimizers) {
+      if (child instanceof GraphOptimizer) {
+        region.setCode(code);
+        code = ((GraphOptimizer) child).optimize(region.controlFlowGraph(), symbolTable);
+      } else {
+        code = child.optimize(code, symbolTable);
+      }
+      if (child.isChanged()) {
+        iterations++;
+        if (debugLevel == 2) {
+          System.out.printf(
+              "\n%s OPTIMIZED %s:\n",
+              child.getClass().getSimpleName(),
+              region.name() == null ? "GLOBAL CODE" : region.name());
+          System.out.println(Joiner.on("\n").join(code));
+        }
+        changed = true;
+        setChanged(true);
+      }
+    }
+    region.setCode(code);
+    return changed;
+  }
 }
@@ -1,152 +1,245 @@
-package com.plasstech.lang.d2.optimize;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.logging.Level;
-
-import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
-import com.google.common.flogger.FluentLogger;
-import com.plasstech.lang.d2.codegen.Operand;
-import com.plasstech.lang.d2.codegen.il.Call;
-import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
-import com.plasstech.lang.d2.codegen.il.Goto;
-import com.plasstech.lang.d2.codegen.il.IfOp;
-import com.plasstech.lang.d2.codegen.il.Label;
-import com.plasstech.lang.d2.codegen.il.Nop;
-import com.plasstech.lang.d2.codegen.il.Op;
-import com.plasstech.lang.d2.codegen.il.ProcEntry;
-import com.plasstech.lang.d2.codegen.il.ProcExit;
-import com.plasstech.lang.d2.codegen.il.Return;
-import com.plasstech.lang.d2.codegen.il.Transfer;
-import com.plasstech.lang.d2.type.SymbolTable;
-
-class InlineOptimizer extends DefaultOpcodeVisitor implements Optimizer {
-  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
-
-  private final Level loggingLevel;
-  private boolean changed;
-  private List<Op> code;
-  // Maps from proc name to its code.
-  private Map<String, List<Op>> inlineableCode = new HashMap<>();
-  private Map<String, ProcEntry> procsByName = new HashMap<>();
-
-  private int ip;
-  private SymbolTable symbolTable;
-
-  InlineOptimizer(int debugLevel) {
-    loggingLevel = toLoggingLevel(debugLevel);
-  }
-
-  @Override
-  public ImmutableList<Op> optimize(ImmutableList<Op> input, SymbolTable symbolTable) {
-    this.symbolTable = symbolTable;
-    code = new ArrayList<>(input);
-    for (ip = 0; ip < input.size(); ++ip) {
-      changed = false;
-      input.get(ip).accept(this);
-      if (changed) {
-        // We changed. Things can get out of sync, so stop.
-        break;
-      }
-    }
-    // TODO: NOP out the whole proc
-
-    return ImmutableList.copyOf(code);
-  }
-
-  @Override
-  public boolean isChanged() {
-    return changed;
-  }
-
-  @Override
-  public void visit(ProcEntry op) {
-    if (op.formalNames().size() < 3) {
-      // Find the length of the procedure.
-      ArrayList<Op> opcodes = new ArrayList<>();
-      boolean foundEnd = false;
-      int returnCount = 0;
-      for (int otherIp = ip + 1; otherIp < code.size() && !foundEnd; otherIp++) {
-        Op otherOp = code.get(otherIp);
-        if (otherOp instanceof Nop) {
-          continue;
-        }
-        if (otherOp instanceof ProcExit) {
-          foundEnd = true;
-          break;
-        }
-        if (otherOp instanceof Call
-            || otherOp instanceof IfOp
-            || otherOp instanceof Goto
-            || otherOp instanceof Label) {
-          logger.at(loggingLevel).log(
-              "NOT inlining '%s' because it has '%s'",
-              op.name(), otherOp.getClass().getSimpleName());
-          return;
-        }
-        if (otherOp instanceof Return) {
-          returnCount++;
-        }
-        opcodes.add(otherOp);
-      }
-      // Only consider procedures with size < 10 and that don't allow certain opcodes, like calls,
-      // gotos/ifs that go outside the block or labels referenced outside the block.
-      boolean candidate = foundEnd && opcodes.size() < 10 && returnCount < 2;
-      logger.at(loggingLevel).log("'%s' is %sa candidate", op.name(), candidate ? "" : "not ");
-      if (candidate) {
-        inlineableCode.put(op.name(), opcodes);
-        procsByName.put(op.name(), op);
-      }
-    }
-  }
-
-  @Override
-  public void visit(Call op) {
-    List<Op> replacement = inlineableCode.get(op.procSym().name());
-
-    if (replacement != null) {
-      ProcEntry entry = procsByName.get(op.procSym().name());
-      InlineRemapper inlineRemapper = new InlineRemapper(replacement, symbolTable);
-      List<Op> remapped = inlineRemapper.remap();
-      logger.at(loggingLevel).log(
-          "Can inline '%s' from:\n %s\n to:\n%s",
-          op.procSym(), Joiner.on('\n').join(replacement), Joiner.on('\n').join(remapped));
-
-      // Nop the call and mark the end. Since we're repeatedly adding at "ip", the opcodes
-      // get pushed up, so we start from the bottom up.
-      code.set(ip, new Nop(op));
-      code.add(ip, new Nop("(inline end)"));
-
-      Return returnOp = null;
-      if (Iterables.getLast(remapped) instanceof Return) {
-        // Always return it, but don't always *use* it.
-        returnOp = (Return) remapped.remove(remapped.size() - 1);
-      }
-      if (op.destination().isPresent() && returnOp != null) {
-        // if op is assigned to a return value, copy that
-        // from the "return" statement
-        code.add(
-            ip,
-            new Transfer(
-                op.destination().get(), returnOp.returnValueLocation().get(), op.position()));
-      }
-      // Insert the inlined code, then finally copy actuals to (remapped) formals.
-      code.addAll(ip, remapped);
-      for (int i = 0; i < op.actuals().size(); ++i) {
-        Operand actual = op.actuals().get(i);
-        code.add(
-            ip,
-            new Transfer(
-                inlineRemapper.remapFormal(entry.formalNames().get(i), actual.type()),
-                actual,
-                op.position()));
-      }
-      code.add(ip, new Nop("(inline start)"));
-      changed = true;
-    }
-  }
-}
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.type.ParamSymbol;
+import com.plasstech.lang.d2.type.SymbolTable;
+
+/**
+ * Replaces calls to small procedures with a copy of their body, renamed by an {@link
+ * InlineRemapper}. The actuals are copied to the (renamed) formals first, and each return copies
+ * its value to the destination of the call and jumps to the end of the copy.
+ *
+ * <p>Only procedures that don't call anything are inlined: their locals become globals, which must
+ * not be live across a call that may run another copy of them. This also means that recursive
+ * procedures are never inlined. A caller becomes a candidate once all of its calls have been
+ * inlined, so inlining works its way up the call graph one round at a time. Nested procedures can
+ * read the locals of their parent, so they are never inlined, and neither are their parents.
+ *
+ * <p>The cost of inlining a procedure is how much bigger the code gets. Each call site gets a copy
+ * of the body instead of a call, and the procedure itself is deleted once nothing calls it. The
+ * benefit is the call overhead saved each time a call runs, which is small next to a body with a
+ * loop, so such a body is only inlined if that doesn't grow the code.
+ */
+class InlineOptimizer extends DefaultOptimizer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Ops that a call costs besides the body: the call, the entry, the exit and the return.
+  private static final int CALL_OVERHEAD = 4;
+  // Procedures with more ops than this are never inlined.
+  private static final int MAX_SIZE = 40;
+  // How many ops the code may grow by when a procedure is inlined everywhere.
+  private static final int MAX_GROWTH = 32;
+
+  private final Level loggingLevel;
+
+  InlineOptimizer(int debugLevel) {
+    loggingLevel = toLoggingLevel(debugLevel);
+  }
+
+  @Override
+  public boolean needsWholeProgram() {
+    // Copies procedures into their callers.
+    return true;
+  }
+
+  /** A procedure that can be inlined. */
+  private static class Candidate {
+    private final ProcEntry entry;
+    private final List<Op> body = new ArrayList<>();
+    // Number of ops that generate code
+    private int size;
+    // The labels seen so far, to find jumps back to them.
+    private final Set<String> labels = new HashSet<>();
+    private boolean hasLoop;
+
+    Candidate(ProcEntry entry) {
+      this.entry = entry;
+    }
+  }
+
+  @Override
+  public ImmutableList<Op> optimize(ImmutableList<Op> input, SymbolTable symbolTable) {
+    setChanged(false);
+    Map<String, Candidate> candidates = findCandidates(input);
+    if (candidates.isEmpty()) {
+      return input;
+    }
+
+    Multiset<String> callSites = HashMultiset.create();
+    for (Op op : input) {
+      if (op instanceof Call) {
+        callSites.add(((Call) op).procSym().name());
+      }
+    }
+
+    List<Op> code = new ArrayList<>(input.size());
+    for (Op op : input) {
+      if (op instanceof Call) {
+        Call call = (Call) op;
+        String name = call.procSym().name();
+        Candidate candidate = candidates.get(name);
+        if (candidate != null && worthInlining(candidate, callSites.count(name))) {
+          List<Op> inlined = inline(call, candidate, symbolTable);
+          logger.at(loggingLevel).log(
+              "Inlining '%s' as:\n%s", name, Joiner.on('\n').join(inlined));
+          code.add(new Nop(call));
+          code.addAll(inlined);
+          setChanged(true);
+          continue;
+        }
+      }
+      code.add(op);
+    }
+    if (!isChanged()) {
+      return input;
+    }
+    return ImmutableList.copyOf(code);
+  }
+
+  /** Returns the procedures that can be inlined, by name. */
+  private Map<String, Candidate> findCandidates(ImmutableList<Op> code) {
+    Map<String, Candidate> candidates = new HashMap<>();
+    Set<String> rejected = new HashSet<>();
+    Candidate current = null;
+    int depth = 0;
+    for (Op op : code) {
+      if (op instanceof ProcEntry) {
+        ProcEntry entry = (ProcEntry) op;
+        depth++;
+        if (depth == 1) {
+          current = new Candidate(entry);
+        } else {
+          reject(rejected, entry.name(), "it is nested");
+          reject(rejected, current.entry.name(), "it has a nested procedure");
+        }
+        continue;
+      }
+      if (op instanceof ProcExit) {
+        depth--;
+        if (depth == 0) {
+          String name = current.entry.name();
+          if (candidates.put(name, current) != null) {
+            reject(rejected, name, "there is more than one procedure with that name");
+          }
+          current = null;
+        }
+        continue;
+      }
+      if (depth != 1 || op instanceof Nop) {
+        continue;
+      }
+      if (op instanceof Call) {
+        reject(rejected, current.entry.name(), "it calls " + ((Call) op).procSym().name());
+      }
+      current.body.add(op);
+      if (op instanceof Label) {
+        current.labels.add(((Label) op).label());
+      } else {
+        current.size++;
+      }
+      if (op instanceof Goto && current.labels.contains(((Goto) op).label())
+          || op instanceof IfOp && current.labels.contains(((IfOp) op).destination())) {
+        current.hasLoop = true;
+      }
+    }
+
+    for (Candidate candidate : candidates.values()) {
+      if (candidate.size > MAX_SIZE) {
+        reject(rejected, candidate.entry.name(), "it is too big");
+      }
+    }
+    candidates.keySet().removeAll(rejected);
+    return candidates;
+  }
+
+  private void reject(Set<String> rejected, String name, String reason) {
+    if (rejected.add(name)) {
+      logger.at(loggingLevel).log("NOT inlining '%s' because %s", name, reason);
+    }
+  }
+
+  /**
+   * Returns true if what inlining all the calls to the procedure saves is worth how much it grows
+   * the code.
+   */
+  private boolean worthInlining(Candidate candidate, int callSites) {
+    // Each call becomes a copy of the body, and the procedure itself goes away.
+    int growth = (callSites - 1) * candidate.size - CALL_OVERHEAD * callSites;
+    if (growth <= 0) {
+      return true;
+    }
+    if (candidate.hasLoop) {
+      // Each call saves the same few ops, but the body may run for many more.
+      logger.at(loggingLevel).log(
+          "NOT inlining '%s' because it has a loop and %d call sites",
+          candidate.entry.name(),
+          callSites);
+      return false;
+    }
+    return growth <= MAX_GROWTH;
+  }
+
+  /** Returns a copy of the body of the procedure that does what the call did. */
+  private List<Op> inline(Call call, Candidate candidate, SymbolTable symbolTable) {
+    String name = candidate.entry.name();
+    InlineRemapper remapper = new InlineRemapper(candidate.body, symbolTable);
+    List<Op> body = remapper.remap();
+    String end = remapper.remapLabel("__after_inline_" + name);
+
+    List<Op> code = new ArrayList<>();
+    ImmutableList<ParamSymbol> formals = candidate.entry.formals();
+    for (int i = 0; i < formals.size(); ++i) {
+      code.add(
+          new Transfer(
+              remapper.remapFormal(formals.get(i)), call.actuals().get(i), call.position()));
+    }
+    for (int i = 0; i < body.size(); ++i) {
+      Op op = body.get(i);
+      if (!(op instanceof Return)) {
+        code.add(op);
+        continue;
+      }
+      Return returnOp = (Return) op;
+      if (returnOp.returnValueLocation().isPresent()) {
+        Operand value = returnOp.returnValueLocation().get();
+        if (call.destination().isPresent()) {
+          code.add(new Transfer(call.destination().get(), value, call.position()));
+        } else if (value instanceof TempLocation) {
+          // Nothing reads the value, so its register has to be released here.
+          code.add(new DeallocateTemp((Location) value, call.position()));
+        }
+      }
+      if (i < body.size() - 1) {
+        code.add(new Goto(end));
+      }
+    }
+    code.add(new Label(end));
+    return code;
+  }
+}
@@ -1,15 +1,22 @@
 package com.plasstech.lang.d2.optimize;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.LongTempLocation;
+import com.plasstech.lang.d2.codegen.MemoryAddress;
 import com.plasstech.lang.d2.codegen.Operand;
 import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.VariableLocation;
 import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
 import com.plasstech.lang.d2.codegen.il.ArraySet;
 import com.plasstech.lang.d2.codegen.il.BinOp;
 import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
 import com.plasstech.lang.d2.codegen.il.Dec;
 import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
 import com.plasstech.lang.d2.codegen.il.FieldSetOp;
@@ -17,24 +24,32 @@ import com.plasstech.lang.d2.codegen.il.Goto;
 import com.plasstech.lang.d2.codegen.il.IfOp;
 import com.plasstech.lang.d2.codegen.il.Inc;
 import com.plasstech.lang.d2.codegen.il.Label;
-import com.plasstech.lang.d2.codegen.il.Nop;
 import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
 import com.plasstech.lang.d2.codegen.il.Return;
 import com.plasstech.lang.d2.codegen.il.SysCall;
 import com.plasstech.lang.d2.codegen.il.Transfer;
 import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.type.ParamSymbol;
 import com.plasstech.lang.d2.type.SymbolStorage;
 import com.plasstech.lang.d2.type.SymbolTable;
-import com.plasstech.lang.d2.type.VarType;
 import com.plasstech.lang.d2.type.VariableSymbol;
 
-/** For each opcode, remap temps with a new id. Remap any stack variables too. */
+/**
+ * Renames the temps and labels of a copy of a procedure body, so they don't collide with the ones
+ * of the caller or of other copies. The parameters and locals of the procedure become new globals,
+ * because the caller's stack frame has no room for them. Returns are remapped but kept; the caller
+ * of this class decides what they turn into.
+ */
 class InlineRemapper extends DefaultOpcodeVisitor {
   private static int global_counter = 0;
 
   private final List<Op> code;
   private final String suffix;
   private final SymbolTable symtab;
+  // Map from new name to location, so each variable is declared only once.
+  private final Map<String, Location> remapped = new HashMap<>();
 
   private int ip;
 
@@ -44,21 +59,48 @@ class InlineRemapper extends DefaultOpcodeVisitor {
     this.code = new ArrayList<>(code);
   }
 
-  Location remapFormal(String name, VarType type) {
-    String fullName = "__" + name + suffix;
-    if (symtab.get(fullName) == null) {
-      symtab.declare(fullName, type);
-    }
-    //    System.err.printf("Remapping formal to %s (type %s)\n", fullName, type);
-    // This is messed up because temps are read once, so dead code optimizer and constant
-    // propagation optimizer both create invalid code.
-    return newTempLocation(fullName, type);
+  Location remapFormal(ParamSymbol formal) {
+    return newGlobal(formal);
+  }
+
+  String remapLabel(String label) {
+    // Keeps the prefix, which tells the loop finder what kind of label it is.
+    return label + suffix;
   }
 
-  private Location newTempLocation(String fullName, VarType type) {
-    VariableSymbol symbol = new VariableSymbol(fullName, SymbolStorage.TEMP);
-    symbol.setVarType(type);
-    return new TempLocation(symbol);
+  private Location newGlobal(VariableSymbol original) {
+    return remapped.computeIfAbsent(
+        "__" + original.name() + suffix,
+        name -> {
+          VariableSymbol symbol;
+          if (symtab == null) {
+            symbol = new VariableSymbol(name, SymbolStorage.GLOBAL);
+            symbol.setVarType(original.varType());
+          } else if (symtab.get(name) == null) {
+            // Declared, so that the code generator reserves memory for it.
+            symbol = symtab.declare(name, original.varType());
+          } else {
+            symbol = (VariableSymbol) symtab.get(name);
+          }
+          if (symbol.recordSymbol() == null) {
+            symbol.setRecordSymbol(original.recordSymbol());
+          }
+          return new MemoryAddress(symbol);
+        });
+  }
+
+  private Location newTemp(VariableLocation temp) {
+    return remapped.computeIfAbsent(
+        temp.name() + suffix,
+        name -> {
+          VariableSymbol symbol = new VariableSymbol(name, temp.storage());
+          symbol.setVarType(temp.type());
+          symbol.setRecordSymbol(temp.symbol().recordSymbol());
+          if (temp instanceof LongTempLocation) {
+            return new LongTempLocation(symbol);
+          }
+          return new TempLocation(symbol);
+        });
   }
 
   List<Op> remap() {
@@ -127,7 +169,20 @@ class InlineRemapper extends DefaultOpcodeVisitor {
     if (source == op.source() && destination == op.array() && index == op.index()) {
       return;
     }
-    code.set(ip, new ArraySet(destination, op.arrayType(), index, source, false, op.position()));
+    code.set(
+        ip,
+        new ArraySet(
+            destination, op.arrayType(), index, source, op.isArrayLiteral(), op.position()));
+  }
+
+  @Override
+  public void visit(ArrayAlloc op) {
+    Operand size = remap(op.sizeLocation());
+    Location destination = (Location) remap(op.destination());
+    if (size == op.sizeLocation() && destination == op.destination()) {
+      return;
+    }
+    code.set(ip, new ArrayAlloc(destination, op.arrayType(), size, op.position()));
   }
 
   @Override
@@ -158,35 +213,49 @@ class InlineRemapper extends DefaultOpcodeVisitor {
     code.set(ip, new SysCall(op.call(), arg));
   }
 
+  @Override
+  public void visit(DeallocateTemp op) {
+    code.set(ip, new DeallocateTemp((Location) remap(op.temp()), op.position()));
+  }
+
   @Override
   public void visit(Goto op) {
-    // we don't know if this jumps outside this block so we can't just blindly remap it.
-    throw new IllegalStateException("Cannot handle gotos");
+    // The code is a whole procedure body, so it can only jump to its own labels.
+    code.set(ip, new Goto(remapLabel(op.label())));
   }
 
   @Override
   public void visit(IfOp op) {
-    // we don't know if this jumps outside this block so we can't just blindly remap it.
-    throw new IllegalStateException("Cannot handle ifs");
+    code.set(
+        ip,
+        new IfOp(
+            remap(op.condition()), remapLabel(op.destination()), op.isNot(), op.position()));
   }
 
   @Override
   public void visit(Label op) {
-    // we don't know if something outside this block jumps here so we can't just blindly remap it.
-    throw new IllegalStateException("Cannot handle labels");
+    code.set(ip, new Label(remapLabel(op.label())));
   }
 
   @Override
   public void visit(Call op) {
+    // The locals would be shared by all the copies that are running.
     throw new IllegalStateException("Cannot handle calls");
   }
 
+  @Override
+  public void visit(ProcEntry op) {
+    throw new IllegalStateException("Cannot handle nested procedures");
+  }
+
+  @Override
+  public void visit(ProcExit op) {
+    throw new IllegalStateException("Cannot handle nested procedures");
+  }
+
   @Override
   public void visit(Return op) {
-    if (!op.returnValueLocation().isPresent()) {
-      // no return value, at least at this location. nuke it.
-      code.set(ip, new Nop(op));
-    } else {
+    if (op.returnValueLocation().isPresent()) {
       code.set(ip, new Return(op.procName(), remap(op.returnValueLocation().get())));
     }
   }
@@ -198,15 +267,12 @@ class InlineRemapper extends DefaultOpcodeVisitor {
     Location location = (Location) operand;
     switch (location.storage()) {
       case TEMP:
+      case LONG_TEMP:
+        return newTemp((VariableLocation) location);
+
       case LOCAL:
       case PARAM:
-        String fullName = "__" + location.name() + suffix;
-        if (symtab.get(fullName) == null) {
-          symtab.declare(fullName, location.type());
-        }
-        // This is messed up because temps are read once, so dead code optimizer and constant
-        // propagation optimizer both create invalid code.
-        return newTempLocation(fullName, location.type());
+        return newGlobal(((VariableLocation) location).symbol());
 
       default:
         return operand;
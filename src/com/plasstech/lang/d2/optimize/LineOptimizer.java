@@ -79,10 +79,13 @@ abstract class LineOptimizer extends DefaultOptimizer implements OpcodeVisitor {
   /** Replace the op at the given ip with the given op. */
   protected final void replaceAt(int theIp, Op newOp) {
     setChanged(true);
-    logger
-        .at(loggingLevel)
-        .withInjectedLogSite(LogSites.callerOf(LineOptimizer.class))
-        .log("REPLACING ip %d: %s with %s", theIp, code.get(theIp), newOp);
+    // Finding the caller walks the stack, so only do it when logging.
+    if (logger.at(loggingLevel).isEnabled()) {
+      logger
+          .at(loggingLevel)
+          .withInjectedLogSite(LogSites.callerOf(LineOptimizer.class))
+          .log("REPLACING ip %d: %s with %s", theIp, code.get(theIp), newOp);
+    }
     code.set(theIp, newOp);
   }
 
@@ -0,0 +1,44 @@
+package com.plasstech.lang.d2.optimize;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A loop in a {@link ControlFlowGraph}: a header that dominates the rest of the loop, and the
+ * blocks that can reach a back edge to the header without going through it.
+ */
+class NaturalLoop {
+  private final BasicBlock header;
+  private final ImmutableSet<BasicBlock> blocks;
+  private final ImmutableList<BasicBlock> latches;
+
+  NaturalLoop(
+      BasicBlock header, ImmutableSet<BasicBlock> blocks, ImmutableList<BasicBlock> latches) {
+    this.header = header;
+    this.blocks = blocks;
+    this.latches = latches;
+  }
+
+  BasicBlock header() {
+    return header;
+  }
+
+  /** All the blocks of the loop, including the header, in code order. */
+  ImmutableSet<BasicBlock> blocks() {
+    return blocks;
+  }
+
+  /** The blocks that jump back to the header. */
+  ImmutableList<BasicBlock> latches() {
+    return latches;
+  }
+
+  boolean contains(BasicBlock block) {
+    return blocks.contains(block);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("loop at %s: %s", header, blocks);
+  }
+}
@@ -0,0 +1,143 @@
+package com.plasstech.lang.d2.optimize;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+
+/**
+ * Rebuilds ops with some of the operands that they read replaced. The variables that ops set are
+ * not replaced, and neither are the ones that are read and set by the same op, like the target of
+ * an Inc or the variable of an INPUT.
+ */
+abstract class OperandReplacer extends DefaultOpcodeVisitor {
+  private Op result;
+
+  /** Returns the op with its operands replaced, or the same op if none of them was replaced. */
+  Op replace(Op op) {
+    result = op;
+    op.accept(this);
+    return result;
+  }
+
+  /** Returns what the operand should be replaced with, or the operand itself. */
+  abstract Operand replace(Operand operand);
+
+  /** Replaces an operand that has to stay a location, like the array of an ArraySet. */
+  private Location replace(Location location) {
+    Operand replacement = replace((Operand) location);
+    if (replacement instanceof Location) {
+      return (Location) replacement;
+    }
+    return location;
+  }
+
+  @Override
+  public void visit(Transfer op) {
+    Operand source = replace(op.source());
+    if (source != op.source()) {
+      result = new Transfer(op.destination(), source, op.position());
+    }
+  }
+
+  @Override
+  public void visit(BinOp op) {
+    Operand left = replace(op.left());
+    Operand right = replace(op.right());
+    if (left != op.left() || right != op.right()) {
+      result = new BinOp(op.destination(), left, op.operator(), right, op.position());
+    }
+  }
+
+  @Override
+  public void visit(UnaryOp op) {
+    Operand operand = replace(op.operand());
+    if (operand != op.operand()) {
+      result = new UnaryOp(op.destination(), op.operator(), operand, op.position());
+    }
+  }
+
+  @Override
+  public void visit(IfOp op) {
+    Operand condition = replace(op.condition());
+    if (condition != op.condition()) {
+      result = new IfOp(condition, op.destination(), op.isNot(), op.position());
+    }
+  }
+
+  @Override
+  public void visit(SysCall op) {
+    if (op.call() == SysCall.Call.INPUT) {
+      return;
+    }
+    Operand arg = replace(op.arg());
+    if (arg != op.arg()) {
+      result = new SysCall(op.call(), arg);
+    }
+  }
+
+  @Override
+  public void visit(Call op) {
+    ImmutableList.Builder<Operand> actuals = ImmutableList.builder();
+    boolean replaced = false;
+    for (Operand actual : op.actuals()) {
+      Operand replacement = replace(actual);
+      replaced |= replacement != actual;
+      actuals.add(replacement);
+    }
+    if (replaced) {
+      result =
+          new Call(op.destination(), op.procSym(), actuals.build(), op.formals(), op.position());
+    }
+  }
+
+  @Override
+  public void visit(Return op) {
+    if (op.returnValueLocation().isPresent()) {
+      Operand value = op.returnValueLocation().get();
+      Operand replacement = replace(value);
+      if (replacement != value) {
+        result = new Return(op.procName(), replacement);
+      }
+    }
+  }
+
+  @Override
+  public void visit(ArrayAlloc op) {
+    Operand size = replace(op.sizeLocation());
+    if (size != op.sizeLocation()) {
+      result = new ArrayAlloc(op.destination(), op.arrayType(), size, op.position());
+    }
+  }
+
+  @Override
+  public void visit(ArraySet op) {
+    Location array = replace(op.array());
+    Operand index = replace(op.index());
+    Operand source = replace(op.source());
+    if (array != op.array() || index != op.index() || source != op.source()) {
+      result =
+          new ArraySet(array, op.arrayType(), index, source, op.isArrayLiteral(), op.position());
+    }
+  }
+
+  @Override
+  public void visit(FieldSetOp op) {
+    Location record = replace(op.recordLocation());
+    Operand source = replace(op.source());
+    if (record != op.recordLocation() || source != op.source()) {
+      result = new FieldSetOp(record, op.recordSymbol(), op.field(), source, op.position());
+    }
+  }
+}
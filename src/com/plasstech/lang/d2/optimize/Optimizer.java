@@ -11,6 +11,14 @@ public interface Optimizer {
 
   boolean isChanged();
 
+  /**
+   * Returns true if this optimizer must see the whole program. Otherwise, it is given one
+   * procedure, or the code outside the procedures, at a time.
+   */
+  default boolean needsWholeProgram() {
+    return false;
+  }
+
   default Level toLoggingLevel(int debugLevel) {
     switch (debugLevel) {
       case 1:
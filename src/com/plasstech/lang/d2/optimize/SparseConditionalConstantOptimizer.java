@@ -0,0 +1,446 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcExit;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.optimize.SsaForm.Effects;
+import com.plasstech.lang.d2.optimize.SsaForm.Value;
+import com.plasstech.lang.d2.type.SymbolTable;
+
+/**
+ * Sparse conditional constant propagation, from "Constant Propagation with Conditional Branches"
+ * by Wegman and Zadeck. Using the {@link SsaForm} of the code, finds the variables that have the
+ * same constant value on every path that can be taken, even across joins and loops, and the
+ * branches that cannot be taken.
+ *
+ * <p>Reads of those variables become the constants, ops that set them become transfers of the
+ * constants, and "if"s on constants become gotos or nops. The code that can no longer be reached
+ * is left to the {@link DeadCodeOptimizer}.
+ */
+class SparseConditionalConstantOptimizer extends GraphOptimizer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** A value in the lattice: not set yet, one constant, or not a constant. */
+  private static class Lattice {
+    private static final Lattice TOP = new Lattice(null);
+    private static final Lattice BOTTOM = new Lattice(null);
+
+    private final ConstantOperand<?> constant;
+
+    private Lattice(ConstantOperand<?> constant) {
+      this.constant = constant;
+    }
+
+    static Lattice of(ConstantOperand<?> constant) {
+      return new Lattice(constant);
+    }
+
+    boolean isConstant() {
+      return constant != null;
+    }
+
+    Lattice meet(Lattice that) {
+      if (this == TOP) {
+        return that;
+      }
+      if (that == TOP) {
+        return this;
+      }
+      if (isConstant() && that.isConstant() && constant.equals(that.constant)) {
+        return this;
+      }
+      return BOTTOM;
+    }
+
+    boolean sameAs(Lattice that) {
+      return this == that || (isConstant() && Objects.equals(constant, that.constant));
+    }
+  }
+
+  private final Level loggingLevel;
+  // Folds ops whose operands are constants the same way the rest of the optimizer does.
+  private final ArithmeticOptimizer folder = new ArithmeticOptimizer(0);
+  private final Deque<BasicBlock> blockWorklist = new ArrayDeque<>();
+  private final Deque<Value> valueWorklist = new ArrayDeque<>();
+
+  private ControlFlowGraph graph;
+  private ImmutableList<Op> code;
+  private SsaForm ssa;
+  private SymbolTable symtab;
+  private Lattice[] lattice;
+  private boolean[] executable;
+  private boolean[][] executableEdges;
+  // Ops that cannot be folded, e.g., because they divide by zero. They are left alone.
+  private boolean[] unsafe;
+
+  SparseConditionalConstantOptimizer(int debugLevel) {
+    this.loggingLevel = toLoggingLevel(debugLevel);
+  }
+
+  @Override
+  ImmutableList<Op> optimize(ControlFlowGraph graph, SymbolTable symtab) {
+    setChanged(false);
+    this.graph = graph;
+    this.code = graph.code();
+    this.symtab = symtab;
+    if (graph.blocks().isEmpty()) {
+      return code;
+    }
+    ssa = SsaForm.build(graph);
+    lattice = new Lattice[ssa.values().size()];
+    for (Value value : ssa.values()) {
+      boolean onEntry = value.isPhi() && value.block() == graph.entry();
+      lattice[value.id()] = value.isUnknown() || onEntry ? Lattice.BOTTOM : Lattice.TOP;
+    }
+    executable = new boolean[graph.blocks().size()];
+    executableEdges = new boolean[graph.blocks().size()][];
+    for (BasicBlock block : graph.blocks()) {
+      executableEdges[block.id()] = new boolean[block.predecessors().size()];
+    }
+    unsafe = new boolean[code.size()];
+
+    executable[graph.entry().id()] = true;
+    blockWorklist.add(graph.entry());
+    propagate();
+    return rewrite();
+  }
+
+  private void propagate() {
+    while (!blockWorklist.isEmpty() || !valueWorklist.isEmpty()) {
+      if (!blockWorklist.isEmpty()) {
+        visitBlock(blockWorklist.remove());
+        continue;
+      }
+      Value value = valueWorklist.remove();
+      for (Value phi : value.phiUsers()) {
+        if (executable[phi.block().id()]) {
+          evaluatePhi(phi);
+        }
+      }
+      for (int ip : value.readers()) {
+        if (executable[graph.blockAt(ip).id()]) {
+          evaluate(ip);
+        }
+      }
+    }
+  }
+
+  private void visitBlock(BasicBlock block) {
+    for (Value phi : ssa.phis(block)) {
+      evaluatePhi(phi);
+    }
+    for (int ip = block.start(); ip < block.end(); ++ip) {
+      evaluate(ip);
+    }
+    Op last = block.lastOp();
+    if (last instanceof Goto) {
+      markEdge(block, block.successors().get(0));
+    } else if (!(last instanceof IfOp
+        || last instanceof Return
+        || last instanceof Stop
+        || last instanceof ProcExit)) {
+      fallThrough(block);
+    }
+  }
+
+  private void markEdge(BasicBlock from, BasicBlock to) {
+    int index = to.predecessors().indexOf(from);
+    if (executableEdges[to.id()][index]) {
+      return;
+    }
+    executableEdges[to.id()][index] = true;
+    if (!executable[to.id()]) {
+      executable[to.id()] = true;
+      blockWorklist.add(to);
+    } else {
+      // Only the phis can see the new edge.
+      for (Value phi : ssa.phis(to)) {
+        evaluatePhi(phi);
+      }
+    }
+  }
+
+  private void fallThrough(BasicBlock block) {
+    if (block.end() < code.size()) {
+      markEdge(block, graph.blockAt(block.end()));
+    }
+  }
+
+  private void evaluatePhi(Value phi) {
+    if (phi.block() == graph.entry()) {
+      return;
+    }
+    Lattice result = Lattice.TOP;
+    List<Value> arguments = phi.arguments();
+    boolean[] edges = executableEdges[phi.block().id()];
+    for (int i = 0; i < arguments.size(); ++i) {
+      if (edges[i] && arguments.get(i) != null) {
+        result = result.meet(lattice[arguments.get(i).id()]);
+      }
+    }
+    lower(phi, result);
+  }
+
+  private void evaluate(int ip) {
+    Op op = code.get(ip);
+    if (op instanceof IfOp) {
+      evaluateBranch(ip, (IfOp) op);
+      return;
+    }
+    Value definition = ssa.definitionAt(ip);
+    if (definition != null) {
+      lower(definition, evaluate(ip, op));
+    }
+  }
+
+  private void evaluateBranch(int ip, IfOp op) {
+    Lattice condition = latticeOf(ip, op.condition());
+    if (condition == Lattice.TOP) {
+      return;
+    }
+    BasicBlock block = graph.blockAt(ip);
+    BasicBlock target = block.successors().get(0);
+    Boolean jumps = jumps(op, condition);
+    if (jumps == null) {
+      markEdge(block, target);
+      fallThrough(block);
+    } else if (jumps) {
+      markEdge(block, target);
+    } else {
+      fallThrough(block);
+    }
+  }
+
+  /** Returns whether the "if" jumps, or null if it is not known. */
+  private static Boolean jumps(IfOp op, Lattice condition) {
+    if (ConstantOperand.TRUE.equals(condition.constant)) {
+      return !op.isNot();
+    }
+    if (ConstantOperand.FALSE.equals(condition.constant)) {
+      return op.isNot();
+    }
+    return null;
+  }
+
+  private Lattice evaluate(int ip, Op op) {
+    if (op instanceof Transfer) {
+      return latticeOf(ip, ((Transfer) op).source());
+    }
+    if (op instanceof Inc) {
+      return increment(ip, ((Inc) op).target(), 1);
+    }
+    if (op instanceof Dec) {
+      return increment(ip, ((Dec) op).target(), -1);
+    }
+    if (op instanceof BinOp || op instanceof UnaryOp) {
+      return fold(ip, op);
+    }
+    // Calls, allocations and input.
+    return Lattice.BOTTOM;
+  }
+
+  private Lattice increment(int ip, Location target, int delta) {
+    Lattice old = latticeOf(ip, target);
+    if (!old.isConstant()) {
+      return old;
+    }
+    if (!target.type().isIntegral()) {
+      return Lattice.BOTTOM;
+    }
+    long value = ConstantOperand.valueFromConstOperand(old.constant).longValue() + delta;
+    return Lattice.of(ConstantOperand.fromValue(value, target.type()));
+  }
+
+  private Lattice fold(int ip, Op op) {
+    for (Value read : ssa.readsAt(ip)) {
+      if (lattice[read.id()] == Lattice.TOP) {
+        return Lattice.TOP;
+      }
+    }
+    if (unsafe[ip]) {
+      return Lattice.BOTTOM;
+    }
+    Op withConstants = new ConstantReplacer(ip, null).replace(op);
+    if (op instanceof BinOp && !hasConstant((BinOp) withConstants)) {
+      // Not worth folding, e.g., "x - x".
+      return Lattice.BOTTOM;
+    }
+    try {
+      Op folded = folder.optimize(ImmutableList.of(withConstants), symtab).get(0);
+      if (folded instanceof Transfer) {
+        Operand source = ((Transfer) folded).source();
+        if (source.isConstant()) {
+          return Lattice.of((ConstantOperand<?>) source);
+        }
+      }
+    } catch (RuntimeException e) {
+      // E.g., division by zero. That happens when the op runs, if it runs.
+      logger.at(loggingLevel).log("Cannot fold %s: %s", withConstants, e.getMessage());
+      unsafe[ip] = true;
+    }
+    return Lattice.BOTTOM;
+  }
+
+  private static boolean hasConstant(BinOp op) {
+    return op.left().isConstant() || op.right().isConstant();
+  }
+
+  private Lattice latticeOf(int ip, Operand operand) {
+    if (operand.isConstant()) {
+      return Lattice.of((ConstantOperand<?>) operand);
+    }
+    return lattice[ssa.readAt(ip, (Location) operand).id()];
+  }
+
+  private void lower(Value value, Lattice newValue) {
+    Lattice old = lattice[value.id()];
+    Lattice merged = old.meet(newValue);
+    if (!merged.sameAs(old)) {
+      lattice[value.id()] = merged;
+      valueWorklist.add(value);
+    }
+  }
+
+  private ImmutableList<Op> rewrite() {
+    List<Op> result = new ArrayList<>(code);
+    Set<Location> replacedTemps = new HashSet<>();
+    for (BasicBlock block : graph.blocks()) {
+      if (!executable[block.id()]) {
+        continue;
+      }
+      for (int ip = block.start(); ip < block.end(); ++ip) {
+        Op op = code.get(ip);
+        Op replacement = rewrite(ip, op, replacedTemps);
+        if (replacement != op) {
+          logger.at(loggingLevel).log("REPLACING ip %d: %s with %s", ip, op, replacement);
+          result.set(ip, replacement);
+          setChanged(true);
+        }
+      }
+    }
+    if (!replacedTemps.isEmpty()) {
+      deleteUnreadTemps(result, replacedTemps);
+    }
+    return ImmutableList.copyOf(result);
+  }
+
+  private Op rewrite(int ip, Op op, Set<Location> replacedTemps) {
+    Value definition = ssa.definitionAt(ip);
+    if (definition != null
+        && lattice[definition.id()].isConstant()
+        && (op instanceof Transfer
+            || op instanceof BinOp
+            || op instanceof UnaryOp
+            || op instanceof Inc
+            || op instanceof Dec)) {
+      ConstantOperand<?> constant = lattice[definition.id()].constant;
+      if (op instanceof Transfer && ((Transfer) op).source().equals(constant)) {
+        return op;
+      }
+      addTemps(ip, replacedTemps);
+      return new Transfer(definition.variable(), constant, op.position());
+    }
+    if (op instanceof IfOp) {
+      IfOp ifOp = (IfOp) op;
+      Boolean jumps = jumps(ifOp, latticeOf(ip, ifOp.condition()));
+      if (jumps == null) {
+        return op;
+      }
+      addTemps(ip, replacedTemps);
+      return jumps ? new Goto(ifOp.destination()) : new Nop(op);
+    }
+    if (unsafe[ip]) {
+      return op;
+    }
+    return new ConstantReplacer(ip, replacedTemps).replace(op);
+  }
+
+  private void addTemps(int ip, Set<Location> temps) {
+    for (Value read : ssa.readsAt(ip)) {
+      if (read.variable() instanceof TempLocation) {
+        temps.add(read.variable());
+      }
+    }
+  }
+
+  /**
+   * Deletes the transfers to temps that are not read anymore. Temps are released when they are
+   * read, so an unread temp would never be released.
+   */
+  private void deleteUnreadTemps(List<Op> result, Set<Location> replacedTemps) {
+    Set<Location> read = new HashSet<>();
+    for (Op op : result) {
+      read.addAll(Effects.of(op).reads());
+    }
+    for (BasicBlock block : graph.blocks()) {
+      if (!block.isReachable()) {
+        continue;
+      }
+      for (int ip = block.start(); ip < block.end(); ++ip) {
+        Op op = result.get(ip);
+        if (!(op instanceof Transfer)) {
+          continue;
+        }
+        Transfer transfer = (Transfer) op;
+        Location destination = transfer.destination();
+        if (replacedTemps.contains(destination)
+            && !read.contains(destination)
+            && !(transfer.source() instanceof TempLocation)) {
+          logger.at(loggingLevel).log("Deleting unread temp at ip %d: %s", ip, op);
+          result.set(ip, new Nop(op));
+          setChanged(true);
+        }
+      }
+    }
+  }
+
+  /** Replaces the reads of variables that are constants with the constants. */
+  private class ConstantReplacer extends OperandReplacer {
+    private final int ip;
+    private final Set<Location> replacedTemps;
+
+    ConstantReplacer(int ip, Set<Location> replacedTemps) {
+      this.ip = ip;
+      this.replacedTemps = replacedTemps;
+    }
+
+    @Override
+    Operand replace(Operand operand) {
+      if (!(operand instanceof Location)) {
+        return operand;
+      }
+      Lattice value = latticeOf(ip, operand);
+      if (!value.isConstant()) {
+        return operand;
+      }
+      if (replacedTemps != null && operand instanceof TempLocation) {
+        replacedTemps.add((Location) operand);
+      }
+      return value.constant;
+    }
+  }
+}
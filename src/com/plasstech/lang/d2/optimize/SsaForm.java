@@ -0,0 +1,539 @@
+package com.plasstech.lang.d2.optimize;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.Operand;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.AllocateOp;
+import com.plasstech.lang.d2.codegen.il.ArrayAlloc;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Dec;
+import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.FieldSetOp;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Return;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+
+/**
+ * Static single assignment form of the code of a {@link ControlFlowGraph}. The code itself is not
+ * renamed: instead, each read of a variable is linked to the one {@link Value} that reaches it,
+ * which is set by an op, by a phi at the start of a block, or is unknown. Because the code keeps
+ * its names, leaving SSA form only means dropping the phis, as long as the code is only changed
+ * by replacing reads with what their values are known to be.
+ *
+ * <p>Variables are unknown on entry, so the phis of the entry block leave out the value from
+ * outside. A call makes every variable except temps unknown, because the procedure may set
+ * globals, and nested procedures may set the locals of their parents. Each call gives a variable a
+ * different unknown value, so two reads that get the same value always read the same thing. Code
+ * that cannot be reached from the entry is not in SSA form.
+ */
+class SsaForm {
+  /** One definition of a variable. */
+  static class Value {
+    private final int id;
+    private final Location variable;
+    private final BasicBlock block;
+    private final int ip;
+    private final Value[] arguments;
+    private final List<Integer> readers = new ArrayList<>();
+    private final List<Value> phiUsers = new ArrayList<>();
+    // When this value was pushed during renaming.
+    private int stamp;
+
+    private Value(int id, Location variable, BasicBlock block, int ip, Value[] arguments) {
+      this.id = id;
+      this.variable = variable;
+      this.block = block;
+      this.ip = ip;
+      this.arguments = arguments;
+    }
+
+    /** The index of this value in {@link SsaForm#values}. */
+    int id() {
+      return id;
+    }
+
+    Location variable() {
+      return variable;
+    }
+
+    /** The block of the op or phi that sets this value, or null if it is unknown. */
+    BasicBlock block() {
+      return block;
+    }
+
+    /** The IP of the op that sets this value, or -1 for phis and unknown values. */
+    int ip() {
+      return ip;
+    }
+
+    boolean isPhi() {
+      return arguments != null;
+    }
+
+    boolean isUnknown() {
+      return block == null;
+    }
+
+    /**
+     * The values merged by a phi, one for each predecessor of its block. The value from an
+     * unreachable predecessor is null.
+     */
+    List<Value> arguments() {
+      return Collections.unmodifiableList(Arrays.asList(arguments));
+    }
+
+    /** The IPs of the ops that read this value. */
+    List<Integer> readers() {
+      return Collections.unmodifiableList(readers);
+    }
+
+    /** The phis that merge this value. */
+    List<Value> phiUsers() {
+      return Collections.unmodifiableList(phiUsers);
+    }
+
+    @Override
+    public String toString() {
+      if (isUnknown()) {
+        return variable.name() + "?";
+      }
+      return String.format("%s_%d", variable.name(), id);
+    }
+  }
+
+  private final ControlFlowGraph graph;
+  private final List<Value> values = new ArrayList<>();
+  private final Value[] definitions;
+  private final Effects[] effects;
+  private final List<List<Value>> reads;
+  private final List<List<Value>> phis;
+  // The unknown values of each variable, by the call that set them (0 for the entry).
+  private final Table<Location, Integer, Value> unknowns = HashBasedTable.create();
+
+  private SsaForm(ControlFlowGraph graph) {
+    this.graph = graph;
+    int size = graph.code().size();
+    this.definitions = new Value[size];
+    this.effects = new Effects[size];
+    this.reads = new ArrayList<>(Collections.nCopies(size, ImmutableList.of()));
+    this.phis = new ArrayList<>(Collections.nCopies(graph.blocks().size(), ImmutableList.of()));
+  }
+
+  static SsaForm build(ControlFlowGraph graph) {
+    SsaForm ssa = new SsaForm(graph);
+    ssa.placePhis();
+    ssa.rename();
+    return ssa;
+  }
+
+  ControlFlowGraph graph() {
+    return graph;
+  }
+
+  /** All the values, including the unknown ones. */
+  List<Value> values() {
+    return Collections.unmodifiableList(values);
+  }
+
+  /** Returns the value set by the op at the given IP, or null if it does not set a variable. */
+  Value definitionAt(int ip) {
+    return definitions[ip];
+  }
+
+  /** Returns the variables that the op at the given IP reads and writes. */
+  Effects effectsAt(int ip) {
+    Effects cached = effects[ip];
+    return cached != null ? cached : Effects.of(graph.code().get(ip));
+  }
+
+  /** Returns the values read by the op at the given IP. */
+  List<Value> readsAt(int ip) {
+    return reads.get(ip);
+  }
+
+  /**
+   * Returns the value of the variable that is read by the op at the given IP, or null if the op
+   * does not read it.
+   */
+  Value readAt(int ip, Location variable) {
+    for (Value value : reads.get(ip)) {
+      if (value.variable == variable || value.variable.equals(variable)) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the phis at the start of the block. Phis in the entry block also merge the unknown
+   * value that each variable has on entry.
+   */
+  List<Value> phis(BasicBlock block) {
+    return phis.get(block.id());
+  }
+
+  private Value unknown(Location variable, int call) {
+    Value value = unknowns.get(variable, call);
+    if (value == null) {
+      value = newValue(variable, null, -1, null);
+      unknowns.put(variable, call, value);
+    }
+    return value;
+  }
+
+  private Value newValue(Location variable, BasicBlock block, int ip, Value[] arguments) {
+    Value value = new Value(values.size(), variable, block, ip, arguments);
+    values.add(value);
+    return value;
+  }
+
+  private static boolean survivesCalls(Location variable) {
+    return variable instanceof TempLocation;
+  }
+
+  /**
+   * Places phis where the definitions of a variable meet, using the dominance frontiers. Only
+   * variables that are read in a different block than where they are set get phis.
+   */
+  private void placePhis() {
+    Map<Location, List<BasicBlock>> definers = new LinkedHashMap<>();
+    Set<Location> nonLocals = new LinkedHashSet<>();
+    List<BasicBlock> callers = new ArrayList<>();
+    for (BasicBlock block : graph.reversePostOrder()) {
+      Set<Location> defined = new HashSet<>();
+      boolean called = false;
+      for (int ip = block.start(); ip < block.end(); ++ip) {
+        Effects effects = Effects.of(graph.code().get(ip));
+        this.effects[ip] = effects;
+        for (Location read : effects.reads()) {
+          if (!defined.contains(read) && (survivesCalls(read) || !called)) {
+            nonLocals.add(read);
+          }
+        }
+        if (effects.clobbers() && !called) {
+          called = true;
+          callers.add(block);
+        }
+        if (effects.write() != null && defined.add(effects.write())) {
+          definers.computeIfAbsent(effects.write(), v -> new ArrayList<>()).add(block);
+        }
+      }
+    }
+
+    List<Set<BasicBlock>> frontiers = dominanceFrontiers();
+    int[] hasPhi = new int[graph.blocks().size()];
+    int[] queued = new int[graph.blocks().size()];
+    int stamp = 0;
+    for (Location variable : nonLocals) {
+      stamp++;
+      Deque<BasicBlock> worklist = new ArrayDeque<>();
+      for (BasicBlock block : definers.getOrDefault(variable, ImmutableList.of())) {
+        queued[block.id()] = stamp;
+        worklist.add(block);
+      }
+      if (!survivesCalls(variable)) {
+        for (BasicBlock block : callers) {
+          if (queued[block.id()] != stamp) {
+            queued[block.id()] = stamp;
+            worklist.add(block);
+          }
+        }
+      }
+      while (!worklist.isEmpty()) {
+        for (BasicBlock frontier : frontiers.get(worklist.remove().id())) {
+          if (hasPhi[frontier.id()] == stamp) {
+            continue;
+          }
+          hasPhi[frontier.id()] = stamp;
+          if (phis.get(frontier.id()).isEmpty()) {
+            phis.set(frontier.id(), new ArrayList<>());
+          }
+          Value[] arguments = new Value[frontier.predecessors().size()];
+          phis.get(frontier.id()).add(newValue(variable, frontier, -1, arguments));
+          if (queued[frontier.id()] != stamp) {
+            queued[frontier.id()] = stamp;
+            worklist.add(frontier);
+          }
+        }
+      }
+    }
+  }
+
+  /** Finds the dominance frontiers as in "A Simple, Fast Dominance Algorithm". */
+  private List<Set<BasicBlock>> dominanceFrontiers() {
+    List<Set<BasicBlock>> frontiers = new ArrayList<>();
+    for (int i = 0; i < graph.blocks().size(); ++i) {
+      frontiers.add(new LinkedHashSet<>());
+    }
+    for (BasicBlock block : graph.reversePostOrder()) {
+      // The entry is also reached from outside, so one jump back to it is already a join.
+      int joining = block.predecessors().size() + (block == graph.entry() ? 1 : 0);
+      if (joining < 2) {
+        continue;
+      }
+      for (BasicBlock predecessor : block.predecessors()) {
+        BasicBlock runner = predecessor;
+        while (runner != null && runner.isReachable() && runner != block.immediateDominator()) {
+          frontiers.get(runner.id()).add(block);
+          runner = runner.immediateDominator();
+        }
+      }
+    }
+    return frontiers;
+  }
+
+  /** Links each read to its value, walking the dominator tree. */
+  private void rename() {
+    if (graph.blocks().isEmpty()) {
+      return;
+    }
+    Map<Location, Deque<Value>> stacks = new HashMap<>();
+    int[] clobberedAtEnd = new int[graph.blocks().size()];
+    List<List<Location>> pushed = new ArrayList<>();
+    for (int i = 0; i < graph.blocks().size(); ++i) {
+      pushed.add(new ArrayList<>());
+    }
+    Renamer renamer = new Renamer(stacks, clobberedAtEnd, pushed);
+
+    // Iterative, because the dominator tree can be thousands of blocks deep.
+    Deque<Iterator<BasicBlock>> stack = new ArrayDeque<>();
+    Deque<BasicBlock> path = new ArrayDeque<>();
+    BasicBlock entry = graph.entry();
+    renamer.enter(entry);
+    stack.push(entry.dominated().iterator());
+    path.push(entry);
+    while (!stack.isEmpty()) {
+      Iterator<BasicBlock> children = stack.peek();
+      if (children.hasNext()) {
+        BasicBlock child = children.next();
+        renamer.enter(child);
+        stack.push(child.dominated().iterator());
+        path.push(child);
+      } else {
+        stack.pop();
+        for (Location variable : pushed.get(path.pop().id())) {
+          stacks.get(variable).pop();
+        }
+      }
+    }
+  }
+
+  private class Renamer {
+    private final Map<Location, Deque<Value>> stacks;
+    private final int[] clobberedAtEnd;
+    private final List<List<Location>> pushed;
+    private int counter;
+    private int clobbered;
+
+    Renamer(
+        Map<Location, Deque<Value>> stacks, int[] clobberedAtEnd, List<List<Location>> pushed) {
+      this.stacks = stacks;
+      this.clobberedAtEnd = clobberedAtEnd;
+      this.pushed = pushed;
+    }
+
+    void enter(BasicBlock block) {
+      BasicBlock parent = block.immediateDominator();
+      clobbered = parent == null ? 0 : clobberedAtEnd[parent.id()];
+      for (Value phi : phis(block)) {
+        push(phi);
+      }
+      for (int ip = block.start(); ip < block.end(); ++ip) {
+        Effects effects = SsaForm.this.effects[ip];
+        if (!effects.reads().isEmpty()) {
+          List<Value> values = new ArrayList<>(effects.reads().size());
+          for (Location read : effects.reads()) {
+            Value value = current(read);
+            values.add(value);
+            if (!value.isUnknown()) {
+              value.readers.add(ip);
+            }
+          }
+          reads.set(ip, values);
+        }
+        if (effects.clobbers()) {
+          clobbered = ++counter;
+        }
+        if (effects.write() != null) {
+          Value value = newValue(effects.write(), block, ip, null);
+          definitions[ip] = value;
+          push(value);
+        }
+      }
+      clobberedAtEnd[block.id()] = clobbered;
+
+      for (BasicBlock successor : block.successors()) {
+        int index = successor.predecessors().indexOf(block);
+        for (Value phi : phis(successor)) {
+          Value argument = current(phi.variable);
+          phi.arguments[index] = argument;
+          if (!argument.isUnknown()) {
+            argument.phiUsers.add(phi);
+          }
+        }
+      }
+    }
+
+    private void push(Value value) {
+      value.stamp = ++counter;
+      stacks.computeIfAbsent(value.variable, v -> new ArrayDeque<>()).push(value);
+      pushed.get(value.block.id()).add(value.variable);
+    }
+
+    private Value current(Location variable) {
+      Deque<Value> stack = stacks.get(variable);
+      Value top = stack == null ? null : stack.peek();
+      if (survivesCalls(variable)) {
+        return top == null ? unknown(variable, 0) : top;
+      }
+      if (top == null || top.stamp < clobbered) {
+        return unknown(variable, clobbered);
+      }
+      return top;
+    }
+  }
+
+  /** The variables that an op reads and writes. */
+  static class Effects extends DefaultOpcodeVisitor {
+    private final Set<Location> reads = new LinkedHashSet<>();
+    private Location write;
+    private boolean clobbers;
+
+    static Effects of(Op op) {
+      Effects effects = new Effects();
+      op.accept(effects);
+      return effects;
+    }
+
+    /** The variables read by the op, each once, in order. */
+    Set<Location> reads() {
+      return reads;
+    }
+
+    /** The variable set by the op, or null. */
+    Location write() {
+      return write;
+    }
+
+    /** Returns true if the op makes all variables except temps unknown. */
+    boolean clobbers() {
+      return clobbers;
+    }
+
+    private void read(Operand operand) {
+      if (operand instanceof Location) {
+        reads.add((Location) operand);
+      }
+    }
+
+    @Override
+    public void visit(Transfer op) {
+      read(op.source());
+      write = op.destination();
+    }
+
+    @Override
+    public void visit(BinOp op) {
+      read(op.left());
+      read(op.right());
+      write = op.destination();
+    }
+
+    @Override
+    public void visit(UnaryOp op) {
+      read(op.operand());
+      write = op.destination();
+    }
+
+    @Override
+    public void visit(Inc op) {
+      read(op.target());
+      write = op.target();
+    }
+
+    @Override
+    public void visit(Dec op) {
+      read(op.target());
+      write = op.target();
+    }
+
+    @Override
+    public void visit(IfOp op) {
+      read(op.condition());
+    }
+
+    @Override
+    public void visit(SysCall op) {
+      if (op.call() == SysCall.Call.INPUT) {
+        write = (Location) op.arg();
+      } else {
+        read(op.arg());
+      }
+    }
+
+    @Override
+    public void visit(Call op) {
+      op.actuals().forEach(this::read);
+      clobbers = true;
+      write = op.destination().orElse(null);
+    }
+
+    @Override
+    public void visit(Return op) {
+      op.returnValueLocation().ifPresent(this::read);
+    }
+
+    @Override
+    public void visit(ArrayAlloc op) {
+      read(op.sizeLocation());
+      write = op.destination();
+    }
+
+    @Override
+    public void visit(AllocateOp op) {
+      write = op.destination();
+    }
+
+    @Override
+    public void visit(ArraySet op) {
+      read(op.array());
+      read(op.index());
+      read(op.source());
+    }
+
+    @Override
+    public void visit(FieldSetOp op) {
+      read(op.recordLocation());
+      read(op.source());
+    }
+
+    @Override
+    public void visit(DeallocateTemp op) {
+      read(op.temp());
+    }
+  }
+}
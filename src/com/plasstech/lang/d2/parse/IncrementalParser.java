@@ -0,0 +1,217 @@
+package com.plasstech.lang.d2.parse;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.plasstech.lang.d2.common.Position;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.lex.Lexer;
+import com.plasstech.lang.d2.lex.ScannerException;
+import com.plasstech.lang.d2.lex.Token;
+import com.plasstech.lang.d2.parse.node.BlockNode;
+import com.plasstech.lang.d2.parse.node.PositionShifter;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.parse.node.StatementNode;
+import com.plasstech.lang.d2.phase.State;
+
+/**
+ * Parses a program, then re-parses it after each edit of its text, e.g., for an editor. Only the
+ * top-level statements around an edit are re-lexed and re-parsed; parsing stops as soon as it
+ * reaches the start of an unchanged statement after the edit, and the rest are re-used.
+ *
+ * <p>Re-used statements are moved to their new lines and columns. This touches every node after
+ * the edit if it added or removed lines, but only the nodes on the edited line otherwise, so an
+ * edit within a line takes about the same time however big the program is.
+ *
+ * <p>If the edited text does not parse, the error is returned, and the next edit re-parses
+ * everything that changed since the last good parse.
+ *
+ * <p>The programs returned share nodes, so only the latest one is valid. Later phases annotate
+ * the nodes they visit, so run them on a fresh {@link Parser} of {@link #text()} instead.
+ */
+public class IncrementalParser {
+  /** A top-level statement. It ends where the next one starts. */
+  private static class Segment {
+    private int start; // offset in the text of its first token
+    private int line;
+    private int column;
+    private final StatementNode node;
+
+    Segment(int start, Position position, StatementNode node) {
+      this.start = start;
+      this.line = position.line();
+      this.column = position.column();
+      this.node = node;
+    }
+  }
+
+  private char[] text;
+  private final List<Segment> segments = new ArrayList<>();
+  private Position eofPosition;
+  // The part of the text that was edited since the last good parse, or -1 if it parsed.
+  private int dirtyStart = -1;
+  private int dirtyEnd = -1;
+  private int lastParsed;
+  private State state;
+
+  public IncrementalParser(String text) {
+    this.text = text.toCharArray();
+    reparse(0, this.text.length);
+  }
+
+  /** The current text. */
+  public String text() {
+    return new String(text);
+  }
+
+  /** The result of the last parse, with either the program node or the exception. */
+  public State state() {
+    return state;
+  }
+
+  /** The number of statements parsed by the last parse. */
+  int lastParsed() {
+    return lastParsed;
+  }
+
+  /**
+   * Replaces {@code removed} characters at {@code offset} with {@code inserted}, and re-parses.
+   *
+   * @return the result, with either the program node or the exception
+   */
+  public State edit(int offset, int removed, String inserted) {
+    checkPositionIndexes(offset, offset + removed, text.length);
+    int editEnd = offset + removed;
+    int delta = inserted.length() - removed;
+    char[] newText = new char[text.length + delta];
+    System.arraycopy(text, 0, newText, 0, offset);
+    inserted.getChars(0, inserted.length(), newText, offset);
+    System.arraycopy(
+        text, editEnd, newText, offset + inserted.length(), text.length - editEnd);
+    text = newText;
+
+    // Drop the statements that started in the removed text, and move the ones after it.
+    int first = firstStartingAtOrAfter(offset);
+    int last = first;
+    while (last < segments.size() && segments.get(last).start < editEnd) {
+      last++;
+    }
+    segments.subList(first, last).clear();
+    for (int i = first; i < segments.size(); ++i) {
+      segments.get(i).start += delta;
+    }
+
+    int damageStart = offset;
+    int damageEnd = offset + inserted.length();
+    if (dirtyStart != -1) {
+      damageStart = Math.min(damageStart, dirtyStart);
+      if (dirtyEnd >= editEnd) {
+        damageEnd = Math.max(damageEnd, dirtyEnd + delta);
+      }
+    }
+    return reparse(damageStart, damageEnd);
+  }
+
+  /** Re-parses from before the given range of changed text until after it. */
+  private State reparse(int damageStart, int damageEnd) {
+    // A change to the first token of a statement can change where the one before it ends, so
+    // start one statement before the one with the change.
+    int from = firstStartingAtOrAfter(damageStart + 1) - 2;
+    Lexer lexer;
+    if (from >= 0) {
+      Segment segment = segments.get(from);
+      lexer = new Lexer(text, segment.start, segment.line, segment.column);
+    } else {
+      from = 0;
+      lexer = new Lexer(text);
+    }
+    Parser parser = new Parser(lexer);
+    List<Segment> parsed = new ArrayList<>();
+    int resume = segments.size();
+    try {
+      while (true) {
+        Token next = parser.token();
+        int start = lexer.tokenStart();
+        if (start >= damageEnd && next.type() != TokenType.EOF) {
+          // Past the change; if an old statement starts here, the rest is the same as before.
+          int old = firstStartingAtOrAfter(start);
+          if (old < segments.size() && segments.get(old).start == start) {
+            moveFrom(old, next.start());
+            resume = old;
+            break;
+          }
+        }
+        StatementNode node = parser.nextStatement();
+        if (node == null) {
+          eofPosition = next.start();
+          break;
+        }
+        parsed.add(new Segment(start, next.start(), node));
+      }
+    } catch (ScannerException | ParseException e) {
+      dirtyStart = damageStart;
+      dirtyEnd = damageEnd;
+      lastParsed = parsed.size();
+      state = State.create(text()).build().addException(e);
+      return state;
+    }
+
+    segments.subList(from, resume).clear();
+    segments.addAll(from, parsed);
+    dirtyStart = -1;
+    dirtyEnd = -1;
+    lastParsed = parsed.size();
+
+    List<StatementNode> statements = new ArrayList<>(segments.size());
+    for (Segment segment : segments) {
+      statements.add(segment.node);
+    }
+    Position start = eofPosition;
+    if (!segments.isEmpty()) {
+      start = new Position(segments.get(0).line, segments.get(0).column);
+    }
+    ProgramNode program = new ProgramNode(new BlockNode(statements, start));
+    state = State.create(text()).build().addProgramNode(program);
+    return state;
+  }
+
+  /** Moves the statements starting at the given index, so that the first is at the position. */
+  private void moveFrom(int first, Position position) {
+    Segment anchor = segments.get(first);
+    int line = anchor.line;
+    int lineDelta = position.line() - line;
+    int columnDelta = position.column() - anchor.column;
+    if (lineDelta == 0 && columnDelta == 0) {
+      return;
+    }
+    for (int i = first; i < segments.size(); ++i) {
+      Segment segment = segments.get(i);
+      if (lineDelta == 0 && segment.line > line) {
+        // Only the edited line moved.
+        break;
+      }
+      PositionShifter.shift(segment.node, line, lineDelta, columnDelta);
+      if (segment.line == line) {
+        segment.column += columnDelta;
+      }
+      segment.line += lineDelta;
+    }
+  }
+
+  /** The index of the first statement that starts at or after the given offset. */
+  private int firstStartingAtOrAfter(int offset) {
+    int low = 0;
+    int high = segments.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (segments.get(mid).start < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,209 @@
+package com.plasstech.lang.d2.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.lex.Lexer;
+import com.plasstech.lang.d2.lex.ScannerException;
+import com.plasstech.lang.d2.lex.Token;
+import com.plasstech.lang.d2.parse.node.BlockNode;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.parse.node.StatementNode;
+import com.plasstech.lang.d2.phase.Phase;
+import com.plasstech.lang.d2.phase.PhaseTimer;
+import com.plasstech.lang.d2.phase.State;
+
+/**
+ * Parses big programs on several threads. All the tokens are lexed first, and split into pieces
+ * just before top-level procedures. The pieces are parsed in parallel on a fork-join pool, and
+ * their statements are put back together in source order.
+ *
+ * <p>The result, including any error, is the same as that of {@link Parser}. If a piece does not
+ * parse, or its last statement does not end where the next piece starts, the rest of the program
+ * is re-parsed in one piece, so the error reported is always the first one in the source.
+ */
+public class ParallelParser implements Phase {
+  /** Default minimum number of tokens in each piece. */
+  public static final int DEFAULT_MIN_PIECE_TOKENS = 4096;
+
+  /** Hands out already-lexed tokens, then throws the lexer's exception, if it had one. */
+  private static class TokenCursor implements Supplier<Token> {
+    private final List<Token> tokens;
+    private final ScannerException lexerException;
+    private int next;
+
+    TokenCursor(List<Token> tokens, ScannerException lexerException, int start) {
+      this.tokens = tokens;
+      this.lexerException = lexerException;
+      this.next = start;
+    }
+
+    @Override
+    public Token get() {
+      if (next == tokens.size()) {
+        if (lexerException != null) {
+          throw lexerException;
+        }
+        // Keep returning EOF.
+        return tokens.get(next - 1);
+      }
+      return tokens.get(next++);
+    }
+
+    /** The index of the parser's current token. */
+    int current() {
+      return next - 1;
+    }
+  }
+
+  /** The statements of a piece, and whether they can be used. */
+  private static class Piece {
+    private final List<StatementNode> statements = new ArrayList<>();
+    private boolean ok;
+  }
+
+  private final Lexer lexer;
+  private final ForkJoinPool pool;
+  private final int minPieceTokens;
+  private int tokenCount;
+
+  /** Parses on the common fork-join pool. */
+  public ParallelParser(Lexer lexer) {
+    this(lexer, ForkJoinPool.commonPool(), DEFAULT_MIN_PIECE_TOKENS);
+  }
+
+  public ParallelParser(Lexer lexer, ForkJoinPool pool, int minPieceTokens) {
+    this.lexer = lexer;
+    this.pool = pool;
+    this.minPieceTokens = minPieceTokens;
+  }
+
+  @Override
+  public State execute(State input) {
+    List<Token> tokens = new ArrayList<>();
+    ScannerException lexerException = null;
+    try {
+      Token token;
+      do {
+        token = lexer.nextToken();
+        tokens.add(token);
+      } while (token.type() != TokenType.EOF);
+    } catch (ScannerException e) {
+      // The parser may find an error before the bad token, so let it get that far.
+      lexerException = e;
+    }
+
+    tokenCount = tokens.size();
+
+    List<Integer> starts = split(tokens);
+    List<ForkJoinTask<Piece>> tasks = new ArrayList<>();
+    for (int i = 1; i < starts.size(); ++i) {
+      int start = starts.get(i);
+      int end = i + 1 < starts.size() ? starts.get(i + 1) : Integer.MAX_VALUE;
+      ScannerException pieceException = lexerException;
+      tasks.add(
+          pool.submit(PhaseTimer.counted(() -> parse(tokens, pieceException, start, end))));
+    }
+
+    List<StatementNode> statements = new ArrayList<>();
+    try {
+      for (int i = 0; i < starts.size(); ++i) {
+        Piece piece;
+        if (i == 0) {
+          int end = starts.size() > 1 ? starts.get(1) : Integer.MAX_VALUE;
+          piece = parse(tokens, lexerException, 0, end);
+        } else {
+          piece = tasks.get(i - 1).join();
+        }
+        if (!piece.ok) {
+          // Parse the rest in one piece, to get the same result as the sequential parser.
+          tasks.forEach(task -> task.cancel(false));
+          Parser parser = new Parser(new TokenCursor(tokens, lexerException, starts.get(i)));
+          for (StatementNode node = parser.nextStatement();
+              node != null;
+              node = parser.nextStatement()) {
+            statements.add(node);
+          }
+          break;
+        }
+        statements.addAll(piece.statements);
+      }
+    } catch (ScannerException | ParseException e) {
+      return input.addException(e);
+    }
+    BlockNode block = new BlockNode(statements, tokens.get(0).start());
+    return input.addProgramNode(new ProgramNode(block));
+  }
+
+  /** Returns the number of tokens lexed by the last call to {@link #execute}, including EOF. */
+  public int tokenCount() {
+    return tokenCount;
+  }
+
+  /**
+   * Returns the index of the first token of each piece. Each piece but the last starts with a
+   * top-level procedure declaration, and has at least minPieceTokens tokens.
+   */
+  private List<Integer> split(List<Token> tokens) {
+    List<Integer> starts = new ArrayList<>();
+    starts.add(0);
+    int depth = 0;
+    for (int i = 0; i + 2 < tokens.size(); ++i) {
+      switch (tokens.get(i).type()) {
+        case LBRACE:
+          depth++;
+          break;
+        case RBRACE:
+          depth--;
+          break;
+        case VARIABLE:
+          if (depth == 0
+              && i - starts.get(starts.size() - 1) >= minPieceTokens
+              && tokens.get(i + 1).type() == TokenType.COLON
+              && startsProcedure(tokens, i + 2)) {
+            starts.add(i);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return starts;
+  }
+
+  private static boolean startsProcedure(List<Token> tokens, int i) {
+    TokenType type = tokens.get(i).type();
+    return type == TokenType.PROC
+        || (type == TokenType.EXTERN
+            && i + 1 < tokens.size()
+            && tokens.get(i + 1).type() == TokenType.PROC);
+  }
+
+  /** Parses statements from the start token until the end token, or EOF. */
+  private static Piece parse(
+      List<Token> tokens, ScannerException lexerException, int start, int end) {
+    Piece piece = new Piece();
+    TokenCursor cursor = new TokenCursor(tokens, lexerException, start);
+    Parser parser = new Parser(cursor);
+    try {
+      while (parser.token().type() != TokenType.EOF && cursor.current() < end) {
+        piece.statements.add(parser.nextStatement());
+      }
+    } catch (D2RuntimeException e) {
+      // The sequential re-parse will find this, or an earlier, error.
+      return piece;
+    }
+    if (end == Integer.MAX_VALUE) {
+      piece.ok = parser.token().type() == TokenType.EOF;
+    } else {
+      // Otherwise its last statement went on into the next piece.
+      piece.ok = cursor.current() == end;
+    }
+    return piece;
+  }
+}
@@ -102,17 +102,22 @@ public class Parser implements Phase {
           TokenType.MULT_EQ, TokenType.MULT,
           TokenType.DIV_EQ, TokenType.DIV);
 
-  private final Lexer lexer;
+  private final Supplier<Token> tokens;
   private Token token;
   private int inWhile;
 
   public Parser(Lexer lexer) {
-    this.lexer = lexer;
+    this(lexer::nextToken);
+  }
+
+  /** Parses the given tokens, e.g., ones already lexed; see {@link ParallelParser}. */
+  Parser(Supplier<Token> tokens) {
+    this.tokens = tokens;
   }
 
   private Token advance() {
     Token prev = token;
-    token = lexer.nextToken();
+    token = tokens.get();
     return prev;
   }
 
@@ -133,6 +138,26 @@ public class Parser implements Phase {
     return program();
   }
 
+  /**
+   * Parses the next top-level statement, or returns null at EOF. Afterwards, {@link #token()} is
+   * the first token of the following statement. Used by {@link IncrementalParser} and {@link
+   * ParallelParser}.
+   */
+  StatementNode nextStatement() {
+    if (token().type() == TokenType.EOF) {
+      return null;
+    }
+    return statement();
+  }
+
+  /** The next, not yet parsed, token. */
+  Token token() {
+    if (token == null) {
+      advance();
+    }
+    return token;
+  }
+
   private void expect(TokenType first, TokenType... rest) {
     ImmutableList<TokenType> expected = ImmutableList.copyOf(Lists.asList(first, rest));
     if (!expected.contains(token.type())) {
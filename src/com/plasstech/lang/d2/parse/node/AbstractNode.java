@@ -7,7 +7,8 @@ import com.plasstech.lang.d2.type.VarType;
 
 /** Abstract base class for nodes in the parse tree. */
 abstract class AbstractNode implements Node {
-  private final Position position;
+  // Not final, so that a re-used node can be moved after an edit; see PositionShifter.
+  private Position position;
   private VarType varType = VarType.UNKNOWN;
   private Location location;
 
@@ -50,6 +51,10 @@ abstract class AbstractNode implements Node {
     return position;
   }
 
+  void setPosition(Position position) {
+    this.position = position;
+  }
+
   @Override
   public void accept(NodeVisitor visitor) {
     // do nothing.
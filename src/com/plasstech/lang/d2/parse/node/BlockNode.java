@@ -1,6 +1,7 @@
 package com.plasstech.lang.d2.parse.node;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -8,9 +9,9 @@ import com.plasstech.lang.d2.common.Position;
 
 /** Represents a list of statements - a block inside a function/method/procedure. */
 public class BlockNode extends AbstractNode {
+  // attempting to make a unique hashcode. Declared before EMPTY, which uses it.
+  private static final AtomicInteger id = new AtomicInteger();
   public static final BlockNode EMPTY = new BlockNode(new Position(0, 0));
-  // attempting to make a unique hashcode
-  private static int id = 0;
 
   private final List<StatementNode> statements;
   private final String name;
@@ -22,7 +23,7 @@ public class BlockNode extends AbstractNode {
   public BlockNode(List<StatementNode> statements, Position position) {
     super(position);
     this.name = String.format("block @ %d, %d (%d)", position.line(), position.column(),
-        id++);
+        id.getAndIncrement());
     this.statements = statements;
   }
 
@@ -21,6 +21,10 @@ public class IncDecNode extends AbstractNode implements StatementNode {
     return variable.name();
   }
 
+  VariableNode variable() {
+    return variable;
+  }
+
   public boolean isIncrement() {
     return increment;
   }
@@ -0,0 +1,170 @@
+package com.plasstech.lang.d2.parse.node;
+
+/** Visits every node of a parse tree, parents before children. */
+public abstract class NodeWalker implements NodeVisitor, LValueNode.Visitor {
+
+  /** Called once for each node. */
+  protected abstract void enter(Node node);
+
+  @Override
+  public void visit(ProgramNode node) {
+    enter(node);
+    node.statements().accept(this);
+  }
+
+  @Override
+  public void visit(BlockNode node) {
+    enter(node);
+    node.statements().forEach(statement -> statement.accept(this));
+  }
+
+  @Override
+  public void visit(PrintNode node) {
+    enter(node);
+    node.expr().accept(this);
+  }
+
+  @Override
+  public void visit(AssignmentNode node) {
+    enter(node);
+    node.lvalue().accept((LValueNode.Visitor) this);
+    node.expr().accept(this);
+  }
+
+  @Override
+  public void visit(VariableSetNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(FieldSetNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(ArraySetNode node) {
+    enter(node);
+    node.indexNode().accept(this);
+  }
+
+  @Override
+  public void visit(ArrayLiteralNode node) {
+    enter(node);
+    node.elements().forEach(element -> element.accept(this));
+  }
+
+  @Override
+  public void visit(BinOpNode node) {
+    enter(node);
+    node.left().accept(this);
+    node.right().accept(this);
+  }
+
+  @Override
+  public <T> void visit(ConstNode<T> node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(VariableNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(UnaryNode node) {
+    enter(node);
+    node.expr().accept(this);
+  }
+
+  @Override
+  public void visit(IfNode node) {
+    enter(node);
+    for (IfNode.Case ifCase : node.cases()) {
+      ifCase.condition().accept(this);
+      ifCase.block().accept(this);
+    }
+    node.elseBlock().ifPresent(block -> block.accept(this));
+  }
+
+  @Override
+  public void visit(ProcedureNode node) {
+    enter(node);
+    node.parameters().forEach(this::enter);
+    node.block().accept(this);
+  }
+
+  @Override
+  public void visit(ExternProcedureNode node) {
+    enter(node);
+    node.parameters().forEach(this::enter);
+  }
+
+  @Override
+  public void visit(WhileNode node) {
+    enter(node);
+    node.condition().accept(this);
+    node.doStatement().ifPresent(statement -> statement.accept(this));
+    node.block().accept(this);
+  }
+
+  @Override
+  public void visit(BreakNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(ContinueNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(DeclarationNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(ArrayDeclarationNode node) {
+    enter(node);
+    node.sizeExpr().accept(this);
+  }
+
+  @Override
+  public void visit(RecordDeclarationNode node) {
+    enter(node);
+    node.fields().forEach(field -> field.accept(this));
+  }
+
+  @Override
+  public void visit(CallNode node) {
+    enter(node);
+    node.actuals().forEach(actual -> actual.accept(this));
+  }
+
+  @Override
+  public void visit(ReturnNode node) {
+    enter(node);
+    node.expr().ifPresent(expr -> expr.accept(this));
+  }
+
+  @Override
+  public void visit(ExitNode node) {
+    enter(node);
+    node.exitMessage().ifPresent(message -> message.accept(this));
+  }
+
+  @Override
+  public void visit(InputNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(NewNode node) {
+    enter(node);
+  }
+
+  @Override
+  public void visit(IncDecNode node) {
+    enter(node);
+    enter(node.variable());
+  }
+}
@@ -0,0 +1,38 @@
+package com.plasstech.lang.d2.parse.node;
+
+import com.plasstech.lang.d2.common.Position;
+
+/**
+ * Moves the positions of a re-used parse tree after an edit of the text before it. Nodes on the
+ * given line move by both the line and column deltas; nodes on later lines only move lines.
+ * Nodes before the given line are left alone.
+ */
+public class PositionShifter extends NodeWalker {
+  private final int line;
+  private final int lineDelta;
+  private final int columnDelta;
+
+  private PositionShifter(int line, int lineDelta, int columnDelta) {
+    this.line = line;
+    this.lineDelta = lineDelta;
+    this.columnDelta = columnDelta;
+  }
+
+  /** Moves the positions of the given node and all the nodes under it. */
+  public static void shift(Node node, int line, int lineDelta, int columnDelta) {
+    if (lineDelta != 0 || columnDelta != 0) {
+      node.accept(new PositionShifter(line, lineDelta, columnDelta));
+    }
+  }
+
+  @Override
+  protected void enter(Node node) {
+    Position position = node.position();
+    if (position.line() < line) {
+      // Includes BlockNode.EMPTY, which is shared.
+      return;
+    }
+    int newColumn = position.line() == line ? position.column() + columnDelta : position.column();
+    ((AbstractNode) node).setPosition(new Position(position.line() + lineDelta, newColumn));
+  }
+}
@@ -0,0 +1,35 @@
+package com.plasstech.lang.d2.phase;
+
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableMap;
+
+/** Runs a phase and adds its {@link PhaseStats} to the state. */
+public class InstrumentedPhase implements Phase {
+  private final PhaseName name;
+  private final Phase phase;
+  private final Function<State, ImmutableMap<String, Long>> sizes;
+
+  /**
+   * @param sizes gives the output sizes of the phase, from its output state. Not called if the
+   *     phase failed.
+   */
+  public InstrumentedPhase(
+      PhaseName name, Phase phase, Function<State, ImmutableMap<String, Long>> sizes) {
+    this.name = name;
+    this.phase = phase;
+    this.sizes = sizes;
+  }
+
+  @Override
+  public State execute(State input) {
+    PhaseTimer timer = PhaseTimer.start();
+    State output = phase.execute(input);
+    // Stopped before computing the sizes, which is not part of the phase.
+    PhaseStats stats = timer.stop(name.name());
+    if (!output.error()) {
+      stats = stats.withSizes(sizes.apply(output));
+    }
+    return output.addPhaseStats(stats);
+  }
+}
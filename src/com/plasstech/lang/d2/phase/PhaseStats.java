@@ -0,0 +1,91 @@
+package com.plasstech.lang.d2.phase;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+
+/** How long a phase took, how much it allocated and how big its output was. */
+@AutoValue
+public abstract class PhaseStats {
+  /** Means the JVM cannot measure the value. */
+  public static final long UNKNOWN = -1;
+
+  public static PhaseStats create(
+      String name,
+      long wallNanos,
+      long cpuNanos,
+      long allocatedBytes,
+      ImmutableMap<String, Long> sizes) {
+    return new AutoValue_PhaseStats(name, wallNanos, cpuNanos, allocatedBytes, sizes);
+  }
+
+  public abstract String name();
+
+  public abstract long wallNanos();
+
+  /** CPU time of the phase, including its worker tasks, or {@link #UNKNOWN}. */
+  public abstract long cpuNanos();
+
+  /** Bytes allocated by the phase, including its worker tasks, or {@link #UNKNOWN}. */
+  public abstract long allocatedBytes();
+
+  /** Output size by unit, e.g., "tokens" or "ops", in the order they should be shown. */
+  public abstract ImmutableMap<String, Long> sizes();
+
+  public PhaseStats withSizes(ImmutableMap<String, Long> sizes) {
+    return create(name(), wallNanos(), cpuNanos(), allocatedBytes(), sizes);
+  }
+
+  /** Formats the stats as a table, one phase per row, with a total row. */
+  public static String table(List<PhaseStats> stats) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-14s %10s %10s %12s  %s\n", "phase", "wall ms", "cpu ms",
+        "alloc KB", "output"));
+    long wall = 0;
+    long cpu = 0;
+    long allocated = 0;
+    for (PhaseStats stat : stats) {
+      sb.append(
+          String.format(
+              "%-14s %10.1f %10s %12s  %s\n",
+              stat.name(),
+              stat.wallNanos() / 1e6,
+              stat.cpuNanos() == UNKNOWN ? "-" : String.format("%.1f", stat.cpuNanos() / 1e6),
+              stat.allocatedBytes() == UNKNOWN
+                  ? "-"
+                  : String.format("%,d", stat.allocatedBytes() / 1024),
+              sizes(stat.sizes())));
+      wall += stat.wallNanos();
+      cpu = add(cpu, stat.cpuNanos());
+      allocated = add(allocated, stat.allocatedBytes());
+    }
+    sb.append(
+        String.format(
+            "%-14s %10.1f %10s %12s\n",
+            "total",
+            wall / 1e6,
+            cpu == UNKNOWN ? "-" : String.format("%.1f", cpu / 1e6),
+            allocated == UNKNOWN ? "-" : String.format("%,d", allocated / 1024)));
+    return sb.toString();
+  }
+
+  private static long add(long total, long value) {
+    if (total == UNKNOWN || value == UNKNOWN) {
+      return UNKNOWN;
+    }
+    return total + value;
+  }
+
+  private static String sizes(Map<String, Long> sizes) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(String.format("%,d %s", entry.getValue(), entry.getKey()));
+    }
+    return sb.toString();
+  }
+}
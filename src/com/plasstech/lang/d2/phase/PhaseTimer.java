@@ -0,0 +1,115 @@
+package com.plasstech.lang.d2.phase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Measures the wall time, CPU time and allocated bytes of a phase. CPU time and allocations are
+ * those of the thread that started the timer, plus those of the tasks it hands to other threads
+ * through {@link #counted}. Counted tasks that are still running when the phase stops are missed.
+ */
+public class PhaseTimer {
+  private static final com.sun.management.ThreadMXBean THREADS = threads();
+  // The timer of the phase running on each thread, which counted tasks add to.
+  private static final ThreadLocal<PhaseTimer> CURRENT = new ThreadLocal<>();
+
+  private final Thread thread = Thread.currentThread();
+  private final PhaseTimer previous = CURRENT.get();
+  private final long startNanos;
+  private final long startCpu;
+  private final long startAllocated;
+  private final AtomicLong workerCpu = new AtomicLong();
+  private final AtomicLong workerAllocated = new AtomicLong();
+
+  private PhaseTimer() {
+    CURRENT.set(this);
+    startCpu = cpuTime();
+    startAllocated = allocatedBytes();
+    startNanos = System.nanoTime();
+  }
+
+  public static PhaseTimer start() {
+    return new PhaseTimer();
+  }
+
+  /**
+   * Returns a task that runs the given one, and adds the CPU time and allocations of the thread
+   * that runs it to the phase being timed on this thread, if any.
+   */
+  public static <T> Callable<T> counted(Callable<T> task) {
+    PhaseTimer timer = CURRENT.get();
+    if (timer == null) {
+      return task;
+    }
+    return () -> {
+      if (Thread.currentThread() == timer.thread) {
+        // Already measured, e.g., when joining a task runs it on the same thread.
+        return task.call();
+      }
+      long cpu = cpuTime();
+      long allocated = allocatedBytes();
+      try {
+        return task.call();
+      } finally {
+        add(timer.workerCpu, cpu, cpuTime());
+        add(timer.workerAllocated, allocated, allocatedBytes());
+      }
+    };
+  }
+
+  /** Returns the stats from the start until now, without any output sizes. */
+  public PhaseStats stop(String name) {
+    long wallNanos = System.nanoTime() - startNanos;
+    long cpuNanos = delta(startCpu, cpuTime(), workerCpu);
+    long allocated = delta(startAllocated, allocatedBytes(), workerAllocated);
+    if (CURRENT.get() == this) {
+      CURRENT.set(previous);
+    }
+    return PhaseStats.create(name, wallNanos, cpuNanos, allocated, ImmutableMap.of());
+  }
+
+  private static com.sun.management.ThreadMXBean threads() {
+    try {
+      return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    } catch (ClassCastException e) {
+      // Not a HotSpot-like JVM.
+      return null;
+    }
+  }
+
+  /** CPU time of the current thread, or UNKNOWN. */
+  private static long cpuTime() {
+    if (THREADS == null
+        || !THREADS.isCurrentThreadCpuTimeSupported()
+        || !THREADS.isThreadCpuTimeEnabled()) {
+      return PhaseStats.UNKNOWN;
+    }
+    return THREADS.getCurrentThreadCpuTime();
+  }
+
+  /** Bytes allocated by the current thread, or UNKNOWN. */
+  private static long allocatedBytes() {
+    if (THREADS == null
+        || !THREADS.isThreadAllocatedMemorySupported()
+        || !THREADS.isThreadAllocatedMemoryEnabled()) {
+      return PhaseStats.UNKNOWN;
+    }
+    return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void add(AtomicLong total, long start, long end) {
+    if (start != PhaseStats.UNKNOWN && end != PhaseStats.UNKNOWN) {
+      total.addAndGet(end - start);
+    }
+  }
+
+  private static long delta(long start, long end, AtomicLong workers) {
+    if (start == PhaseStats.UNKNOWN || end == PhaseStats.UNKNOWN) {
+      return PhaseStats.UNKNOWN;
+    }
+    return end - start + workers.get();
+  }
+}
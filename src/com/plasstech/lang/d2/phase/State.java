@@ -17,11 +17,13 @@ import com.plasstech.lang.d2.type.TypeCheckResult;
 public abstract class State {
 
   public static State create() {
-    return new AutoValue_State.Builder().build();
+    return new AutoValue_State.Builder().setPhaseStats(ImmutableList.of()).build();
   }
 
   public static Builder create(String sourceCode) {
-    return new AutoValue_State.Builder().setSourceCode(sourceCode);
+    return new AutoValue_State.Builder()
+        .setPhaseStats(ImmutableList.of())
+        .setSourceCode(sourceCode);
   }
 
   @Nullable
@@ -85,6 +87,9 @@ public abstract class State {
   @Nullable
   public abstract String stdOut();
 
+  /** Stats of the phases run so far, in order. */
+  public abstract ImmutableList<PhaseStats> phaseStats();
+
   @AutoValue.Builder
   public abstract static class Builder {
 
@@ -108,6 +113,8 @@ public abstract class State {
 
     public abstract Builder setStdOut(String stdout);
 
+    public abstract Builder setPhaseStats(ImmutableList<PhaseStats> stats);
+
     public abstract State build();
   }
 
@@ -150,6 +157,13 @@ public abstract class State {
     return toBuilder().setStdOut(stdOut).build();
   }
 
+  public State addPhaseStats(PhaseStats stats) {
+    return toBuilder()
+        .setPhaseStats(
+            ImmutableList.<PhaseStats>builder().addAll(phaseStats()).add(stats).build())
+        .build();
+  }
+
   abstract Builder toBuilder();
 
   // This really should be elsewhere
@@ -0,0 +1,194 @@
+package com.plasstech.lang.d2.type;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.plasstech.lang.d2.parse.node.ArrayDeclarationNode;
+import com.plasstech.lang.d2.parse.node.ArrayLiteralNode;
+import com.plasstech.lang.d2.parse.node.ArraySetNode;
+import com.plasstech.lang.d2.parse.node.AssignmentNode;
+import com.plasstech.lang.d2.parse.node.BinOpNode;
+import com.plasstech.lang.d2.parse.node.CallNode;
+import com.plasstech.lang.d2.parse.node.DeclarationNode;
+import com.plasstech.lang.d2.parse.node.DefaultNodeVisitor;
+import com.plasstech.lang.d2.parse.node.ExitNode;
+import com.plasstech.lang.d2.parse.node.FieldSetNode;
+import com.plasstech.lang.d2.parse.node.IfNode;
+import com.plasstech.lang.d2.parse.node.IncDecNode;
+import com.plasstech.lang.d2.parse.node.LValueNode;
+import com.plasstech.lang.d2.parse.node.PrintNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode.Parameter;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.parse.node.ReturnNode;
+import com.plasstech.lang.d2.parse.node.UnaryNode;
+import com.plasstech.lang.d2.parse.node.VariableNode;
+import com.plasstech.lang.d2.parse.node.VariableSetNode;
+import com.plasstech.lang.d2.parse.node.WhileNode;
+
+/**
+ * Finds procedures whose bodies can be checked apart from the rest of the program, e.g., on
+ * another thread, after the rest has been checked. Such a body neither reads nor writes anything
+ * that the rest of the program changes:
+ *
+ * <ul>
+ *   <li>all its parameters have types
+ *   <li>it does not use any name that is assigned or declared outside of procedures, so it cannot
+ *       see any global variable
+ *   <li>it only calls procedures whose parameters all have types, so it does not infer them
+ * </ul>
+ */
+class IndependentProcedureFinder {
+  private final Set<String> globalNames = new HashSet<>();
+  private final Set<String> untypedProcedures = new HashSet<>();
+
+  IndependentProcedureFinder(ProgramNode root) {
+    // ARGS is declared the first time it is used, even inside a procedure.
+    globalNames.add("ARGS");
+    root.accept(new NameCollector(globalNames, false));
+  }
+
+  boolean isIndependent(ProcedureNode node) {
+    for (Parameter param : node.parameters()) {
+      if (param.varType().isUnknown()) {
+        return false;
+      }
+    }
+    Set<String> used = new HashSet<>();
+    node.block().accept(new NameCollector(used, true));
+    for (String name : used) {
+      if (globalNames.contains(name) || untypedProcedures.contains(name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Collects names. Outside of procedures, it collects names that are assigned or declared; inside
+   * procedures, every name that is used. It also finds the procedures with untyped parameters.
+   */
+  private class NameCollector extends DefaultNodeVisitor implements LValueNode.Visitor {
+    private final Set<String> names;
+    private final boolean inProcedure;
+
+    NameCollector(Set<String> names, boolean inProcedure) {
+      this.names = names;
+      this.inProcedure = inProcedure;
+    }
+
+    private void used(String name) {
+      if (inProcedure) {
+        names.add(name);
+      }
+    }
+
+    @Override
+    public void visit(ProcedureNode node) {
+      for (Parameter param : node.parameters()) {
+        if (param.varType().isUnknown()) {
+          untypedProcedures.add(node.name());
+        }
+      }
+      // Only look inside if we're already inside a procedure.
+      if (inProcedure) {
+        super.visit(node);
+      } else {
+        node.block().accept(new NameCollector(new HashSet<>(), true));
+      }
+    }
+
+    @Override
+    public void visit(PrintNode node) {
+      node.expr().accept(this);
+    }
+
+    @Override
+    public void visit(AssignmentNode node) {
+      node.lvalue().accept((LValueNode.Visitor) this);
+      node.expr().accept(this);
+    }
+
+    @Override
+    public void visit(VariableSetNode node) {
+      names.add(node.name());
+    }
+
+    @Override
+    public void visit(FieldSetNode node) {
+      used(node.variableName());
+    }
+
+    @Override
+    public void visit(ArraySetNode node) {
+      used(node.variableName());
+      node.indexNode().accept(this);
+    }
+
+    @Override
+    public void visit(ArrayLiteralNode node) {
+      node.elements().forEach(element -> element.accept(this));
+    }
+
+    @Override
+    public void visit(BinOpNode node) {
+      node.left().accept(this);
+      node.right().accept(this);
+    }
+
+    @Override
+    public void visit(VariableNode node) {
+      used(node.name());
+    }
+
+    @Override
+    public void visit(UnaryNode node) {
+      node.expr().accept(this);
+    }
+
+    @Override
+    public void visit(IfNode node) {
+      node.cases().forEach(ifCase -> ifCase.condition().accept(this));
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(WhileNode node) {
+      node.condition().accept(this);
+      node.doStatement().ifPresent(statement -> statement.accept(this));
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(DeclarationNode node) {
+      names.add(node.name());
+    }
+
+    @Override
+    public void visit(ArrayDeclarationNode node) {
+      names.add(node.name());
+      node.sizeExpr().accept(this);
+    }
+
+    @Override
+    public void visit(CallNode node) {
+      used(node.procName());
+      node.actuals().forEach(actual -> actual.accept(this));
+    }
+
+    @Override
+    public void visit(ReturnNode node) {
+      node.expr().ifPresent(expr -> expr.accept(this));
+    }
+
+    @Override
+    public void visit(ExitNode node) {
+      node.exitMessage().ifPresent(message -> message.accept(this));
+    }
+
+    @Override
+    public void visit(IncDecNode node) {
+      used(node.name());
+    }
+  }
+}
@@ -1,8 +1,5 @@
 package com.plasstech.lang.d2.type;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import com.google.common.collect.ImmutableList;
 import com.plasstech.lang.d2.common.Position;
 import com.plasstech.lang.d2.parse.node.ProcedureNode;
@@ -10,7 +7,8 @@ import com.plasstech.lang.d2.parse.node.ProcedureNode;
 public class ProcSymbol extends AbstractSymbol {
 
   private final ProcedureNode node;
-  private final List<ParamSymbol> formals = new ArrayList<>();
+  // Replaced when a parameter is declared, so formals() doesn't have to copy it.
+  private ImmutableList<ParamSymbol> formals = ImmutableList.of();
   private final SymbolTable symtab;
 
   public ProcSymbol(ProcedureNode node, SymbolTable symTab) {
@@ -46,14 +44,14 @@ public class ProcSymbol extends AbstractSymbol {
   }
 
   public ImmutableList<ParamSymbol> formals() {
-    return ImmutableList.copyOf(formals);
+    return formals;
   }
 
   public void declareParam(String name, VarType varType, int index) {
     ParamSymbol param = symtab.declareParam(name, varType, index);
     param.setParentName(name());
     // keep a copy!
-    formals.add(param);
+    formals = ImmutableList.<ParamSymbol>builder().addAll(formals).add(param).build();
   }
 
   public ParamSymbol formal(int i) {
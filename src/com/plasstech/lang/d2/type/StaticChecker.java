@@ -1,11 +1,16 @@
 package com.plasstech.lang.d2.type;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.plasstech.lang.d2.common.D2RuntimeException;
@@ -45,8 +50,17 @@ import com.plasstech.lang.d2.parse.node.VariableSetNode;
 import com.plasstech.lang.d2.parse.node.WhileNode;
 import com.plasstech.lang.d2.phase.Errors;
 import com.plasstech.lang.d2.phase.Phase;
+import com.plasstech.lang.d2.phase.PhaseTimer;
 import com.plasstech.lang.d2.phase.State;
 
+/**
+ * Checks the types of the program, and builds its symbol table.
+ *
+ * <p>Given a fork-join pool, the bodies of top-level procedures that do not depend on the rest of
+ * the program (see {@link IndependentProcedureFinder}) are checked on the pool after everything
+ * else. Their errors are merged with the others in source order, so the result is the same as
+ * that of checking everything on one thread.
+ */
 public class StaticChecker extends DefaultNodeVisitor implements Phase {
   // also works for bytes and longs
   private static final Set<TokenType> INT_OPERATORS =
@@ -167,6 +181,55 @@ public class StaticChecker extends DefaultNodeVisitor implements Phase {
   private final Set<ProcSymbol> needsReturn = new HashSet<>();
   private final Errors errors = new Errors();
 
+  // Null if everything is checked on this thread.
+  private final ForkJoinPool pool;
+  private IndependentProcedureFinder independentProcedures;
+  private final List<DeferredProcedure> deferred = new ArrayList<>();
+
+  /** A procedure whose body is checked after the rest of the program. */
+  private static class DeferredProcedure {
+    private final ProcedureNode node;
+    // The symbol table the procedure is declared in.
+    private final SymbolTable symbolTable;
+    // The number of errors found before the procedure.
+    private final int errorsBefore;
+
+    DeferredProcedure(ProcedureNode node, SymbolTable symbolTable, int errorsBefore) {
+      this.node = node;
+      this.symbolTable = symbolTable;
+      this.errorsBefore = errorsBefore;
+    }
+  }
+
+  /** The errors found in a deferred procedure, and whether checking stopped there. */
+  private static class CheckedBody {
+    private final ImmutableList<D2RuntimeException> errors;
+    private final boolean stopped;
+
+    CheckedBody(ImmutableList<D2RuntimeException> errors, boolean stopped) {
+      this.errors = errors;
+      this.stopped = stopped;
+    }
+  }
+
+  /** Checks everything on this thread. */
+  public StaticChecker() {
+    this((ForkJoinPool) null);
+  }
+
+  /** Checks the bodies of independent procedures on the given pool. */
+  public StaticChecker(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /** Checks the body of a deferred procedure declared in the given symbol table. */
+  private StaticChecker(ProgramNode root, SymbolTable symbolTable, SymbolTable globals) {
+    this.pool = null;
+    this.root = root;
+    this.symbolTable = symbolTable;
+    this.globals = globals;
+  }
+
   @Override
   public State execute(State input) {
     assert input.programNode() != null;
@@ -198,6 +261,10 @@ public class StaticChecker extends DefaultNodeVisitor implements Phase {
       return new TypeCheckResult(e);
     }
 
+    if (pool != null) {
+      independentProcedures = new IndependentProcedureFinder(root);
+    }
+    boolean stopped = false;
     try {
       root.accept(this);
       if (!procedures.isEmpty()) {
@@ -207,18 +274,85 @@ public class StaticChecker extends DefaultNodeVisitor implements Phase {
                 String.format("Still in PROC '%s'. (This should never happen)", top.name()),
                 top.position()));
       }
-      if (errors.hasErrors()) {
-        return new TypeCheckResult(errors);
-      }
-      return new TypeCheckResult(symbolTable);
     } catch (D2RuntimeException e) {
-      return new TypeCheckResult(errors);
+      stopped = true;
     } catch (IllegalArgumentException e) {
       // Closes #217 once and for all. BUT... ONCE AND FOR ALL.
       e.printStackTrace();
-      errors.add(new D2RuntimeException(e.getMessage(), root.position(), "INTERNAL ERROR"));
-      return new TypeCheckResult(errors);
+      errors.add(internalError(e));
+      stopped = true;
+    }
+
+    Errors allErrors = errors;
+    if (!deferred.isEmpty()) {
+      allErrors = new Errors();
+      stopped |= checkDeferred(allErrors);
+    }
+    if (stopped || allErrors.hasErrors()) {
+      return new TypeCheckResult(allErrors);
     }
+    return new TypeCheckResult(symbolTable);
+  }
+
+  private D2RuntimeException internalError(IllegalArgumentException e) {
+    return new D2RuntimeException(e.getMessage(), root.position(), "INTERNAL ERROR");
+  }
+
+  /**
+   * Checks the bodies of the deferred procedures, and adds all the errors to the given errors, in
+   * source order. Returns true if checking stopped before the end, like it would have on one
+   * thread.
+   */
+  private boolean checkDeferred(Errors allErrors) {
+    // The first one is checked on this thread.
+    List<ForkJoinTask<CheckedBody>> tasks = new ArrayList<>();
+    for (DeferredProcedure procedure : deferred.subList(1, deferred.size())) {
+      tasks.add(pool.submit(PhaseTimer.counted(() -> checkBody(procedure))));
+    }
+    ImmutableList<D2RuntimeException> mainErrors = errors.errors();
+    int next = 0;
+    try {
+      for (int i = 0; i < deferred.size(); ++i) {
+        DeferredProcedure procedure = deferred.get(i);
+        for (; next < procedure.errorsBefore; ++next) {
+          allErrors.add(mainErrors.get(next));
+        }
+        CheckedBody body = (i == 0) ? checkBody(procedure) : tasks.get(i - 1).join();
+        for (D2RuntimeException error : body.errors) {
+          allErrors.add(error);
+        }
+        if (body.stopped) {
+          tasks.forEach(task -> task.cancel(false));
+          return true;
+        }
+      }
+      for (; next < mainErrors.size(); ++next) {
+        allErrors.add(mainErrors.get(next));
+      }
+    } catch (D2RuntimeException e) {
+      // Too many errors.
+      tasks.forEach(task -> task.cancel(false));
+      return true;
+    }
+    return false;
+  }
+
+  private CheckedBody checkBody(DeferredProcedure procedure) {
+    StaticChecker checker = new StaticChecker(root, procedure.symbolTable, globals);
+    try {
+      procedure.node.accept(checker);
+    } catch (D2RuntimeException e) {
+      return new CheckedBody(checker.errors.errors(), true);
+    } catch (IllegalArgumentException e) {
+      e.printStackTrace();
+      return new CheckedBody(
+          ImmutableList.<D2RuntimeException>builder()
+              .addAll(checker.errors.errors())
+              .add(internalError(e))
+              .build(),
+          true);
+    }
+    return new CheckedBody(checker.errors.errors(), false);
   }
 
   @Override
@@ -789,6 +923,14 @@ public class StaticChecker extends DefaultNodeVisitor implements Phase {
   public void visit(ProcedureNode node) {
     // Add this procedure to the symbol table if it's a nested proc.
     Symbol sym = symbolTable.get(node.name());
+    if (pool != null
+        && procedures.isEmpty()
+        && sym instanceof ProcSymbol
+        && independentProcedures.isIndependent(node)) {
+      // Nothing after this depends on its body, so check it later.
+      deferred.add(new DeferredProcedure(node, symbolTable, errors.errors().size()));
+      return;
+    }
     boolean innerProc = sym == null;
     ProcSymbol procSymbol = null;
     if (sym == null) {
@@ -2,7 +2,6 @@ package com.plasstech.lang.d2.type;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
@@ -11,13 +10,23 @@ import com.plasstech.lang.d2.parse.node.ExternProcedureNode;
 import com.plasstech.lang.d2.parse.node.ProcedureNode;
 import com.plasstech.lang.d2.parse.node.RecordDeclarationNode;
 
-/** Symbol Table. */
+/**
+ * Symbol Table. The maps returned by {@link #entries}, {@link #variables}, {@link #procedures} and
+ * {@link #records} are built the first time they are asked for, and re-used until the next symbol
+ * is added, so code generators and optimizers can call them as often as they like.
+ */
 public class SymTab implements SymbolTable {
 
   private final Map<String, Symbol> values = new HashMap<>();
   private final SymbolTable parent;
   private final SymbolStorage storage;
 
+  // Views of values; all null until asked for, and after a symbol is added.
+  private ImmutableMap<String, Symbol> entries;
+  private ImmutableMap<String, Symbol> variables;
+  private ImmutableMap<String, ProcSymbol> procedures;
+  private ImmutableMap<String, RecordSymbol> records;
+
   public SymTab() {
     this.parent = null;
     this.storage = SymbolStorage.GLOBAL;
@@ -59,11 +68,17 @@ public class SymTab implements SymbolTable {
 
   @Override
   public Symbol getRecursive(String name) {
-    Symbol sym = values.get(name);
-    if (sym == null && parent != null) {
-      return parent.getRecursive(name);
+    SymTab table = this;
+    while (true) {
+      Symbol sym = table.values.get(name);
+      if (sym != null || table.parent == null) {
+        return sym;
+      }
+      if (!(table.parent instanceof SymTab)) {
+        return table.parent.getRecursive(name);
+      }
+      table = (SymTab) table.parent;
     }
-    return sym;
   }
 
   @Override
@@ -74,18 +89,63 @@ public class SymTab implements SymbolTable {
   /** Returns all symbols in this level of the table. */
   @Override
   public ImmutableMap<String, Symbol> entries() {
-    return ImmutableMap.copyOf(values);
+    if (entries == null) {
+      entries = ImmutableMap.copyOf(values);
+    }
+    return entries;
   }
 
   /** Returns all the variables in this level of the table. */
   @Override
   public ImmutableMap<String, Symbol> variables() {
-    return ImmutableMap.copyOf(
-        values
-            .entrySet()
-            .stream()
-            .filter(e -> e.getValue().isVariable())
-            .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue())));
+    if (variables == null) {
+      ImmutableMap.Builder<String, Symbol> builder = ImmutableMap.builder();
+      for (Map.Entry<String, Symbol> entry : values.entrySet()) {
+        if (entry.getValue().isVariable()) {
+          builder.put(entry);
+        }
+      }
+      variables = builder.build();
+    }
+    return variables;
+  }
+
+  @Override
+  public ImmutableMap<String, ProcSymbol> procedures() {
+    if (procedures == null) {
+      ImmutableMap.Builder<String, ProcSymbol> builder = ImmutableMap.builder();
+      for (Map.Entry<String, Symbol> entry : values.entrySet()) {
+        if (entry.getValue() instanceof ProcSymbol) {
+          builder.put(entry.getKey(), (ProcSymbol) entry.getValue());
+        }
+      }
+      procedures = builder.build();
+    }
+    return procedures;
+  }
+
+  @Override
+  public ImmutableMap<String, RecordSymbol> records() {
+    if (records == null) {
+      ImmutableMap.Builder<String, RecordSymbol> builder = ImmutableMap.builder();
+      for (Map.Entry<String, Symbol> entry : values.entrySet()) {
+        if (entry.getValue() instanceof RecordSymbol) {
+          builder.put(entry.getKey(), (RecordSymbol) entry.getValue());
+        }
+      }
+      records = builder.build();
+    }
+    return records;
+  }
+
+  /** Adds or replaces the symbol, and drops the views of the table. */
+  private void put(String name, Symbol symbol) {
+    if (values.put(name, symbol) != symbol) {
+      entries = null;
+      variables = null;
+      procedures = null;
+      records = null;
+    }
   }
 
   @Override
@@ -108,7 +168,7 @@ public class SymTab implements SymbolTable {
     ParamSymbol param = new ParamSymbol(name, index);
     param.setVarType(varType).setAssigned();
     maybeSetRecordSymbol(varType, param);
-    values.put(name, param);
+    put(name, param);
     return param;
   }
 
@@ -124,7 +184,7 @@ public class SymTab implements SymbolTable {
     }
     SymTab child = spawn();
     ExternProcSymbol procSymbol = new ExternProcSymbol(node, child);
-    values.put(node.name(), procSymbol);
+    put(node.name(), procSymbol);
     return procSymbol;
   }
 
@@ -140,7 +200,7 @@ public class SymTab implements SymbolTable {
     }
     SymTab child = spawn();
     ProcSymbol procSymbol = new ProcSymbol(node, child);
-    values.put(node.name(), procSymbol);
+    put(node.name(), procSymbol);
     return procSymbol;
   }
 
@@ -154,7 +214,7 @@ public class SymTab implements SymbolTable {
     // always creates a "local" symbol table.
     SymbolTable child = new SymTab(this, this.storage);
     blockSymbol = new BlockSymbol(node, child);
-    values.put(node.name(), blockSymbol);
+    put(node.name(), blockSymbol);
     return blockSymbol;
   }
 
@@ -169,7 +229,7 @@ public class SymTab implements SymbolTable {
           node.position());
     }
     RecordSymbol recordSymbol = new RecordSymbol(node);
-    values.put(node.name(), recordSymbol);
+    put(node.name(), recordSymbol);
     return recordSymbol;
   }
 
@@ -191,7 +251,7 @@ public class SymTab implements SymbolTable {
     VariableSymbol sym = createVariable(name, storage);
     maybeSetRecordSymbol(varType, sym);
     sym.setVarType(varType);
-    values.put(name, sym);
+    put(name, sym);
     return sym;
   }
 
@@ -220,7 +280,7 @@ public class SymTab implements SymbolTable {
     VariableSymbol variableSym = (VariableSymbol) sym;
     maybeSetRecordSymbol(varType, variableSym);
     sym.setAssigned();
-    values.put(name, sym);
+    put(name, sym);
     return variableSym;
   }
 
@@ -24,6 +24,12 @@ public interface SymbolTable {
   /** Returns all the variables in this level of the table. */
   ImmutableMap<String, Symbol> variables();
 
+  /** Returns all the procedures, including extern procedures, in this level of the table. */
+  ImmutableMap<String, ProcSymbol> procedures();
+
+  /** Returns all the records in this level of the table. */
+  ImmutableMap<String, RecordSymbol> records();
+
   VariableSymbol declareTemp(String name, VarType varType);
 
   ParamSymbol declareParam(String name, VarType varType, int index);
@@ -0,0 +1,196 @@
+package com.plasstech.lang.d2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.devtools.common.options.OptionsParser;
+import com.plasstech.lang.d2.CompilationCache.Artifact;
+import com.plasstech.lang.d2.common.D2Options;
+
+public class CompilationCacheTest {
+  private static final Artifact ARTIFACT = new Artifact(ImmutableList.of("main:", "  ret"));
+
+  private Path root;
+  private Path dir;
+  private CompilationCache cache;
+  private D2Options options;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Files.createTempDirectory("cache");
+    dir = root.resolve("d2");
+    cache = new CompilationCache(dir, 1024 * 1024, Duration.ofDays(1));
+    OptionsParser parser = OptionsParser.newOptionsParser(D2Options.class);
+    parser.parse();
+    options = parser.getOptions(D2Options.class);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    MoreFiles.deleteRecursively(root, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @Test
+  public void missThenHit() throws Exception {
+    HashCode key = CompilationCache.key("x=1", options);
+    assertThat(cache.get(key)).isEmpty();
+
+    cache.put(key, ARTIFACT);
+
+    Optional<Artifact> artifact = cache.get(key);
+    assertThat(artifact).isPresent();
+    assertThat(artifact.get().asmCode()).isEqualTo(ARTIFACT.asmCode());
+  }
+
+  @Test
+  public void keyDependsOnSourceAndOptions() {
+    HashCode key = CompilationCache.key("x=1", options);
+    assertThat(CompilationCache.key("x=1", options)).isEqualTo(key);
+    assertThat(CompilationCache.key("x=2", options)).isNotEqualTo(key);
+
+    options.optimize = !options.optimize;
+    assertThat(CompilationCache.key("x=1", options)).isNotEqualTo(key);
+    options.optimize = !options.optimize;
+    options.optimizeAsm = !options.optimizeAsm;
+    assertThat(CompilationCache.key("x=1", options)).isNotEqualTo(key);
+  }
+
+  @Test
+  public void timeBudgetIsNotCacheable() {
+    options.optimize = true;
+    assertThat(CompilationCache.cacheable(options)).isTrue();
+    options.optTimeBudgetMs = 10;
+    assertThat(CompilationCache.cacheable(options)).isFalse();
+    // The budget only limits the optimizer.
+    options.optimize = false;
+    assertThat(CompilationCache.cacheable(options)).isTrue();
+  }
+
+  @Test
+  public void fingerprintDependsOnCompilerClasses() throws Exception {
+    Path classes = root.resolve("classes");
+    Path compiler = classes.resolve("com/plasstech/lang/d2/Compiler.class");
+    Files.createDirectories(compiler.getParent());
+    Files.write(compiler, new byte[] {1, 2, 3});
+    Path other = classes.resolve("other/Other.class");
+    Files.createDirectories(other.getParent());
+    Files.write(other, new byte[] {1});
+    HashCode fingerprint = CompilationCache.fingerprint(ImmutableList.of(classes));
+    assertThat(CompilationCache.fingerprint(ImmutableList.of(classes))).isEqualTo(fingerprint);
+
+    Files.write(other, new byte[] {2});
+    assertThat(CompilationCache.fingerprint(ImmutableList.of(classes))).isEqualTo(fingerprint);
+
+    Files.write(compiler, new byte[] {1, 2, 4});
+    assertThat(CompilationCache.fingerprint(ImmutableList.of(classes))).isNotEqualTo(fingerprint);
+  }
+
+  @Test
+  public void fingerprintOfJar() throws Exception {
+    Path jar = root.resolve("compiler.jar");
+    writeJar(jar, new byte[] {1, 2, 3});
+    HashCode fingerprint = CompilationCache.fingerprint(ImmutableList.of(jar));
+    assertThat(CompilationCache.fingerprint(ImmutableList.of(jar))).isEqualTo(fingerprint);
+
+    writeJar(jar, new byte[] {1, 2, 4});
+    assertThat(CompilationCache.fingerprint(ImmutableList.of(jar))).isNotEqualTo(fingerprint);
+  }
+
+  @Test
+  public void longLines() throws Exception {
+    String line = Strings.repeat("é", 100_000);
+    HashCode key = CompilationCache.key("s='...'", options);
+    cache.put(key, new Artifact(ImmutableList.of(line)));
+    assertThat(cache.get(key).get().asmCode()).containsExactly(line);
+  }
+
+  @Test
+  public void expired() throws Exception {
+    HashCode key = CompilationCache.key("x=1", options);
+    cache.put(key, ARTIFACT);
+    File file = onlyFile();
+    age(file.toPath(), Duration.ofDays(2));
+
+    assertThat(cache.get(key)).isEmpty();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void corruptEntryIsAMiss() throws Exception {
+    HashCode key = CompilationCache.key("x=1", options);
+    cache.put(key, ARTIFACT);
+    File file = onlyFile();
+    Files.write(file.toPath(), new byte[] {1, 2, 3});
+
+    assertThat(cache.get(key)).isEmpty();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    // Each entry is about 40 bytes compressed.
+    cache = new CompilationCache(dir, 100, Duration.ofDays(1));
+    HashCode a = CompilationCache.key("a=1", options);
+    HashCode b = CompilationCache.key("b=1", options);
+    HashCode c = CompilationCache.key("c=1", options);
+    cache.put(a, ARTIFACT);
+    cache.put(b, ARTIFACT);
+    age(dir.resolve(a + ".d2c"), Duration.ofMinutes(2));
+    age(dir.resolve(b + ".d2c"), Duration.ofMinutes(3));
+    // Now a was used more recently than b.
+    cache.put(c, ARTIFACT);
+
+    assertThat(cache.get(a)).isPresent();
+    assertThat(cache.get(b)).isEmpty();
+    assertThat(cache.get(c)).isPresent();
+  }
+
+  @Test
+  public void evictsExpiredOnPut() throws Exception {
+    HashCode a = CompilationCache.key("a=1", options);
+    cache.put(a, ARTIFACT);
+    age(dir.resolve(a + ".d2c"), Duration.ofDays(3));
+    cache.put(CompilationCache.key("b=1", options), ARTIFACT);
+
+    assertThat(dir.resolve(a + ".d2c").toFile().exists()).isFalse();
+    assertThat(dir.toFile().list()).hasLength(1);
+  }
+
+  private File onlyFile() {
+    File[] files = dir.toFile().listFiles();
+    assertThat(files).hasLength(1);
+    return files[0];
+  }
+
+  private static void writeJar(Path jar, byte[] contents) throws IOException {
+    try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+      out.putNextEntry(new JarEntry("com/plasstech/lang/d2/Compiler.class"));
+      out.write(contents);
+      out.closeEntry();
+    }
+  }
+
+  private static void age(Path file, Duration age) throws IOException {
+    Files.setLastModifiedTime(
+        file, FileTime.fromMillis(System.currentTimeMillis() - age.toMillis()));
+  }
+}
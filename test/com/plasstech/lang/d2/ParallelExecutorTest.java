@@ -0,0 +1,114 @@
+package com.plasstech.lang.d2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.interpreter.InterpreterResult;
+import com.plasstech.lang.d2.interpreter.RingBufferSink;
+
+public class ParallelExecutorTest {
+  private static final String PROGRAM =
+      "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } "
+          + "r:record{a:int b:string} x=new r i=0 while i < 20 do i=i+1 { x.a=f(i) println x.a }";
+
+  private final CompiledProgram program =
+      new ProgramCache().get(CompilationConfiguration.create(PROGRAM));
+
+  @Test
+  public void runsAreIsolated() throws Exception {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 200; ++i) {
+      inputs.add(i);
+    }
+    List<InterpreterResult> results;
+    try (ParallelExecutor parallel = new ParallelExecutor(program, 8)) {
+      results =
+          parallel.executeAll(
+              inputs,
+              (input, executor) -> {
+                executor.setJitThreshold(input % 3 == 0 ? 0 : 50);
+                if (input % 10 == 0) {
+                  // Each run has its own budget.
+                  executor.setMaxIterations(100);
+                }
+              });
+    }
+    InterpreterResult expected = new InterpreterExecutor(PROGRAM).execute();
+    for (int i = 0; i < results.size(); ++i) {
+      InterpreterResult result = results.get(i);
+      if (i % 10 == 0) {
+        assertThat(result.budgetExhausted()).isTrue();
+      } else {
+        assertThat(result.budgetExhausted()).isFalse();
+        assertThat(result.environment().output()).isEqualTo(expected.environment().output());
+        assertThat(result.instructionCycles()).isEqualTo(expected.instructionCycles());
+        assertThat(result.calls()).isEqualTo(expected.calls());
+      }
+    }
+  }
+
+  @Test
+  public void separateOutputSinks() throws Exception {
+    List<RingBufferSink> sinks = new ArrayList<>();
+    for (int i = 0; i < 50; ++i) {
+      sinks.add(new RingBufferSink(2));
+    }
+    try (ParallelExecutor parallel = new ParallelExecutor(program, 4)) {
+      parallel.executeAll(sinks, (sink, executor) -> executor.setOutputSink(sink));
+    }
+    for (RingBufferSink sink : sinks) {
+      assertThat(sink.contents()).containsExactly("4181", "\n").inOrder();
+      assertThat(sink.written()).isEqualTo(40);
+    }
+  }
+
+  @Test
+  public void errorIsThrown() throws Exception {
+    try (ParallelExecutor parallel = new ParallelExecutor(program, 2)) {
+      List<Integer> inputs = List.of(1000, 5, 1000);
+      D2RuntimeException exception =
+          assertThrows(
+              D2RuntimeException.class,
+              () ->
+                  parallel.executeAll(
+                      inputs, (depth, executor) -> executor.setMaxCallDepth(depth)));
+      assertThat(exception).hasMessageThat().contains("Stack overflow");
+    }
+  }
+
+  /** Stress test: many runs on several threads all finish, with the same results as on one. */
+  @Test
+  public void manyThreadsAgree() throws Exception {
+    List<Integer> inputs = new ArrayList<>();
+    for (int i = 0; i < 400; ++i) {
+      inputs.add(i);
+    }
+    List<InterpreterResult> single = runAll(1, inputs);
+    List<InterpreterResult> parallel = runAll(4, inputs);
+    assertThat(single).hasSize(inputs.size());
+    assertThat(parallel).hasSize(inputs.size());
+    InterpreterResult expected = single.get(0);
+    for (List<InterpreterResult> results : List.of(single, parallel)) {
+      for (InterpreterResult result : results) {
+        assertThat(result.budgetExhausted()).isFalse();
+        assertThat(result.environment().output()).isEqualTo(expected.environment().output());
+        assertThat(result.instructionCycles()).isEqualTo(expected.instructionCycles());
+        assertThat(result.calls()).isEqualTo(expected.calls());
+      }
+    }
+  }
+
+  private List<InterpreterResult> runAll(int threads, List<Integer> inputs) throws Exception {
+    try (ParallelExecutor parallel = new ParallelExecutor(program, threads)) {
+      return parallel.executeAll(inputs, (input, executor) -> {});
+    }
+  }
+}
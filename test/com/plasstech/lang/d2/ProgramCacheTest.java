@@ -0,0 +1,123 @@
+package com.plasstech.lang.d2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.interpreter.CompiledProgram;
+import com.plasstech.lang.d2.interpreter.InterpreterResult;
+
+public class ProgramCacheTest {
+  private static final String FIB =
+      "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } x=f(15) println x";
+
+  private ProgramCache cache = new ProgramCache(2);
+
+  @Test
+  public void hit() {
+    CompiledProgram first = cache.get(CompilationConfiguration.create(FIB));
+    CompiledProgram second = cache.get(CompilationConfiguration.create(FIB));
+    assertThat(second).isSameInstanceAs(first);
+    assertThat(cache.stats().hitCount()).isEqualTo(1);
+    assertThat(cache.stats().missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void optimizeIsPartOfKey() {
+    CompiledProgram plain = cache.get(CompilationConfiguration.create(FIB));
+    CompiledProgram optimized =
+        cache.get(CompilationConfiguration.builder().setSourceCode(FIB).setOptimize(true).build());
+    assertThat(optimized).isNotSameInstanceAs(plain);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void optimizerLimitsArePartOfKey() {
+    cache = new ProgramCache(3);
+    CompiledProgram optimized =
+        cache.get(CompilationConfiguration.builder().setSourceCode(FIB).setOptimize(true).build());
+    CompiledProgram onePass =
+        cache.get(
+            CompilationConfiguration.builder()
+                .setSourceCode(FIB)
+                .setOptimize(true)
+                .setOptMaxPasses(1)
+                .build());
+    CompiledProgram shortBudget =
+        cache.get(
+            CompilationConfiguration.builder()
+                .setSourceCode(FIB)
+                .setOptimize(true)
+                .setOptTimeBudgetMs(1)
+                .build());
+    assertThat(onePass).isNotSameInstanceAs(optimized);
+    assertThat(shortBudget).isNotSameInstanceAs(optimized);
+    assertThat(shortBudget).isNotSameInstanceAs(onePass);
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    CompiledProgram a = cache.get(CompilationConfiguration.create("a=1"));
+    cache.get(CompilationConfiguration.create("b=1"));
+    cache.get(CompilationConfiguration.create("a=1"));
+    cache.get(CompilationConfiguration.create("c=1"));
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.stats().evictionCount()).isEqualTo(1);
+    assertThat(cache.get(CompilationConfiguration.create("a=1"))).isSameInstanceAs(a);
+  }
+
+  @Test
+  public void maxOps() {
+    ProgramCache small = ProgramCache.withMaxOps(1);
+    small.get(CompilationConfiguration.create("a=1 b=2 c=3"));
+    assertThat(small.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void errorsAreThrownAndNotCached() {
+    assertThrows(
+        D2RuntimeException.class, () -> cache.get(CompilationConfiguration.create("a=b")));
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void executorUsesCache() {
+    for (int i = 0; i < 3; ++i) {
+      InterpreterResult result =
+          new InterpreterExecutor(FIB).setProgramCache(cache).setJitThreshold(10).execute();
+      assertThat(result.environment().output()).containsExactly("610", "\n").inOrder();
+    }
+    assertThat(cache.stats().missCount()).isEqualTo(1);
+    assertThat(cache.stats().hitCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void concurrentRuns() throws Exception {
+    CompiledProgram program = cache.get(CompilationConfiguration.create(FIB));
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<InterpreterResult>> futures = new ArrayList<>();
+      for (int i = 0; i < 16; ++i) {
+        futures.add(
+            pool.submit(() -> new InterpreterExecutor(FIB).setJitThreshold(10).execute(program)));
+      }
+      for (Future<InterpreterResult> future : futures) {
+        InterpreterResult result = future.get();
+        assertThat(result.environment().getValue("x")).isEqualTo(610);
+        assertThat(result.environment().output()).containsExactly("610", "\n").inOrder();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
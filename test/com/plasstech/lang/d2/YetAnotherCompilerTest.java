@@ -1,11 +1,15 @@
 package com.plasstech.lang.d2;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.plasstech.lang.d2.common.CompilationConfiguration;
 import com.plasstech.lang.d2.phase.PhaseName;
+import com.plasstech.lang.d2.phase.PhaseStats;
 import com.plasstech.lang.d2.phase.State;
 
 public class YetAnotherCompilerTest {
@@ -21,4 +25,60 @@ public class YetAnotherCompilerTest {
     assertThat(result.error()).isTrue();
     assertThat(result.errorMessage()).contains("Illegal variable name _hi");
   }
+
+  @Test
+  public void phaseStats() {
+    CompilationConfiguration config = CompilationConfiguration.builder()
+        .setSourceCode("f: proc(a: int): int { return a + 1 } println f(2)")
+        .setOptimize(true)
+        .build();
+    State result = yac.compile(config);
+
+    assertThat(result.phaseStats().stream().map(PhaseStats::name).collect(toImmutableList()))
+        .containsExactly("PARSE", "TYPE_CHECK", "IL_CODEGEN", "IL_OPTIMIZE")
+        .inOrder();
+    PhaseStats parse = result.phaseStats().get(0);
+    assertThat(parse.sizes().keySet()).containsExactly("tokens", "nodes").inOrder();
+    // f : proc ( a : int ) : int { return a + 1 } println f ( 2 ) EOF
+    assertThat(parse.sizes().get("tokens")).isEqualTo(22);
+    assertThat(parse.sizes().get("nodes")).isGreaterThan(5L);
+    assertThat(result.phaseStats().get(2).sizes())
+        .containsExactly("ops", (long) result.ilCode().size());
+    assertThat(result.phaseStats().get(3).sizes())
+        .containsExactly("ops", (long) result.optimizedIlCode().size());
+    for (PhaseStats stats : result.phaseStats()) {
+      assertThat(stats.wallNanos()).isAtLeast(0);
+    }
+  }
+
+  @Test
+  public void phaseStatsUntilError() {
+    CompilationConfiguration config = CompilationConfiguration.builder()
+        .setExpectedErrorPhase(PhaseName.TYPE_CHECK)
+        .setSourceCode("a = 3 a = 'hi'")
+        .build();
+    State result = yac.compile(config);
+
+    assertThat(result.phaseStats()).hasSize(2);
+    PhaseStats typeCheck = result.phaseStats().get(1);
+    assertThat(typeCheck.name()).isEqualTo("TYPE_CHECK");
+    assertThat(typeCheck.sizes()).isEmpty();
+  }
+
+  @Test
+  public void statsTable() {
+    String table =
+        PhaseStats.table(
+            ImmutableList.of(
+                PhaseStats.create("PARSE", 2_000_000, 1_000_000, 4096, ImmutableMap.of(
+                    "tokens", 1234L, "nodes", 56L)),
+                PhaseStats.create("nasm", 3_000_000, PhaseStats.UNKNOWN, PhaseStats.UNKNOWN,
+                    ImmutableMap.of())));
+
+    assertThat(table).contains("1,234 tokens, 56 nodes");
+    assertThat(table).containsMatch("PARSE +2\\.0 +1\\.0 +4 ");
+    assertThat(table).containsMatch("nasm +3\\.0 +- +- ");
+    // Unknown CPU time makes the total unknown too.
+    assertThat(table).containsMatch("total +5\\.0 +- +-");
+  }
 }
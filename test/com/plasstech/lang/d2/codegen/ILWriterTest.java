@@ -0,0 +1,180 @@
+package com.plasstech.lang.d2.codegen;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.InterpreterExecutor;
+import com.plasstech.lang.d2.YetAnotherCompiler;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.Position;
+import com.plasstech.lang.d2.phase.State;
+import com.plasstech.lang.d2.testing.TestUtils;
+import com.plasstech.lang.d2.type.SymbolTable;
+import com.plasstech.lang.d2.type.VarType;
+
+public class ILWriterTest {
+  private static final String ALL_KINDS =
+      "r: record {i: int s: string a: double[3]}\n"
+          + "f: proc(n: int, s: string): string {\n"
+          + "  total = 0L b = 0y01 d = 1.5\n"
+          + "  i = 0 while i < n do i = i + 1 {\n"
+          + "    total = total + 3000000000L b = b + 0y01 d = d * 2.0\n"
+          + "  }\n"
+          + "  println total println b println d\n"
+          + "  return s + '\u00e9\\n'\n"
+          + "}\n"
+          + "x = new r x.i = 3 x.s = 'hi' fa = x.a fa[1] = -2.5\n"
+          + "arr = [1, 2, 3] arr[0] = -7\n"
+          + "n: string n = null\n"
+          + "println f(x.i, x.s) println arr println n == null println fa[1]\n"
+          + "println not (x.i > 2) println -x.i\n";
+
+  @Test
+  public void roundTrip() {
+    State state = assertRoundTrip(ALL_KINDS, false);
+    assertThat(run(ILReader.read(ILWriter.write(state)))).isEqualTo(run(state));
+  }
+
+  @Test
+  public void roundTripOptimized() {
+    State state = assertRoundTrip(ALL_KINDS, true);
+    assertThat(run(ILReader.read(ILWriter.write(state)))).isEqualTo(run(state));
+  }
+
+  @Test
+  public void linkedList() {
+    State state = assertRoundTrip(TestUtils.LINKED_LIST, true);
+    assertThat(run(ILReader.read(ILWriter.write(state)))).isEqualTo(run(state));
+  }
+
+  @Test
+  public void symbolTable() {
+    State state = assertRoundTrip(ALL_KINDS, false);
+    State loaded = ILReader.read(ILWriter.write(state));
+
+    SymbolTable symbolTable = loaded.symbolTable();
+    assertThat(symbolTable.records().keySet()).containsExactly("r");
+    assertThat(symbolTable.records().get("r").fieldNames()).containsExactly("i", "s", "a");
+    assertThat(symbolTable.procedures().keySet()).containsExactly("f");
+    assertThat(symbolTable.procedures().get("f").returnType()).isEqualTo(VarType.STRING);
+    assertThat(symbolTable.procedures().get("f").formals()).hasSize(2);
+    assertThat(symbolTable.variables().keySet()).containsAtLeast("x", "arr", "n", "fa");
+    assertThat(symbolTable.lookup("x").isRecord()).isTrue();
+  }
+
+  @Test
+  public void samples() throws Exception {
+    List<Path> samples;
+    try (Stream<Path> files = Files.list(Paths.get("samples"))) {
+      samples =
+          files
+              .filter(path -> path.toString().endsWith(".d"))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    assertThat(samples).isNotEmpty();
+    for (Path sample : samples) {
+      String text = new String(Files.readAllBytes(sample), StandardCharsets.UTF_8);
+      for (boolean optimize : new boolean[] {false, true}) {
+        State state = compile(text, optimize);
+        if (!state.error()) {
+          assertRoundTrip(state);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void smallerThanText() {
+    State state = compile(TestUtils.LINKED_LIST, false);
+    int textSize = 0;
+    for (Op op : state.lastIlCode()) {
+      textSize += op.toString().length() + 1;
+    }
+    assertThat(ILWriter.write(state).length).isLessThan(textSize * 2 / 3);
+  }
+
+  @Test
+  public void notIl() {
+    assertThrows(IllegalArgumentException.class, () -> ILReader.read(new byte[0]));
+    assertThrows(
+        IllegalArgumentException.class, () -> ILReader.read("hello world".getBytes()));
+  }
+
+  @Test
+  public void truncated() {
+    byte[] bytes = ILWriter.write(compile(ALL_KINDS, false));
+    for (int length = 0; length < bytes.length; length += 7) {
+      byte[] truncated = Arrays.copyOf(bytes, length);
+      assertThrows(IllegalArgumentException.class, () -> ILReader.read(truncated));
+    }
+  }
+
+  @Test
+  public void otherVersion() {
+    byte[] bytes = ILWriter.write(compile("println 3", false));
+    // The version comes right after the magic number.
+    bytes[4]++;
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> ILReader.read(bytes));
+    assertThat(e).hasMessageThat().contains("version");
+  }
+
+  private static State compile(String program, boolean optimize) {
+    return new YetAnotherCompiler()
+        .compile(
+            CompilationConfiguration.builder()
+                .setSourceCode(program)
+                .setOptimize(optimize)
+                .build());
+  }
+
+  private static State assertRoundTrip(String program, boolean optimize) {
+    State state = compile(program, optimize);
+    assertWithMessage(state.error() ? state.errorMessage() : "").that(state.error()).isFalse();
+    assertRoundTrip(state);
+    return state;
+  }
+
+  private static void assertRoundTrip(State state) {
+    byte[] bytes = ILWriter.write(state);
+    State loaded = ILReader.read(bytes);
+
+    ImmutableList<Op> expected = state.lastIlCode();
+    ImmutableList<Op> actual = loaded.lastIlCode();
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      Op expectedOp = expected.get(i);
+      Op actualOp = actual.get(i);
+      assertThat(actualOp.getClass()).isEqualTo(expectedOp.getClass());
+      assertThat(actualOp.toString()).isEqualTo(expectedOp.toString());
+      assertWithMessage("position of %s", expectedOp)
+          .that(toString(actualOp.position()))
+          .isEqualTo(toString(expectedOp.position()));
+    }
+    // Writing it again gives the same bytes.
+    assertThat(ILWriter.write(loaded)).isEqualTo(bytes);
+  }
+
+  private static String toString(Position position) {
+    return position == null ? null : position.toString();
+  }
+
+  private static List<String> run(State state) {
+    return new InterpreterExecutor("").execute(state).environment().output();
+  }
+}
@@ -27,6 +27,48 @@ public class D2OptionsTest {
     assertThat(options.target).isEqualTo(Target.t100);
   }
 
+  @Test
+  public void engineFlag() throws Exception {
+    optionsParser.parse(ImmutableList.of("--engine=classic"));
+    D2Options options = optionsParser.getOptions(D2Options.class);
+    assertThat(options.engine).isEqualTo(InterpreterEngine.CLASSIC);
+  }
+
+  @Test
+  public void interpreterDefaults() throws Exception {
+    optionsParser.parse(ImmutableList.of("filename"));
+    D2Options options = optionsParser.getOptions(D2Options.class);
+    assertThat(options.engine).isEqualTo(InterpreterEngine.THREADED);
+    assertThat(options.maxIterations).isEqualTo(10000000);
+    assertThat(options.maxCallDepth).isEqualTo(100000);
+    assertThat(options.jitThreshold).isEqualTo(1000);
+    assertThat(options.profile).isFalse();
+  }
+
+  @Test
+  public void maxCallDepthFlag() throws Exception {
+    optionsParser.parse(ImmutableList.of("--max-call-depth=50"));
+    D2Options options = optionsParser.getOptions(D2Options.class);
+    assertThat(options.maxCallDepth).isEqualTo(50);
+  }
+
+  @Test
+  public void jitThresholdFlag() throws Exception {
+    optionsParser.parse(ImmutableList.of("--jit-threshold=0"));
+    D2Options options = optionsParser.getOptions(D2Options.class);
+    assertThat(options.jitThreshold).isEqualTo(0);
+  }
+
+  @Test
+  public void profileFlags() throws Exception {
+    optionsParser.parse(
+        ImmutableList.of("--max-iterations=0", "--profile", "--profile-stacks=out.txt"));
+    D2Options options = optionsParser.getOptions(D2Options.class);
+    assertThat(options.maxIterations).isEqualTo(0);
+    assertThat(options.profile).isTrue();
+    assertThat(options.profileStacks).isEqualTo("out.txt");
+  }
+
   @Test
   public void libsFlag() throws Exception {
     String[] args = {"--libs", "dlib.obj"};
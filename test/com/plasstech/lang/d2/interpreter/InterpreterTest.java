@@ -1,6 +1,19 @@
 package com.plasstech.lang.d2.interpreter;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,6 +23,9 @@ import com.google.testing.junit.testparameterinjector.TestParameter;
 import com.google.testing.junit.testparameterinjector.TestParameterInjector;
 import com.plasstech.lang.d2.InterpreterExecutor;
 import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.common.InterpreterEngine;
+import com.plasstech.lang.d2.testing.TestUtils;
 
 @RunWith(TestParameterInjector.class)
 public class InterpreterTest {
@@ -156,6 +172,38 @@ public class InterpreterTest {
     assertThat(env.getValue("x")).isEqualTo(55);
   }
 
+  @Test
+  public void globalReadInRecursion(@TestParameter boolean optimize) {
+    Environment env =
+        execute(
+            "      g=3 "
+                + "f:proc(n:int):int { "
+                + "  if n==0 { return g } "
+                + "  x=f(n-1) "
+                + "  return x+g "
+                + "} "
+                + "y=f(10)",
+            optimize);
+    assertThat(env.getValue("y")).isEqualTo(33);
+    assertThat(env.getValue("x")).isNull();
+  }
+
+  @Test
+  public void localsAreInTheirOwnFrame() {
+    Environment env =
+        execute(
+            "      f:proc(n:int):int { "
+                + "  a=n*2 "
+                + "  if n > 0 { b=f(n-1) return a+b } "
+                + "  return a "
+                + "} "
+                + "a=1 "
+                + "c=f(3)");
+    assertThat(env.getValue("a")).isEqualTo(1);
+    assertThat(env.getValue("c")).isEqualTo(6 + 4 + 2);
+    assertThat(env.variables()).doesNotContainKey("n");
+  }
+
   @Test
   public void stringIndex() {
     Environment env = execute("a='hi' b=a[1]");
@@ -217,6 +265,25 @@ public class InterpreterTest {
     assertThat(env.output()).containsExactly("true");
   }
 
+  @Test
+  public void numericArraySet(@TestParameter boolean optimize) {
+    Environment env =
+        execute(
+            "a:double[2] a[1]=2.5 b:long[3] b[2]=3L c:byte[2] c[0]=0y7f "
+                + "d=a[1]+1.0 e=b[2]*2L f=c[0]+0y1 g=length(b) h=a==a println a[1]",
+            optimize);
+    assertThat(env.getValue("a")).isEqualTo(new Double[] {0.0, 2.5});
+    assertThat(env.getValue("b")).isEqualTo(new Long[] {0L, 0L, 3L});
+    assertThat(env.getValue("c")).isEqualTo(new Byte[] {0x7f, 0});
+    assertThat(env.getValue("d")).isEqualTo(3.5);
+    assertThat(env.getValue("e")).isEqualTo(6L);
+    assertThat(env.getValue("f")).isEqualTo((byte) 0x80);
+    assertThat(env.getValue("g")).isEqualTo(3);
+    assertThat(env.getValue("h")).isEqualTo(true);
+    assertThat(env.variables().get("b")).isEqualTo(new Long[] {0L, 0L, 3L});
+    assertThat(env.output()).containsExactly("2.5", "\n");
+  }
+
   @Test
   public void compareString() {
     Environment env =
@@ -362,6 +429,34 @@ public class InterpreterTest {
     assertThat(env.getValue("p")).isNotNull();
   }
 
+  @Test
+  public void recordEquality(@TestParameter InterpreterEngine engine) {
+    InterpreterResult result =
+        new InterpreterExecutor(
+                "      r: record { i: int s: string}\n"
+                    + "x = new r y = new r z = new r\n"
+                    + "x.i = 3 y.i = 3 z.i = 4\n"
+                    + "x.s = 'hi' y.s = 'h' + 'i'\n"
+                    + "same = x == y diff = x == z notnull = x != null\n"
+                    + "xs = x.s println x")
+            .setEngine(engine)
+            .execute();
+    Environment env = result.environment();
+    assertThat(env.getValue("same")).isEqualTo(true);
+    assertThat(env.getValue("diff")).isEqualTo(false);
+    assertThat(env.getValue("notnull")).isEqualTo(true);
+    assertThat(env.getValue("xs")).isEqualTo("hi");
+    assertThat(env.output()).containsExactly("null", "\n").inOrder();
+  }
+
+  @Test
+  public void recordNullDereference(@TestParameter InterpreterEngine engine) {
+    InterpreterExecutor ee =
+        new InterpreterExecutor("r: record { i: int } x: r x = null y = x.i").setEngine(engine);
+    D2RuntimeException exception = assertThrows(D2RuntimeException.class, ee::execute);
+    assertThat(exception).hasMessageThat().contains("Dereferencing null record");
+  }
+
   @Test
   public void nullTest() {
     Environment env = execute("a = null println a==null");
@@ -427,6 +522,539 @@ public class InterpreterTest {
     execute("a=3.24 b=a print b print a", true);
   }
 
+  @Test
+  public void enginesAgree(
+      @TestParameter({
+            "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } x=f(15) println x",
+            "a:int[5] i=0 while i < 5 do i=i+1 { a[i]=i*i } println a s=a[1]+a[4]",
+            "r: record{i:int s:string} x=new r x.i=3 x.s='hi' y=x.s+'!' println y",
+            "r: record{i:int n:r} x=new r x.n=new r t=x.n t.i=4 y=x.n.i z=x.n.n==null w=x==x.n",
+            "p:proc(s:string) { println s + s } p('ab') q=null b=q==null",
+            "m:proc():double { d=1.5 return d*2.0 } e=m() l=3L*4L by=0y10+0y2",
+            "f:proc(n:int):int { if n > 3 { exit 'done' } return f(n+1) } println f(0)",
+            "a=2147483647 b=a+1 c=-b d=!a e=a<<3 f=a>>2 g=a/-7 h=a%10 i=a&255 j=a|256 k=a^a",
+            "a=0y7f b=a+0y1 c=-b d=!a e=a<<0y2 f=a>>0y1 g=a*0y3 h=a%0y10 i=b<a j=a==a",
+            "a=9223372036854775807L b=a+1L c=b-1L d=a/3L e=a%7L f=a>>3L g=!a h=a>b",
+            "a=3.5 b=a*2.0 c=b/0.0 d=-a e=a>b f=a<=b g=a==3.5 h=b-a i=a+b",
+            "a=true b=false c=a and b d=a or b e=a xor b f=not a g=a>b h=a<=b i=a==b j=a!=b",
+            "p:proc(x:int, y:double, z:bool):long { if z {return 1L} return 2L } a=p(1,2.0,false)",
+            "i=0 j:byte j=0y0 while i < 300 do i=i+1 { j=j+0y1 } k=j"
+          })
+          String program,
+      @TestParameter boolean optimize) {
+    InterpreterResult classic = executeWith(program, optimize, InterpreterEngine.CLASSIC);
+    InterpreterResult threaded = executeWith(program, optimize, InterpreterEngine.THREADED);
+    assertThat(threaded.environment().output()).isEqualTo(classic.environment().output());
+    assertThat(printable(threaded.environment().variables()))
+        .isEqualTo(printable(classic.environment().variables()));
+    assertThat(threaded.instructionCycles()).isEqualTo(classic.instructionCycles());
+    assertThat(threaded.calls()).isEqualTo(classic.calls());
+    assertThat(threaded.gotos()).isEqualTo(classic.gotos());
+    assertThat(threaded.branchesTaken()).isEqualTo(classic.branchesTaken());
+  }
+
+  @Test
+  public void budgetExhausted(@TestParameter InterpreterEngine engine) {
+    InterpreterResult result =
+        new InterpreterExecutor("i=0 while true do i=i+1 {}")
+            .setEngine(engine)
+            .setMaxIterations(1000)
+            .execute();
+    assertThat(result.budgetExhausted()).isTrue();
+    assertThat((Integer) result.environment().getValue("i")).isGreaterThan(100);
+  }
+
+  @Test
+  public void budgetUnlimited(@TestParameter InterpreterEngine engine) {
+    InterpreterResult result =
+        new InterpreterExecutor("i=0 while i < 1000 do i=i+1 {}")
+            .setEngine(engine)
+            .setMaxIterations(Interpreter.UNLIMITED)
+            .execute();
+    assertThat(result.budgetExhausted()).isFalse();
+    assertThat(result.environment().getValue("i")).isEqualTo(1000);
+  }
+
+  @Test
+  public void enginesStopAtSameBudget(
+      @TestParameter({
+            "i=0 while true do i=i+1 { println i }",
+            "f:proc(n:int):int { println n return n+1 } i=0 while true { i=f(i) if i<0 {break}}",
+            "a:int[10] i=0 while true do i=(i+1)%10 { a[i]=a[i]+i print a[i] }"
+          })
+          String program,
+      @TestParameter boolean optimize) {
+    for (int budget = 1; budget < 300; ++budget) {
+      InterpreterResult classic =
+          executeWith(program, optimize, InterpreterEngine.CLASSIC, budget);
+      InterpreterResult threaded =
+          executeWith(program, optimize, InterpreterEngine.THREADED, budget);
+      assertThat(threaded.budgetExhausted()).isTrue();
+      assertThat(classic.budgetExhausted()).isTrue();
+      assertThat(threaded.environment().output()).isEqualTo(classic.environment().output());
+      assertThat(printable(threaded.environment().variables()))
+          .isEqualTo(printable(classic.environment().variables()));
+    }
+  }
+
+  @Test
+  public void stackOverflow(@TestParameter InterpreterEngine engine) {
+    InterpreterExecutor ee =
+        new InterpreterExecutor("f:proc(n:int):int { return f(n+1) } println f(0)")
+            .setEngine(engine)
+            .setMaxCallDepth(1000);
+    D2RuntimeException exception = assertThrows(D2RuntimeException.class, ee::execute);
+    assertThat(exception).hasMessageThat().contains("Stack overflow");
+  }
+
+  @Test
+  public void jitStackOverflow(
+      @TestParameter({
+            "f:proc(n:int):int { return f(n+1) } println f(0)",
+            "f:proc(n:int):int { return g(n+1) } g:proc(n:int):int { return f(n+1) } println f(0)"
+          })
+          String program)
+      throws InterruptedException {
+    InterpreterExecutor ee =
+        new InterpreterExecutor(program)
+            .setEngine(InterpreterEngine.THREADED)
+            .setJitThreshold(1)
+            .setMaxCallDepth(Interpreter.UNLIMITED);
+    // Compiled calls nest JVM calls, so a small stack runs out before the call depth limit.
+    AtomicReference<Throwable> thrown = new AtomicReference<>();
+    Thread thread =
+        new Thread(
+            null,
+            () -> {
+              try {
+                ee.execute();
+              } catch (Throwable t) {
+                thrown.set(t);
+              }
+            },
+            "small stack",
+            128 * 1024);
+    thread.start();
+    thread.join();
+    assertThat(thrown.get()).isInstanceOf(D2RuntimeException.class);
+    assertThat(thrown.get()).hasMessageThat().contains("Stack overflow");
+  }
+
+  @Test
+  public void deepRecursion(@TestParameter InterpreterEngine engine) {
+    InterpreterResult result =
+        new InterpreterExecutor(
+                "f:proc(n:int):int { if n == 0 { return 0 } return 1 + f(n-1) } "
+                    + "a=f(1000) b=f(10) c=f(1000)")
+            .setEngine(engine)
+            .setMaxCallDepth(1001)
+            .execute();
+    assertThat(result.environment().getValue("a")).isEqualTo(1000);
+    assertThat(result.environment().getValue("b")).isEqualTo(10);
+    assertThat(result.environment().getValue("c")).isEqualTo(1000);
+  }
+
+  @Test
+  public void jitAgrees(
+      @TestParameter({
+            "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } x=f(15) println x",
+            "f:proc(n:long):long { s=0L i=0L while i < n do i=i+1L { s=s+i*i } return s } "
+                + "x=0L j=0 while j < 5 do j=j+1 { x=f(100L) } println x",
+            "f:proc(d:double):double { if d < 1.0 { return d } return f(d/2.0) + 1.5 } "
+                + "x=f(1000.0) y=-x println x",
+            "f:proc(b:byte):byte { c=b*0y3 return c>>0y1 } i=0 while i < 10 do i=i+1 { x=f(0y40) }",
+            "f:proc(s:string, n:int):string { if n == 0 { return s } return f(s+'x', n-1) } "
+                + "println f('a', 5)",
+            "f:proc(n:int) { if n > 0 { print n f(n-1) } } f(5) println ''",
+            "g=0 f:proc(n:int) { g=g+n i=0 while i < n do i=i+1 { g=g+1 } } f(3) f(4) println g",
+            "r: record{i:int n:r} f:proc(x:r, n:int):r { if n == 0 { return x } y=new r "
+                + "y.n=x y.i=n return f(y, n-1) } l=f(null, 5) println l.i println l.n.i",
+            "f:proc(a:int[], n:int):int { if n < 0 { return 0 } return a[n] + f(a, n-1) } "
+                + "a:int[4] a[2]=3 a[3]=4 x=f(a, 3)",
+            "f:proc(n:int):int { if n > 3 { exit 'done' } return f(n+1) } println f(0)",
+            "e:proc(n:int):bool { if n == 0 { return true } return o(n-1) } "
+                + "o:proc(n:int):bool { if n == 0 { return false } return e(n-1) } x=e(10) y=o(7)",
+            "f:proc(a:bool, b:bool):bool { return (a and not b) or (a xor b) } "
+                + "w=f(true,true) x=f(true,false) y=f(false,true) z=f(false,false)",
+            "f:proc(n:int):int { x=n i=n while i > 0 do i=i-1 { x=x*3%1000+i<<1 } return x } "
+                + "y=f(10) z=f(20)",
+            "f:proc(n:int):long { if n == 0 { return 1L } return f(n-1) * 3L } x=f(30)",
+            "f:proc(n:int):int { if n > 2 { return n } return f(n+1) } x=f(0) y=f(10)"
+          })
+          String program,
+      @TestParameter boolean optimize) {
+    CompilationConfiguration config =
+        CompilationConfiguration.builder().setSourceCode(program).setOptimize(optimize).build();
+    InterpreterResult interpreted =
+        new InterpreterExecutor(config).setJitThreshold(ThreadedInterpreter.NO_JIT).execute();
+    InterpreterResult compiled = new InterpreterExecutor(config).setJitThreshold(1).execute();
+    assertThat(compiled.environment().output()).isEqualTo(interpreted.environment().output());
+    assertThat(printable(compiled.environment().variables()))
+        .isEqualTo(printable(interpreted.environment().variables()));
+    assertThat(compiled.instructionCycles()).isEqualTo(interpreted.instructionCycles());
+    assertThat(compiled.calls()).isEqualTo(interpreted.calls());
+    assertThat(compiled.gotos()).isEqualTo(interpreted.gotos());
+    assertThat(compiled.branchesTaken()).isEqualTo(interpreted.branchesTaken());
+    assertThat(compiled.branchesNotTaken()).isEqualTo(interpreted.branchesNotTaken());
+  }
+
+  @Test
+  public void jitCompilesHotProcedure() {
+    InterpreterExecutor ee =
+        new InterpreterExecutor(
+            "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } x=f(20)");
+    ee.execute();
+    ThreadedInterpreter interpreter = new ThreadedInterpreter(ee.state(), false);
+    interpreter.setJitThreshold(100);
+    InterpreterResult result = interpreter.execute();
+    assertThat(result.environment().getValue("x")).isEqualTo(6765);
+    assertThat(interpreter.code().procedures().get("f").isCompiled()).isTrue();
+  }
+
+  @Test
+  public void jitBudgetExhausted() {
+    InterpreterResult result =
+        new InterpreterExecutor(
+                "g=0 f:proc() { while true do g=g+1 {} } i=0 while i < 10 do i=i+1 { g=-1 }  f()")
+            .setJitThreshold(1)
+            .setMaxIterations(1000)
+            .execute();
+    assertThat(result.budgetExhausted()).isTrue();
+    assertThat((Integer) result.environment().getValue("g")).isGreaterThan(100);
+  }
+
+  @Test
+  public void jitDeepRecursion() {
+    InterpreterResult result =
+        new InterpreterExecutor(
+                "f:proc(n:int):int { if n == 0 { return 0 } return 1 + f(n-1) } a=f(5000)")
+            .setJitThreshold(1)
+            .setMaxIterations(Interpreter.UNLIMITED)
+            .execute();
+    assertThat(result.environment().getValue("a")).isEqualTo(5000);
+  }
+
+  /** The ways of running a program: each engine, and the threaded one compiling everything. */
+  enum Runner {
+    CLASSIC,
+    THREADED,
+    JIT
+  }
+
+  @Test
+  public void nestedProcedure(@TestParameter Runner runner, @TestParameter boolean optimize) {
+    InterpreterResult result =
+        run(
+            "outer: proc(x: int): int { inner: proc(y: int): int { return y * 2 } "
+                + "return inner(x) + 1 } println outer(10)",
+            runner,
+            optimize);
+    assertThat(result.environment().output()).containsExactly("21", "\n").inOrder();
+  }
+
+  @Test
+  public void nestedProcedureReadsParentLocal(
+      @TestParameter Runner runner, @TestParameter boolean optimize) {
+    InterpreterResult result =
+        run(
+            "outer: proc(x:int):int { z = x + 5 inner: proc(y:int):int { return y * z } "
+                + "return inner(2) } println outer(10)",
+            runner,
+            optimize);
+    assertThat(result.environment().output()).containsExactly("30", "\n").inOrder();
+  }
+
+  @Test
+  public void nestedProcedureSetsCopyOfParentLocal(
+      @TestParameter Runner runner, @TestParameter boolean optimize) {
+    InterpreterResult result =
+        run(
+            "outer: proc(n:int):int { t = n "
+                + "  mid: proc():int { "
+                + "    inner: proc(k:int) { t = t + k } inner(1) inner(2) return t "
+                + "  } "
+                + "  return mid() * 10 + t "
+                + "} x = 0 j = 0 while j < 3 do j = j + 1 { x = x + outer(j) } println x",
+            runner,
+            optimize);
+    // inner only sets its own copy of t, so outer(j) is 11 * j
+    assertThat(result.environment().output()).containsExactly("33", "\n").inOrder();
+  }
+
+  @Test
+  public void outputSinkWriter(@TestParameter InterpreterEngine engine) {
+    StringWriter writer = new StringWriter();
+    InterpreterResult result =
+        new InterpreterExecutor("i=0 while i < 3 do i=i+1 { println i } print 'x' exit 'bye'")
+            .setEngine(engine)
+            .setOutputSink(OutputSink.of(writer))
+            .execute();
+    assertThat(writer.toString()).isEqualTo("0\n1\n2\nxERROR: bye\n");
+    assertThat(result.environment().output()).isEmpty();
+  }
+
+  @Test
+  public void outputSinkRingBuffer(@TestParameter InterpreterEngine engine) {
+    RingBufferSink sink = new RingBufferSink(3);
+    InterpreterResult result =
+        new InterpreterExecutor("i=0 while i < 10000 do i=i+1 { println i }")
+            .setEngine(engine)
+            .setOutputSink(sink)
+            .setMaxIterations(Interpreter.UNLIMITED)
+            .execute();
+    assertThat(sink.contents()).containsExactly("\n", "9999", "\n").inOrder();
+    assertThat(sink.written()).isEqualTo(20000);
+    assertThat(result.environment().output()).isEmpty();
+  }
+
+  @Test
+  public void outputSinkDiscard() {
+    InterpreterResult result =
+        new InterpreterExecutor("println 'hi'").setOutputSink(OutputSink.discard()).execute();
+    assertThat(result.environment().output()).isEmpty();
+  }
+
+  @Test
+  public void ringBufferSinkNotFull() {
+    RingBufferSink sink = new RingBufferSink(3);
+    sink.write("a");
+    sink.write("b");
+    assertThat(sink.contents()).containsExactly("a", "b").inOrder();
+    assertThat(sink.written()).isEqualTo(2);
+  }
+
+  enum InputKind {
+    STRING,
+    READER,
+    HEAP_BUFFER,
+    DIRECT_BUFFER,
+    FILE
+  }
+
+  @Test
+  public void inputSource(
+      @TestParameter InterpreterEngine engine, @TestParameter InputKind kind) throws Exception {
+    String text = "héllo\r\nworld\rlast";
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    InputSource source;
+    switch (kind) {
+      case STRING:
+        source = InputSource.of(text);
+        break;
+      case READER:
+        source = InputSource.of(new StringReader(text));
+        break;
+      case HEAP_BUFFER:
+        source = InputSource.of(ByteBuffer.wrap(bytes));
+        break;
+      case DIRECT_BUFFER:
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        source = InputSource.of(direct);
+        break;
+      case FILE:
+      default:
+        Path file = Files.createTempFile("input", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, bytes);
+        source = InputSource.of(file);
+        break;
+    }
+    InterpreterResult result =
+        new InterpreterExecutor("s=input t=input n=length(s)")
+            .setEngine(engine)
+            .setInputSource(source)
+            .execute();
+    assertThat(result.environment().getValue("s")).isEqualTo("héllo\nworld\nlast\n");
+    assertThat(result.environment().getValue("t")).isEqualTo("");
+  }
+
+  @Test
+  public void inputSourceChunkBoundaries(@TestParameter InputKind kind) throws Exception {
+    String first = "a".repeat(InputSource.CHUNK_SIZE - 1);
+    String second = "é".repeat(InputSource.CHUNK_SIZE);
+    // The "\r\n" is split across two chunks.
+    String text = first + "\r\n" + second + "\r";
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    InputSource source;
+    switch (kind) {
+      case STRING:
+        source = InputSource.of(text);
+        break;
+      case READER:
+        source = InputSource.of(new StringReader(text));
+        break;
+      case HEAP_BUFFER:
+        source = InputSource.of(ByteBuffer.wrap(bytes));
+        break;
+      case DIRECT_BUFFER:
+      default:
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        source = InputSource.of(direct);
+        break;
+    }
+    assertThat(source.readAll()).isEqualTo(first + "\n" + second + "\n");
+  }
+
+  @Test
+  public void inputSourceLarge() throws Exception {
+    String program =
+        new String(
+            Files.readAllBytes(Paths.get("samples/non-golden/reverse.d")), StandardCharsets.UTF_8);
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      String line = "line " + i;
+      input.append(line).append('\n');
+      expected.append(new StringBuilder(line).reverse()).append('\n');
+    }
+    StringWriter output = new StringWriter();
+    new InterpreterExecutor(program)
+        .setInputSource(InputSource.of(input.toString()))
+        .setOutputSink(OutputSink.of(output))
+        .setMaxIterations(Interpreter.UNLIMITED)
+        .execute();
+    assertThat(output.toString()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void profile(@TestParameter InterpreterEngine engine) throws Exception {
+    InterpreterResult result =
+        new InterpreterExecutor(
+                "f:proc(n:int):int { if n <= 1 { return n } return f(n-1) + f(n-2) } "
+                    + "g:proc() { exit } "
+                    + "x=f(10) g()")
+            .setEngine(engine)
+            .setProfiling(true)
+            .execute();
+    Profile profile = result.profile().get();
+    assertThat(profile.cycles()).isEqualTo(result.instructionCycles());
+
+    Map<String, Profile.ProcStats> procs = new HashMap<>();
+    long totalExclusive = 0;
+    for (Profile.ProcStats stats : profile.procedures()) {
+      procs.put(stats.name(), stats);
+      totalExclusive += stats.exclusiveCycles();
+    }
+    assertThat(totalExclusive).isEqualTo(result.instructionCycles());
+    assertThat(procs.get(Profile.MAIN).inclusiveCycles()).isEqualTo(result.instructionCycles());
+    assertThat(procs.get("f").calls()).isEqualTo(177);
+    assertThat(procs.get("f").inclusiveCycles()).isEqualTo(procs.get("f").exclusiveCycles());
+    assertThat(procs.get("g").calls()).isEqualTo(1);
+    assertThat(procs.get("f").calls() + procs.get("g").calls()).isEqualTo(result.calls());
+
+    StringWriter stacks = new StringWriter();
+    profile.writeCollapsedStacks(stacks);
+    assertThat(stacks.toString()).contains("\n<main>;f;f;f ");
+    assertThat(stacks.toString()).contains("\n<main>;g ");
+    assertThat(profile.hotSpots(5)).contains("PROCEDURE");
+  }
+
+  @Test
+  public void profilesAgree() {
+    String program = TestUtils.LINKED_LIST;
+    Profile classic =
+        new InterpreterExecutor(program)
+            .setEngine(InterpreterEngine.CLASSIC)
+            .setProfiling(true)
+            .execute()
+            .profile()
+            .get();
+    Profile threaded =
+        new InterpreterExecutor(program)
+            .setEngine(InterpreterEngine.THREADED)
+            .setProfiling(true)
+            .execute()
+            .profile()
+            .get();
+    assertThat(threaded.procedures().toString()).isEqualTo(classic.procedures().toString());
+  }
+
+  @Test
+  public void unsetPrimitiveLocal(@TestParameter Runner runner, @TestParameter boolean optimize) {
+    InterpreterResult result =
+        run(
+            "f: proc(c: bool): int { x: int if c { x = 5 } return x } "
+                + "println f(true) println f(false)",
+            runner,
+            optimize);
+    assertThat(result.environment().output()).containsExactly("5", "\n", "null", "\n").inOrder();
+  }
+
+  @Test
+  public void unsetPrimitivesAgree(
+      @TestParameter({
+            "f: proc(c: bool): int { x: int if c { x = 5 } y = x return y } a=f(true) b=f(false)",
+            "g: proc(n: int): int { return n } "
+                + "f: proc(c: bool): int { x: int if c { x = 5 } return g(x) } "
+                + "a=f(true) b=f(false)",
+            "f: proc(c: bool): double { d: double if c { d = 1.5 } e = d return e } "
+                + "a=f(true) b=f(false) c=f(true)",
+            "x: long f: proc(): long { y = x return y } z = f() println z",
+            "f: proc(c: bool): bool { b: bool if c { b = true } return b } "
+                + "i=0 while i < 3 do i=i+1 { a=f(i==1) println a }"
+          })
+          String program,
+      @TestParameter Runner runner) {
+    InterpreterResult classic = run(program, Runner.CLASSIC, false);
+    InterpreterResult result = run(program, runner, false);
+    assertThat(result.environment().output()).isEqualTo(classic.environment().output());
+    assertThat(result.environment().variables()).isEqualTo(classic.environment().variables());
+  }
+
+  /** Arrays don't implement equals, so compare their printed form instead. */
+  private static Map<String, Object> printable(Map<String, Object> variables) {
+    Map<String, Object> result = new HashMap<>();
+    for (Map.Entry<String, Object> entry : variables.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Object[]) {
+        value = Arrays.deepToString((Object[]) value);
+      }
+      result.put(entry.getKey(), value);
+    }
+    return result;
+  }
+
+  private InterpreterResult executeWith(
+      String program, boolean optimize, InterpreterEngine engine) {
+    return new InterpreterExecutor(
+            CompilationConfiguration.builder().setSourceCode(program).setOptimize(optimize).build())
+        .setEngine(engine)
+        .execute();
+  }
+
+  private InterpreterResult executeWith(
+      String program, boolean optimize, InterpreterEngine engine, long maxIterations) {
+    return new InterpreterExecutor(
+            CompilationConfiguration.builder().setSourceCode(program).setOptimize(optimize).build())
+        .setEngine(engine)
+        .setMaxIterations(maxIterations)
+        .execute();
+  }
+
+  private InterpreterResult run(String program, Runner runner, boolean optimize) {
+    InterpreterExecutor ee =
+        new InterpreterExecutor(
+            CompilationConfiguration.builder()
+                .setSourceCode(program)
+                .setOptimize(optimize)
+                .build());
+    switch (runner) {
+      case CLASSIC:
+        ee.setEngine(InterpreterEngine.CLASSIC);
+        break;
+      case THREADED:
+        ee.setEngine(InterpreterEngine.THREADED).setJitThreshold(ThreadedInterpreter.NO_JIT);
+        break;
+      case JIT:
+      default:
+        ee.setEngine(InterpreterEngine.THREADED).setJitThreshold(1);
+        break;
+    }
+    return ee.execute();
+  }
+
   private Environment execute(String program, boolean optimize) {
     InterpreterExecutor ee = new InterpreterExecutor(
         CompilationConfiguration.builder().setSourceCode(program)
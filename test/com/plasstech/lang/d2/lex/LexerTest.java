@@ -623,4 +623,72 @@ public class LexerTest {
     assertThat(token.type()).isEqualTo(TokenType.VOID);
     assertThat(token.type().isKeyword()).isTrue();
   }
+
+  @Test
+  public void allKeywords() {
+    for (TokenType type : TokenType.values()) {
+      if (type.isKeyword()) {
+        assertThat(new Lexer(type.name()).nextToken().type()).isEqualTo(type);
+        assertThat(new Lexer(type.name().toLowerCase()).nextToken().type()).isEqualTo(type);
+      }
+    }
+  }
+
+  @Test
+  public void almostKeywords() {
+    Lexer lexer = new Lexer("i iff whil printlnx EOF VARIABLE");
+    for (int i = 0; i < 6; ++i) {
+      assertThat(lexer.nextToken().type()).isEqualTo(TokenType.VARIABLE);
+    }
+  }
+
+  @Test
+  public void identifiersAreInterned() {
+    Lexer lexer = new Lexer("abc=abc+abd abc");
+    Token first = lexer.nextToken();
+    lexer.nextToken();
+    Token second = lexer.nextToken();
+    lexer.nextToken();
+    Token other = lexer.nextToken();
+    Token third = lexer.nextToken();
+    assertThat(second.text()).isSameInstanceAs(first.text());
+    assertThat(third.text()).isSameInstanceAs(first.text());
+    assertThat(other.text()).isEqualTo("abd");
+  }
+
+  @Test
+  public void manyIdentifiers() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      sb.append("v").append(i).append(' ');
+    }
+    Lexer lexer = new Lexer(sb.toString().toCharArray());
+    for (int i = 0; i < 1000; ++i) {
+      assertThat(lexer.nextToken().text()).isEqualTo("v" + i);
+    }
+    assertThat(lexer.nextToken().type()).isEqualTo(TokenType.EOF);
+  }
+
+  @Test
+  public void positions() {
+    Lexer lexer = new Lexer("a\n  bcd >=");
+    lexer.nextToken();
+    Token token = lexer.nextToken();
+    assertThat(token.start().line()).isEqualTo(2);
+    assertThat(token.start().column()).isEqualTo(3);
+    assertThat(token.end().column()).isEqualTo(6);
+    token = lexer.nextToken();
+    assertThat(token.start().column()).isEqualTo(7);
+    assertThat(token.end().column()).isEqualTo(8);
+  }
+
+  @Test
+  public void longTooBig() {
+    assertThat(((ConstToken<?>) new Lexer("9223372036854775807L").nextToken()).value())
+        .isEqualTo(Long.MAX_VALUE);
+    ScannerException exception =
+        assertThrows(
+            ScannerException.class, () -> new Lexer("9223372036854775808L").nextToken());
+    assertThat(exception).hasMessageThat().contains("Long constant too big");
+  }
 }
@@ -0,0 +1,360 @@
+package com.plasstech.lang.d2.optimize;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.TruthJUnit.assume;
+import static com.plasstech.lang.d2.optimize.OpcodeSubject.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.junit.testparameterinjector.TestParameter;
+import com.google.testing.junit.testparameterinjector.TestParameter.TestParameterValuesProvider;
+import com.google.testing.junit.testparameterinjector.TestParameterInjector;
+import com.plasstech.lang.d2.InterpreterExecutor;
+import com.plasstech.lang.d2.YetAnotherCompiler;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.MemoryAddress;
+import com.plasstech.lang.d2.codegen.StackLocation;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.ArraySet;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.il.UnaryOp;
+import com.plasstech.lang.d2.codegen.testing.LocationUtils;
+import com.plasstech.lang.d2.common.CompilationConfiguration;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.InterpreterResult;
+import com.plasstech.lang.d2.interpreter.OutputSink;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.phase.State;
+import com.plasstech.lang.d2.testing.TestUtils;
+import com.plasstech.lang.d2.type.ArrayType;
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.VarType;
+
+@RunWith(TestParameterInjector.class)
+public class CommonSubexpressionOptimizerTest {
+  // Samples that run for longer than this are skipped.
+  private static final long MAX_CYCLES = 1_000_000;
+  private static final Optimizer OPTIMIZER =
+      new ILOptimizer(new CommonSubexpressionOptimizer(2)).setDebugLevel(2);
+
+  private static final ArrayType INT_ARRAY = new ArrayType(VarType.INT, 1);
+
+  private static final TempLocation TEMP1 = LocationUtils.newTempLocation("__temp1", VarType.INT);
+  private static final TempLocation TEMP2 = LocationUtils.newTempLocation("__temp2", VarType.INT);
+  private static final TempLocation TEMP3 = LocationUtils.newTempLocation("__temp3", VarType.INT);
+  private static final TempLocation TEMP4 = LocationUtils.newTempLocation("__temp5", VarType.INT);
+  private static final TempLocation TEMP_BOOL =
+      LocationUtils.newTempLocation("__temp4", VarType.BOOL);
+  private static final StackLocation STACK1 = LocationUtils.newStackLocation("s1", VarType.INT, 0);
+  private static final StackLocation STACK2 = LocationUtils.newStackLocation("s2", VarType.INT, 4);
+  private static final MemoryAddress GLOBAL1 = LocationUtils.newMemoryAddress("g1", VarType.INT);
+  private static final MemoryAddress GLOBAL2 = LocationUtils.newMemoryAddress("g2", VarType.INT);
+  private static final MemoryAddress ARRAY = LocationUtils.newMemoryAddress("a", INT_ARRAY);
+
+  @Test
+  public void sameBlock() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new BinOp(STACK2, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(1)).isTransferredFrom(STACK1);
+  }
+
+  @Test
+  public void commutative() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new BinOp(STACK2, GLOBAL2, TokenType.MULT, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(1)).isTransferredFrom(STACK1);
+  }
+
+  @Test
+  public void cheapOpIsComputedAgain() {
+    // A copy costs as much as the add, and would keep the second one from becoming an increment.
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.PLUS, ConstantOperand.ONE, null),
+            new BinOp(GLOBAL1, GLOBAL1, TokenType.PLUS, ConstantOperand.ONE, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void copyAndDeallocationIsNotWorthIt() {
+    // Would become g2 = temp1; dealloc(temp1), which is one more op.
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(TEMP1, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new BinOp(STACK1, TEMP1, TokenType.PLUS, ConstantOperand.ONE, null),
+            new BinOp(GLOBAL2, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void notCommutative() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.MINUS, GLOBAL2, null),
+            new BinOp(STACK2, GLOBAL2, TokenType.MINUS, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void operandChanged() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new Transfer(GLOBAL1, ConstantOperand.ONE, null),
+            new BinOp(STACK2, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void dominatingBlock() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, GLOBAL1, TokenType.DIV, GLOBAL1, null),
+            new IfOp(TEMP_BOOL, "else", false),
+            new Transfer(GLOBAL2, ConstantOperand.ONE, null),
+            new Label("else"),
+            new BinOp(STACK2, GLOBAL1, TokenType.DIV, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(4)).isTransferredFrom(STACK1);
+  }
+
+  @Test
+  public void notDominatingBlock() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new IfOp(TEMP_BOOL, "else", false),
+            new UnaryOp(STACK1, TokenType.MINUS, GLOBAL1, null),
+            new Goto("end"),
+            new Label("else"),
+            new Transfer(STACK1, ConstantOperand.ONE, null),
+            new Label("end"),
+            new UnaryOp(STACK2, TokenType.MINUS, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void tempBecomesLongTemp() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(TEMP1, GLOBAL1, TokenType.MULT, GLOBAL2, null),
+            new Transfer(STACK1, TEMP1, null),
+            new Transfer(GLOBAL1, ConstantOperand.ZERO, null),
+            new BinOp(TEMP2, STACK1, TokenType.MULT, GLOBAL2, null),
+            new BinOp(GLOBAL1, TEMP2, TokenType.PLUS, ConstantOperand.ONE, null),
+            new BinOp(TEMP3, STACK1, TokenType.MULT, GLOBAL2, null),
+            new BinOp(STACK2, TEMP3, TokenType.MINUS, ConstantOperand.ONE, null),
+            new BinOp(TEMP4, STACK1, TokenType.MULT, GLOBAL2, null),
+            new BinOp(GLOBAL2, TEMP4, TokenType.MULT, ConstantOperand.ONE, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    // g1 is set twice, so only the temp keeps the value of s1 * g2.
+    Op longTempSet = optimized.get(3);
+    assertThat(longTempSet).isInstanceOf(BinOp.class);
+    Location longTemp = ((BinOp) longTempSet).destination();
+    assertThat(longTemp).isNotEqualTo(TEMP2);
+    assertThat(longTemp.name()).isEqualTo(TEMP2.name());
+    assertThat(((BinOp) optimized.get(4)).left()).isEqualTo(longTemp);
+    // The other two products are deleted and their readers read the long temp instead.
+    assertThat(optimized.get(5)).isNop();
+    assertThat(((BinOp) optimized.get(6)).left()).isEqualTo(longTemp);
+    assertThat(optimized.get(7)).isNop();
+    assertThat(((BinOp) optimized.get(8)).left()).isEqualTo(longTemp);
+    assertThat(optimized.get(9)).isInstanceOf(DeallocateTemp.class);
+    assertThat(optimized.get(10)).isInstanceOf(Stop.class);
+  }
+
+  @Test
+  public void arrayRead() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new BinOp(STACK2, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(1)).isTransferredFrom(STACK1);
+  }
+
+  @Test
+  public void arraySetChangesArrayRead() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(STACK1, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new ArraySet(ARRAY, INT_ARRAY, GLOBAL2, ConstantOperand.ONE, false, null),
+            new BinOp(STACK2, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void callChangesArrayRead() {
+    ProcSymbol procSym =
+        new ProcSymbol(new ProcedureNode("f", ImmutableList.of(), VarType.VOID, null, null), null);
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new BinOp(TEMP1, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new Transfer(STACK1, TEMP1, null),
+            new Call(procSym, ImmutableList.of(), ImmutableList.of(), null),
+            new BinOp(TEMP2, ARRAY, TokenType.LBRACKET, GLOBAL1, null),
+            new Transfer(STACK2, TEMP2, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void arrayReadTwice() {
+    TestUtils.optimizeAssertSameVariables(
+        "a = [1, 2, 3] i = 1 x = a[i] + a[i] println x", OPTIMIZER);
+  }
+
+  @Test
+  public void arraySetBetweenReads() {
+    TestUtils.optimizeAssertSameVariables(
+        "a = [1, 2, 3] i = 1 x = a[i] a[i] = 4 y = a[i] * 2 println x + y", OPTIMIZER);
+  }
+
+  @Test
+  public void lengthTwice() {
+    TestUtils.optimizeAssertSameVariables(
+        "f: proc(s: string): int { return length(s) + length(s) } println f('hello')", OPTIMIZER);
+  }
+
+  @Test
+  public void fieldSetBetweenReads() {
+    TestUtils.optimizeAssertSameVariables(
+        "r: record { f: int } x = new r x.f = 3 a = x.f + x.f x.f = 4 b = x.f + 1 println a + b",
+        OPTIMIZER);
+  }
+
+  @Test
+  public void loop() {
+    TestUtils.optimizeAssertSameVariables(
+        "a = [1, 2, 3, 4] sum = 0 i = 0 while i < 4 do i = i + 1 { "
+            + "  sum = sum + a[i] * a[i] a[i] = sum if a[i] > 3 { sum = sum - a[i] * a[i] } "
+            + "} println sum",
+        OPTIMIZER);
+  }
+
+  @Test
+  public void allOptimizers() {
+    TestUtils.optimizeAssertSameVariables(
+        "f: proc(a: int[], i: int, s: string): int { "
+            + "  x = a[i] + a[i] n = length(s) + length(s) a[i] = 3 y = a[i] * 2 "
+            + "  return x + n + y + a[i] * 2 "
+            + "} "
+            + "println f([1, 2, 3], 1, 'hi')");
+  }
+
+  @Test
+  public void neverSlowerOnSamples(@TestParameter(valuesProvider = SamplesProvider.class) File file)
+      throws IOException {
+    String text = new String(Files.readAllBytes(file.toPath()));
+    // Samples that read input or call external code cannot run here.
+    assume().that(text).doesNotContainMatch("\\b(input|args|extern)\\b");
+    assume().that(compile(text).error()).isFalse();
+
+    ImmutableList<Optimizer> withoutCse =
+        ILOptimizer.defaultChildren(0).stream()
+            .filter(child -> !(child instanceof CommonSubexpressionOptimizer))
+            .collect(toImmutableList());
+    InterpreterResult with = run(text, new ILOptimizer());
+    InterpreterResult without = run(text, new ILOptimizer(withoutCse));
+    assume().that(with.budgetExhausted() || without.budgetExhausted()).isFalse();
+
+    assertThat(with.instructionCycles()).isAtMost(without.instructionCycles());
+  }
+
+  private static State compile(String text) {
+    return new YetAnotherCompiler().compile(CompilationConfiguration.create(text));
+  }
+
+  /** Compiles the text again, because optimizing changes the symbol table. */
+  private static InterpreterResult run(String text, ILOptimizer optimizer) {
+    State state = compile(text);
+    ImmutableList<Op> optimized = optimizer.optimize(state.ilCode(), state.symbolTable());
+    return new InterpreterExecutor(state.sourceCode())
+        .setMaxIterations(MAX_CYCLES)
+        .setOutputSink(OutputSink.discard())
+        .execute(state.addOptimizedCode(optimized));
+  }
+
+  private static class SamplesProvider implements TestParameterValuesProvider {
+    @Override
+    public List<File> provideValues() {
+      try (Stream<Path> golden = Files.list(Paths.get("samples"));
+          Stream<Path> nonGolden = Files.list(Paths.get("samples/non-golden"))) {
+        return Stream.concat(golden, nonGolden)
+            .filter(path -> path.toString().endsWith(".d"))
+            .map(Path::toFile)
+            .collect(toImmutableList());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
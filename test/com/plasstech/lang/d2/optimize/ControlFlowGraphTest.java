@@ -0,0 +1,174 @@
+package com.plasstech.lang.d2.optimize;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.InterpreterExecutor;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+
+public class ControlFlowGraphTest {
+  private static final ImmutableList<Op> DIAMOND =
+      ImmutableList.of(
+          new IfOp(ConstantOperand.TRUE, "else", false),
+          print("then"),
+          new Goto("end"),
+          new Label("else"),
+          print("else"),
+          new Label("end"),
+          new Stop());
+
+  @Test
+  public void diamond() {
+    ControlFlowGraph graph = ControlFlowGraph.build(DIAMOND);
+
+    List<BasicBlock> blocks = graph.blocks();
+    assertThat(blocks).hasSize(4);
+    BasicBlock entry = blocks.get(0);
+    BasicBlock then = blocks.get(1);
+    BasicBlock elseBlock = blocks.get(2);
+    BasicBlock end = blocks.get(3);
+    assertThat(then.ops()).containsExactly(DIAMOND.get(1), DIAMOND.get(2)).inOrder();
+    assertThat(entry.successors()).containsExactly(elseBlock, then);
+    assertThat(end.predecessors()).containsExactly(then, elseBlock);
+    assertThat(end.successors()).isEmpty();
+    assertThat(graph.blockAt(4)).isSameInstanceAs(elseBlock);
+
+    assertThat(entry.immediateDominator()).isNull();
+    assertThat(then.immediateDominator()).isSameInstanceAs(entry);
+    assertThat(elseBlock.immediateDominator()).isSameInstanceAs(entry);
+    assertThat(end.immediateDominator()).isSameInstanceAs(entry);
+    assertThat(entry.dominated()).containsExactly(then, elseBlock, end);
+    assertThat(graph.dominates(entry, end)).isTrue();
+    assertThat(graph.dominates(then, end)).isFalse();
+    assertThat(graph.dominates(end, end)).isTrue();
+    assertThat(graph.loops()).isEmpty();
+  }
+
+  @Test
+  public void loopWithoutLoopLabels() {
+    ImmutableList<Op> code =
+        ImmutableList.of(
+            print("before"),
+            new Label("top"),
+            print("body"),
+            new IfOp(ConstantOperand.TRUE, "top", false),
+            new Stop());
+    ControlFlowGraph graph = ControlFlowGraph.build(code);
+
+    assertThat(graph.loops()).hasSize(1);
+    NaturalLoop loop = graph.loops().get(0);
+    assertThat(loop.header()).isSameInstanceAs(graph.blockAt(1));
+    assertThat(loop.blocks()).containsExactly(graph.blockAt(1));
+    assertThat(loop.latches()).containsExactly(graph.blockAt(1));
+    assertThat(loop.contains(graph.blockAt(4))).isFalse();
+  }
+
+  @Test
+  public void whileLoopMatchesLoopFinder() {
+    ImmutableList<Op> code =
+        generate("i = 0 while i < 3 do i = i + 1 { if i == 1 { continue } println i }");
+    ControlFlowGraph graph = ControlFlowGraph.build(code);
+
+    assertThat(graph.loops()).hasSize(1);
+    NaturalLoop loop = graph.loops().get(0);
+    Op header = loop.header().ops().get(0);
+    assertThat(header).isInstanceOf(Label.class);
+    assertThat(((Label) header).label()).startsWith("__" + Label.LOOP_BEGIN_PREFIX);
+
+    List<Block> found = new LoopFinder(code).findLoops();
+    assertThat(found).hasSize(1);
+    for (BasicBlock block : graph.blocks()) {
+      if (!block.isReachable()) {
+        // E.g., the "goto" after the "continue"; the loop finder only looks at labels.
+        continue;
+      }
+      boolean inFoundLoop =
+          block.start() >= found.get(0).start() && block.end() <= found.get(0).end();
+      assertThat(loop.contains(block)).isEqualTo(inFoundLoop);
+    }
+  }
+
+  @Test
+  public void nestedLoops() {
+    ImmutableList<Op> code =
+        generate(
+            "i = 0 while i < 3 do i = i + 1 {"
+                + "  j = 0 while j < 3 do j = j + 1 { println i * j }"
+                + "}");
+    ControlFlowGraph graph = ControlFlowGraph.build(code);
+
+    assertThat(graph.loops()).hasSize(2);
+    NaturalLoop outer = graph.loops().get(0);
+    NaturalLoop inner = graph.loops().get(1);
+    assertThat(outer.blocks()).containsAtLeastElementsIn(inner.blocks());
+    assertThat(outer.blocks().size()).isGreaterThan(inner.blocks().size());
+    assertThat(graph.dominates(outer.header(), inner.header())).isTrue();
+  }
+
+  @Test
+  public void unreachable() {
+    ImmutableList<Op> code =
+        generate("f: proc { println 'f' } println 'main'");
+    ControlFlowGraph graph = ControlFlowGraph.build(code);
+
+    // The body of f is jumped over.
+    BasicBlock body = graph.blockAt(2);
+    assertThat(body.isReachable()).isFalse();
+    assertThat(graph.reversePostOrder()).doesNotContain(body);
+    assertThat(graph.dominates(graph.entry(), body)).isFalse();
+    assertThat(graph.entry().isReachable()).isTrue();
+  }
+
+  @Test
+  public void updateKeepsBlocks() {
+    ControlFlowGraph graph = ControlFlowGraph.build(DIAMOND);
+    BasicBlock then = graph.blocks().get(1);
+
+    Nop nop = new Nop(DIAMOND.get(1));
+    ImmutableList<Op> changed = replace(DIAMOND, 1, nop);
+
+    assertThat(graph.update(changed)).isTrue();
+    assertThat(graph.blocks().get(1)).isSameInstanceAs(then);
+    assertThat(then.ops().get(0)).isSameInstanceAs(nop);
+  }
+
+  @Test
+  public void updateRebuildsWhenControlFlowChanges() {
+    ControlFlowGraph graph = ControlFlowGraph.build(DIAMOND);
+
+    ImmutableList<Op> changed = replace(DIAMOND, 0, new Goto("else"));
+
+    assertThat(graph.update(changed)).isFalse();
+    assertThat(graph.code()).isSameInstanceAs(changed);
+    // Now the "then" block cannot be reached.
+    assertThat(graph.blocks().get(1).isReachable()).isFalse();
+    assertThat(graph.blocks().get(3).immediateDominator()).isSameInstanceAs(graph.blocks().get(2));
+  }
+
+  private static SysCall print(String message) {
+    return new SysCall(SysCall.Call.PRINT, ConstantOperand.of(message));
+  }
+
+  private static ImmutableList<Op> replace(ImmutableList<Op> code, int ip, Op op) {
+    ImmutableList.Builder<Op> builder = ImmutableList.builder();
+    for (int i = 0; i < code.size(); ++i) {
+      builder.add(i == ip ? op : code.get(i));
+    }
+    return builder.build();
+  }
+
+  private static ImmutableList<Op> generate(String program) {
+    return new InterpreterExecutor(program).execute().code();
+  }
+}
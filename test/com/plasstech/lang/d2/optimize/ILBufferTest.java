@@ -0,0 +1,130 @@
+package com.plasstech.lang.d2.optimize;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.InterpreterExecutor;
+import com.plasstech.lang.d2.codegen.il.Nop;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
+import com.plasstech.lang.d2.optimize.ILBuffer.Region;
+
+public class ILBufferTest {
+
+  @Test
+  public void splitsProcedures() {
+    ImmutableList<Op> program =
+        generate("f: proc(): int { return 3 } g: proc(a: int) { println a } g(f())");
+
+    ILBuffer buffer = ILBuffer.split(program);
+
+    assertThat(names(buffer)).containsExactly(null, "f", "g").inOrder();
+    Region f = buffer.regions().get(1);
+    assertThat(f.code().get(0)).isInstanceOf(ProcEntry.class);
+    // The rest of the program keeps the entry and exit of each procedure.
+    ImmutableList<Op> rest = buffer.regions().get(0).code();
+    assertThat(rest).contains(f.code().get(0));
+    assertThat(rest).contains(f.code().get(f.code().size() - 1));
+    assertThat(rest).hasSize(program.size() - f.code().size() - code(buffer, 2).size() + 4);
+    assertThat(buffer.join()).containsExactlyElementsIn(program).inOrder();
+  }
+
+  @Test
+  public void nestedProcedureStaysInItsParent() {
+    ImmutableList<Op> program = generate("f: proc { g: proc { println 'g' } g() } f()");
+
+    ILBuffer buffer = ILBuffer.split(program);
+
+    assertThat(names(buffer)).containsExactly(null, "f").inOrder();
+    assertThat(code(buffer, 1).stream().filter(op -> op instanceof ProcEntry).count())
+        .isEqualTo(2);
+    assertThat(buffer.join()).containsExactlyElementsIn(program).inOrder();
+  }
+
+  @Test
+  public void procedureInLoopIsNotSplit() {
+    ImmutableList<Op> program =
+        generate("i = 0 while i < 3 do i = i + 1 { f: proc { println 'f' } f() }");
+
+    ILBuffer buffer = ILBuffer.split(program);
+
+    assertThat(names(buffer)).containsExactly((String) null);
+    assertThat(buffer.join()).containsExactlyElementsIn(program).inOrder();
+  }
+
+  @Test
+  public void resplitOnlyDirtiesChangedRegions() {
+    ImmutableList<Op> program =
+        generate("f: proc(): int { return 3 } g: proc(a: int) { println a } g(f())");
+    ILBuffer buffer = ILBuffer.split(program);
+    for (Region region : buffer.regions()) {
+      region.addPass();
+      region.setDirty(false);
+    }
+
+    // Delete the first op of g's body.
+    List<Op> changed = new ArrayList<>(program);
+    int ip = program.indexOf(code(buffer, 2).get(1));
+    changed.set(ip, new Nop(program.get(ip)));
+    ILBuffer next = buffer.resplit(ImmutableList.copyOf(changed));
+
+    assertThat(next.regions().stream().map(Region::isDirty).collect(toImmutableList()))
+        .containsExactly(false, false, true)
+        .inOrder();
+    assertThat(next.regions().get(2).passes()).isEqualTo(1);
+    assertThat(next.join()).containsExactlyElementsIn(changed).inOrder();
+  }
+
+  @Test
+  public void joinsChangedRegions() {
+    ImmutableList<Op> program = generate("f: proc { println 'f' } f()");
+    ILBuffer buffer = ILBuffer.split(program);
+    Region f = buffer.regions().get(1);
+    List<Op> code = new ArrayList<>(f.code());
+    code.remove(1);
+    f.setCode(ImmutableList.copyOf(code));
+
+    assertThat(buffer.join()).hasSize(program.size() - 1);
+  }
+
+  @Test
+  public void controlFlowGraphFollowsCode() {
+    ImmutableList<Op> program =
+        generate("f: proc(): int { return 3 } g: proc(a: int) { println a } g(f())");
+    ILBuffer buffer = ILBuffer.split(program);
+    Region g = buffer.regions().get(2);
+    ControlFlowGraph graph = g.controlFlowGraph();
+    assertThat(g.controlFlowGraph()).isSameInstanceAs(graph);
+
+    List<Op> code = new ArrayList<>(g.code());
+    code.set(1, new Nop(code.get(1)));
+    g.setCode(ImmutableList.copyOf(code));
+    assertThat(graph.code()).isSameInstanceAs(g.code());
+
+    ILBuffer next = buffer.resplit(buffer.join());
+    assertThat(next.regions().get(2).controlFlowGraph()).isSameInstanceAs(graph);
+    assertThat(graph.code()).isSameInstanceAs(next.regions().get(2).code());
+  }
+
+  private static ImmutableList<Op> generate(String program) {
+    return new InterpreterExecutor(program).execute().code();
+  }
+
+  private static List<String> names(ILBuffer buffer) {
+    List<String> names = new ArrayList<>();
+    for (Region region : buffer.regions()) {
+      names.add(region.name());
+    }
+    return names;
+  }
+
+  private static ImmutableList<Op> code(ILBuffer buffer, int region) {
+    return buffer.regions().get(region).code();
+  }
+}
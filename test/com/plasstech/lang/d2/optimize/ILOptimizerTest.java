@@ -3,16 +3,21 @@ package com.plasstech.lang.d2.optimize;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 
+import java.time.Duration;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
 import com.google.testing.junit.testparameterinjector.TestParameter;
 import com.google.testing.junit.testparameterinjector.TestParameterInjector;
 import com.plasstech.lang.d2.InterpreterExecutor;
 import com.plasstech.lang.d2.codegen.il.DefaultOpcodeVisitor;
 import com.plasstech.lang.d2.codegen.il.Op;
 import com.plasstech.lang.d2.codegen.il.OpcodeVisitor;
+import com.plasstech.lang.d2.codegen.il.ProcEntry;
 import com.plasstech.lang.d2.codegen.il.SysCall;
 import com.plasstech.lang.d2.codegen.il.UnaryOp;
 import com.plasstech.lang.d2.common.D2RuntimeException;
@@ -20,6 +25,7 @@ import com.plasstech.lang.d2.common.TokenType;
 import com.plasstech.lang.d2.interpreter.InterpreterResult;
 import com.plasstech.lang.d2.testing.TestUtils;
 import com.plasstech.lang.d2.type.SymTab;
+import com.plasstech.lang.d2.type.SymbolTable;
 
 @RunWith(TestParameterInjector.class)
 public class ILOptimizerTest {
@@ -439,4 +445,78 @@ public class ILOptimizerTest {
       op.accept(ov);
     }
   }
+
+  private static final String TWO_PROCS =
+      "f: proc(): int { a = 2 * 3 return a } g: proc(b: int) { println b } g(f())";
+
+  /** Counts the times it sees each procedure, or the code outside the procedures. */
+  private static class RegionCounter implements Optimizer {
+    private final Multiset<String> seen = HashMultiset.create();
+
+    @Override
+    public ImmutableList<Op> optimize(ImmutableList<Op> program, SymbolTable symtab) {
+      Op first = program.get(0);
+      seen.add(first instanceof ProcEntry ? ((ProcEntry) first).name() : "global");
+      return program;
+    }
+
+    @Override
+    public boolean isChanged() {
+      return false;
+    }
+  }
+
+  @Test
+  public void onlyChangedProceduresAreOptimizedAgain() {
+    InterpreterResult result = new InterpreterExecutor(TWO_PROCS).execute();
+    RegionCounter counter = new RegionCounter();
+
+    new ILOptimizer(ImmutableList.of(new ArithmeticOptimizer(2), counter))
+        .optimize(result.code(), result.symbolTable());
+
+    // f changed in the first pass, so it was optimized once more.
+    assertThat(counter.seen.count("f")).isEqualTo(2);
+    assertThat(counter.seen.count("g")).isEqualTo(1);
+    assertThat(counter.seen.count("global")).isEqualTo(1);
+  }
+
+  @Test
+  public void passBudget() {
+    InterpreterResult result = new InterpreterExecutor(TWO_PROCS).execute();
+    RegionCounter counter = new RegionCounter();
+
+    new ILOptimizer(ImmutableList.of(new ArithmeticOptimizer(2), counter))
+        .setBudget(1, Duration.ZERO)
+        .optimize(result.code(), result.symbolTable());
+
+    assertThat(counter.seen.count("f")).isEqualTo(1);
+  }
+
+  @Test
+  public void passBudgetStillCorrect() {
+    TestUtils.optimizeAssertSameVariables(
+        TestUtils.LINKED_LIST, new ILOptimizer(2).setBudget(1, Duration.ZERO));
+  }
+
+  @Test
+  public void timeBudget() {
+    InterpreterResult result = new InterpreterExecutor(TWO_PROCS).execute();
+
+    ImmutableList<Op> optimized =
+        new ILOptimizer()
+            .setBudget(100, Duration.ofNanos(1))
+            .optimize(result.code(), result.symbolTable());
+
+    // Ran out of time before optimizing anything.
+    assertThat(optimized).containsExactlyElementsIn(result.code()).inOrder();
+  }
+
+  @Test
+  public void badBudget() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new ILOptimizer().setBudget(0, Duration.ZERO));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new ILOptimizer().setBudget(1, Duration.ofMillis(-1)));
+  }
 }
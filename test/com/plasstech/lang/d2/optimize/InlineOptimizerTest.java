@@ -3,7 +3,6 @@ package com.plasstech.lang.d2.optimize;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
-import org.junit.Ignore;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableList;
@@ -77,7 +76,6 @@ public class InlineOptimizerTest {
   }
 
   @Test
-  @Ignore("Fails now that constant propagation optimizer propagates non-constants")
   public void shortProcRecord() {
     InterpreterResult result =
         TestUtils.optimizeAssertSameVariables(
@@ -147,7 +145,6 @@ public class InlineOptimizerTest {
   }
 
   @Test
-  @Ignore("Fails now that constant propagation optimizer propagates non-constants")
   public void recordLoopInvariant() {
     TestUtils.optimizeAssertSameVariables(TestUtils.RECORD_LOOP_INVARIANT, OPTIMIZER);
   }
@@ -180,7 +177,6 @@ public class InlineOptimizerTest {
   }
 
   @Test
-  @Ignore
   public void ignoreReturnValueSometimesAllOpts() {
     InterpreterResult result =
         TestUtils.optimizeAssertSameVariables(
@@ -262,6 +258,157 @@ public class InlineOptimizerTest {
     }
   }
 
+  @Test
+  public void earlyReturns() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      sign: proc(n:int):int {"
+                + "  if n > 0 { return 1 } "
+                + "  if n < 0 { return -1 } "
+                + "  return 0 "
+                + "} "
+                + "i = -2 while i <= 2 do i = i + 1 { println sign(i) }",
+            OPTIMIZER);
+    assertNoCalls(result.code());
+  }
+
+  @Test
+  public void voidEarlyReturn() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      g = 0 "
+                + "bump: proc(n:int) { if n == 0 { return } g = g + n } "
+                + "i = -2 while i <= 2 do i = i + 1 { bump(i) } "
+                + "println g",
+            OPTIMIZER);
+    assertNoCalls(result.code());
+  }
+
+  @Test
+  public void sameTempsInTwoCopies() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      square: proc(n:int):int { m = n * n return m } "
+                + "println square(3) + square(4)",
+            OPTIMIZER);
+    assertNoCalls(result.code());
+  }
+
+  @Test
+  public void ignoredReturnValueInTemp() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      g = 0 "
+                + "next: proc(): int { g = g + 1 return g * 2 } "
+                + "next() next() "
+                + "println g",
+            OPTIMIZER);
+    assertNoCalls(result.code());
+  }
+
+  @Test
+  public void recursive() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      fact: proc(n:int):int { if n <= 1 { return 1 } return n * fact(n - 1) } "
+                + "println fact(5)",
+            OPTIMIZER);
+    assertOnlyCalls(result.code(), "fact");
+  }
+
+  @Test
+  public void nested() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      outer: proc(n:int):int { "
+                + "  inner: proc(m:int):int { return m + 1 } "
+                + "  return inner(n) * 2 "
+                + "} "
+                + "println outer(3)",
+            OPTIMIZER);
+    ImmutableList<Op> code = result.code();
+    OpcodeVisitor visitor =
+        new DefaultOpcodeVisitor() {
+          @Override
+          public void visit(Call op) {
+            assertThat(op.procSym().name()).isAnyOf("outer", "inner");
+          }
+        };
+    for (Op op : code) {
+      op.accept(visitor);
+    }
+  }
+
+  @Test
+  public void tooManyCallSites() {
+    StringBuilder program =
+        new StringBuilder(
+            "busy: proc(n:int):int { "
+                + "  a = n * 3 b = a + n c = b * a d = c - b e = d * c f = e + d "
+                + "  return a + b + c + d + e + f "
+                + "} ");
+    for (int i = 0; i < 10; ++i) {
+      program.append("println busy(").append(i).append(") ");
+    }
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(program.toString(), OPTIMIZER);
+    assertOnlyCalls(result.code(), "busy");
+  }
+
+  @Test
+  public void loopCalledOnce() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      index: proc(target: string, values: string[]): int { "
+                + "  i = 0 while i < length(values) do i = i + 1 { "
+                + "    if values[i] == target { return i } "
+                + "  } "
+                + "  return -1 "
+                + "} "
+                + "println index('nope', ['dope', 'nope'])",
+            OPTIMIZER);
+    assertNoCalls(result.code());
+  }
+
+  @Test
+  public void loopCalledTwice() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      index: proc(target: string, values: string[]): int { "
+                + "  i = 0 while i < length(values) do i = i + 1 { "
+                + "    if values[i] == target { return i } "
+                + "  } "
+                + "  return -1 "
+                + "} "
+                + "println index('nope', ['dope']) "
+                + "println index('nope', ['dope', 'nope'])",
+            OPTIMIZER);
+    assertOnlyCalls(result.code(), "index");
+  }
+
+  @Test
+  public void allOptimizers() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "      max: proc(a:int, b:int):int { if a > b { return a } return b } "
+                + "clamp: proc(n:int):int { return max(0, n) } "
+                + "sum = 0 i = -3 while i < 5 do i = i + 1 { sum = sum + clamp(i) } "
+                + "println sum");
+    assertNoCalls(result.code());
+  }
+
+  /** Asserts that the procedure is still called, and nothing else is. */
+  private static void assertOnlyCalls(ImmutableList<Op> code, String procName) {
+    int calls = 0;
+    for (Op op : code) {
+      if (op instanceof Call) {
+        assertThat(((Call) op).procSym().name()).isEqualTo(procName);
+        calls++;
+      }
+    }
+    assertThat(calls).isGreaterThan(0);
+  }
+
   private static final OpcodeVisitor NO_CALLS =
       new DefaultOpcodeVisitor() {
         @Override
@@ -8,16 +8,23 @@ import org.junit.Test;
 
 import com.google.common.collect.ImmutableList;
 import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.Location;
+import com.plasstech.lang.d2.codegen.LongTempLocation;
 import com.plasstech.lang.d2.codegen.MemoryAddress;
 import com.plasstech.lang.d2.codegen.StackLocation;
 import com.plasstech.lang.d2.codegen.TempLocation;
 import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.DeallocateTemp;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Label;
 import com.plasstech.lang.d2.codegen.il.Op;
 import com.plasstech.lang.d2.codegen.il.Transfer;
 import com.plasstech.lang.d2.codegen.il.UnaryOp;
 import com.plasstech.lang.d2.codegen.testing.LocationUtils;
 import com.plasstech.lang.d2.common.TokenType;
 import com.plasstech.lang.d2.type.SymTab;
+import com.plasstech.lang.d2.type.SymbolStorage;
 import com.plasstech.lang.d2.type.VarType;
 
 public class InlineRemapperTest {
@@ -120,4 +127,64 @@ public class InlineRemapperTest {
     assertThat(op.operator()).isEqualTo(TokenType.MINUS);
     assertThat(op.operand().toString()).contains("__source__inline__");
   }
+
+  @Test
+  public void localBecomesGlobal() {
+    SymTab symtab = new SymTab();
+    List<Op> mapped =
+        new InlineRemapper(ImmutableList.of(new Transfer(STACK, TEMP_SOURCE, null)), symtab)
+            .remap();
+    Transfer op = (Transfer) mapped.get(0);
+    assertThat(op.destination()).isInstanceOf(MemoryAddress.class);
+    assertThat(op.destination().storage()).isEqualTo(SymbolStorage.GLOBAL);
+    // Declared, so that it gets memory.
+    assertThat(symtab.get(op.destination().name())).isNotNull();
+  }
+
+  @Test
+  public void sameTempSameLocation() {
+    List<Op> mapped =
+        new InlineRemapper(
+                ImmutableList.of(
+                    new Transfer(TEMP_DEST, ConstantOperand.ONE, null),
+                    new Transfer(STACK, TEMP_DEST, null)),
+                new SymTab())
+            .remap();
+    Transfer set = (Transfer) mapped.get(0);
+    Transfer read = (Transfer) mapped.get(1);
+    assertThat(set.destination()).isInstanceOf(TempLocation.class);
+    assertThat(read.source()).isEqualTo(set.destination());
+  }
+
+  @Test
+  public void longTempStaysLong() {
+    Location longTemp = LocationUtils.newLongTempLocation("__long", VarType.INT);
+    List<Op> mapped =
+        new InlineRemapper(
+                ImmutableList.of(
+                    new Transfer(longTemp, ConstantOperand.ONE, null),
+                    new DeallocateTemp(longTemp, null)),
+                new SymTab())
+            .remap();
+    Transfer op = (Transfer) mapped.get(0);
+    assertThat(op.destination()).isInstanceOf(LongTempLocation.class);
+    assertThat(op.destination().name()).contains("__long__inline__");
+    assertThat(((DeallocateTemp) mapped.get(1)).temp()).isEqualTo(op.destination());
+  }
+
+  @Test
+  public void labels() {
+    List<Op> mapped =
+        new InlineRemapper(
+                ImmutableList.of(
+                    new Label("__loop_begin_1"),
+                    new IfOp(TEMP_SOURCE, "__loop_begin_1", false),
+                    new Goto("__loop_begin_1")),
+                new SymTab())
+            .remap();
+    Label label = (Label) mapped.get(0);
+    assertThat(label.label()).startsWith("__loop_begin_1__inline__");
+    assertThat(((IfOp) mapped.get(1)).destination()).isEqualTo(label.label());
+    assertThat(((Goto) mapped.get(2)).label()).isEqualTo(label.label());
+  }
 }
@@ -0,0 +1,239 @@
+package com.plasstech.lang.d2.optimize;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.plasstech.lang.d2.optimize.OpcodeSubject.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.MemoryAddress;
+import com.plasstech.lang.d2.codegen.StackLocation;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.BinOp;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.SysCall;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.testing.LocationUtils;
+import com.plasstech.lang.d2.common.TokenType;
+import com.plasstech.lang.d2.interpreter.InterpreterResult;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.testing.TestUtils;
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.VarType;
+
+public class SparseConditionalConstantOptimizerTest {
+  private static final Optimizer OPTIMIZER =
+      new ILOptimizer(new SparseConditionalConstantOptimizer(2)).setDebugLevel(2);
+
+  private static final TempLocation TEMP_INT1 =
+      LocationUtils.newTempLocation("__temp1", VarType.INT);
+  private static final TempLocation TEMP_BOOL =
+      LocationUtils.newTempLocation("__temp2", VarType.BOOL);
+  private static final StackLocation STACK_INT1 =
+      LocationUtils.newStackLocation("s1", VarType.INT, 0);
+  private static final MemoryAddress GLOBAL_INT1 =
+      LocationUtils.newMemoryAddress("g1", VarType.INT);
+  private static final MemoryAddress GLOBAL_BOOL =
+      LocationUtils.newMemoryAddress("b", VarType.BOOL);
+
+  @Test
+  public void sameConstantOnBothPaths() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new IfOp(GLOBAL_BOOL, "else", false),
+            new Transfer(GLOBAL_INT1, ConstantOperand.ONE, null),
+            new Goto("end"),
+            new Label("else"),
+            new Transfer(GLOBAL_INT1, ConstantOperand.ONE, null),
+            new Label("end"),
+            new Transfer(STACK_INT1, GLOBAL_INT1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(6)).isTransferredFrom(ConstantOperand.ONE);
+  }
+
+  @Test
+  public void differentConstants() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new IfOp(GLOBAL_BOOL, "else", false),
+            new Transfer(GLOBAL_INT1, ConstantOperand.ONE, null),
+            new Goto("end"),
+            new Label("else"),
+            new Transfer(GLOBAL_INT1, ConstantOperand.ZERO, null),
+            new Label("end"),
+            new Transfer(STACK_INT1, GLOBAL_INT1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized).isEqualTo(program);
+  }
+
+  @Test
+  public void branchNotTaken() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(GLOBAL_INT1, ConstantOperand.ONE, null),
+            new BinOp(TEMP_BOOL, GLOBAL_INT1, TokenType.LT, ConstantOperand.of(2), null),
+            new IfOp(TEMP_BOOL, "else", true),
+            new Goto("end"),
+            new Label("else"),
+            // Never runs, so it does not count.
+            new Transfer(GLOBAL_INT1, ConstantOperand.ZERO, null),
+            new Label("end"),
+            new Transfer(STACK_INT1, GLOBAL_INT1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    // The comparison is folded, then deleted because nothing reads it anymore.
+    assertThat(optimized.get(1)).isNop();
+    assertThat(optimized.get(2)).isNop();
+    assertThat(optimized.get(7)).isTransferredFrom(ConstantOperand.ONE);
+  }
+
+  @Test
+  public void branchTaken() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(TEMP_BOOL, ConstantOperand.TRUE, null),
+            new IfOp(TEMP_BOOL, "else", false),
+            new Label("else"),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(0)).isNop();
+    assertThat(optimized.get(1)).isGoto("else");
+  }
+
+  @Test
+  public void incrementAcrossBlocks() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(GLOBAL_INT1, ConstantOperand.ONE, null),
+            new Label("next"),
+            new Inc(GLOBAL_INT1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(2)).isTransferredFrom(ConstantOperand.of(2));
+  }
+
+  @Test
+  public void tempAcrossBlocksIsDeleted() {
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(TEMP_INT1, ConstantOperand.of(3), null),
+            new Goto("next"),
+            new Label("next"),
+            new Transfer(STACK_INT1, TEMP_INT1, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(0)).isNop();
+    assertThat(optimized.get(3)).isTransferredFrom(ConstantOperand.of(3));
+  }
+
+  @Test
+  public void divisionByZeroIsNotFolded() {
+    BinOp divide = new BinOp(STACK_INT1, ConstantOperand.ONE, TokenType.DIV, GLOBAL_INT1, null);
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(GLOBAL_INT1, ConstantOperand.ZERO, null),
+            new Label("next"),
+            divide,
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(2)).isSameInstanceAs(divide);
+  }
+
+  @Test
+  public void globalBeforeLoop() {
+    InterpreterResult result =
+        TestUtils.optimizeAssertSameVariables(
+            "n = 10 debug = false i = 0 "
+                + "while i < n do i = i + 1 { "
+                + "  if debug { println 'debug' } "
+                + "  print n "
+                + "}",
+            OPTIMIZER);
+
+    // Only the "if" at the end of the loop is left.
+    int ifs = 0;
+    boolean printsConstant = false;
+    for (Op op : result.code()) {
+      if (op instanceof IfOp) {
+        ifs++;
+      } else if (op instanceof SysCall) {
+        printsConstant |= ((SysCall) op).arg().equals(ConstantOperand.of(10));
+      }
+    }
+    assertThat(ifs).isEqualTo(1);
+    assertThat(printsConstant).isTrue();
+  }
+
+  @Test
+  public void loopCarriedIsNotConstant() {
+    TestUtils.optimizeAssertSameVariables(
+        "sum = 0 i = 0 while i < 10 do i = i + 1 { sum = sum + i } println sum", OPTIMIZER);
+  }
+
+  @Test
+  public void callSetsGlobal() {
+    TestUtils.optimizeAssertSameVariables(
+        "g = 1 f: proc { g = 2 } i = 0 while i < 2 do i = i + 1 { println g f() } println g",
+        OPTIMIZER);
+  }
+
+  @Test
+  public void callClobbersLocalsButNotTemps() {
+    // A nested procedure can set the locals of its parent.
+    ProcSymbol procSym =
+        new ProcSymbol(new ProcedureNode("g", ImmutableList.of(), VarType.VOID, null, null), null);
+    ImmutableList<Op> program =
+        ImmutableList.of(
+            new Transfer(STACK_INT1, ConstantOperand.ONE, null),
+            new Transfer(TEMP_INT1, ConstantOperand.of(3), null),
+            new Call(procSym, ImmutableList.of(), ImmutableList.of(), null),
+            new Label("next"),
+            new Transfer(GLOBAL_INT1, STACK_INT1, null),
+            new BinOp(STACK_INT1, TEMP_INT1, TokenType.PLUS, ConstantOperand.ONE, null),
+            new Stop());
+
+    ImmutableList<Op> optimized = OPTIMIZER.optimize(program, null);
+
+    assertThat(optimized.get(4)).isTransferredFrom(STACK_INT1);
+    assertThat(optimized.get(5)).isTransferredFrom(ConstantOperand.of(4));
+  }
+
+  @Test
+  public void allOptimizers() {
+    TestUtils.optimizeAssertSameVariables(
+        "limit = 3 verbose = false "
+            + "fib: proc(n: int): int { "
+            + "  if n <= 1 { return n } "
+            + "  a = 0 b = 1 i = 1 "
+            + "  while i < n do i = i + 1 { t = a + b a = b b = t } "
+            + "  return b "
+            + "} "
+            + "i = 0 while i < limit do i = i + 1 { "
+            + "  if verbose { println 'fib of ' } "
+            + "  println fib(i * limit) "
+            + "}");
+  }
+}
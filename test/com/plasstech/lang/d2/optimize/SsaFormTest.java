@@ -0,0 +1,90 @@
+package com.plasstech.lang.d2.optimize;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.codegen.ConstantOperand;
+import com.plasstech.lang.d2.codegen.MemoryAddress;
+import com.plasstech.lang.d2.codegen.TempLocation;
+import com.plasstech.lang.d2.codegen.il.Call;
+import com.plasstech.lang.d2.codegen.il.Goto;
+import com.plasstech.lang.d2.codegen.il.IfOp;
+import com.plasstech.lang.d2.codegen.il.Inc;
+import com.plasstech.lang.d2.codegen.il.Label;
+import com.plasstech.lang.d2.codegen.il.Op;
+import com.plasstech.lang.d2.codegen.il.Stop;
+import com.plasstech.lang.d2.codegen.il.Transfer;
+import com.plasstech.lang.d2.codegen.testing.LocationUtils;
+import com.plasstech.lang.d2.optimize.SsaForm.Value;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.type.ProcSymbol;
+import com.plasstech.lang.d2.type.VarType;
+
+public class SsaFormTest {
+  private static final TempLocation TEMP = LocationUtils.newTempLocation("__temp1", VarType.INT);
+  private static final MemoryAddress GLOBAL = LocationUtils.newMemoryAddress("g", VarType.INT);
+  private static final MemoryAddress OTHER = LocationUtils.newMemoryAddress("h", VarType.INT);
+  private static final MemoryAddress COND = LocationUtils.newMemoryAddress("b", VarType.BOOL);
+
+  @Test
+  public void phiAtJoin() {
+    ImmutableList<Op> code =
+        ImmutableList.of(
+            new IfOp(COND, "else", false),
+            new Transfer(GLOBAL, ConstantOperand.ONE, null),
+            new Goto("end"),
+            new Label("else"),
+            new Transfer(GLOBAL, ConstantOperand.ZERO, null),
+            new Label("end"),
+            new Transfer(OTHER, GLOBAL, null),
+            new Stop());
+
+    SsaForm ssa = SsaForm.build(ControlFlowGraph.build(code));
+
+    Value read = ssa.readAt(6, GLOBAL);
+    assertThat(read.isPhi()).isTrue();
+    assertThat(read.arguments()).containsExactly(ssa.definitionAt(1), ssa.definitionAt(4));
+    assertThat(ssa.definitionAt(1).phiUsers()).containsExactly(read);
+    assertThat(read.readers()).containsExactly(6);
+    // Nothing reads the other variable after the join, so it needs no phi.
+    assertThat(ssa.phis(read.block())).containsExactly(read);
+  }
+
+  @Test
+  public void loopHeaderMergesEntryValue() {
+    ImmutableList<Op> code =
+        ImmutableList.of(
+            new Label("loop"),
+            new Inc(GLOBAL, null),
+            new IfOp(COND, "loop", false),
+            new Stop());
+
+    SsaForm ssa = SsaForm.build(ControlFlowGraph.build(code));
+
+    Value read = ssa.readAt(1, GLOBAL);
+    assertThat(read.isPhi()).isTrue();
+    assertThat(read.block()).isSameInstanceAs(ssa.graph().entry());
+    assertThat(read.arguments()).containsExactly(ssa.definitionAt(1));
+  }
+
+  @Test
+  public void callClobbersGlobalsButNotTemps() {
+    ProcSymbol procSym =
+        new ProcSymbol(new ProcedureNode("f", ImmutableList.of(), VarType.VOID, null, null), null);
+    ImmutableList<Op> code =
+        ImmutableList.of(
+            new Transfer(GLOBAL, ConstantOperand.ONE, null),
+            new Transfer(TEMP, ConstantOperand.ONE, null),
+            new Call(procSym, ImmutableList.of(), ImmutableList.of(), null),
+            new Transfer(OTHER, GLOBAL, null),
+            new Transfer(OTHER, TEMP, null),
+            new Stop());
+
+    SsaForm ssa = SsaForm.build(ControlFlowGraph.build(code));
+
+    assertThat(ssa.readAt(3, GLOBAL).isUnknown()).isTrue();
+    assertThat(ssa.readAt(4, TEMP)).isSameInstanceAs(ssa.definitionAt(1));
+  }
+}
@@ -0,0 +1,251 @@
+package com.plasstech.lang.d2.parse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.plasstech.lang.d2.lex.Lexer;
+import com.plasstech.lang.d2.parse.node.AssignmentNode;
+import com.plasstech.lang.d2.parse.node.BinOpNode;
+import com.plasstech.lang.d2.parse.node.BlockNode;
+import com.plasstech.lang.d2.parse.node.DefaultNodeVisitor;
+import com.plasstech.lang.d2.parse.node.IfNode;
+import com.plasstech.lang.d2.parse.node.Node;
+import com.plasstech.lang.d2.parse.node.PrintNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.parse.node.WhileNode;
+import com.plasstech.lang.d2.phase.State;
+
+public class IncrementalParserTest {
+  private static final String PROGRAM =
+      "// header\n"
+          + "a=3 b=a+4\n"
+          + "fib: proc(n:int): int {\n"
+          + "  if n <= 1 { return n }\n"
+          + "  return fib(n - 1) + fib(n - 2)\n"
+          + "}\n"
+          + "r: record { s: string i: int }\n"
+          + "arr: int[3]\n"
+          + "i = 0 while i < 3 do i++ {\n"
+          + "  arr[i] = fib(i) // comment\n"
+          + "  if i == 2 { break } else { continue }\n"
+          + "}\n"
+          + "print 'hello\\n' + \"world\"\n"
+          + "x=new r x.s='s' println x.s\n";
+
+  private static final String[] INSERTIONS = {
+    "a", "1", " ", "\n", "\n\n", "(", ")", "{", "}", "+", "'", "//", "x=1\n", "print", "if ",
+    "\t", "0y", ".5", "\"s\"", ":int"
+  };
+
+  @Test
+  public void initialParse() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    assertSameAsFullParse(parser);
+  }
+
+  @Test
+  public void editWithinLine() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    int offset = PROGRAM.indexOf("arr[i]");
+    State state = parser.edit(offset + 4, 1, "i+1");
+    assertThat(state.error()).isFalse();
+    assertThat(parser.text()).contains("arr[i+1] = fib(i)");
+    assertSameAsFullParse(parser);
+    // The while, and the statement before it.
+    assertThat(parser.lastParsed()).isEqualTo(2);
+  }
+
+  @Test
+  public void addLines() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    State state = parser.edit(PROGRAM.indexOf("b=a+4"), 0, "\n\n  ");
+    assertThat(state.error()).isFalse();
+    assertSameAsFullParse(parser);
+    // Only the statement before the edit; the one after it is moved.
+    assertThat(parser.lastParsed()).isEqualTo(1);
+
+    AssignmentNode last = (AssignmentNode) statements(state).get(1);
+    BinOpNode plus = (BinOpNode) last.expr();
+    assertThat(plus.position().line()).isEqualTo(4);
+    assertThat(plus.right().position().line()).isEqualTo(4);
+    assertThat(plus.right().position().column()).isEqualTo(7);
+  }
+
+  @Test
+  public void removeLines() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    int offset = PROGRAM.indexOf("\nr: record");
+    State state = parser.edit(offset, 1, " ");
+    assertThat(state.error()).isFalse();
+    assertSameAsFullParse(parser);
+  }
+
+  @Test
+  public void errorThenFix() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    int offset = PROGRAM.indexOf("return fib");
+    State state = parser.edit(offset, 0, "(");
+    assertThat(state.error()).isTrue();
+    assertSameAsFullParse(parser);
+    state = parser.edit(PROGRAM.length(), 0, "\nz=1\n");
+    assertThat(state.error()).isTrue();
+    assertSameAsFullParse(parser);
+    state = parser.edit(offset, 1, "");
+    assertThat(state.error()).isFalse();
+    assertSameAsFullParse(parser);
+  }
+
+  @Test
+  public void emptyText() {
+    IncrementalParser parser = new IncrementalParser("");
+    assertSameAsFullParse(parser);
+    parser.edit(0, 0, "a=1");
+    assertSameAsFullParse(parser);
+    parser.edit(0, 3, "");
+    assertSameAsFullParse(parser);
+  }
+
+  @Test
+  public void editBeforeFirstStatement() {
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    parser.edit(0, 0, "\n");
+    assertSameAsFullParse(parser);
+    assertThat(parser.lastParsed()).isEqualTo(0);
+  }
+
+  @Test
+  public void bigProgram() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      sb.append(String.format("v%d = %d * (%d + 1)\n", i, i, i));
+    }
+    String text = sb.toString();
+    IncrementalParser parser = new IncrementalParser(text);
+    int offset = text.indexOf("v1000 = ");
+    State state = parser.edit(offset + 8, 0, "42 + ");
+    assertThat(state.error()).isFalse();
+    assertThat(parser.lastParsed()).isEqualTo(2);
+    assertSameAsFullParse(parser);
+
+    parser.edit(offset, 0, "\n");
+    assertThat(parser.lastParsed()).isEqualTo(2);
+    assertSameAsFullParse(parser);
+  }
+
+  @Test
+  public void randomEdits() {
+    Random random = new Random(1234);
+    IncrementalParser parser = new IncrementalParser(PROGRAM);
+    for (int i = 0; i < 2000; ++i) {
+      String text = parser.text();
+      if (text.length() > 2 * PROGRAM.length()) {
+        parser = new IncrementalParser(PROGRAM);
+        text = PROGRAM;
+      }
+      int offset = random.nextInt(text.length() + 1);
+      int removed = random.nextInt(Math.min(6, text.length() - offset) + 1);
+      String inserted = random.nextBoolean() ? INSERTIONS[random.nextInt(INSERTIONS.length)] : "";
+      parser.edit(offset, removed, inserted);
+      assertSameAsFullParse(parser);
+      if (random.nextInt(20) == 0) {
+        // Get back to a good state once in a while.
+        parser = new IncrementalParser(PROGRAM);
+      }
+    }
+  }
+
+  private static List<Node> statements(State state) {
+    return new ArrayList<>(state.programNode().statements().statements());
+  }
+
+  private static void assertSameAsFullParse(IncrementalParser incremental) {
+    String text = incremental.text();
+    State expected = new Parser(new Lexer(text)).execute(State.create(text).build());
+    State actual = incremental.state();
+    assertWithMessage(text).that(actual.error()).isEqualTo(expected.error());
+    if (expected.error()) {
+      assertWithMessage(text)
+          .that(actual.exception().toString())
+          .isEqualTo(expected.exception().toString());
+      return;
+    }
+    ProgramNode expectedProgram = expected.programNode();
+    ProgramNode actualProgram = actual.programNode();
+    assertWithMessage(text)
+        .that(withoutHashes(actualProgram.toString()))
+        .isEqualTo(withoutHashes(expectedProgram.toString()));
+    assertWithMessage(text)
+        .that(positions(actualProgram))
+        .containsExactlyElementsIn(positions(expectedProgram))
+        .inOrder();
+  }
+
+  /** Removes identity hashes, e.g., of IncDecNodes, which have no toString. */
+  private static String withoutHashes(String program) {
+    return program.replaceAll("@[0-9a-f]+", "");
+  }
+
+  /** Positions of all statements, and some of the expressions in them. */
+  private static List<String> positions(ProgramNode program) {
+    List<String> positions = new ArrayList<>();
+    program.accept(
+        new DefaultNodeVisitor() {
+          private void add(Node node) {
+            positions.add(node.getClass().getSimpleName() + " " + node.position());
+          }
+
+          @Override
+          public void visit(BlockNode node) {
+            add(node);
+            node.statements().forEach(s -> s.accept(this));
+          }
+
+          @Override
+          public void visit(AssignmentNode node) {
+            add(node);
+            add(node.lvalue());
+            add(node.expr());
+            if (node.expr() instanceof BinOpNode) {
+              add(((BinOpNode) node.expr()).left());
+              add(((BinOpNode) node.expr()).right());
+            }
+          }
+
+          @Override
+          public void visit(PrintNode node) {
+            add(node);
+            add(node.expr());
+          }
+
+          @Override
+          public void visit(IfNode node) {
+            add(node);
+            node.cases().forEach(c -> add(c.condition()));
+            super.visit(node);
+          }
+
+          @Override
+          public void visit(WhileNode node) {
+            add(node);
+            add(node.condition());
+            node.doStatement().ifPresent(s -> s.accept(this));
+            super.visit(node);
+          }
+
+          @Override
+          public void visit(ProcedureNode node) {
+            add(node);
+            node.parameters().forEach(this::add);
+            super.visit(node);
+          }
+        });
+    return positions;
+  }
+}
@@ -0,0 +1,111 @@
+package com.plasstech.lang.d2.parse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.plasstech.lang.d2.lex.Lexer;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.StatementNode;
+import com.plasstech.lang.d2.phase.State;
+
+public class ParallelParserTest {
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @After
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void manyProcedures() {
+    String text = program(50);
+    State state = assertSameAsSequential(text, 10);
+    assertThat(state.programNode().statements().statements()).hasSize(101);
+    StatementNode last = state.programNode().statements().statements().get(99);
+    assertThat(last).isInstanceOf(ProcedureNode.class);
+    assertThat(((ProcedureNode) last).name()).isEqualTo("p49");
+    assertThat(last.position().line()).isEqualTo(49 * 7 + 2);
+  }
+
+  @Test
+  public void smallProgramIsOnePiece() {
+    assertSameAsSequential(program(3), ParallelParser.DEFAULT_MIN_PIECE_TOKENS);
+  }
+
+  @Test
+  public void empty() {
+    assertSameAsSequential("", 1);
+    assertSameAsSequential("// just a comment", 1);
+  }
+
+  @Test
+  public void externProcedures() {
+    assertSameAsSequential("a: extern proc(x:int) b=1 c: extern proc():string d=2", 1);
+  }
+
+  @Test
+  public void firstErrorWins() {
+    String text = program(50);
+    String broken =
+        text.replace("p10: proc(n:int): int {", "p10: proc(n:int): int {{")
+            .replace("p40: proc(n:int): int {", "p40: proc(n int): int {");
+    State state = assertSameAsSequential(broken, 10);
+    assertThat(state.error()).isTrue();
+    assertThat(state.exception().toString()).contains("line " + (10 * 7 + 2) + ",");
+  }
+
+  @Test
+  public void parseErrorBeforeScannerError() {
+    State state = assertSameAsSequential(program(20) + "x = = 1\n" + program(5) + "#", 10);
+    assertThat(state.errorMessage()).contains("Unexpected '='");
+  }
+
+  @Test
+  public void scannerError() {
+    State state = assertSameAsSequential(program(20) + "x = #", 10);
+    assertThat(state.errorMessage()).contains("Unexpected character");
+  }
+
+  @Test
+  public void procedureInsideBlockIsNotSplit() {
+    assertSameAsSequential(program(5) + "if true { f: proc() {} }\n" + program(5), 1);
+  }
+
+  private static String program(int procedures) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < procedures; ++i) {
+      sb.append(String.format("v%d = %d\n", i, i));
+      sb.append(String.format("p%d: proc(n:int): int {\n", i));
+      sb.append("  s = 0 i = 0 while i < n do i++ {\n");
+      sb.append(String.format("    s = s + i * %d\n", i));
+      sb.append("  }\n");
+      sb.append("  return s\n");
+      sb.append("}\n");
+    }
+    sb.append("println p1(10)\n");
+    return sb.toString();
+  }
+
+  private State assertSameAsSequential(String text, int minPieceTokens) {
+    State expected = new Parser(new Lexer(text)).execute(State.create(text).build());
+    State actual =
+        new ParallelParser(new Lexer(text), pool, minPieceTokens)
+            .execute(State.create(text).build());
+    assertWithMessage(text).that(actual.error()).isEqualTo(expected.error());
+    if (expected.error()) {
+      assertThat(actual.exception().toString()).isEqualTo(expected.exception().toString());
+    } else {
+      // Removes the identity hashes of IncDecNodes, which have no toString.
+      assertThat(actual.programNode().toString().replaceAll("@[0-9a-f]+", ""))
+          .isEqualTo(expected.programNode().toString().replaceAll("@[0-9a-f]+", ""));
+      assertThat(actual.programNode().position().toString())
+          .isEqualTo(expected.programNode().position().toString());
+    }
+    return actual;
+  }
+}
@@ -0,0 +1,48 @@
+package com.plasstech.lang.d2.phase;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class PhaseTimerTest {
+  private static final int BYTES = 16 * 1024 * 1024;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void countsCountedTasks() throws Exception {
+    PhaseTimer timer = PhaseTimer.start();
+    executor.submit(PhaseTimer.counted(() -> new byte[BYTES])).get();
+    PhaseStats stats = timer.stop("counted");
+
+    assertThat(stats.allocatedBytes()).isAtLeast((long) BYTES);
+  }
+
+  @Test
+  public void ignoresOtherThreads() throws Exception {
+    PhaseTimer timer = PhaseTimer.start();
+    executor.submit(() -> new byte[BYTES]).get();
+    PhaseStats stats = timer.stop("uncounted");
+
+    assertThat(stats.allocatedBytes()).isLessThan((long) BYTES);
+  }
+
+  @Test
+  public void countedOnSameThreadOnce() throws Exception {
+    PhaseTimer timer = PhaseTimer.start();
+    PhaseTimer.counted(() -> new byte[BYTES]).call();
+    PhaseStats stats = timer.stop("same thread");
+
+    assertThat(stats.allocatedBytes()).isAtLeast((long) BYTES);
+    assertThat(stats.allocatedBytes()).isLessThan(2L * BYTES);
+  }
+}
@@ -0,0 +1,191 @@
+package com.plasstech.lang.d2.type;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.plasstech.lang.d2.common.D2RuntimeException;
+import com.plasstech.lang.d2.lex.Lexer;
+import com.plasstech.lang.d2.parse.Parser;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.ProgramNode;
+import com.plasstech.lang.d2.parse.node.StatementNode;
+import com.plasstech.lang.d2.phase.State;
+
+public class ParallelStaticCheckerTest {
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @After
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  @Test
+  public void manyProcedures() {
+    State state = assertSameAsSequential(program("p", 50, ""));
+    assertThat(state.error()).isFalse();
+  }
+
+  @Test
+  public void errorsInSourceOrder() {
+    String text =
+        "a = 'x' + 1\n"
+            + program("p", 5, "    s = s + 'bad'\n")
+            + "b = -true\n"
+            + program("q", 5, "    println undefined\n")
+            + "c = 1 + false\n";
+    State state = assertSameAsSequential(text);
+    assertThat(state.error()).isTrue();
+    assertThat(state.errors().errors().size()).isGreaterThan(10);
+  }
+
+  @Test
+  public void tooManyErrors() {
+    State state = assertSameAsSequential(program("p", 60, "    println undefined + 1\n"));
+    assertThat(state.errors().errors()).hasSize(101);
+  }
+
+  @Test
+  public void dependentProcedures() {
+    String text =
+        "g = 3\n"
+            + "usesGlobal: proc(): int { return g }\n"
+            + "callsUntyped: proc() { untyped(3) }\n"
+            + "untyped: proc(n) { println n }\n"
+            + "assignsLater: proc() { h = 'local' println h }\n"
+            + "h = 4\n"
+            + "independent: proc(n: int): int { m = n * 2 return m }\n"
+            + "println usesGlobal() + independent(2)\n"
+            + "callsUntyped()\n"
+            + "assignsLater()\n";
+    State state = assertSameAsSequential(text);
+    assertThat(state.error()).isFalse();
+  }
+
+  @Test
+  public void nestedProcedures() {
+    String text =
+        program("p", 3, "")
+            + "outer: proc(n: int): int {\n"
+            + "  inner: proc(m): int { return m + 1 }\n"
+            + "  return inner(n)\n"
+            + "}\n"
+            + "println outer(3)\n";
+    assertSameAsSequential(text);
+  }
+
+  @Test
+  public void missingReturn() {
+    assertSameAsSequential(
+        program("p", 3, "") + "f: proc(n: int): int { if n > 0 { return n } }\n");
+  }
+
+  @Test
+  public void findsIndependentProcedures() {
+    String text =
+        "g = 3\n"
+            + "usesGlobal: proc(): int { return g }\n"
+            + "untyped: proc(n) { println n }\n"
+            + "callsUntyped: proc() { untyped(3) }\n"
+            + "usesArgs: proc() { println length(ARGS) }\n"
+            + "assignsLater: proc() { h = 'local' println h }\n"
+            + "h = 4\n"
+            + "typed: proc(n: int): int { m = n * 2 return m }\n"
+            + "callsTyped: proc(): int { return typed(3) }\n";
+    ProgramNode root = parse(text);
+    IndependentProcedureFinder finder = new IndependentProcedureFinder(root);
+    List<String> independent = new ArrayList<>();
+    for (StatementNode statement : root.statements().statements()) {
+      if (statement instanceof ProcedureNode) {
+        ProcedureNode procedure = (ProcedureNode) statement;
+        if (finder.isIndependent(procedure)) {
+          independent.add(procedure.name());
+        }
+      }
+    }
+    assertThat(independent).containsExactly("typed", "callsTyped");
+  }
+
+  private static String program(String prefix, int procedures, String extraBodyStatement) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < procedures; ++i) {
+      sb.append(String.format("%sv%d = %d\n", prefix, i, i));
+      sb.append(String.format("%s%d: proc(n: int): int {\n", prefix, i));
+      sb.append("  s = 0 i = 0 while i < n do i++ {\n");
+      sb.append(String.format("    s = s + i * %d\n", i));
+      sb.append(extraBodyStatement);
+      sb.append("  }\n");
+      sb.append("  return s\n");
+      sb.append("}\n");
+    }
+    sb.append(String.format("println %s0(10)\n", prefix));
+    return sb.toString();
+  }
+
+  private static ProgramNode parse(String text) {
+    State state = new Parser(new Lexer(text)).execute(State.create(text).build());
+    assertThat(state.error()).isFalse();
+    return state.programNode();
+  }
+
+  private State assertSameAsSequential(String text) {
+    State expected =
+        new StaticChecker().execute(State.create(text).build().addProgramNode(parse(text)));
+    State actual =
+        new StaticChecker(pool).execute(State.create(text).build().addProgramNode(parse(text)));
+    assertThat(actual.error()).isEqualTo(expected.error());
+    if (expected.error()) {
+      assertThat(messages(actual)).containsExactlyElementsIn(messages(expected)).inOrder();
+    } else {
+      assertThat(dump(actual.typeCheckResult().symbolTable()))
+          .isEqualTo(dump(expected.typeCheckResult().symbolTable()));
+      assertThat(withoutIds(actual.programNode().toString()))
+          .isEqualTo(withoutIds(expected.programNode().toString()));
+    }
+    return actual;
+  }
+
+  private static List<String> messages(State state) {
+    List<String> messages = new ArrayList<>();
+    for (D2RuntimeException e : state.errors().errors()) {
+      messages.add(e.toString());
+    }
+    return messages;
+  }
+
+  /** Removes identity hashes, e.g., of IncDecNodes, and the ids in block names. */
+  private static String withoutIds(String text) {
+    return text.replaceAll("@[0-9a-f]+| \\(\\d+\\)", "");
+  }
+
+  /** Returns all the symbols in the table and its procedures and blocks, with their types. */
+  private static String dump(SymbolTable symbolTable) {
+    StringBuilder sb = new StringBuilder();
+    Map<String, Symbol> entries = new TreeMap<>();
+    symbolTable.entries().forEach((name, symbol) -> entries.put(withoutIds(name), symbol));
+    for (Map.Entry<String, Symbol> entry : entries.entrySet()) {
+      Symbol symbol = entry.getValue();
+      sb.append(entry.getKey())
+          .append(": ")
+          .append(symbol instanceof BlockSymbol ? "block" : symbol.toString())
+          .append(' ')
+          .append(symbol.varType())
+          .append(' ')
+          .append(symbol.isAssigned())
+          .append('\n');
+      if (symbol instanceof ProcSymbol) {
+        sb.append("{\n").append(dump(((ProcSymbol) symbol).symTab())).append("}\n");
+      } else if (symbol instanceof BlockSymbol) {
+        sb.append("{\n").append(dump(((BlockSymbol) symbol).symTab())).append("}\n");
+      }
+    }
+    return sb.toString();
+  }
+}
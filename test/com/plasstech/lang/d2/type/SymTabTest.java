@@ -0,0 +1,96 @@
+package com.plasstech.lang.d2.type;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.plasstech.lang.d2.common.Position;
+import com.plasstech.lang.d2.parse.node.BlockNode;
+import com.plasstech.lang.d2.parse.node.ProcedureNode;
+import com.plasstech.lang.d2.parse.node.RecordDeclarationNode;
+
+public class SymTabTest {
+  private static final Position POSITION = new Position(1, 1);
+
+  private final SymTab symTab = new SymTab();
+
+  @Test
+  public void viewsAreReused() {
+    symTab.assign("a", VarType.INT);
+    symTab.declareRecord(new RecordDeclarationNode("r", ImmutableList.of(), POSITION));
+
+    assertThat(symTab.entries()).isSameInstanceAs(symTab.entries());
+    assertThat(symTab.variables()).isSameInstanceAs(symTab.variables());
+    assertThat(symTab.records()).isSameInstanceAs(symTab.records());
+    assertThat(symTab.procedures()).isSameInstanceAs(symTab.procedures());
+  }
+
+  @Test
+  public void viewsAreRebuiltAfterAdding() {
+    symTab.assign("a", VarType.INT);
+    assertThat(symTab.variables().keySet()).containsExactly("a");
+
+    symTab.declareTemp("__temp1", VarType.STRING);
+    assertThat(symTab.variables().keySet()).containsExactly("a", "__temp1");
+    assertThat(symTab.entries().keySet()).containsExactly("a", "__temp1");
+  }
+
+  @Test
+  public void assigningAgainKeepsViews() {
+    symTab.assign("a", VarType.INT);
+    Object variables = symTab.variables();
+    symTab.assign("a", VarType.INT);
+    assertThat(symTab.variables()).isSameInstanceAs(variables);
+  }
+
+  @Test
+  public void proceduresAndRecords() {
+    symTab.assign("a", VarType.INT);
+    ProcSymbol proc = symTab.declareProc(procedure("p"));
+    RecordSymbol record =
+        symTab.declareRecord(new RecordDeclarationNode("r", ImmutableList.of(), POSITION));
+
+    assertThat(symTab.procedures()).containsExactly("p", proc);
+    assertThat(symTab.records()).containsExactly("r", record);
+    assertThat(symTab.variables().keySet()).containsExactly("a");
+    assertThat(symTab.entries().keySet()).containsExactly("a", "p", "r");
+  }
+
+  @Test
+  public void getRecursive() {
+    VariableSymbol global = symTab.assign("a", VarType.INT);
+    ProcSymbol proc = symTab.declareProc(procedure("p"));
+    SymbolTable procTable = proc.symTab();
+    BlockNode block = new BlockNode(ImmutableList.of(), POSITION);
+    SymbolTable blockTable = procTable.enterBlock(block).symTab();
+
+    assertThat(blockTable.getRecursive("a")).isSameInstanceAs(global);
+    assertThat(blockTable.getRecursive("p")).isSameInstanceAs(proc);
+    assertThat(blockTable.getRecursive("b")).isNull();
+
+    VariableSymbol local = procTable.assign("a", VarType.STRING);
+    assertThat(blockTable.getRecursive("a")).isSameInstanceAs(local);
+    assertThat(symTab.getRecursive("a")).isSameInstanceAs(global);
+  }
+
+  @Test
+  public void formals() {
+    ProcSymbol proc = symTab.declareProc(procedure("p"));
+    proc.declareParam("x", VarType.INT, 0);
+    proc.declareParam("y", VarType.STRING, 1);
+
+    assertThat(proc.formals()).isSameInstanceAs(proc.formals());
+    assertThat(proc.formals()).hasSize(2);
+    assertThat(proc.formal(1).name()).isEqualTo("y");
+  }
+
+  private static ProcedureNode procedure(String name) {
+    return new ProcedureNode(
+        name,
+        ImmutableList.of(),
+        VarType.VOID,
+        new BlockNode(ImmutableList.of(), POSITION),
+        POSITION);
+  }
+}